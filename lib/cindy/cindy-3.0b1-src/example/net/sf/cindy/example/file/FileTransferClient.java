@@ -31,6 +31,7 @@ import net.sf.cindy.SessionHandlerAdapter;
 import net.sf.cindy.SessionType;
 import net.sf.cindy.buffer.BufferFactory;
 import net.sf.cindy.encoder.BufferEncoder;
+import net.sf.cindy.packet.FileRegionPacket;
 import net.sf.cindy.session.SessionFactory;
 import net.sf.cindy.util.ChannelUtils;
 import net.sf.cindy.util.Charset;
@@ -58,6 +59,7 @@ public class FileTransferClient {
         private final File file;
 
         private FileChannel fc;
+        private long position;
         private ElapsedTime elapsedTime;
 
         public FileTransferHandler(File file) {
@@ -68,6 +70,7 @@ public class FileTransferClient {
             elapsedTime = new ElapsedTime();
             if (fc == null)
                 fc = new RandomAccessFile(file, "r").getChannel();
+            position = 0;
 
             sendName(session);
             sendContent(session);
@@ -90,12 +93,9 @@ public class FileTransferClient {
 
         private void sendContent(Session session) throws IOException {
             for (int i = 1; i <= QUEUE_SIZE; i++) {
-                Buffer buffer = BufferFactory.allocate(MESSAGE_SIZE);
-                buffer.position(2);
-                int readCount = buffer.read(fc);
+                int count = (int) Math.min(MESSAGE_SIZE, fc.size() - position);
 
-                if (readCount == -1) { // end of file
-                    buffer.release();
+                if (count <= 0) { // end of file
                     session.send(BufferFactory.allocate(0)).addListener(
                             new FutureListener() {
 
@@ -106,8 +106,11 @@ public class FileTransferClient {
                             });
                     break;
                 } else {
-                    buffer.putUnsignedShort(0, readCount).flip();
-                    session.send(buffer);
+                    // send the length header, then transfer the file region
+                    session.send(BufferFactory.allocate(2).putUnsignedShort(
+                            count).flip());
+                    session.flush(new FileRegionPacket(fc, position, count));
+                    position += count;
                 }
             }
         }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.example.http;
+
+/**
+ * A chunk of the response content, sent after a <code>HttpResponse</code>
+ * with "Transfer-Encoding: chunked". An empty chunk is the last chunk.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class HttpChunk {
+
+    private static final byte[] EMPTY_CONTENT = new byte[0];
+
+    private final byte[] content;
+
+    /**
+     * Create the last chunk.
+     */
+    public HttpChunk() {
+        this(EMPTY_CONTENT);
+    }
+
+    public HttpChunk(byte[] content) {
+        this.content = content == null ? EMPTY_CONTENT : content;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public boolean isLast() {
+        return content.length == 0;
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.example.http;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Packet;
+import net.sf.cindy.PacketDecoder;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.SessionType;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.session.SessionFactory;
+import net.sf.cindy.util.ElapsedTime;
+import net.sf.cindy.util.Histogram;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Http load test client. Each connection keeps the given count of pipelined
+ * GET requests in flight on a keep-alive connection, and sends the next
+ * request when a response received. Reports the requests per second and the
+ * latency percentiles after one second warm up. Responses must have the
+ * Content-Length header.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class HttpLoadClient {
+
+    private static final byte[] HEADER_END = "\r\n\r\n".getBytes();
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes();
+
+    private static final Histogram LATENCY = new Histogram(
+            60L * 1000 * 1000, 5); // microseconds
+    private static final AtomicLong COMPLETED = new AtomicLong();
+    private static final AtomicLong FAILED = new AtomicLong();
+
+    private static volatile boolean running = true;
+
+    /**
+     * Decode the status code of a response, the content is skipped.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class StatusDecoder implements PacketDecoder {
+
+        public Object decode(Session session, Packet packet) throws Exception {
+            Buffer buffer = packet.getContent();
+            int index = buffer.indexOf(HEADER_END);
+            if (index < 0)
+                return null;
+            int start = buffer.position();
+            int end = index + HEADER_END.length;
+            int length = end + getContentLength(buffer, start, index);
+            if (buffer.limit() < length)
+                return null;
+            // "HTTP/1.1 200 OK"
+            int status = (buffer.get(start + 9) - '0') * 100
+                    + (buffer.get(start + 10) - '0') * 10
+                    + (buffer.get(start + 11) - '0');
+            buffer.position(length);
+            return new Integer(status);
+        }
+
+        private int getContentLength(Buffer buffer, int start, int end) {
+            Label: for (int i = start; i <= end - CONTENT_LENGTH.length; i++) {
+                for (int j = 0; j < CONTENT_LENGTH.length; j++) {
+                    if (Character.toLowerCase((char) buffer.get(i + j)) != CONTENT_LENGTH[j])
+                        continue Label;
+                }
+                int length = 0;
+                for (i += CONTENT_LENGTH.length; i < end; i++) {
+                    byte b = buffer.get(i);
+                    if (b >= '0' && b <= '9')
+                        length = length * 10 + b - '0';
+                    else if (b != ' ')
+                        break;
+                }
+                return length;
+            }
+            throw new IllegalStateException("no content length");
+        }
+
+    }
+
+    /**
+     * Keep pipelined requests in flight.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class LoadHandler extends SessionHandlerAdapter {
+
+        private final byte[] request;
+        private final long[] sendTimes;
+        private int head;
+        private int tail;
+
+        public LoadHandler(byte[] request, int pipeline) {
+            this.request = request;
+            this.sendTimes = new long[pipeline];
+        }
+
+        private void send(Session session) {
+            sendTimes[tail++ % sendTimes.length] = ElapsedTime
+                    .currentTimeMicros();
+            session.flush(new DefaultPacket(BufferFactory.wrap(request)));
+        }
+
+        public void sessionStarted(Session session) throws Exception {
+            session.batch(); // pipelined requests in one write
+            try {
+                for (int i = 0; i < sendTimes.length; i++)
+                    send(session);
+            } finally {
+                session.endBatch();
+            }
+        }
+
+        public void objectReceived(Session session, Object obj)
+                throws Exception {
+            long latency = ElapsedTime.currentTimeMicros()
+                    - sendTimes[head++ % sendTimes.length];
+            int status = ((Integer) obj).intValue();
+            if (status >= 200 && status < 300) {
+                LATENCY.record(latency);
+                COMPLETED.incrementAndGet();
+            } else
+                FAILED.incrementAndGet();
+            if (running)
+                send(session);
+        }
+
+        public void exceptionCaught(Session session, Throwable cause) {
+            FAILED.incrementAndGet();
+            session.close();
+            System.err.println(cause);
+        }
+
+    }
+
+    private static String format(long micros) {
+        return (micros / 1000) + "." + (micros / 100 % 10) + " ms";
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out
+                    .println("usage: java HttpLoadClient host port [connections] [pipeline] [seconds] [uri]");
+            return;
+        }
+        String host = args[0];
+        SocketAddress address = new InetSocketAddress(host, Integer
+                .parseInt(args[1]));
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int pipeline = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        String uri = args.length > 5 ? args[5] : "/";
+
+        byte[] request = ("GET " + uri + " HTTP/1.1\r\nHost: " + host
+                + "\r\nConnection: keep-alive\r\n\r\n").getBytes();
+        PacketDecoder decoder = new StatusDecoder();
+        Session[] sessions = new Session[connections];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = SessionFactory.createSession(SessionType.TCP);
+            sessions[i].setRemoteAddress(address);
+            sessions[i].setPacketDecoder(decoder);
+            sessions[i].setSessionHandler(new LoadHandler(request, pipeline));
+            sessions[i].start();
+        }
+
+        Thread.sleep(1000); // warm up
+        LATENCY.reset();
+        long completed = COMPLETED.get();
+        long startTime = System.currentTimeMillis();
+        Thread.sleep(seconds * 1000L);
+        completed = COMPLETED.get() - completed;
+        long time = System.currentTimeMillis() - startTime;
+        running = false;
+
+        System.out.println(connections + " connections, pipeline "
+                + pipeline + ": " + (completed * 1000 / time) + " req/s, "
+                + FAILED.get() + " failed");
+        System.out.println("latency mean " + format((long) LATENCY.getMean())
+                + ", p50 " + format(LATENCY.getPercentile(50)) + ", p99 "
+                + format(LATENCY.getPercentile(99)) + ", p99.9 "
+                + format(LATENCY.getPercentile(99.9)) + ", max "
+                + format(LATENCY.getMax()));
+
+        for (int i = 0; i < sessions.length; i++)
+            sessions[i].close();
+    }
+}
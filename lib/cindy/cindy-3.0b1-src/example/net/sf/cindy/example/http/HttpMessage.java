@@ -52,14 +52,40 @@ public abstract class HttpMessage {
         }
     }
 
+    /**
+     * Get the param, the key is case insensitive.
+     * 
+     * @param key
+     *            param key
+     * @return param value
+     */
     public final String getParam(String key) {
-        return key == null ? null : (String) params.get(key);
+        if (key == null)
+            return null;
+        String value = (String) params.get(key);
+        if (value == null) {
+            for (Iterator iter = params.entrySet().iterator(); iter.hasNext();) {
+                Entry entry = (Entry) iter.next();
+                if (key.equalsIgnoreCase((String) entry.getKey()))
+                    return (String) entry.getValue();
+            }
+        }
+        return value;
     }
 
     public final Map getParams() {
         return Collections.unmodifiableMap(params);
     }
 
+    /**
+     * Whether the content is sent by chunked transfer encoding.
+     * 
+     * @return chunked
+     */
+    public final boolean isChunked() {
+        return "chunked".equalsIgnoreCase(getParam("Transfer-Encoding"));
+    }
+
     public final byte[] getContent() {
         return content;
     }
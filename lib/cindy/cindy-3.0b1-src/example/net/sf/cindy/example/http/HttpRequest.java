@@ -42,6 +42,20 @@ public class HttpRequest extends HttpMessage {
         this.uri = uri;
     }
 
+    /**
+     * Whether the connection should be kept after the response sent. Http/1.1
+     * connections are persistent unless "Connection: close", http/1.0
+     * connections are closed unless "Connection: keep-alive".
+     * 
+     * @return keep alive
+     */
+    public boolean isKeepAlive() {
+        String connection = getParam("Connection");
+        if ("HTTP/1.1".equals(getVersion()))
+            return !"close".equalsIgnoreCase(connection);
+        return "keep-alive".equalsIgnoreCase(connection);
+    }
+
     public String toString() {
         StringBuffer buffer = new StringBuffer();
         buffer.append(method).append(" ");
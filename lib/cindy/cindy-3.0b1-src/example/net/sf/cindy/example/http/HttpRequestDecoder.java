@@ -15,62 +15,303 @@
  */
 package net.sf.cindy.example.http;
 
-import java.util.regex.Pattern;
+import java.io.UnsupportedEncodingException;
 
 import net.sf.cindy.Buffer;
 import net.sf.cindy.Packet;
 import net.sf.cindy.PacketDecoder;
 import net.sf.cindy.Session;
-import net.sf.cindy.util.Charset;
 
 /**
- * <code>HttpRequest</code> Decoder.
+ * <code>HttpRequest</code> Decoder. Requests are parsed byte by byte by a
+ * state machine kept in the session, the received content is passed to the
+ * decoder again from its start until a request decoded, so the parsed bytes
+ * are skipped instead of scanned again. Pipelined requests are decoded one by
+ * one in order, the request content is read by the Content-Length header or
+ * chunked transfer encoding.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
  */
 public class HttpRequestDecoder implements PacketDecoder {
 
-    private static final byte[] TOKEN = "\r\n\r\n".getBytes();
-    private static final Pattern PATTERN = Pattern.compile(" ");
+    private static final String STATE_KEY = HttpRequestDecoder.class
+            .getName()
+            + ".state";
+
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final int MAX_HEADERS_LENGTH = 64 * 1024;
+    private static final int MAX_CONTENT_LENGTH = 16 * 1024 * 1024;
+
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADER = 1;
+    private static final int CONTENT = 2;
+    private static final int CHUNK_SIZE = 3;
+    private static final int CHUNK_CONTENT = 4;
+    private static final int CHUNK_END = 5;
+    private static final int TRAILER = 6;
+
+    /**
+     * Parse state of a session.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class State {
+
+        private int offset; // parsed bytes of the pending content
+        private int state = REQUEST_LINE;
+
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private int headersLength;
+
+        private HttpRequest request;
+        private String lastKey;
+
+        private byte[] content;
+        private int contentLength;
+        private int remaining; // remaining bytes of the content or chunk
+
+        private void reset() {
+            state = REQUEST_LINE;
+            lineLength = 0;
+            headersLength = 0;
+            request = null;
+            lastKey = null;
+            content = null;
+            contentLength = 0;
+            remaining = 0;
+        }
+
+        private void append(byte b) {
+            if (lineLength == line.length) {
+                if (lineLength >= MAX_LINE_LENGTH)
+                    throw new IllegalArgumentException("http line too long");
+                byte[] newLine = new byte[Math.min(MAX_LINE_LENGTH,
+                        lineLength * 2)];
+                System.arraycopy(line, 0, newLine, 0, lineLength);
+                line = newLine;
+            }
+            line[lineLength++] = b;
+        }
+
+        private String getString(int start, int end) {
+            while (start < end && isWhitespace(line[start]))
+                start++;
+            while (end > start && isWhitespace(line[end - 1]))
+                end--;
+            try {
+                return new String(line, start, end - start, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e.toString());
+            }
+        }
+
+        private int indexOf(byte b, int start) {
+            for (int i = start; i < lineLength; i++)
+                if (line[i] == b)
+                    return i;
+            return -1;
+        }
+
+        private void ensureContent(int size) {
+            if (content == null)
+                content = new byte[size];
+            else if (content.length - contentLength < size) {
+                byte[] newContent = new byte[Math.max(contentLength + size,
+                        content.length * 2)];
+                System.arraycopy(content, 0, newContent, 0, contentLength);
+                content = newContent;
+            }
+        }
+
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private State getState(Session session) {
+        State state = (State) session.getAttribute(STATE_KEY);
+        if (state == null) {
+            state = new State();
+            session.setAttribute(STATE_KEY, state);
+        }
+        return state;
+    }
 
     public Object decode(Session session, Packet packet) throws Exception {
         Buffer buffer = packet.getContent();
-        int index = buffer.indexOf(TOKEN);
-        if (index >= 0) {
-            String[] headers = buffer.getString(Charset.UTF8,
-                    index + TOKEN.length).split("\r\n");
-
-            HttpRequest request = new HttpRequest();
-            parse(request, headers);
-
-            String contentLen = request.getParam("Content-Length");
-            if (contentLen != null) {
-                int len = Integer.parseInt(contentLen);
-                if (buffer.remaining() >= len) {
-                    byte[] content = new byte[len];
-                    buffer.get(content);
-                    request.setContent(content);
-                } else {
-                    return null;
-                }
-            }
+        State state = getState(session);
+        int start = buffer.position();
+        if (state.offset > buffer.remaining()) // content discarded
+            state.reset();
+        else
+            buffer.position(start + state.offset);
+
+        try {
+            HttpRequest request = parse(state, buffer);
+            state.offset = request == null ? buffer.position() - start : 0;
             return request;
+        } catch (RuntimeException e) {
+            session.removeAttribute(STATE_KEY);
+            throw e;
+        }
+    }
+
+    private HttpRequest parse(State state, Buffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (state.state == CONTENT || state.state == CHUNK_CONTENT) {
+                int n = Math.min(buffer.remaining(), state.remaining);
+                buffer.get(state.content, state.contentLength, n);
+                state.contentLength += n;
+                state.remaining -= n;
+                if (state.remaining > 0)
+                    continue;
+                if (state.state == CONTENT)
+                    return complete(state);
+                state.state = CHUNK_END;
+                continue;
+            }
+
+            byte b = buffer.get();
+            if (b == '\n') {
+                HttpRequest request = lineCompleted(state);
+                state.lineLength = 0;
+                if (request != null)
+                    return request;
+            } else if (b != '\r')
+                state.append(b);
         }
         return null;
     }
 
-    private void parse(HttpRequest request, String[] headers) {
-        // every time use String.split will construct a new Pattern object
-        String[] s = PATTERN.split(headers[0]);
-        request.setRequestMethod(s[0]);
-        request.setRequestURI(s[1]);
-        request.setVersion(s[2]);
-
-        for (int i = 1; i < headers.length; i++) {
-            int index = headers[i].indexOf(":");
-            request.setParam(headers[i].substring(0, index).trim(), headers[i]
-                    .substring(index + 1).trim());
+    private HttpRequest lineCompleted(State state) {
+        switch (state.state) {
+        case REQUEST_LINE:
+            if (state.lineLength > 0) // skip empty lines between requests
+                parseRequestLine(state);
+            return null;
+        case HEADER:
+        case TRAILER:
+            state.headersLength += state.lineLength;
+            if (state.headersLength > MAX_HEADERS_LENGTH)
+                throw new IllegalArgumentException("http headers too long");
+            if (state.lineLength > 0) {
+                parseHeader(state);
+                return null;
+            }
+            return state.state == HEADER ? headersCompleted(state)
+                    : complete(state);
+        case CHUNK_SIZE:
+            int size = parseChunkSize(state);
+            if (size == 0) {
+                state.state = TRAILER;
+            } else {
+                if (state.contentLength + size > MAX_CONTENT_LENGTH)
+                    throw new IllegalArgumentException(
+                            "http content too long");
+                state.ensureContent(size);
+                state.remaining = size;
+                state.state = CHUNK_CONTENT;
+            }
+            return null;
+        case CHUNK_END:
+            if (state.lineLength > 0)
+                throw new IllegalArgumentException("bad http chunk");
+            state.state = CHUNK_SIZE;
+            return null;
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    private void parseRequestLine(State state) {
+        int first = state.indexOf((byte) ' ', 0);
+        int second = first < 0 ? -1 : state.indexOf((byte) ' ', first + 1);
+        if (second < 0)
+            throw new IllegalArgumentException("bad http request line: "
+                    + state.getString(0, state.lineLength));
+
+        HttpRequest request = new HttpRequest();
+        request.setRequestMethod(state.getString(0, first));
+        request.setRequestURI(state.getString(first + 1, second));
+        request.setVersion(state.getString(second + 1, state.lineLength));
+        state.request = request;
+        state.state = HEADER;
+    }
+
+    private void parseHeader(State state) {
+        HttpRequest request = state.request;
+        if (isWhitespace(state.line[0]) && state.lastKey != null) {
+            // folded header value
+            request.setParam(state.lastKey, request.getParam(state.lastKey)
+                    + " " + state.getString(0, state.lineLength));
+            return;
         }
+        int index = state.indexOf((byte) ':', 0);
+        if (index <= 0)
+            throw new IllegalArgumentException("bad http header: "
+                    + state.getString(0, state.lineLength));
+        state.lastKey = state.getString(0, index);
+        request.setParam(state.lastKey, state.getString(index + 1,
+                state.lineLength));
     }
+
+    private HttpRequest headersCompleted(State state) {
+        HttpRequest request = state.request;
+        if (request.isChunked()) {
+            state.state = CHUNK_SIZE;
+            return null;
+        }
+        String contentLength = request.getParam("Content-Length");
+        int length = contentLength == null ? 0 : Integer
+                .parseInt(contentLength.trim());
+        if (length < 0 || length > MAX_CONTENT_LENGTH)
+            throw new IllegalArgumentException("bad http content length: "
+                    + length);
+        if (length == 0)
+            return complete(state);
+        state.ensureContent(length);
+        state.remaining = length;
+        state.state = CONTENT;
+        return null;
+    }
+
+    private int parseChunkSize(State state) {
+        int size = 0;
+        int digits = 0;
+        for (int i = 0; i < state.lineLength; i++) {
+            byte b = state.line[i];
+            int digit = Character.digit((char) b, 16);
+            if (digit < 0) {
+                if (b == ';' || isWhitespace(b)) // chunk extension
+                    break;
+                throw new IllegalArgumentException("bad http chunk size");
+            }
+            if (++digits > 7)
+                throw new IllegalArgumentException("http chunk too long");
+            size = size * 16 + digit;
+        }
+        if (digits == 0)
+            throw new IllegalArgumentException("bad http chunk size");
+        return size;
+    }
+
+    private HttpRequest complete(State state) {
+        HttpRequest request = state.request;
+        if (state.content != null) {
+            byte[] content = state.content;
+            if (content.length != state.contentLength) {
+                content = new byte[state.contentLength];
+                System.arraycopy(state.content, 0, content, 0,
+                        state.contentLength);
+            }
+            request.setContent(content);
+        }
+        state.reset();
+        return request;
+    }
+
 }
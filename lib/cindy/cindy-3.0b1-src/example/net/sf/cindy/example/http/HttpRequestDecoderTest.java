@@ -0,0 +1,218 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.example.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Session;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.session.nio.SocketChannelSession;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class HttpRequestDecoderTest extends TestCase {
+
+    private static final String STATE_KEY = HttpRequestDecoder.class
+            .getName()
+            + ".state";
+
+    private static final String POST = "POST /post HTTP/1.1\r\n"
+            + "Host: localhost\r\n" + "Content-Length: 5\r\n" + "\r\n"
+            + "hello";
+    private static final String GET = "GET /get?a=1 HTTP/1.1\r\n"
+            + "Host: localhost\r\n" + "X-Folded: a\r\n" + "\tb\r\n" + "\r\n";
+    private static final String CHUNKED = "POST /chunked HTTP/1.1\r\n"
+            + "Transfer-Encoding: chunked\r\n" + "\r\n"
+            + "5;name=value\r\n" + "hello\r\n" + "6 ; ext\r\n"
+            + " world\r\n" + "0\r\n" + "X-Trailer: t\r\n" + "\r\n";
+
+    private Session session;
+    private HttpRequestDecoder decoder;
+
+    protected void setUp() throws Exception {
+        session = new SocketChannelSession();
+        decoder = new HttpRequestDecoder();
+    }
+
+    private static byte[] getBytes(String s) throws Exception {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    /**
+     * Decode the data received in several packets, the pending content is
+     * passed to the decoder from its start like
+     * <code>PacketDecoderFilter</code>.
+     * 
+     * @param data
+     *            received data
+     * @param ends
+     *            end offsets of the received packets except the last one
+     * @return decoded requests
+     */
+    private List decode(byte[] data, int[] ends) throws Exception {
+        List requests = new ArrayList();
+        int consumed = 0;
+        for (int i = 0; i <= ends.length; i++) {
+            int received = i < ends.length ? ends[i] : data.length;
+            while (consumed < received) {
+                Buffer buffer = BufferFactory.wrap(data, consumed, received
+                        - consumed);
+                int start = buffer.position();
+                Object obj = decoder.decode(session, new DefaultPacket(buffer));
+                if (obj == null)
+                    break;
+                consumed += buffer.position() - start;
+                requests.add(obj);
+            }
+        }
+        assertEquals(data.length, consumed);
+        return requests;
+    }
+
+    private static void assertRequest(HttpRequest request, String method,
+            String uri, String content) throws Exception {
+        assertEquals(method, request.getRequestMethod());
+        assertEquals(uri, request.getRequestURI());
+        assertEquals("HTTP/1.1", request.getVersion());
+        assertEquals(content, new String(request.getContent(), "ISO-8859-1"));
+    }
+
+    private static void assertPost(Object obj) throws Exception {
+        HttpRequest request = (HttpRequest) obj;
+        assertRequest(request, "POST", "/post", "hello");
+        assertEquals("localhost", request.getParam("host"));
+    }
+
+    private static void assertGet(Object obj) throws Exception {
+        HttpRequest request = (HttpRequest) obj;
+        assertRequest(request, "GET", "/get?a=1", "");
+        assertEquals("a b", request.getParam("X-Folded"));
+    }
+
+    private static void assertChunked(Object obj) throws Exception {
+        HttpRequest request = (HttpRequest) obj;
+        assertRequest(request, "POST", "/chunked", "hello world");
+        assertTrue(request.isChunked());
+        assertEquals("t", request.getParam("X-Trailer"));
+    }
+
+    public void testSplitAtEveryByte() throws Exception {
+        byte[] data = getBytes(POST + GET + CHUNKED);
+        for (int i = 1; i < data.length; i++) {
+            List requests = decode(data, new int[] { i });
+            assertEquals(3, requests.size());
+            assertPost(requests.get(0));
+            assertGet(requests.get(1));
+            assertChunked(requests.get(2));
+            assertNull(decoder.decode(session, new DefaultPacket(BufferFactory
+                    .wrap(new byte[0]))));
+        }
+
+        // one byte a packet
+        int[] ends = new int[data.length - 1];
+        for (int i = 0; i < ends.length; i++)
+            ends[i] = i + 1;
+        List requests = decode(data, ends);
+        assertEquals(3, requests.size());
+        assertPost(requests.get(0));
+        assertGet(requests.get(1));
+        assertChunked(requests.get(2));
+    }
+
+    public void testPipelined() throws Exception {
+        // empty lines between requests are skipped
+        List requests = decode(getBytes(GET + POST + "\r\n" + CHUNKED + GET),
+                new int[0]);
+        assertEquals(4, requests.size());
+        assertGet(requests.get(0));
+        assertPost(requests.get(1));
+        assertChunked(requests.get(2));
+        assertGet(requests.get(3));
+    }
+
+    public void testChunked() throws Exception {
+        List requests = decode(getBytes(CHUNKED), new int[0]);
+        assertEquals(1, requests.size());
+        assertChunked(requests.get(0));
+
+        // no trailer, upper case chunk size
+        requests = decode(getBytes("PUT /c HTTP/1.1\r\n"
+                + "Transfer-Encoding: Chunked\r\n\r\n"
+                + "A\r\n0123456789\r\n0\r\n\r\n"), new int[0]);
+        assertEquals(1, requests.size());
+        assertRequest((HttpRequest) requests.get(0), "PUT", "/c",
+                "0123456789");
+    }
+
+    private void assertRejected(String data, String message) throws Exception {
+        try {
+            decode(getBytes(data), new int[0]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+        assertNull(session.getAttribute(STATE_KEY));
+
+        // the state is reset
+        List requests = decode(getBytes(POST), new int[0]);
+        assertEquals(1, requests.size());
+        assertPost(requests.get(0));
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuffer buffer = new StringBuffer(count);
+        for (int i = 0; i < count; i++)
+            buffer.append(c);
+        return buffer.toString();
+    }
+
+    public void testTooLong() throws Exception {
+        assertRejected("GET /" + repeat('a', 8 * 1024) + " HTTP/1.1\r\n\r\n",
+                "http line too long");
+        assertRejected("GET / HTTP/1.1\r\nX-Long: " + repeat('a', 8 * 1024)
+                + "\r\n\r\n", "http line too long");
+
+        StringBuffer headers = new StringBuffer("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < 10; i++)
+            headers.append("X-Header" + i + ": " + repeat('a', 7000) + "\r\n");
+        assertRejected(headers + "\r\n", "http headers too long");
+
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 16777217\r\n\r\n",
+                "bad http content length");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n",
+                "bad http content length");
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "1000001\r\n", "http content too long");
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "10000000\r\n", "http chunk too long");
+    }
+
+    public void testBadRequest() throws Exception {
+        assertRejected("GET\r\n\r\n", "bad http request line");
+        assertRejected("GET / HTTP/1.1\r\nno colon\r\n\r\n", "bad http header");
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "x\r\n", "bad http chunk size");
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "1\r\nab\r\n", "bad http chunk");
+    }
+
+}
@@ -15,7 +15,8 @@
  */
 package net.sf.cindy.example.http;
 
-import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map.Entry;
 
 import net.sf.cindy.Buffer;
 import net.sf.cindy.Packet;
@@ -23,32 +24,148 @@ import net.sf.cindy.PacketEncoder;
 import net.sf.cindy.Session;
 import net.sf.cindy.buffer.BufferFactory;
 import net.sf.cindy.packet.DefaultPacket;
-import net.sf.cindy.util.Charset;
 
 /**
- * <code>HttpResponse</code> Encoder.
+ * <code>HttpResponse</code> and <code>HttpChunk</code> Encoder. The status
+ * line and the headers are written as ISO-8859-1 bytes into a header buffer
+ * reused by the session, then copied with the content into one pooled
+ * buffer. If the response is chunked, its content is sent as the first
+ * chunk.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
  */
 public class HttpResponseEncoder implements PacketEncoder {
 
-    public Packet encode(Session session, Object obj) throws Exception {
-        HttpResponse response = (HttpResponse) obj;
+    private static final String HEADER_KEY = HttpResponseEncoder.class
+            .getName()
+            + ".header";
+
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    /**
+     * Reusable header bytes of a session.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class HeaderBuffer {
+
+        private byte[] bytes = new byte[512];
+        private int count;
+
+        private void ensure(int size) {
+            if (bytes.length - count < size) {
+                byte[] newBytes = new byte[Math.max(count + size,
+                        bytes.length * 2)];
+                System.arraycopy(bytes, 0, newBytes, 0, count);
+                bytes = newBytes;
+            }
+        }
+
+        private HeaderBuffer append(String s) {
+            int length = s.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                bytes[count++] = (byte) (c > 0xff ? '?' : c);
+            }
+            return this;
+        }
+
+        private HeaderBuffer append(char c) {
+            ensure(1);
+            bytes[count++] = (byte) c;
+            return this;
+        }
+
+        private HeaderBuffer append(int i, int radix) {
+            ensure(12);
+            if (i == 0) {
+                bytes[count++] = '0';
+                return this;
+            }
+            int start = count;
+            for (; i > 0; i /= radix)
+                bytes[count++] = (byte) Character.forDigit(i % radix, radix);
+            for (int end = count - 1; start < end; start++, end--) {
+                byte b = bytes[start];
+                bytes[start] = bytes[end];
+                bytes[end] = b;
+            }
+            return this;
+        }
+
+        private HeaderBuffer crlf() {
+            return append('\r').append('\n');
+        }
 
-        ByteBuffer header = Charset.UTF8.encode(response.toString());
+    }
+
+    private HeaderBuffer getHeaderBuffer(Session session) {
+        HeaderBuffer header = (HeaderBuffer) session.getAttribute(HEADER_KEY);
+        if (header == null) {
+            synchronized (session) {
+                header = (HeaderBuffer) session.getAttribute(HEADER_KEY);
+                if (header == null) {
+                    header = new HeaderBuffer();
+                    session.setAttribute(HEADER_KEY, header);
+                }
+            }
+        }
+        return header;
+    }
+
+    public Packet encode(Session session, Object obj) throws Exception {
+        HeaderBuffer header = getHeaderBuffer(session);
+        synchronized (header) { // may be sent by several threads
+            header.count = 0;
+            if (obj instanceof HttpChunk)
+                return encode(header, (HttpChunk) obj);
+            return encode(header, (HttpResponse) obj);
+        }
+    }
 
-        Buffer buffer = null;
-        int contentLen = response.getContent().length;
-        if (contentLen > 0) {
-            buffer = BufferFactory.allocate(header.remaining()
-                    + response.getContent().length);
-            buffer.put(header).put(response.getContent()).flip();
-        } else {
-            buffer = BufferFactory.wrap(header);
+    private Packet encode(HeaderBuffer header, HttpResponse response) {
+        header.append(response.getVersion()).append(' ').append(
+                response.getStatusCode(), 10).append(' ');
+        if (response.getReasonPhrase() != null)
+            header.append(response.getReasonPhrase());
+        header.crlf();
+        for (Iterator iter = response.getParams().entrySet().iterator(); iter
+                .hasNext();) {
+            Entry entry = (Entry) iter.next();
+            header.append((String) entry.getKey()).append(':').append(' ')
+                    .append((String) entry.getValue()).crlf();
         }
+        header.crlf();
+
+        byte[] content = response.getContent();
+        if (response.isChunked() && content.length > 0)
+            return encodeChunk(header, content);
+        return newPacket(header, content, false);
+    }
+
+    private Packet encode(HeaderBuffer header, HttpChunk chunk) {
+        if (chunk.isLast())
+            return new DefaultPacket(BufferFactory.allocate(LAST_CHUNK.length)
+                    .put(LAST_CHUNK).flip());
+        return encodeChunk(header, chunk.getContent());
+    }
+
+    private Packet encodeChunk(HeaderBuffer header, byte[] content) {
+        header.append(content.length, 16).crlf();
+        return newPacket(header, content, true);
+    }
 
-        return new DefaultPacket(buffer);
+    private Packet newPacket(HeaderBuffer header, byte[] content,
+            boolean chunk) {
+        Buffer buffer = BufferFactory.allocate(header.count + content.length
+                + (chunk ? 2 : 0));
+        buffer.put(header.bytes, 0, header.count).put(content);
+        if (chunk)
+            buffer.put((byte) '\r').put((byte) '\n');
+        return new DefaultPacket(buffer.flip());
     }
 
 }
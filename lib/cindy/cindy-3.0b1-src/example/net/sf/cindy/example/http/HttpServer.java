@@ -36,7 +36,9 @@ import net.sf.cindy.filter.SSLFilter;
 import net.sf.cindy.session.SessionFactory;
 
 /**
- * Simple http server.
+ * Simple http server. Supports http/1.1 keep-alive connections, pipelined
+ * requests and chunked request content. Use <code>HttpLoadClient</code> to
+ * measure the requests per second and the latency.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
@@ -32,6 +32,11 @@ import java.util.Map;
  */
 public class CachedFileHandler extends SimpleFileHandler {
 
+    /**
+     * Larger files are sent by transferTo instead of cached.
+     */
+    private static final long MAX_CACHED_SIZE = 64 * 1024;
+
     private final Map cache = new Hashtable();
     private final ReferenceQueue queue = new ReferenceQueue();
 
@@ -46,6 +51,10 @@ public class CachedFileHandler extends SimpleFileHandler {
 
     }
 
+    protected boolean isTransferable(File file) {
+        return super.isTransferable(file) && file.length() > MAX_CACHED_SIZE;
+    }
+
     protected ByteBuffer getContent(String uri) throws IOException {
         File file = getFile(uri);
 
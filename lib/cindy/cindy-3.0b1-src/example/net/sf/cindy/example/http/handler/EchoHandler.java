@@ -19,12 +19,14 @@ import net.sf.cindy.Future;
 import net.sf.cindy.FutureListener;
 import net.sf.cindy.Session;
 import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.example.http.HttpChunk;
 import net.sf.cindy.example.http.HttpRequest;
 import net.sf.cindy.example.http.HttpResponse;
 import net.sf.cindy.util.Charset;
 
 /**
- * Echo http request.
+ * Echo http request, the request line, headers and content are sent back. A
+ * chunked http/1.1 request is echoed by a chunked response.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
@@ -35,8 +37,10 @@ public class EchoHandler extends SessionHandlerAdapter {
         HttpRequest request = (HttpRequest) obj;
 
         byte[] header = Charset.UTF8.encodeToArray(request.toString());
-        boolean keepAlive = "keep-alive".equalsIgnoreCase(request
-                .getParam("Connection"));
+        byte[] content = request.getContent();
+        boolean keepAlive = request.isKeepAlive();
+        boolean chunked = request.isChunked()
+                && "HTTP/1.1".equals(request.getVersion());
 
         HttpResponse response = new HttpResponse();
         response.setStatusCode(200);
@@ -44,11 +48,31 @@ public class EchoHandler extends SessionHandlerAdapter {
         response.setReasonPhrase("OK");
         response.setParam("Server", "Cindy Http Server");
         response.setParam("Content-Type", "text/plain");
-        response.setParam("Content-Length", String.valueOf(header.length));
+        if (chunked)
+            response.setParam("Transfer-Encoding", "chunked");
+        else
+            response.setParam("Content-Length", String.valueOf(header.length
+                    + content.length));
         response.setParam("Connection", keepAlive ? "keep-alive" : "close");
-        response.setContent(header);
 
-        Future future = session.send(response);
+        Future future = null;
+        if (chunked) {
+            response.setContent(header); // the first chunk
+            session.send(response);
+            if (content.length > 0)
+                session.send(new HttpChunk(content));
+            future = session.send(new HttpChunk());
+        } else {
+            byte[] echo = header;
+            if (content.length > 0) {
+                echo = new byte[header.length + content.length];
+                System.arraycopy(header, 0, echo, 0, header.length);
+                System.arraycopy(content, 0, echo, header.length,
+                        content.length);
+            }
+            response.setContent(echo);
+            future = session.send(response);
+        }
         if (!keepAlive)
             future.addListener(new FutureListener() {
 
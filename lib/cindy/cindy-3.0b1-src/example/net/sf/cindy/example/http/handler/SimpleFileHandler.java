@@ -32,6 +32,7 @@ import net.sf.cindy.SessionHandlerAdapter;
 import net.sf.cindy.example.http.HttpRequest;
 import net.sf.cindy.example.http.HttpResponse;
 import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.packet.FileRegionPacket;
 import net.sf.cindy.util.Charset;
 
 /**
@@ -59,6 +60,18 @@ public class SimpleFileHandler extends SessionHandlerAdapter {
             return new File(uri);
     }
 
+    /**
+     * Whether send the file by transferTo, the file content will not be read
+     * into memory.
+     * 
+     * @param file
+     *            request file
+     * @return transferable
+     */
+    protected boolean isTransferable(File file) {
+        return file.isFile();
+    }
+
     protected ByteBuffer getContent(String uri, File file) throws IOException {
         if (!file.exists())
             return null;
@@ -110,13 +123,23 @@ public class SimpleFileHandler extends SessionHandlerAdapter {
     public void objectReceived(Session session, Object obj) throws Exception {
         HttpRequest request = (HttpRequest) obj;
 
-        boolean keepAlive = "keep-alive".equalsIgnoreCase(request
-                .getParam("Connection"));
-        ByteBuffer content = getContent(request.getRequestURI());
+        boolean keepAlive = request.isKeepAlive();
+        File file = getFile(request.getRequestURI());
+        FileChannel fc = null;
+        ByteBuffer content = null;
+        long contentLength = 0;
+        if (isTransferable(file)) {
+            fc = new RandomAccessFile(file, "r").getChannel();
+            contentLength = fc.size();
+        } else {
+            content = getContent(request.getRequestURI());
+            if (content != null)
+                contentLength = content.remaining();
+        }
 
         HttpResponse response = new HttpResponse();
         response.setVersion(request.getVersion());
-        if (content == null) {
+        if (fc == null && content == null) {
             response.setStatusCode(404);
             response.setReasonPhrase("Not Found");
             response.setParam("Content-Type", "text/plain");
@@ -128,14 +151,23 @@ public class SimpleFileHandler extends SessionHandlerAdapter {
             response.setReasonPhrase("OK");
             response.setParam("Content-Type", mimeMap.getContentTypeFor(request
                     .getRequestURI()));
-            response.setParam("Content-Length", String.valueOf(content
-                    .remaining()));
+            response.setParam("Content-Length", String
+                    .valueOf(contentLength));
         }
         response.setParam("Server", "Cindy Http Server");
         response.setParam("Connection", keepAlive ? "keep-alive" : "close");
 
         Future future = session.send(response); // send http header
-        if (content != null)
+        if (fc != null) { // send file region
+            final FileChannel channel = fc;
+            future = session.flush(new FileRegionPacket(fc, 0, contentLength));
+            future.addListener(new FutureListener() {
+
+                public void futureCompleted(Future future) throws Exception {
+                    channel.close();
+                }
+            });
+        } else if (content != null)
             future = session.flush(new DefaultPacket(content)); // send content
         if (!keepAlive)
             future.addListener(new FutureListener() {
@@ -229,6 +229,16 @@ public interface Session {
      */
     boolean isStarted();
 
+    /**
+     * Whether the session is writable. The session becomes not writable when
+     * the pending send bytes exceed the high watermark, and writable again
+     * when they drop below the low watermark. Packets sent when not writable
+     * are still queued, the writabilityChanged event is fired on change.
+     * 
+     * @return session is writable
+     */
+    boolean isWritable();
+
     /**
      * Start the session.
      * 
@@ -291,4 +301,18 @@ public interface Session {
      */
     Future send(Object obj, int priority);
 
+    /**
+     * Begin a write batch of current thread. Until the batch ended, small
+     * packets sent by current thread with normal priority are coalesced into
+     * one buffer, datagrams into a datagram batch packet, and the write is
+     * armed once when the batch ended. Batches can be nested, only the end of
+     * the outermost batch flushes. End the batch in a finally block.
+     */
+    void batch();
+
+    /**
+     * End the write batch of current thread, begun by <code>batch</code>.
+     */
+    void endBatch();
+
 }
@@ -53,6 +53,17 @@ public interface SessionFilter {
      */
     void sessionTimeout(SessionFilterChain filterChain) throws Exception;
 
+    /**
+     * Session writability changed, the pending send bytes exceeded the high
+     * watermark or dropped below the low watermark.
+     * 
+     * @param filterChain
+     *            session filter chain
+     * @throws Exception
+     *             any exception
+     */
+    void writabilityChanged(SessionFilterChain filterChain) throws Exception;
+
     /**
      * Session received a packet.
      * 
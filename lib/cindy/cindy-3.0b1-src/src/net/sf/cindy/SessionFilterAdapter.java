@@ -64,4 +64,9 @@ public class SessionFilterAdapter implements SessionFilter {
         filterChain.sessionTimeout();
     }
 
+    public void writabilityChanged(SessionFilterChain filterChain)
+            throws Exception {
+        filterChain.writabilityChanged();
+    }
+
 }
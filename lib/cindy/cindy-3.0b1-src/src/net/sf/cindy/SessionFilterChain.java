@@ -45,6 +45,11 @@ public interface SessionFilterChain {
      */
     void sessionTimeout();
 
+    /**
+     * Session writability changed.
+     */
+    void writabilityChanged();
+
     /**
      * Session received a packet.
      * 
@@ -53,6 +53,17 @@ public interface SessionHandler {
      */
     void sessionTimeout(Session session) throws Exception;
 
+    /**
+     * Session writability changed, check <code>Session.isWritable</code>
+     * to stop or resume sending.
+     * 
+     * @param session
+     *            session
+     * @throws Exception
+     *             any exception
+     */
+    void writabilityChanged(Session session) throws Exception;
+
     /**
      * Session received a object which is decoded by <code>PacketDecoder</code>.
      * 
@@ -32,6 +32,9 @@ public class SessionHandlerAdapter implements SessionHandler {
     public void sessionTimeout(Session session) throws Exception {
     }
 
+    public void writabilityChanged(Session session) throws Exception {
+    }
+
     public void objectReceived(Session session, Object obj) throws Exception {
     }
 
@@ -28,6 +28,14 @@ public final class SessionType {
      */
     public static final SessionType TCP = new SessionType("TCP");
 
+    /**
+     * TCP session served by blocking io, each session has its own reader
+     * thread. Used to create sessions and acceptors only, the created
+     * sessions' type is TCP.
+     */
+    public static final SessionType BLOCKING_TCP = new SessionType(
+            "BlockingTCP");
+
     /**
      * UDP session.
      */
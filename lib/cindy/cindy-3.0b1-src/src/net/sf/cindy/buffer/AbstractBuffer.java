@@ -51,6 +51,11 @@ public abstract class AbstractBuffer implements Buffer {
 
     private final int offset;
 
+    /**
+     * Leak tracker, null if not tracked.
+     */
+    LeakDetector.Tracker tracker;
+
     protected AbstractBuffer(int offset, int capacity) {
         this.offset = offset;
         this.capacity = capacity;
@@ -65,6 +70,10 @@ public abstract class AbstractBuffer implements Buffer {
     public void setPermanent(boolean b) {
         checkReleased();
         this.permanent = b;
+        if (b && tracker != null) { // permanent buffer will not be released
+            tracker.close();
+            tracker = null;
+        }
     }
 
     public boolean isReleased() {
@@ -77,6 +86,10 @@ public abstract class AbstractBuffer implements Buffer {
                 _release();
             } finally {
                 released = true;
+                if (tracker != null) {
+                    tracker.close();
+                    tracker = null;
+                }
             }
         }
     }
@@ -209,6 +222,8 @@ public abstract class AbstractBuffer implements Buffer {
     protected final void checkReleased() {
         if (isReleased())
             throw new ReleasedBufferException();
+        if (tracker != null)
+            tracker.access();
     }
 
     public Buffer reset() {
@@ -0,0 +1,595 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.buffer;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.util.Configuration;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Arena implementation of <code>BufferPool</code>. Direct buffers are carved
+ * out of large pre-allocated chunks, and are given back to their chunk as
+ * soon as released, the pooled memory is never dropped by gc.
+ * <p>
+ * Each chunk is a buddy allocator of pages. Requests not less than a page
+ * are rounded up to power of 2 pages, smaller requests are served from
+ * subpages which split a page into equal elements (tiny: multiple of 16
+ * bytes, small: power of 2 from 512 bytes). Requests larger than a chunk are
+ * not pooled. Threads are bound to the arena with the least live threads,
+ * and each arena has its own lock. The binding of an ended thread is dropped
+ * when another thread is bound or the statistics are read.
+ * <p>
+ * Heap buffers are allocated from a <code>DefaultBufferPool</code>.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class ArenaBufferPool implements BufferPool, ArenaBufferPoolMBean {
+
+    private static final int TINY_POOL_COUNT = 512 >>> 4;
+
+    private final int pageSize;
+    private final int pageShifts;
+    private final int maxOrder;
+    private final int chunkSize;
+    private final int chunkSizeShifts;
+
+    private final Arena[] arenas;
+    private final BufferPool heapPool = new DefaultBufferPool();
+
+    /**
+     * Thread bound to an arena.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class Binding {
+
+        private final WeakReference thread;
+        private final Arena arena;
+
+        public Binding(Thread thread, Arena arena) {
+            this.thread = new WeakReference(thread);
+            this.arena = arena;
+        }
+
+        private boolean isEnded() {
+            Thread t = (Thread) thread.get();
+            return t == null || !t.isAlive();
+        }
+
+    }
+
+    private final List bindings = new ArrayList(); // guarded by itself
+
+    private final ThreadLocal threadArena = new ThreadLocal() {
+
+        protected Object initialValue() {
+            synchronized (bindings) {
+                unbindEnded();
+                Arena arena = arenas[0];
+                for (int i = 1; i < arenas.length; i++) {
+                    if (arenas[i].threadCount < arena.threadCount)
+                        arena = arenas[i];
+                }
+                arena.threadCount++;
+                bindings.add(new Binding(Thread.currentThread(), arena));
+                return arena;
+            }
+        }
+    };
+
+    private final AtomicLong hugeAllocateCount = new AtomicLong();
+
+    public ArenaBufferPool() {
+        this(Configuration.getArenaCount(), Configuration.getArenaPageSize(),
+                Configuration.getArenaChunkSize());
+    }
+
+    public ArenaBufferPool(int arenaCount, int pageSize, int chunkSize) {
+        if (pageSize < 4096 || (pageSize & (pageSize - 1)) != 0)
+            throw new IllegalArgumentException("pageSize: " + pageSize
+                    + " (expected: power of 2 and >= 4096)");
+        if (chunkSize < pageSize || (chunkSize & (chunkSize - 1)) != 0
+                || chunkSize / pageSize > (1 << 14))
+            throw new IllegalArgumentException("chunkSize: " + chunkSize
+                    + " (expected: power of 2 and <= pageSize * 16384)");
+
+        this.pageSize = pageSize;
+        this.pageShifts = log2(pageSize);
+        this.chunkSize = chunkSize;
+        this.chunkSizeShifts = log2(chunkSize);
+        this.maxOrder = chunkSizeShifts - pageShifts;
+
+        arenas = new Arena[Math.max(1, arenaCount)];
+        for (int i = 0; i < arenas.length; i++) {
+            arenas[i] = new Arena();
+        }
+    }
+
+    /**
+     * Drop the bindings of the ended threads, must hold the bindings lock.
+     */
+    private void unbindEnded() {
+        for (Iterator iter = bindings.iterator(); iter.hasNext();) {
+            Binding binding = (Binding) iter.next();
+            if (binding.isEnded()) {
+                iter.remove();
+                binding.arena.threadCount--;
+            }
+        }
+    }
+
+    private static int log2(int value) {
+        int result = 0;
+        while ((value >>>= 1) != 0)
+            result++;
+        return result;
+    }
+
+    /**
+     * Round up the capacity to its size class.
+     */
+    private int normalize(int capacity) {
+        if (capacity >= chunkSize)
+            return capacity;
+        if (capacity >= 512) {
+            int size = 1 << log2(capacity);
+            return size == capacity ? size : size << 1;
+        }
+        return capacity <= 16 ? 16 : (capacity + 15) & ~15;
+    }
+
+    /**
+     * Page split into equal elements.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class Subpage {
+
+        private final Chunk chunk;
+        private final int nodeId;
+        private final int offset;
+        private final long[] bitmap;
+
+        private int elementSize;
+        private int maxElements;
+        private int availableCount;
+        private int nextAvailable;
+
+        private Subpage prev, next; // pool list
+
+        /**
+         * Create the head of subpage pool list.
+         */
+        private Subpage() {
+            chunk = null;
+            nodeId = -1;
+            offset = -1;
+            bitmap = null;
+            prev = next = this;
+        }
+
+        private Subpage(Chunk chunk, int nodeId, int offset, int pageSize,
+                int elementSize) {
+            this.chunk = chunk;
+            this.nodeId = nodeId;
+            this.offset = offset;
+            // 16 bytes is the smallest element
+            this.bitmap = new long[pageSize >>> 10];
+            init(elementSize, pageSize);
+        }
+
+        private void init(int elementSize, int pageSize) {
+            this.elementSize = elementSize;
+            this.maxElements = this.availableCount = pageSize / elementSize;
+            this.nextAvailable = 0;
+            for (int i = 0; i < bitmap.length; i++)
+                bitmap[i] = 0;
+        }
+
+        private int allocate() {
+            int index = nextAvailable;
+            if (index >= 0)
+                nextAvailable = -1;
+            else
+                index = findAvailable();
+            bitmap[index >>> 6] |= 1L << (index & 63);
+            availableCount--;
+            return index;
+        }
+
+        private int findAvailable() {
+            int length = (maxElements + 63) >>> 6;
+            for (int i = 0; i < length; i++) {
+                long bits = bitmap[i];
+                if (bits != -1L) {
+                    int bit = 0;
+                    while ((bits & (1L << bit)) != 0)
+                        bit++;
+                    int index = (i << 6) + bit;
+                    if (index < maxElements)
+                        return index;
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        private void free(int index) {
+            bitmap[index >>> 6] ^= 1L << (index & 63);
+            nextAvailable = index;
+            availableCount++;
+        }
+
+        private void addAfter(Subpage head) {
+            prev = head;
+            next = head.next;
+            next.prev = this;
+            head.next = this;
+        }
+
+        private void remove() {
+            prev.next = next;
+            next.prev = prev;
+            prev = next = null;
+        }
+
+    }
+
+    /**
+     * Chunk of pages, managed by a buddy allocator. The node of the complete
+     * binary tree records the depth of its shallowest free subtree, a node is
+     * free for an allocation at depth d if its value not greater than d.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class Chunk {
+
+        private final ByteBuffer memory;
+        private final byte[] memoryMap;
+        private final byte[] depthMap;
+        private final Subpage[] subpages;
+        private final byte unusable = (byte) (maxOrder + 1);
+        private int freeBytes = chunkSize;
+
+        private Chunk() {
+            memory = ByteBuffer.allocateDirect(chunkSize);
+            memoryMap = new byte[2 << maxOrder];
+            depthMap = new byte[memoryMap.length];
+            int id = 1;
+            for (int d = 0; d <= maxOrder; d++) {
+                for (int i = 0; i < (1 << d); i++, id++) {
+                    memoryMap[id] = depthMap[id] = (byte) d;
+                }
+            }
+            subpages = new Subpage[1 << maxOrder];
+        }
+
+        private int runLength(int id) {
+            return 1 << (chunkSizeShifts - depthMap[id]);
+        }
+
+        private int runOffset(int id) {
+            return (id ^ (1 << depthMap[id])) * runLength(id);
+        }
+
+        private int allocateNode(int d) {
+            int id = 1;
+            int value = memoryMap[id];
+            if (value > d)
+                return -1;
+            int initial = -(1 << d); // has last d bits = 0 and rest all 1
+            while (value < d || (id & initial) == 0) {
+                id <<= 1;
+                value = memoryMap[id];
+                if (value > d) {
+                    id ^= 1;
+                    value = memoryMap[id];
+                }
+            }
+            memoryMap[id] = unusable;
+            for (int i = id; i > 1; i >>>= 1) {
+                int parent = i >>> 1;
+                memoryMap[parent] = (byte) Math.min(memoryMap[i],
+                        memoryMap[i ^ 1]);
+            }
+            freeBytes -= runLength(id);
+            return id;
+        }
+
+        private void freeNode(int id) {
+            freeBytes += runLength(id);
+            memoryMap[id] = depthMap[id];
+            for (int i = id; i > 1; i >>>= 1) {
+                int parent = i >>> 1;
+                byte value = memoryMap[i];
+                byte sibling = memoryMap[i ^ 1];
+                int childDepth = depthMap[i];
+                // both children free, the parent is free
+                memoryMap[parent] = value == childDepth
+                        && sibling == childDepth ? (byte) (childDepth - 1)
+                        : (byte) Math.min(value, sibling);
+            }
+        }
+
+        private boolean isUnused() {
+            return freeBytes == chunkSize;
+        }
+
+    }
+
+    /**
+     * Arena, a set of chunks and subpage pools guarded by the arena lock.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class Arena {
+
+        private int threadCount; // guarded by bindings
+
+        private final List chunks = new ArrayList();
+        private final Subpage[] tinyPools = newPools(TINY_POOL_COUNT);
+        private final Subpage[] smallPools = newPools(pageShifts - 9);
+
+        // statistic, guarded by this
+        private long allocateCount;
+        private long releaseCount;
+        private long usedMemory;
+
+        private Subpage[] newPools(int count) {
+            Subpage[] pools = new Subpage[count];
+            for (int i = 0; i < pools.length; i++)
+                pools[i] = new Subpage();
+            return pools;
+        }
+
+        private Subpage poolHead(int size) {
+            if (size < 512)
+                return tinyPools[size >>> 4];
+            return smallPools[log2(size) - 9];
+        }
+
+        private synchronized Buffer allocate(int capacity, int size) {
+            Buffer buffer = size < pageSize ? allocateSubpage(capacity, size)
+                    : allocateRun(capacity, size);
+            allocateCount++;
+            usedMemory += size;
+            return buffer;
+        }
+
+        private Buffer allocateSubpage(int capacity, int size) {
+            Subpage head = poolHead(size);
+            Subpage subpage = head.next;
+            if (subpage == head) {
+                Chunk chunk = null;
+                int id = -1;
+                for (int i = 0; i < chunks.size() && id < 0; i++) {
+                    chunk = (Chunk) chunks.get(i);
+                    id = chunk.allocateNode(maxOrder);
+                }
+                if (id < 0) {
+                    chunk = newChunk();
+                    id = chunk.allocateNode(maxOrder);
+                }
+                int page = id ^ (1 << maxOrder);
+                subpage = chunk.subpages[page];
+                if (subpage == null) {
+                    subpage = new Subpage(chunk, id, chunk.runOffset(id),
+                            pageSize, size);
+                    chunk.subpages[page] = subpage;
+                } else
+                    subpage.init(size, pageSize);
+                subpage.addAfter(head);
+            }
+
+            int index = subpage.allocate();
+            if (subpage.availableCount == 0)
+                subpage.remove();
+            return new ArenaBuffer(this, subpage.chunk, subpage.nodeId,
+                    subpage, index, subpage.offset + index * size, capacity);
+        }
+
+        private Buffer allocateRun(int capacity, int size) {
+            int d = maxOrder - (log2(size) - pageShifts);
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = (Chunk) chunks.get(i);
+                int id = chunk.allocateNode(d);
+                if (id >= 0)
+                    return new ArenaBuffer(this, chunk, id, null, -1, chunk
+                            .runOffset(id), capacity);
+            }
+            Chunk chunk = newChunk();
+            int id = chunk.allocateNode(d);
+            return new ArenaBuffer(this, chunk, id, null, -1, chunk
+                    .runOffset(id), capacity);
+        }
+
+        private Chunk newChunk() {
+            Chunk chunk = new Chunk();
+            chunks.add(chunk);
+            return chunk;
+        }
+
+        private synchronized void free(Chunk chunk, int id, Subpage subpage,
+                int index) {
+            if (subpage != null) {
+                usedMemory -= subpage.elementSize;
+                Subpage head = poolHead(subpage.elementSize);
+                if (subpage.availableCount == 0)
+                    subpage.addAfter(head);
+                subpage.free(index);
+                // keep the last subpage of the size class
+                if (subpage.availableCount == subpage.maxElements
+                        && (head.next != subpage || subpage.next != head)) {
+                    subpage.remove();
+                    chunk.freeNode(id);
+                }
+            } else {
+                usedMemory -= chunk.runLength(id);
+                chunk.freeNode(id);
+            }
+            releaseCount++;
+
+            // keep at least one chunk
+            if (chunk.isUnused() && chunks.size() > 1)
+                chunks.remove(chunk);
+        }
+
+    }
+
+    /**
+     * Buffer carved out of a chunk.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private final class ArenaBuffer extends ByteBufferBuffer {
+
+        private final Arena arena;
+        private Chunk chunk;
+        private final int nodeId;
+        private final Subpage subpage;
+        private final int index;
+
+        private ArenaBuffer(Arena arena, Chunk chunk, int nodeId,
+                Subpage subpage, int index, int offset, int capacity) {
+            super(chunk.memory.duplicate(), offset, capacity);
+            this.arena = arena;
+            this.chunk = chunk;
+            this.nodeId = nodeId;
+            this.subpage = subpage;
+            this.index = index;
+        }
+
+        protected void _release() {
+            if (chunk != null) {
+                arena.free(chunk, nodeId, subpage, index);
+                chunk = null;
+            }
+            super._release();
+        }
+
+    }
+
+    public Buffer allocate(int capacity, boolean direct) {
+        if (!direct)
+            return heapPool.allocate(capacity, direct);
+
+        int size = normalize(capacity);
+        if (size > chunkSize) {
+            hugeAllocateCount.incrementAndGet();
+            return ByteBufferBuffer.allocate(capacity, true);
+        }
+        return ((Arena) threadArena.get()).allocate(capacity, size);
+    }
+
+    public int getArenaCount() {
+        return arenas.length;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        int count = 0;
+        for (int i = 0; i < arenas.length; i++) {
+            synchronized (arenas[i]) {
+                count += arenas[i].chunks.size();
+            }
+        }
+        return count;
+    }
+
+    public long getReservedMemory() {
+        return (long) getChunkCount() * chunkSize;
+    }
+
+    public long getUsedMemory() {
+        long used = 0;
+        for (int i = 0; i < arenas.length; i++) {
+            synchronized (arenas[i]) {
+                used += arenas[i].usedMemory;
+            }
+        }
+        return used;
+    }
+
+    public long getAllocateCount() {
+        long count = 0;
+        for (int i = 0; i < arenas.length; i++) {
+            synchronized (arenas[i]) {
+                count += arenas[i].allocateCount;
+            }
+        }
+        return count;
+    }
+
+    public long getReleaseCount() {
+        long count = 0;
+        for (int i = 0; i < arenas.length; i++) {
+            synchronized (arenas[i]) {
+                count += arenas[i].releaseCount;
+            }
+        }
+        return count;
+    }
+
+    public long getHugeAllocateCount() {
+        return hugeAllocateCount.get();
+    }
+
+    public String[] getArenaStatistics() {
+        int[] threadCounts = new int[arenas.length];
+        synchronized (bindings) {
+            unbindEnded();
+            for (int i = 0; i < arenas.length; i++)
+                threadCounts[i] = arenas[i].threadCount;
+        }
+
+        String[] result = new String[arenas.length];
+        for (int i = 0; i < arenas.length; i++) {
+            Arena arena = arenas[i];
+            synchronized (arena) {
+                result[i] = "[threads] " + threadCounts[i]
+                        + " [chunks] " + arena.chunks.size() + " [used] "
+                        + arena.usedMemory + " [allocate] "
+                        + arena.allocateCount + " [release] "
+                        + arena.releaseCount;
+            }
+        }
+        return result;
+    }
+
+    public String toString() {
+        return super.toString() + " [arenas] " + arenas.length + " [chunks] "
+                + getChunkCount() + " [used] " + getUsedMemory();
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.buffer;
+
+/**
+ * <code>ArenaBufferPool</code> MBean.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public interface ArenaBufferPoolMBean {
+
+    int getArenaCount();
+
+    int getPageSize();
+
+    int getChunkSize();
+
+    int getChunkCount();
+
+    /**
+     * Get the off-heap memory reserved by chunks.
+     * 
+     * @return reserved memory in bytes
+     */
+    long getReservedMemory();
+
+    /**
+     * Get the memory used by unreleased buffers, include the round up bytes.
+     * 
+     * @return used memory in bytes
+     */
+    long getUsedMemory();
+
+    long getAllocateCount();
+
+    long getReleaseCount();
+
+    /**
+     * Get the count of buffers larger than a chunk, which are not pooled.
+     * 
+     * @return huge allocate count
+     */
+    long getHugeAllocateCount();
+
+    String[] getArenaStatistics();
+
+}
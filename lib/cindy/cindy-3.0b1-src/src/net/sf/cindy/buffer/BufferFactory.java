@@ -16,6 +16,12 @@
 package net.sf.cindy.buffer;
 
 import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
 
 import net.sf.cindy.Buffer;
 import net.sf.cindy.util.Configuration;
@@ -95,6 +101,22 @@ public class BufferFactory {
                 log.error(e);
             }
         pool = tempPool == null ? new DefaultBufferPool() : tempPool;
+        if (Configuration.isEnableJmx())
+            registerMBean(pool);
+    }
+
+    private static void registerMBean(BufferPool pool) {
+        try {
+            List servers = MBeanServerFactory.findMBeanServer(null);
+            MBeanServer server = servers.size() > 0 ? (MBeanServer) servers
+                    .get(0) : MBeanServerFactory.createMBeanServer();
+            server.registerMBean(pool, ObjectName.getInstance("net.sf.cindy",
+                    "name", "BufferPool"));
+        } catch (NotCompliantMBeanException e) {
+            // not a standard mbean, no statistic exposed
+        } catch (Throwable e) { // jmx not available
+            log.warn(e);
+        }
     }
 
     /**
@@ -122,7 +144,10 @@ public class BufferFactory {
     public static Buffer allocate(int capacity, boolean direct) {
         if (capacity < 0)
             throw new IllegalArgumentException();
-        return pool.allocate(capacity, direct);
+        Buffer buffer = pool.allocate(capacity, direct);
+        if (buffer instanceof AbstractBuffer)
+            LeakDetector.track((AbstractBuffer) buffer);
+        return buffer;
     }
 
 }
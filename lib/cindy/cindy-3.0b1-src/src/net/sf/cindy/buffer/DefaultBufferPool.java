@@ -16,22 +16,39 @@
 package net.sf.cindy.buffer;
 
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeMap;
 
 import net.sf.cindy.Buffer;
 import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
 import edu.emory.mathcs.backport.java.util.concurrent.locks.Lock;
 import edu.emory.mathcs.backport.java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Default implementation of <code>BufferPool</code>.
+ * <p>
+ * Buffers of common sizes (power of 2 from 512 bytes to 64k) are cached in
+ * thread local magazines, allocate and release such buffers need no lock and
+ * no allocation in most cases. Magazines are exchanged with a shared depot in
+ * batch, and buffers overflowed from the depot go to the soft referenced
+ * pool.
+ * <p>
+ * Magazines of a thread are created on its first use of the size class. When
+ * the thread ends, its cached buffers and counters are returned to the pool the
+ * next time a thread starts to use the pool or the statistics are read.
+ * Virtual threads don't cache buffers, they use the soft referenced pool
+ * directly.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
  */
-public class DefaultBufferPool implements BufferPool {
+public class DefaultBufferPool implements BufferPool, DefaultBufferPoolMBean {
 
     private static class Entry {
 
@@ -60,14 +77,392 @@ public class DefaultBufferPool implements BufferPool {
     private final Lock[] directLocks = new ReentrantLock[POSITIVE_INTEGER_SIZE];
     private final Lock[] heapLocks = new ReentrantLock[POSITIVE_INTEGER_SIZE];
 
-    private final AtomicInteger getCount = new AtomicInteger();
-    private final AtomicInteger hitCount = new AtomicInteger();
+    /**
+     * Size classes cached in magazines: 512, 1k, 2k ... 64k.
+     */
+    private static final int MIN_CLASS_SHIFT = 9;
+    private static final int MAX_CLASS_SHIFT = 16;
+    private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT
+            + 1;
+
+    private static final int MAGAZINE_SIZE = 32;
+
+    /**
+     * Max bytes of full magazines in the depot per size class.
+     */
+    private static final int MAX_DEPOT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Thread local counters are added to the global counters in batch.
+     */
+    private static final int COUNTER_FLUSH_THRESHOLD = 256;
+
+    /**
+     * Fixed size stack of pooled objects.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class Magazine {
+
+        private final Object[] objs = new Object[MAGAZINE_SIZE];
+        private int size;
+
+    }
+
+    /**
+     * Shared full and empty magazines of a size class.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class Depot {
+
+        private final Lock lock = new ReentrantLock();
+        private final Magazine[] fulls;
+        private final Magazine[] empties;
+        private int fullCount;
+        private int emptyCount;
+
+        public Depot(int classSize) {
+            int count = Math.max(1, MAX_DEPOT_BYTES
+                    / (MAGAZINE_SIZE * classSize));
+            fulls = new Magazine[count];
+            empties = new Magazine[count];
+        }
+
+        private void lock() {
+            if (!lock.tryLock()) {
+                contentionCount.incrementAndGet();
+                lock.lock();
+            }
+        }
+
+        /**
+         * Exchange an empty magazine for a full one.
+         * 
+         * @return full magazine, null if the depot has no full magazine
+         */
+        private Magazine exchangeFull(Magazine empty) {
+            lock();
+            try {
+                if (fullCount == 0)
+                    return null;
+                Magazine full = fulls[--fullCount];
+                fulls[fullCount] = null;
+                if (emptyCount < empties.length)
+                    empties[emptyCount++] = empty;
+                return full;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Exchange a full magazine for an empty one.
+         * 
+         * @return empty magazine, null if the depot is full
+         */
+        private Magazine exchangeEmpty(Magazine full) {
+            lock();
+            try {
+                if (fullCount == fulls.length)
+                    return null;
+                fulls[fullCount++] = full;
+                if (emptyCount == 0)
+                    return new Magazine();
+                Magazine empty = empties[--emptyCount];
+                empties[emptyCount] = null;
+                return empty;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void clear() {
+            lock();
+            try {
+                for (int i = 0; i < fullCount; i++)
+                    fulls[i] = null;
+                fullCount = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+    /**
+     * Thread local cache of a size class. Objects are taken from the loaded
+     * magazine, the previous magazine is used to avoid thrash with the depot
+     * at the boundary.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class Cache {
+
+        private Magazine loaded = new Magazine();
+        private Magazine previous = new Magazine();
+
+    }
+
+    /**
+     * Thread local caches and counters. Caches of the size classes are created
+     * on first use.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class Caches {
+
+        private final WeakReference thread;
+        private final Cache[] heapCaches = new Cache[CLASS_COUNT];
+        private final Cache[] directCaches = new Cache[CLASS_COUNT];
+        private int getCount;
+        private int hitCount;
+        private int magazineHitCount;
+
+        public Caches(Thread thread) {
+            this.thread = new WeakReference(thread);
+        }
+
+        private Cache getCache(boolean direct, int index) {
+            Cache[] caches = direct ? directCaches : heapCaches;
+            Cache cache = caches[index];
+            if (cache == null)
+                caches[index] = cache = new Cache();
+            return cache;
+        }
+
+        /**
+         * Is the owner thread ended.
+         * 
+         * @return ended
+         */
+        private boolean isEnded() {
+            Thread t = (Thread) thread.get();
+            return t == null || !t.isAlive();
+        }
+
+    }
+
+    /**
+     * Thread.isVirtual, null if not supported by the runtime.
+     */
+    private static final Method IS_VIRTUAL;
+
+    static {
+        Method method = null;
+        try {
+            method = Thread.class.getMethod("isVirtual", new Class[0]);
+        } catch (Exception e) {
+        }
+        IS_VIRTUAL = method;
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null)
+            return false;
+        try {
+            return Boolean.TRUE.equals(IS_VIRTUAL.invoke(thread, new Object[0]));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Marks the threads which don't cache buffers.
+     */
+    private static final Caches NO_CACHES = new Caches(null);
+
+    private final Depot[] heapDepots = new Depot[CLASS_COUNT];
+    private final Depot[] directDepots = new Depot[CLASS_COUNT];
+
+    /**
+     * Caches of the threads, checked for ended threads.
+     */
+    private final List threadCaches = new ArrayList();
+
+    private final ThreadLocal caches = new ThreadLocal() {
+
+        protected Object initialValue() {
+            Thread thread = Thread.currentThread();
+            if (isVirtual(thread))
+                return NO_CACHES;
+            Caches caches = new Caches(thread);
+            synchronized (threadCaches) {
+                reclaimEnded();
+                threadCaches.add(caches);
+            }
+            return caches;
+        }
+    };
+
+    private final AtomicLong getCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong magazineHitCount = new AtomicLong();
+    private final AtomicLong contentionCount = new AtomicLong();
 
     public DefaultBufferPool() {
         for (int i = 0; i < POSITIVE_INTEGER_SIZE; i++) {
             directLocks[i] = new ReentrantLock();
             heapLocks[i] = new ReentrantLock();
         }
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            heapDepots[i] = new Depot(1 << (i + MIN_CLASS_SHIFT));
+            directDepots[i] = new Depot(1 << (i + MIN_CLASS_SHIFT));
+        }
+    }
+
+    /**
+     * Get the magazine size class index.
+     * 
+     * @param capacity
+     *            capacity
+     * @return size class index, -1 if the capacity is not cached in magazines
+     */
+    private static int classFor(int capacity) {
+        if (capacity < MIN_CACHABLE_LENGTH
+                || capacity > (1 << MAX_CLASS_SHIFT))
+            return -1;
+        int shift = MIN_CLASS_SHIFT;
+        while ((1 << shift) < capacity)
+            shift++;
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * Get the magazine size class index of the released content.
+     * 
+     * @param length
+     *            content length
+     * @return size class index, -1 if the content length is not a class size
+     */
+    private static int classOf(int length) {
+        int index = classFor(length);
+        return index >= 0 && (1 << (index + MIN_CLASS_SHIFT)) == length ? index
+                : -1;
+    }
+
+    private void flushCounters(Caches caches) {
+        getCount.addAndGet(caches.getCount);
+        hitCount.addAndGet(caches.hitCount);
+        magazineHitCount.addAndGet(caches.magazineHitCount);
+        caches.getCount = caches.hitCount = caches.magazineHitCount = 0;
+    }
+
+    /**
+     * Return the cached buffers and the counters of the ended threads to the
+     * pool.
+     */
+    private void reclaimEnded() {
+        synchronized (threadCaches) {
+            for (Iterator iter = threadCaches.iterator(); iter.hasNext();) {
+                Caches caches = (Caches) iter.next();
+                if (caches.isEnded()) {
+                    iter.remove();
+                    reclaim(caches);
+                }
+            }
+        }
+    }
+
+    private void reclaim(Caches caches) {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            reclaim(caches.heapCaches[i], false, i);
+            reclaim(caches.directCaches[i], true, i);
+        }
+        flushCounters(caches);
+    }
+
+    private void reclaim(Cache cache, boolean direct, int index) {
+        if (cache == null)
+            return;
+        reclaim(cache.loaded, direct, index);
+        reclaim(cache.previous, direct, index);
+    }
+
+    private void reclaim(Magazine magazine, boolean direct, int index) {
+        Depot depot = direct ? directDepots[index] : heapDepots[index];
+        if (magazine.size == MAGAZINE_SIZE
+                && depot.exchangeEmpty(magazine) != null)
+            return;
+        for (int i = 0; i < magazine.size; i++) {
+            Object obj = magazine.objs[i];
+            magazine.objs[i] = null;
+            putToPool(direct, obj, 1 << (index + MIN_CLASS_SHIFT));
+        }
+        magazine.size = 0;
+    }
+
+    private Object getFromMagazine(boolean direct, int index) {
+        Caches caches = (Caches) this.caches.get();
+        if (caches == NO_CACHES) {
+            getCount.incrementAndGet();
+            return null;
+        }
+        Cache cache = caches.getCache(direct, index);
+
+        Object obj = null;
+        if (cache.loaded.size == 0) {
+            Magazine previous = cache.previous;
+            if (previous.size > 0) {
+                cache.previous = cache.loaded;
+                cache.loaded = previous;
+            } else {
+                Depot depot = direct ? directDepots[index] : heapDepots[index];
+                Magazine full = depot.exchangeFull(previous);
+                if (full != null) {
+                    cache.previous = cache.loaded;
+                    cache.loaded = full;
+                }
+            }
+        }
+        Magazine loaded = cache.loaded;
+        if (loaded.size > 0) {
+            obj = loaded.objs[--loaded.size];
+            loaded.objs[loaded.size] = null;
+        }
+
+        caches.getCount++;
+        if (obj != null) {
+            caches.hitCount++;
+            caches.magazineHitCount++;
+        }
+        if (caches.getCount >= COUNTER_FLUSH_THRESHOLD)
+            flushCounters(caches);
+        return obj;
+    }
+
+    /**
+     * Put object into the thread local magazine.
+     * 
+     * @return false if magazine and depot are full
+     */
+    private boolean putToMagazine(boolean direct, int index, Object obj) {
+        Caches caches = (Caches) this.caches.get();
+        if (caches == NO_CACHES)
+            return false;
+        Cache cache = caches.getCache(direct, index);
+
+        if (cache.loaded.size == MAGAZINE_SIZE) {
+            Magazine previous = cache.previous;
+            if (previous.size < MAGAZINE_SIZE) {
+                cache.previous = cache.loaded;
+                cache.loaded = previous;
+            } else {
+                Depot depot = direct ? directDepots[index] : heapDepots[index];
+                Magazine empty = depot.exchangeEmpty(previous);
+                if (empty == null)
+                    return false;
+                cache.previous = cache.loaded;
+                cache.loaded = empty;
+            }
+        }
+        Magazine loaded = cache.loaded;
+        loaded.objs[loaded.size++] = obj;
+        return true;
     }
 
     private final int indexFor(int capacity) {
@@ -84,6 +479,26 @@ public class DefaultBufferPool implements BufferPool {
         return reference == null ? null : (TreeMap) reference.get();
     }
 
+    /**
+     * Put the content into the soft referenced pool.
+     */
+    private void putToPool(boolean direct, Object obj, int length) {
+        int index = indexFor(length);
+        if (index < 0)
+            return;
+        Lock lock = direct ? directLocks[index] : heapLocks[index];
+        Integer key = new Integer(length);
+        Entry value = new Entry(obj);
+
+        lock.lock();
+        try {
+            value.next = (Entry) createPool(direct ? directPools : heapPools,
+                    index).put(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private final TreeMap createPool(SoftReference[] references, int index) {
         SoftReference reference = references[index];
         TreeMap pool = reference == null ? null : (TreeMap) reference.get();
@@ -109,25 +524,10 @@ public class DefaultBufferPool implements BufferPool {
             this.content = content;
         }
 
-        private HeapBuffer(int capacity) {
-            this(new byte[capacity], capacity);
-        }
-
         protected void _release() {
-            int index = indexFor(content.length);
-            if (index >= 0) {
-                Lock lock = heapLocks[index];
-                Integer key = new Integer(content.length);
-                Entry value = new Entry(content);
-
-                lock.lock();
-                try {
-                    value.next = (Entry) createPool(heapPools, index).put(key,
-                            value);
-                } finally {
-                    lock.unlock();
-                }
-            }
+            int classIndex = classOf(content.length);
+            if (classIndex < 0 || !putToMagazine(false, classIndex, content))
+                putToPool(false, content, content.length);
             content = null;
             super._release();
         }
@@ -148,25 +548,10 @@ public class DefaultBufferPool implements BufferPool {
             this.content = content;
         }
 
-        private DirectBuffer(int capacity) {
-            this(ByteBuffer.allocateDirect(capacity), capacity);
-        }
-
         protected void _release() {
-            int index = indexFor(content.capacity());
-            if (index >= 0) {
-                Lock lock = directLocks[index];
-                Integer key = new Integer(content.capacity());
-                Entry value = new Entry(content);
-
-                lock.lock();
-                try {
-                    value.next = (Entry) createPool(directPools, index).put(
-                            key, value);
-                } finally {
-                    lock.unlock();
-                }
-            }
+            int classIndex = classOf(content.capacity());
+            if (classIndex < 0 || !putToMagazine(true, classIndex, content))
+                putToPool(true, content, content.capacity());
             content = null;
             super._release();
         }
@@ -174,8 +559,30 @@ public class DefaultBufferPool implements BufferPool {
     }
 
     public Buffer allocate(int capacity, boolean direct) {
-        getCount.incrementAndGet();
+        int classIndex = classFor(capacity);
+        if (classIndex >= 0) {
+            Object obj = getFromMagazine(direct, classIndex);
+            int classSize = 1 << (classIndex + MIN_CLASS_SHIFT);
+            if (obj == null) {
+                // buffers overflowed from the depot
+                int index = indexFor(classSize);
+                obj = get(direct, index, new Integer(classSize));
+                if (obj != null)
+                    hitCount.incrementAndGet();
+            }
+            if (obj != null) {
+                if (direct) {
+                    ByteBuffer content = (ByteBuffer) obj;
+                    content.clear();
+                    return new DirectBuffer(content, capacity);
+                } else {
+                    return new HeapBuffer((byte[]) obj, capacity);
+                }
+            }
+            return allocateNew(classSize, capacity, direct);
+        }
 
+        getCount.incrementAndGet();
         int index = indexFor(capacity);
         if (index >= 0) {
             Integer key = new Integer(capacity);
@@ -195,12 +602,7 @@ public class DefaultBufferPool implements BufferPool {
             }
         }
 
-        try {
-            return allocateNew(capacity, direct);
-        } catch (OutOfMemoryError e) {
-            clear();
-            return allocateNew(capacity, direct);
-        }
+        return allocateNew(capacity, capacity, direct);
     }
 
     private Object get(boolean direct, int index, Object key) {
@@ -230,12 +632,27 @@ public class DefaultBufferPool implements BufferPool {
         return null;
     }
 
-    private Buffer allocateNew(int capacity, boolean direct) {
-        return direct ? (Buffer) new DirectBuffer(capacity) : new HeapBuffer(
-                capacity);
+    private Buffer allocateNew(int length, int capacity, boolean direct) {
+        try {
+            return newBuffer(length, capacity, direct);
+        } catch (OutOfMemoryError e) {
+            clear();
+            return newBuffer(length, capacity, direct);
+        }
+    }
+
+    private Buffer newBuffer(int length, int capacity, boolean direct) {
+        return direct ? (Buffer) new DirectBuffer(ByteBuffer
+                .allocateDirect(length), capacity) : new HeapBuffer(
+                new byte[length], capacity);
     }
 
     public void clear() {
+        reclaimEnded();
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            heapDepots[i].clear();
+            directDepots[i].clear();
+        }
         for (int i = 0; i < POSITIVE_INTEGER_SIZE; i++) {
             clear(heapLocks[i], heapPools[i]);
             clear(directLocks[i], directPools[i]);
@@ -253,12 +670,39 @@ public class DefaultBufferPool implements BufferPool {
         }
     }
 
+    public long getAllocateCount() {
+        reclaimEnded();
+        return getCount.get();
+    }
+
+    public long getHitCount() {
+        reclaimEnded();
+        return hitCount.get();
+    }
+
+    public long getMagazineHitCount() {
+        reclaimEnded();
+        return magazineHitCount.get();
+    }
+
+    public long getContentionCount() {
+        return contentionCount.get();
+    }
+
     public double getHitRate() {
+        reclaimEnded();
         return (double) hitCount.get() / getCount.get();
     }
 
+    public double getMagazineHitRate() {
+        reclaimEnded();
+        return (double) magazineHitCount.get() / getCount.get();
+    }
+
     public String toString() {
-        return super.toString() + " [hitRate] " + getHitRate();
+        return super.toString() + " [hitRate] " + getHitRate()
+                + " [magazineHitRate] " + getMagazineHitRate()
+                + " [contention] " + getContentionCount();
     }
 
 }
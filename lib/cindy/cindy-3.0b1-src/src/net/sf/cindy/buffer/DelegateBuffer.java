@@ -24,7 +24,9 @@ import net.sf.cindy.Buffer;
 import net.sf.cindy.util.Charset;
 
 /**
- * Delegate buffer.
+ * Delegate buffer. The methods which return the buffer itself return the
+ * delegate buffer, not the delegated one, so a chained call such as
+ * <code>flip().release()</code> still goes through the subclass.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
@@ -57,11 +59,13 @@ public class DelegateBuffer implements Buffer {
     }
 
     public Buffer clear() {
-        return delegate.clear();
+        delegate.clear();
+        return this;
     }
 
     public Buffer compact() {
-        return delegate.compact();
+        delegate.compact();
+        return this;
     }
 
     public String dump() {
@@ -73,7 +77,8 @@ public class DelegateBuffer implements Buffer {
     }
 
     public Buffer flip() {
-        return delegate.flip();
+        delegate.flip();
+        return this;
     }
 
     public byte get() {
@@ -81,51 +86,63 @@ public class DelegateBuffer implements Buffer {
     }
 
     public Buffer get(Buffer dst, int length) {
-        return delegate.get(dst, length);
+        delegate.get(dst, length);
+        return this;
     }
 
     public Buffer get(Buffer dst) {
-        return delegate.get(dst);
+        delegate.get(dst);
+        return this;
     }
 
     public Buffer get(byte[] dst, int offset, int length) {
-        return delegate.get(dst, offset, length);
+        delegate.get(dst, offset, length);
+        return this;
     }
 
     public Buffer get(byte[] dst) {
-        return delegate.get(dst);
+        delegate.get(dst);
+        return this;
     }
 
     public Buffer get(ByteBuffer dst, int length) {
-        return delegate.get(dst, length);
+        delegate.get(dst, length);
+        return this;
     }
 
     public Buffer get(ByteBuffer dst) {
-        return delegate.get(dst);
+        delegate.get(dst);
+        return this;
     }
 
     public Buffer get(int index, Buffer dst, int length) {
-        return delegate.get(index, dst, length);
+        delegate.get(index, dst, length);
+        return this;
     }
 
     public Buffer get(int index, Buffer dst) {
-        return delegate.get(index, dst);
+        delegate.get(index, dst);
+        return this;
     }
 
     public Buffer get(int index, byte[] dst, int offset, int length) {
-        return delegate.get(index, dst, offset, length);
+        delegate.get(index, dst, offset, length);
+        return this;
     }
 
     public Buffer get(int index, byte[] dst) {
-        return delegate.get(index, dst);
+        delegate.get(index, dst);
+        return this;
     }
 
     public Buffer get(int index, ByteBuffer dst, int length) {
-        return delegate.get(index, dst, length);
+        delegate.get(index, dst, length);
+        return this;
     }
 
     public Buffer get(int index, ByteBuffer dst) {
-        return delegate.get(index, dst);
+        delegate.get(index, dst);
+        return this;
     }
 
     public byte get(int index) {
@@ -245,11 +262,13 @@ public class DelegateBuffer implements Buffer {
     }
 
     public Buffer limit(int limit) {
-        return delegate.limit(limit);
+        delegate.limit(limit);
+        return this;
     }
 
     public Buffer mark() {
-        return delegate.mark();
+        delegate.mark();
+        return this;
     }
 
     public int position() {
@@ -257,143 +276,178 @@ public class DelegateBuffer implements Buffer {
     }
 
     public Buffer position(int position) {
-        return delegate.position(position);
+        delegate.position(position);
+        return this;
     }
 
     public Buffer put(Buffer src, int length) {
-        return delegate.put(src, length);
+        delegate.put(src, length);
+        return this;
     }
 
     public Buffer put(Buffer src) {
-        return delegate.put(src);
+        delegate.put(src);
+        return this;
     }
 
     public Buffer put(byte b) {
-        return delegate.put(b);
+        delegate.put(b);
+        return this;
     }
 
     public Buffer put(byte[] src, int offset, int length) {
-        return delegate.put(src, offset, length);
+        delegate.put(src, offset, length);
+        return this;
     }
 
     public Buffer put(byte[] src) {
-        return delegate.put(src);
+        delegate.put(src);
+        return this;
     }
 
     public Buffer put(ByteBuffer src, int length) {
-        return delegate.put(src, length);
+        delegate.put(src, length);
+        return this;
     }
 
     public Buffer put(ByteBuffer src) {
-        return delegate.put(src);
+        delegate.put(src);
+        return this;
     }
 
     public Buffer put(int index, Buffer src, int length) {
-        return delegate.put(index, src, length);
+        delegate.put(index, src, length);
+        return this;
     }
 
     public Buffer put(int index, Buffer src) {
-        return delegate.put(index, src);
+        delegate.put(index, src);
+        return this;
     }
 
     public Buffer put(int index, byte b) {
-        return delegate.put(index, b);
+        delegate.put(index, b);
+        return this;
     }
 
     public Buffer put(int index, byte[] src, int offset, int length) {
-        return delegate.put(index, src, offset, length);
+        delegate.put(index, src, offset, length);
+        return this;
     }
 
     public Buffer put(int index, byte[] src) {
-        return delegate.put(index, src);
+        delegate.put(index, src);
+        return this;
     }
 
     public Buffer put(int index, ByteBuffer src, int length) {
-        return delegate.put(index, src, length);
+        delegate.put(index, src, length);
+        return this;
     }
 
     public Buffer put(int index, ByteBuffer src) {
-        return delegate.put(index, src);
+        delegate.put(index, src);
+        return this;
     }
 
     public Buffer putChar(char c) {
-        return delegate.putChar(c);
+        delegate.putChar(c);
+        return this;
     }
 
     public Buffer putChar(int index, char c) {
-        return delegate.putChar(index, c);
+        delegate.putChar(index, c);
+        return this;
     }
 
     public Buffer putDouble(double d) {
-        return delegate.putDouble(d);
+        delegate.putDouble(d);
+        return this;
     }
 
     public Buffer putDouble(int index, double d) {
-        return delegate.putDouble(index, d);
+        delegate.putDouble(index, d);
+        return this;
     }
 
     public Buffer putFloat(float f) {
-        return delegate.putFloat(f);
+        delegate.putFloat(f);
+        return this;
     }
 
     public Buffer putFloat(int index, float f) {
-        return delegate.putFloat(index, f);
+        delegate.putFloat(index, f);
+        return this;
     }
 
     public Buffer putInt(int index, int i) {
-        return delegate.putInt(index, i);
+        delegate.putInt(index, i);
+        return this;
     }
 
     public Buffer putInt(int i) {
-        return delegate.putInt(i);
+        delegate.putInt(i);
+        return this;
     }
 
     public Buffer putLong(int index, long l) {
-        return delegate.putLong(index, l);
+        delegate.putLong(index, l);
+        return this;
     }
 
     public Buffer putLong(long l) {
-        return delegate.putLong(l);
+        delegate.putLong(l);
+        return this;
     }
 
     public Buffer putShort(int index, short s) {
-        return delegate.putShort(index, s);
+        delegate.putShort(index, s);
+        return this;
     }
 
     public Buffer putShort(short s) {
-        return delegate.putShort(s);
+        delegate.putShort(s);
+        return this;
     }
 
     public Buffer putString(int index, String s, Charset charset) {
-        return delegate.putString(index, s, charset);
+        delegate.putString(index, s, charset);
+        return this;
     }
 
     public Buffer putString(String s, Charset charset) {
-        return delegate.putString(s, charset);
+        delegate.putString(s, charset);
+        return this;
     }
 
     public Buffer putUnsignedByte(int index, short s) {
-        return delegate.putUnsignedByte(index, s);
+        delegate.putUnsignedByte(index, s);
+        return this;
     }
 
     public Buffer putUnsignedByte(short s) {
-        return delegate.putUnsignedByte(s);
+        delegate.putUnsignedByte(s);
+        return this;
     }
 
     public Buffer putUnsignedInt(int index, long l) {
-        return delegate.putUnsignedInt(index, l);
+        delegate.putUnsignedInt(index, l);
+        return this;
     }
 
     public Buffer putUnsignedInt(long l) {
-        return delegate.putUnsignedInt(l);
+        delegate.putUnsignedInt(l);
+        return this;
     }
 
     public Buffer putUnsignedShort(int index, int i) {
-        return delegate.putUnsignedShort(index, i);
+        delegate.putUnsignedShort(index, i);
+        return this;
     }
 
     public Buffer putUnsignedShort(int i) {
-        return delegate.putUnsignedShort(i);
+        delegate.putUnsignedShort(i);
+        return this;
     }
 
     public int read(ReadableByteChannel channel) throws IOException {
@@ -409,15 +463,18 @@ public class DelegateBuffer implements Buffer {
     }
 
     public Buffer reset() {
-        return delegate.reset();
+        delegate.reset();
+        return this;
     }
 
     public Buffer rewind() {
-        return delegate.rewind();
+        delegate.rewind();
+        return this;
     }
 
     public Buffer setBigEndian(boolean b) {
-        return delegate.setBigEndian(b);
+        delegate.setBigEndian(b);
+        return this;
     }
 
     public void setPermanent(boolean b) {
@@ -425,7 +482,8 @@ public class DelegateBuffer implements Buffer {
     }
 
     public Buffer skip(int size) {
-        return delegate.skip(size);
+        delegate.skip(size);
+        return this;
     }
 
     public Buffer slice() {
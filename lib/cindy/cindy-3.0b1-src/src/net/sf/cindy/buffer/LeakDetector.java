@@ -0,0 +1,174 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.buffer;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+
+import net.sf.cindy.util.Configuration;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentHashMap;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detect the allocated buffers which are collected by gc without release.
+ * <p>
+ * Levels:
+ * <ul>
+ * <li>off: no detection</li>
+ * <li>sampled: track one of every <code>buffer.leakDetection.interval</code>
+ * allocated buffers, record the allocation stack trace only. The untracked
+ * buffers cost a counter increment, so it can be enabled in production.</li>
+ * <li>paranoid: track all allocated buffers, record the allocation and last
+ * access stack trace. Very slow, for debug only.</li>
+ * </ul>
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public final class LeakDetector {
+
+    private static final Log log = LogFactory.getLog(LeakDetector.class);
+
+    public static final int OFF = 0;
+    public static final int SAMPLED = 1;
+    public static final int PARANOID = 2;
+
+    private static int level = parseLevel(Configuration.getLeakDetection());
+    private static final int INTERVAL = Math.max(1, Configuration
+            .getLeakDetectionInterval());
+
+    private static final ReferenceQueue QUEUE = new ReferenceQueue();
+
+    /**
+     * Keep the trackers reachable until buffer released or collected.
+     */
+    private static final Map TRACKERS = new ConcurrentHashMap();
+
+    private static final AtomicLong LEAK_COUNT = new AtomicLong();
+
+    private static int counter; // racy, only for sampling
+
+    private LeakDetector() {
+    }
+
+    private static int parseLevel(String s) {
+        if ("off".equalsIgnoreCase(s))
+            return OFF;
+        if ("paranoid".equalsIgnoreCase(s))
+            return PARANOID;
+        return SAMPLED;
+    }
+
+    /**
+     * Leak tracker of a buffer.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    static final class Tracker extends WeakReference {
+
+        private final String buffer;
+        private final Throwable allocation;
+        private volatile Throwable lastAccess;
+
+        private Tracker(AbstractBuffer buffer) {
+            super(buffer, QUEUE);
+            this.buffer = buffer.getClass().getName() + "[capacity="
+                    + buffer.capacity() + "]";
+            this.allocation = new Throwable("allocated at");
+            TRACKERS.put(this, this);
+        }
+
+        void access() {
+            if (level == PARANOID)
+                lastAccess = new Throwable("last accessed at");
+        }
+
+        void close() {
+            TRACKERS.remove(this);
+            clear();
+        }
+
+        private void report() {
+            LEAK_COUNT.incrementAndGet();
+            log.error("buffer leak: " + buffer
+                    + " was collected without release", allocation);
+            if (lastAccess != null)
+                log.error("buffer leak: " + buffer, lastAccess);
+        }
+
+    }
+
+    /**
+     * Get the leak detection level.
+     *
+     * @return leak detection level
+     */
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * Set the leak detection level, affect the buffers allocated later.
+     *
+     * @param level
+     *            leak detection level
+     */
+    public static void setLevel(int level) {
+        if (level < OFF || level > PARANOID)
+            throw new IllegalArgumentException("level: " + level);
+        LeakDetector.level = level;
+    }
+
+    /**
+     * Get the count of reported leaks.
+     *
+     * @return leak count
+     */
+    public static long getLeakCount() {
+        return LEAK_COUNT.get();
+    }
+
+    /**
+     * Track the allocated buffer, and report the collected leak buffers.
+     *
+     * @param buffer
+     *            allocated buffer
+     */
+    static void track(AbstractBuffer buffer) {
+        int level = LeakDetector.level;
+        if (level == OFF || level == SAMPLED && ++counter % INTERVAL != 0)
+            return;
+        reportLeaks();
+        buffer.tracker = new Tracker(buffer);
+    }
+
+    /**
+     * Report the collected buffers which have not been released.
+     */
+    public static void reportLeaks() {
+        for (Tracker tracker = null; (tracker = (Tracker) QUEUE.poll()) != null;) {
+            if (TRACKERS.remove(tracker) != null)
+                tracker.report();
+        }
+    }
+
+}
@@ -23,43 +23,59 @@ import net.sf.cindy.util.Charset;
 /**
  * Linked several <code>Buffer</code> as a single <code>Buffer</code>.
  * Experiment.
+ * <p>
+ * Entries are kept in an array with cumulative start positions, the entry of
+ * an index is found by binary search, and the last found entry is cached, so
+ * sequential access is O(1) and random access is O(log n).
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
  */
 public class LinkedBuffer extends AbstractBuffer {
 
-    protected static final class Entry {
+    /**
+     * Linked buffers, shared by the duplicated buffers.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static final class Entries {
 
-        public Buffer buffer;
-        public int position;
+        private Buffer[] buffers = new Buffer[4];
 
-        public Entry next;
-        public Entry previous;
+        /**
+         * Start position of each buffer, positions[size] is the total length.
+         */
+        private int[] positions = new int[5];
+        private int size;
+
+        /**
+         * Last found entry.
+         */
+        private int cursor;
 
     }
 
-    protected final Entry header;
+    private final Entries entries;
 
     public LinkedBuffer(Buffer[] content) {
         super(0, 0);
-        header = new Entry();
-        header.previous = header.next = header;
+        entries = new Entries();
         for (int i = 0; i < content.length; i++) {
             append(content[i].duplicate());
         }
         limit(capacity());
     }
 
-    private LinkedBuffer(Entry header, int offset, int capacity) {
+    private LinkedBuffer(Entries entries, int offset, int capacity) {
         super(offset, capacity);
-        this.header = header;
+        this.entries = entries;
     }
 
     private class DelegateReleaseBuffer extends LinkedBuffer {
 
         public DelegateReleaseBuffer(int offset, int capacity) {
-            super(LinkedBuffer.this.header, offset, capacity);
+            super(LinkedBuffer.this.entries, offset, capacity);
         }
 
         public boolean isReleased() {
@@ -82,38 +98,57 @@ public class LinkedBuffer extends AbstractBuffer {
 
     protected void append(Buffer buffer) {
         if (buffer != null) {
-            Entry entry = new Entry();
-            Entry last = header.previous;
-
-            last.next = entry;
-            entry.previous = last;
-            entry.next = header;
-            header.previous = entry;
-
-            entry.buffer = buffer;
-            entry.position = (last == header ? 0 : last.buffer.remaining())
-                    + last.position;
+            Entries entries = this.entries;
+            int size = entries.size;
+            if (size == entries.buffers.length) {
+                Buffer[] buffers = new Buffer[size * 2];
+                System.arraycopy(entries.buffers, 0, buffers, 0, size);
+                int[] positions = new int[size * 2 + 1];
+                System.arraycopy(entries.positions, 0, positions, 0, size + 1);
+                entries.buffers = buffers;
+                entries.positions = positions;
+            }
+            entries.buffers[size] = buffer;
+            entries.positions[size + 1] = entries.positions[size]
+                    + buffer.remaining();
+            entries.size++;
 
             // only effect current buffer
             capacity(capacity() + buffer.remaining());
         }
     }
 
-    protected void remove(Buffer buffer) {
-        for (Entry e = header.next; e != header; e = e.next) {
-            if (e.buffer == buffer) {
-                Entry removedEntry = e;
-                int removedSize = e.buffer.remaining();
-
-                e.previous.next = e.next;
-                e.next.previous = e.previous;
-                while ((e = e.next) != header) {
-                    e.position -= removedSize;
-                }
+    /**
+     * Remove entries from <code>from</code> (inclusive) to <code>to</code>
+     * (exclusive), the following entries are moved forward.
+     * 
+     * @return removed length
+     */
+    private int removeEntries(int from, int to, boolean release) {
+        Entries entries = this.entries;
+        int[] positions = entries.positions;
+        int removedSize = positions[to] - positions[from];
+        for (int i = from; i < to; i++) {
+            if (release)
+                entries.buffers[i].release();
+            entries.buffers[i] = null;
+        }
+        int moved = entries.size - to;
+        System.arraycopy(entries.buffers, to, entries.buffers, from, moved);
+        for (int i = 0; i <= moved; i++)
+            positions[from + i] = positions[to + i] - removedSize;
+        for (int i = from + moved; i < entries.size; i++)
+            entries.buffers[i] = null;
+        entries.size -= to - from;
+        entries.cursor = 0;
+        return removedSize;
+    }
 
-                removedEntry.previous = null;
-                removedEntry.next = null;
-                removedEntry.buffer = null;
+    protected void remove(Buffer buffer) {
+        Entries entries = this.entries;
+        for (int i = 0; i < entries.size; i++) {
+            if (entries.buffers[i] == buffer) {
+                int removedSize = removeEntries(i, i + 1, false);
 
                 // only effect current buffer
                 capacity(capacity() - removedSize);
@@ -124,12 +159,32 @@ public class LinkedBuffer extends AbstractBuffer {
         }
     }
 
+    /**
+     * Release and remove the leading buffers before the position, the
+     * position, limit and capacity are moved forward.
+     */
+    protected void releaseConsumed() {
+        Entries entries = this.entries;
+        int position = getIndex(0, 0) + position();
+        int count = 0;
+        while (count < entries.size
+                && entries.positions[count + 1] <= position)
+            count++;
+        if (count > 0) {
+            int releasedLen = removeEntries(0, count, true);
+            position(position() - releasedLen);
+            limit(limit() - releasedLen);
+            capacity(capacity() - releasedLen);
+        }
+    }
+
     public boolean isDirect() {
-        for (Entry e = header.next; e != header; e = e.next) {
-            if (!e.buffer.isDirect())
+        Entries entries = this.entries;
+        for (int i = 0; i < entries.size; i++) {
+            if (!entries.buffers[i].isDirect())
                 return false;
         }
-        return header.next != header; // is not empty
+        return entries.size > 0; // is not empty
     }
 
     public Buffer duplicate() {
@@ -147,42 +202,75 @@ public class LinkedBuffer extends AbstractBuffer {
     }
 
     protected void _release() {
-        for (Entry e = header.next; e != header;) {
-            e.buffer.release();
-            e.buffer = null;
-            e.previous = null;
-            e = e.next;
-            e.previous.next = null;
+        Entries entries = this.entries;
+        for (int i = 0; i < entries.size; i++) {
+            entries.buffers[i].release();
+            entries.buffers[i] = null;
+        }
+        entries.size = 0;
+        entries.cursor = 0;
+    }
+
+    /**
+     * Get the entry which contains the index. If several entries contain the
+     * index (empty entries), the last one is returned.
+     * 
+     * @param index
+     *            index
+     * @return entry index, -1 if there is no entry
+     */
+    private int getEntry(int index) {
+        Entries entries = this.entries;
+        int[] positions = entries.positions;
+        int size = entries.size;
+
+        // last found entry or its next entry, for sequential access
+        int cursor = entries.cursor;
+        if (cursor < size && index >= positions[cursor]) {
+            if (index < positions[cursor + 1])
+                return cursor;
+            if (cursor + 1 < size && index < positions[cursor + 2]) {
+                entries.cursor = cursor + 1;
+                return cursor + 1;
+            }
         }
-        header.next = header.previous = header;
-    }
 
-    private Entry getEntry(int index) {
-        for (Entry e = header.previous; e != header; e = e.previous) {
-            if (index >= e.position)
-                return e;
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (positions[mid] <= index)
+                low = mid + 1;
+            else
+                high = mid - 1;
         }
-        return null;
+        if (high >= 0)
+            entries.cursor = high;
+        return high;
     }
 
     protected byte _get(int index) {
-        Entry entry = getEntry(index);
-        Buffer buffer = entry.buffer;
-        return buffer.get(buffer.position() + index - entry.position);
+        int entry = getEntry(index);
+        Buffer buffer = entries.buffers[entry];
+        return buffer.get(buffer.position() + index
+                - entries.positions[entry]);
     }
 
     protected void _put(int index, byte b) {
-        Entry entry = getEntry(index);
-        Buffer buffer = entry.buffer;
-        buffer.put(buffer.position() + index - entry.position, b);
+        int entry = getEntry(index);
+        Buffer buffer = entries.buffers[entry];
+        buffer.put(buffer.position() + index - entries.positions[entry], b);
     }
 
     protected Buffer batch(boolean get, int index, byte[] array, int offset,
             int length) {
-        Entry entry = getEntry(index);
-        int off = index - entry.position;
+        if (length == 0)
+            return this;
+        Entries entries = this.entries;
+        int entry = getEntry(index);
+        int off = index - entries.positions[entry];
         do {
-            Buffer buffer = entry.buffer;
+            Buffer buffer = entries.buffers[entry];
             int len = Math.min(buffer.remaining() - off, length);
 
             if (get)
@@ -195,15 +283,18 @@ public class LinkedBuffer extends AbstractBuffer {
             if (length <= 0)
                 break;
             off = 0;
-        } while ((entry = entry.next) != header);
+        } while (++entry < entries.size);
         return this;
     }
 
     protected Buffer batch(boolean get, int index, ByteBuffer buffer, int length) {
-        Entry entry = getEntry(index);
-        int off = index - entry.position;
+        if (length == 0)
+            return this;
+        Entries entries = this.entries;
+        int entry = getEntry(index);
+        int off = index - entries.positions[entry];
         do {
-            Buffer content = entry.buffer;
+            Buffer content = entries.buffers[entry];
             int len = Math.min(content.remaining() - off, length);
 
             if (get)
@@ -216,15 +307,18 @@ public class LinkedBuffer extends AbstractBuffer {
             if (length <= 0)
                 break;
             off = 0;
-        } while ((entry = entry.next) != header);
+        } while (++entry < entries.size);
         return this;
     }
 
     protected Buffer batch(boolean get, int index, Buffer buffer, int length) {
-        Entry entry = getEntry(index);
-        int off = index - entry.position;
+        if (length == 0)
+            return this;
+        Entries entries = this.entries;
+        int entry = getEntry(index);
+        int off = index - entries.positions[entry];
         do {
-            Buffer content = entry.buffer;
+            Buffer content = entries.buffers[entry];
             int len = Math.min(content.remaining() - off, length);
 
             if (get)
@@ -236,7 +330,7 @@ public class LinkedBuffer extends AbstractBuffer {
             if (length <= 0)
                 break;
             off = 0;
-        } while ((entry = entry.next) != header);
+        } while (++entry < entries.size);
         return this;
     }
 
@@ -256,18 +350,18 @@ public class LinkedBuffer extends AbstractBuffer {
         buffer.position(0);
 
         int index = getIndex(0, 0);
-        Entry entry = getEntry(index);
-        int offset = index - entry.position;
+        int entry = getEntry(index);
+        int offset = index - entries.positions[entry];
 
         do {
-            Buffer content = entry.buffer;
+            Buffer content = entries.buffers[entry];
             buffer.limit(Math.min(buffer.capacity(), buffer.position()
                     + content.remaining() - offset));
             content.put(content.position() + offset, buffer);
             if (buffer.position() == buffer.capacity())
                 break;
             offset = 0;
-        } while ((entry = entry.next) != header);
+        } while (++entry < entries.size);
 
         buffer.release();
 
@@ -337,20 +431,20 @@ public class LinkedBuffer extends AbstractBuffer {
     }
 
     private short decodeShort(int index) {
-        Entry entry = getEntry(index);
-        Buffer buffer = entry.buffer;
+        int entry = getEntry(index);
+        Buffer buffer = entries.buffers[entry];
 
-        int idx = buffer.position() + index - entry.position;
+        int idx = buffer.position() + index - entries.positions[entry];
         if (buffer.limit() - idx >= 2)
             return buffer.getShort(idx);
         return Bits.decodeShort(this, index);
     }
 
     private Buffer encodeShort(int index, short s) {
-        Entry entry = getEntry(index);
-        Buffer buffer = entry.buffer;
+        int entry = getEntry(index);
+        Buffer buffer = entries.buffers[entry];
 
-        int idx = buffer.position() + index - entry.position;
+        int idx = buffer.position() + index - entries.positions[entry];
         if (buffer.limit() - idx >= 2)
             buffer.putShort(idx, s);
         else
@@ -375,20 +469,20 @@ public class LinkedBuffer extends AbstractBuffer {
     }
 
     private int decodeInt(int index) {
-        Entry entry = getEntry(index);
-        Buffer buffer = entry.buffer;
+        int entry = getEntry(index);
+        Buffer buffer = entries.buffers[entry];
 
-        int idx = buffer.position() + index - entry.position;
+        int idx = buffer.position() + index - entries.positions[entry];
         if (buffer.limit() - idx >= 4)
             return buffer.getInt(idx);
         return Bits.decodeInt(this, index);
     }
 
     private Buffer encodeInt(int index, int i) {
-        Entry entry = getEntry(index);
-        Buffer buffer = entry.buffer;
+        int entry = getEntry(index);
+        Buffer buffer = entries.buffers[entry];
 
-        int idx = buffer.position() + index - entry.position;
+        int idx = buffer.position() + index - entries.positions[entry];
         if (buffer.limit() - idx >= 4)
             buffer.putInt(idx, i);
         else
@@ -413,20 +507,20 @@ public class LinkedBuffer extends AbstractBuffer {
     }
 
     private long decodeLong(int index) {
-        Entry entry = getEntry(index);
-        Buffer buffer = entry.buffer;
+        int entry = getEntry(index);
+        Buffer buffer = entries.buffers[entry];
 
-        int idx = buffer.position() + index - entry.position;
+        int idx = buffer.position() + index - entries.positions[entry];
         if (buffer.limit() - idx >= 8)
             return buffer.getLong(idx);
         return Bits.decodeLong(this, index);
     }
 
     private Buffer encodeLong(int index, long l) {
-        Entry entry = getEntry(index);
-        Buffer buffer = entry.buffer;
+        int entry = getEntry(index);
+        Buffer buffer = entries.buffers[entry];
 
-        int idx = buffer.position() + index - entry.position;
+        int idx = buffer.position() + index - entries.positions[entry];
         if (buffer.limit() - idx >= 8)
             buffer.putLong(idx, l);
         else
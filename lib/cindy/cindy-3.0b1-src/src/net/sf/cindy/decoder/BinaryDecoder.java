@@ -0,0 +1,324 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.decoder;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Packet;
+import net.sf.cindy.PacketDecoder;
+import net.sf.cindy.Session;
+import net.sf.cindy.util.BinarySchema;
+import net.sf.cindy.util.BinarySchema.ClassSchema;
+
+/**
+ * Decode <code>Packet</code> encoded by <code>BinaryEncoder</code> to object.
+ * The decoder peeks the length prefix and returns null until the whole value
+ * received, the value is parsed only once. Lists are decoded as
+ * <code>ArrayList</code>, sets as <code>HashSet</code> and maps as
+ * <code>HashMap</code>.
+ * <p>
+ * Objects are decoded only if the class is registered or allowed by the
+ * schema, otherwise <code>ClassNotFoundException</code> is thrown. The
+ * session is closed on any decode failure, such as a value longer than the
+ * max length, an unknown class or a corrupted value.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class BinaryDecoder implements PacketDecoder {
+
+    /**
+     * Default max length of the encoded value, 1m bytes.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 1024 * 1024;
+
+    private final BinarySchema schema;
+    private final int maxLength;
+
+    public BinaryDecoder() {
+        this(new BinarySchema());
+    }
+
+    public BinaryDecoder(BinarySchema schema) {
+        this(schema, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Create a decoder.
+     * 
+     * @param schema
+     *            schema shared with the encoder
+     * @param maxLength
+     *            max length of the encoded value
+     */
+    public BinaryDecoder(BinarySchema schema, int maxLength) {
+        if (schema == null)
+            throw new NullPointerException();
+        if (maxLength < 0)
+            throw new IllegalArgumentException();
+        this.schema = schema;
+        this.maxLength = maxLength;
+    }
+
+    public BinarySchema getSchema() {
+        return schema;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public Object decode(Session session, Packet packet) throws Exception {
+        Buffer buffer = packet.getContent();
+        if (buffer.remaining() < 4)
+            return null;
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        if (length < 0 || length > maxLength) {
+            if (session != null)
+                session.close();
+            throw new TooLongFrameException("value length " + length
+                    + " exceeds max length " + maxLength);
+        }
+        if (buffer.remaining() - 4 < length)
+            return null;
+
+        try {
+            buffer.skip(4);
+            Object obj = readValue(buffer, buffer.get());
+            if (buffer.position() != start + 4 + length)
+                throw new IllegalStateException("corrupted value, length "
+                        + length + " but read "
+                        + (buffer.position() - start - 4));
+            return obj;
+        } catch (Exception e) {
+            // the stream can't be resynchronized
+            if (session != null)
+                session.close();
+            throw e;
+        }
+    }
+
+    private int readSize(Buffer buffer) {
+        // each element takes 1 byte at least
+        int size = buffer.getInt();
+        if (size < 0 || size > buffer.remaining())
+            throw new IllegalStateException("illegal size " + size);
+        return size;
+    }
+
+    private String readString(Buffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new IllegalStateException("illegal string length " + length);
+        char[] chars = new char[length];
+        int count = 0;
+        for (int end = buffer.position() + length; buffer.position() < end;) {
+            int b = buffer.get();
+            if (b >= 0) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xe0) == 0xc0) {
+                chars[count++] = (char) (((b & 0x1f) << 6) | (buffer.get() & 0x3f));
+            } else {
+                int b2 = buffer.get();
+                chars[count++] = (char) (((b & 0x0f) << 12)
+                        | ((b2 & 0x3f) << 6) | (buffer.get() & 0x3f));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private Object readValue(Buffer buffer, byte tag) throws Exception {
+        switch (tag) {
+        case BinarySchema.TAG_NULL:
+            return null;
+        case BinarySchema.TAG_TRUE:
+            return Boolean.TRUE;
+        case BinarySchema.TAG_FALSE:
+            return Boolean.FALSE;
+        case BinarySchema.TAG_BYTE:
+            return new Byte(buffer.get());
+        case BinarySchema.TAG_SHORT:
+            return new Short(buffer.getShort());
+        case BinarySchema.TAG_CHAR:
+            return new Character(buffer.getChar());
+        case BinarySchema.TAG_INT:
+            return new Integer(buffer.getInt());
+        case BinarySchema.TAG_LONG:
+            return new Long(buffer.getLong());
+        case BinarySchema.TAG_FLOAT:
+            return new Float(buffer.getFloat());
+        case BinarySchema.TAG_DOUBLE:
+            return new Double(buffer.getDouble());
+        case BinarySchema.TAG_STRING:
+            return readString(buffer);
+        case BinarySchema.TAG_ARRAY:
+            return readArray(buffer);
+        case BinarySchema.TAG_LIST: {
+            int size = readSize(buffer);
+            return readCollection(buffer, new ArrayList(size), size);
+        }
+        case BinarySchema.TAG_SET: {
+            int size = readSize(buffer);
+            return readCollection(buffer, new HashSet(), size);
+        }
+        case BinarySchema.TAG_MAP: {
+            int size = readSize(buffer);
+            Map map = new HashMap();
+            for (int i = 0; i < size; i++) {
+                Object key = readValue(buffer, buffer.get());
+                map.put(key, readValue(buffer, buffer.get()));
+            }
+            return map;
+        }
+        case BinarySchema.TAG_OBJECT_ID: {
+            int id = buffer.getInt();
+            ClassSchema classSchema;
+            try {
+                classSchema = schema.getSchema(id);
+            } catch (IllegalArgumentException e) {
+                throw new ClassNotFoundException("unknown class id " + id);
+            }
+            return readObject(buffer, classSchema);
+        }
+        case BinarySchema.TAG_OBJECT_NAME:
+            return readObject(buffer, schema.getSchema(readString(buffer)));
+        default:
+            throw new IllegalStateException("unknown tag " + tag);
+        }
+    }
+
+    private Collection readCollection(Buffer buffer, Collection collection,
+            int size) throws Exception {
+        for (int i = 0; i < size; i++)
+            collection.add(readValue(buffer, buffer.get()));
+        return collection;
+    }
+
+    private Object readArray(Buffer buffer) throws Exception {
+        int kind = buffer.get();
+        Class componentType = kind == BinarySchema.KIND_OBJECT ? schema
+                .forComponentName(readString(buffer)) : null;
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new IllegalStateException("illegal array length " + length);
+
+        switch (kind) {
+        case BinarySchema.KIND_BYTE: {
+            byte[] a = new byte[length];
+            buffer.get(a);
+            return a;
+        }
+        case BinarySchema.KIND_BOOLEAN: {
+            boolean[] a = new boolean[length];
+            for (int i = 0; i < length; i++)
+                a[i] = buffer.get() != 0;
+            return a;
+        }
+        case BinarySchema.KIND_SHORT: {
+            short[] a = new short[length];
+            for (int i = 0; i < length; i++)
+                a[i] = buffer.getShort();
+            return a;
+        }
+        case BinarySchema.KIND_CHAR: {
+            char[] a = new char[length];
+            for (int i = 0; i < length; i++)
+                a[i] = buffer.getChar();
+            return a;
+        }
+        case BinarySchema.KIND_INT: {
+            int[] a = new int[length];
+            for (int i = 0; i < length; i++)
+                a[i] = buffer.getInt();
+            return a;
+        }
+        case BinarySchema.KIND_LONG: {
+            long[] a = new long[length];
+            for (int i = 0; i < length; i++)
+                a[i] = buffer.getLong();
+            return a;
+        }
+        case BinarySchema.KIND_FLOAT: {
+            float[] a = new float[length];
+            for (int i = 0; i < length; i++)
+                a[i] = buffer.getFloat();
+            return a;
+        }
+        case BinarySchema.KIND_DOUBLE: {
+            double[] a = new double[length];
+            for (int i = 0; i < length; i++)
+                a[i] = buffer.getDouble();
+            return a;
+        }
+        case BinarySchema.KIND_OBJECT: {
+            Object[] a = (Object[]) Array.newInstance(componentType, length);
+            for (int i = 0; i < length; i++)
+                a[i] = readValue(buffer, buffer.get());
+            return a;
+        }
+        default:
+            throw new IllegalStateException("unknown array kind " + kind);
+        }
+    }
+
+    private Object readObject(Buffer buffer, ClassSchema classSchema)
+            throws Exception {
+        Object obj = classSchema.newInstance();
+        Field[] fields = classSchema.getFields();
+        int[] kinds = classSchema.getKinds();
+        for (int i = 0; i < fields.length; i++) {
+            Field field = fields[i];
+            switch (kinds[i]) {
+            case BinarySchema.KIND_BOOLEAN:
+                field.setBoolean(obj, buffer.get() != 0);
+                break;
+            case BinarySchema.KIND_BYTE:
+                field.setByte(obj, buffer.get());
+                break;
+            case BinarySchema.KIND_SHORT:
+                field.setShort(obj, buffer.getShort());
+                break;
+            case BinarySchema.KIND_CHAR:
+                field.setChar(obj, buffer.getChar());
+                break;
+            case BinarySchema.KIND_INT:
+                field.setInt(obj, buffer.getInt());
+                break;
+            case BinarySchema.KIND_LONG:
+                field.setLong(obj, buffer.getLong());
+                break;
+            case BinarySchema.KIND_FLOAT:
+                field.setFloat(obj, buffer.getFloat());
+                break;
+            case BinarySchema.KIND_DOUBLE:
+                field.setDouble(obj, buffer.getDouble());
+                break;
+            default:
+                field.set(obj, readValue(buffer, buffer.get()));
+            }
+        }
+        return obj;
+    }
+
+}
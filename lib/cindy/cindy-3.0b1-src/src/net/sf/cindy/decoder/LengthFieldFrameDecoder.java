@@ -0,0 +1,187 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.decoder;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Packet;
+import net.sf.cindy.PacketDecoder;
+import net.sf.cindy.Session;
+import net.sf.cindy.buffer.BufferFactory;
+
+/**
+ * Decode <code>Packet</code> to <code>Buffer</code> frames by the length field
+ * in the frame header. The frame length is:
+ * <p>
+ * lengthFieldOffset + lengthFieldLength + length field value +
+ * lengthAdjustment
+ * <p>
+ * The first initialBytesToStrip bytes are stripped from the decoded frame.
+ * <p>
+ * PacketDecoderFilter of tcp and pipe sessions recognizes this decoder, the
+ * frames in a received packet are returned as zero-copy slices of the packet
+ * content, and only the frame across packets is copied once. The header is
+ * peeked without slicing, and a frame longer than the max frame length closes
+ * the session before any buffer allocated for it.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class LengthFieldFrameDecoder implements PacketDecoder {
+
+    private final int maxFrameLength;
+    private final int lengthFieldOffset;
+    private final int lengthFieldLength;
+    private final int lengthAdjustment;
+    private final int initialBytesToStrip;
+    private final boolean bigEndian;
+
+    /**
+     * Create a decoder with big endian length field, the length field value
+     * is the length of bytes after the length field.
+     * 
+     * @param maxFrameLength
+     *            max frame length
+     * @param lengthFieldOffset
+     *            offset of the length field
+     * @param lengthFieldLength
+     *            length field size, 1, 2, 3, 4 or 8
+     */
+    public LengthFieldFrameDecoder(int maxFrameLength, int lengthFieldOffset,
+            int lengthFieldLength) {
+        this(maxFrameLength, lengthFieldOffset, lengthFieldLength, 0, 0, true);
+    }
+
+    /**
+     * Create a decoder.
+     * 
+     * @param maxFrameLength
+     *            max frame length
+     * @param lengthFieldOffset
+     *            offset of the length field
+     * @param lengthFieldLength
+     *            length field size, 1, 2, 3, 4 or 8
+     * @param lengthAdjustment
+     *            added to the length field value
+     * @param initialBytesToStrip
+     *            bytes stripped from the decoded frame
+     * @param bigEndian
+     *            byte order of the length field
+     */
+    public LengthFieldFrameDecoder(int maxFrameLength, int lengthFieldOffset,
+            int lengthFieldLength, int lengthAdjustment,
+            int initialBytesToStrip, boolean bigEndian) {
+        if (lengthFieldLength != 1 && lengthFieldLength != 2
+                && lengthFieldLength != 3 && lengthFieldLength != 4
+                && lengthFieldLength != 8)
+            throw new IllegalArgumentException("lengthFieldLength: "
+                    + lengthFieldLength);
+        if (lengthFieldOffset < 0 || initialBytesToStrip < 0
+                || maxFrameLength < lengthFieldOffset + lengthFieldLength)
+            throw new IllegalArgumentException();
+        this.maxFrameLength = maxFrameLength;
+        this.lengthFieldOffset = lengthFieldOffset;
+        this.lengthFieldLength = lengthFieldLength;
+        this.lengthAdjustment = lengthAdjustment;
+        this.initialBytesToStrip = initialBytesToStrip;
+        this.bigEndian = bigEndian;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public int getLengthFieldOffset() {
+        return lengthFieldOffset;
+    }
+
+    public int getLengthFieldLength() {
+        return lengthFieldLength;
+    }
+
+    public int getLengthAdjustment() {
+        return lengthAdjustment;
+    }
+
+    public int getInitialBytesToStrip() {
+        return initialBytesToStrip;
+    }
+
+    public boolean isBigEndian() {
+        return bigEndian;
+    }
+
+    /**
+     * Get the header length, include the length field.
+     * 
+     * @return header length
+     */
+    public int getHeaderLength() {
+        return lengthFieldOffset + lengthFieldLength;
+    }
+
+    /**
+     * Peek the length of the frame at the buffer position, the buffer will
+     * not be changed.
+     * 
+     * @param buffer
+     *            buffer
+     * @return frame length include the header, -1 if the header is not
+     *         completed
+     * @throws TooLongFrameException
+     *             the frame length exceeds the max frame length
+     */
+    public int getFrameLength(Buffer buffer) {
+        int headerLength = getHeaderLength();
+        if (buffer.remaining() < headerLength)
+            return -1;
+
+        int index = buffer.position() + lengthFieldOffset;
+        long value = 0;
+        for (int i = 0; i < lengthFieldLength; i++) {
+            value = (value << 8)
+                    | (buffer.get(index
+                            + (bigEndian ? i : lengthFieldLength - 1 - i)) & 0xff);
+        }
+
+        long frameLength = value + lengthAdjustment + headerLength;
+        if (value < 0 || frameLength > maxFrameLength)
+            throw new TooLongFrameException("frame length "
+                    + (value < 0 ? "overflow" : String.valueOf(frameLength))
+                    + " exceeds max frame length " + maxFrameLength);
+        if (frameLength < headerLength || frameLength < initialBytesToStrip)
+            throw new IllegalStateException("illegal frame length "
+                    + frameLength);
+        return (int) frameLength;
+    }
+
+    public Object decode(Session session, Packet packet) throws Exception {
+        Buffer buffer = packet.getContent();
+        int frameLength;
+        try {
+            frameLength = getFrameLength(buffer);
+        } catch (RuntimeException e) {
+            session.close();
+            throw e;
+        }
+        if (frameLength < 0 || buffer.remaining() < frameLength)
+            return null;
+
+        buffer.skip(initialBytesToStrip);
+        int length = frameLength - initialBytesToStrip;
+        return BufferFactory.allocate(length).put(0, buffer, length);
+    }
+
+}
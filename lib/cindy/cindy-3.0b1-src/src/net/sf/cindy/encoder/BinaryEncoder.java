@@ -0,0 +1,341 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.encoder;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Packet;
+import net.sf.cindy.PacketEncoder;
+import net.sf.cindy.Session;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.util.BinarySchema;
+import net.sf.cindy.util.BinarySchema.ClassSchema;
+
+/**
+ * Encode object to length-prefixed binary <code>Packet</code> by
+ * <code>BinarySchema</code>. The packet is a 4 bytes big endian length
+ * followed by the tagged value. Primitive fields are written without tag and
+ * without boxing, strings are written as UTF-8, lists, sets and maps are
+ * written as their elements. The object graph must not contain cycles, shared
+ * objects are written once per reference.
+ * <p>
+ * Decode the packet by <code>BinaryDecoder</code> with the same schema.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class BinaryEncoder implements PacketEncoder {
+
+    private final BinarySchema schema;
+    private volatile int sizeHint = 256;
+
+    public BinaryEncoder() {
+        this(new BinarySchema());
+    }
+
+    public BinaryEncoder(BinarySchema schema) {
+        if (schema == null)
+            throw new NullPointerException();
+        this.schema = schema;
+    }
+
+    public BinarySchema getSchema() {
+        return schema;
+    }
+
+    public Packet encode(Session session, Object obj) throws Exception {
+        if (obj == null)
+            return null;
+        Writer writer = new Writer(schema, sizeHint);
+        try {
+            writer.buffer.putInt(0);
+            writer.writeValue(obj);
+            Buffer buffer = writer.buffer;
+            int length = buffer.position();
+            buffer.putInt(0, length - 4).flip();
+            sizeHint = Math.max(64, length);
+            writer.buffer = null;
+            return new DefaultPacket(buffer);
+        } finally {
+            if (writer.buffer != null)
+                writer.buffer.release();
+        }
+    }
+
+    /**
+     * Write values to a growable buffer.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class Writer {
+
+        private final BinarySchema schema;
+        private Buffer buffer;
+
+        public Writer(BinarySchema schema, int capacity) {
+            this.schema = schema;
+            this.buffer = BufferFactory.allocate(capacity);
+        }
+
+        private void ensure(int size) {
+            if (buffer.remaining() < size) {
+                int capacity = Math.max(buffer.position() + size, buffer
+                        .capacity() * 2);
+                Buffer newBuffer = BufferFactory.allocate(capacity).put(
+                        buffer.flip());
+                buffer.release();
+                buffer = newBuffer;
+            }
+        }
+
+        private void writeTag(byte tag) {
+            ensure(1);
+            buffer.put(tag);
+        }
+
+        private void writeInt(int i) {
+            ensure(4);
+            buffer.putInt(i);
+        }
+
+        private void writeString(String s) {
+            int len = s.length();
+            ensure(4 + len * 3);
+            int start = buffer.position();
+            buffer.putInt(0);
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xc0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3f)));
+                } else {
+                    buffer.put((byte) (0xe0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    buffer.put((byte) (0x80 | (c & 0x3f)));
+                }
+            }
+            buffer.putInt(start, buffer.position() - start - 4);
+        }
+
+        private void writeClass(ClassSchema classSchema) {
+            if (classSchema.getId() > 0) {
+                ensure(5);
+                buffer.put(BinarySchema.TAG_OBJECT_ID).putInt(
+                        classSchema.getId());
+            } else {
+                writeTag(BinarySchema.TAG_OBJECT_NAME);
+                writeString(classSchema.getType().getName());
+            }
+        }
+
+        public void writeValue(Object obj) throws Exception {
+            if (obj == null) {
+                writeTag(BinarySchema.TAG_NULL);
+            } else if (obj instanceof String) {
+                writeTag(BinarySchema.TAG_STRING);
+                writeString((String) obj);
+            } else if (obj instanceof Integer) {
+                ensure(5);
+                buffer.put(BinarySchema.TAG_INT).putInt(
+                        ((Integer) obj).intValue());
+            } else if (obj instanceof Long) {
+                ensure(9);
+                buffer.put(BinarySchema.TAG_LONG).putLong(
+                        ((Long) obj).longValue());
+            } else if (obj instanceof Boolean) {
+                writeTag(((Boolean) obj).booleanValue() ? BinarySchema.TAG_TRUE
+                        : BinarySchema.TAG_FALSE);
+            } else if (obj instanceof Double) {
+                ensure(9);
+                buffer.put(BinarySchema.TAG_DOUBLE).putDouble(
+                        ((Double) obj).doubleValue());
+            } else if (obj instanceof Float) {
+                ensure(5);
+                buffer.put(BinarySchema.TAG_FLOAT).putFloat(
+                        ((Float) obj).floatValue());
+            } else if (obj instanceof Short) {
+                ensure(3);
+                buffer.put(BinarySchema.TAG_SHORT).putShort(
+                        ((Short) obj).shortValue());
+            } else if (obj instanceof Byte) {
+                ensure(2);
+                buffer.put(BinarySchema.TAG_BYTE).put(((Byte) obj).byteValue());
+            } else if (obj instanceof Character) {
+                ensure(3);
+                buffer.put(BinarySchema.TAG_CHAR).putChar(
+                        ((Character) obj).charValue());
+            } else if (obj.getClass().isArray()) {
+                writeArray(obj);
+            } else if (obj instanceof List) {
+                writeTag(BinarySchema.TAG_LIST);
+                writeCollection((Collection) obj);
+            } else if (obj instanceof Set) {
+                writeTag(BinarySchema.TAG_SET);
+                writeCollection((Collection) obj);
+            } else if (obj instanceof Map) {
+                Map map = (Map) obj;
+                writeTag(BinarySchema.TAG_MAP);
+                writeInt(map.size());
+                for (Iterator iter = map.entrySet().iterator(); iter
+                        .hasNext();) {
+                    Map.Entry entry = (Map.Entry) iter.next();
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+            } else {
+                writeObject(obj);
+            }
+        }
+
+        private void writeCollection(Collection collection) throws Exception {
+            writeInt(collection.size());
+            for (Iterator iter = collection.iterator(); iter.hasNext();)
+                writeValue(iter.next());
+        }
+
+        private void writeArray(Object array) throws Exception {
+            Class componentType = array.getClass().getComponentType();
+            int kind = BinarySchema.getKind(componentType);
+            int length = Array.getLength(array);
+
+            writeTag(BinarySchema.TAG_ARRAY);
+            writeTag((byte) kind);
+            if (kind == BinarySchema.KIND_OBJECT)
+                writeString(componentType.getName());
+            writeInt(length);
+
+            switch (kind) {
+            case BinarySchema.KIND_BYTE:
+                ensure(length);
+                buffer.put((byte[]) array);
+                break;
+            case BinarySchema.KIND_BOOLEAN: {
+                boolean[] a = (boolean[]) array;
+                ensure(length);
+                for (int i = 0; i < length; i++)
+                    buffer.put((byte) (a[i] ? 1 : 0));
+                break;
+            }
+            case BinarySchema.KIND_SHORT: {
+                short[] a = (short[]) array;
+                ensure(length * 2);
+                for (int i = 0; i < length; i++)
+                    buffer.putShort(a[i]);
+                break;
+            }
+            case BinarySchema.KIND_CHAR: {
+                char[] a = (char[]) array;
+                ensure(length * 2);
+                for (int i = 0; i < length; i++)
+                    buffer.putChar(a[i]);
+                break;
+            }
+            case BinarySchema.KIND_INT: {
+                int[] a = (int[]) array;
+                ensure(length * 4);
+                for (int i = 0; i < length; i++)
+                    buffer.putInt(a[i]);
+                break;
+            }
+            case BinarySchema.KIND_LONG: {
+                long[] a = (long[]) array;
+                ensure(length * 8);
+                for (int i = 0; i < length; i++)
+                    buffer.putLong(a[i]);
+                break;
+            }
+            case BinarySchema.KIND_FLOAT: {
+                float[] a = (float[]) array;
+                ensure(length * 4);
+                for (int i = 0; i < length; i++)
+                    buffer.putFloat(a[i]);
+                break;
+            }
+            case BinarySchema.KIND_DOUBLE: {
+                double[] a = (double[]) array;
+                ensure(length * 8);
+                for (int i = 0; i < length; i++)
+                    buffer.putDouble(a[i]);
+                break;
+            }
+            default: {
+                Object[] a = (Object[]) array;
+                for (int i = 0; i < length; i++)
+                    writeValue(a[i]);
+            }
+            }
+        }
+
+        private void writeObject(Object obj) throws Exception {
+            ClassSchema classSchema = schema.getSchema(obj.getClass());
+            writeClass(classSchema);
+
+            Field[] fields = classSchema.getFields();
+            int[] kinds = classSchema.getKinds();
+            for (int i = 0; i < fields.length; i++) {
+                Field field = fields[i];
+                switch (kinds[i]) {
+                case BinarySchema.KIND_BOOLEAN:
+                    ensure(1);
+                    buffer.put((byte) (field.getBoolean(obj) ? 1 : 0));
+                    break;
+                case BinarySchema.KIND_BYTE:
+                    ensure(1);
+                    buffer.put(field.getByte(obj));
+                    break;
+                case BinarySchema.KIND_SHORT:
+                    ensure(2);
+                    buffer.putShort(field.getShort(obj));
+                    break;
+                case BinarySchema.KIND_CHAR:
+                    ensure(2);
+                    buffer.putChar(field.getChar(obj));
+                    break;
+                case BinarySchema.KIND_INT:
+                    ensure(4);
+                    buffer.putInt(field.getInt(obj));
+                    break;
+                case BinarySchema.KIND_LONG:
+                    ensure(8);
+                    buffer.putLong(field.getLong(obj));
+                    break;
+                case BinarySchema.KIND_FLOAT:
+                    ensure(4);
+                    buffer.putFloat(field.getFloat(obj));
+                    break;
+                case BinarySchema.KIND_DOUBLE:
+                    ensure(8);
+                    buffer.putDouble(field.getDouble(obj));
+                    break;
+                default:
+                    writeValue(field.get(obj));
+                }
+            }
+        }
+    }
+
+}
@@ -16,19 +16,49 @@
 package net.sf.cindy.filter;
 
 import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
 import net.sf.cindy.SessionFilter;
 import net.sf.cindy.SessionFilterChain;
 import net.sf.cindy.session.dispatcher.Dispatcher;
+import net.sf.cindy.util.Configuration;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Dispatch events. The first inner filter.
+ * <p>
+ * Event objects are recycled. An event returns to the thread local cache of
+ * the thread which dispatched it. If the event is executed by another thread,
+ * it's pushed to a lock-free stack of the cache, and the owner thread takes
+ * the whole stack when its cache is empty, so there is no ABA problem. A cache
+ * holds at most the max in flight events dispatched by its thread.
+ * <p>
+ * If write batch is enabled, each event except packetSend is executed in a
+ * write batch of the session, small packets sent by the handler are
+ * coalesced.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
  */
 public class DispatcherFilter implements SessionFilter {
 
+    private static final int EXCEPTION_CAUGHT = 0;
+    private static final int PACKET_RECEIVED = 1;
+    private static final int OBJECT_RECEIVED = 2;
+    private static final int PACKET_SEND = 3;
+    private static final int PACKET_SENT = 4;
+    private static final int OBJECT_SENT = 5;
+    private static final int SESSION_CLOSED = 6;
+    private static final int SESSION_STARTED = 7;
+    private static final int SESSION_TIMEOUT = 8;
+    private static final int WRITABILITY_CHANGED = 9;
+
+    /**
+     * Packets sent in the same dispatcher task are coalesced.
+     */
+    private static final boolean WRITE_BATCH = Configuration.isWriteBatch();
+
     private final Dispatcher dispatcher;
+    private final ThreadLocal cache = new ThreadLocal();
 
     public DispatcherFilter(Dispatcher dispatcher) {
         this.dispatcher = dispatcher;
@@ -38,94 +68,187 @@ public class DispatcherFilter implements SessionFilter {
         return dispatcher;
     }
 
-    public void exceptionCaught(final SessionFilterChain filterChain,
-            final Throwable cause) {
-        dispatcher.dispatch(filterChain.getSession(), new Runnable() {
-
-            public void run() {
-                filterChain.exceptionCaught(cause);
+    /**
+     * Recyclable event.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class Event implements Runnable {
+
+        private final EventCache owner;
+
+        private int type;
+        private SessionFilterChain filterChain;
+        private Object arg;
+        private Event next;
+
+        public Event(EventCache owner) {
+            this.owner = owner;
+        }
+
+        public void run() {
+            int type = this.type;
+            SessionFilterChain filterChain = this.filterChain;
+            Object arg = this.arg;
+            owner.release(this); // the handler may block
+
+            if (!WRITE_BATCH || type == PACKET_SEND) {
+                run(type, filterChain, arg);
+                return;
+            }
+            Session session = filterChain.getSession();
+            session.batch();
+            try {
+                run(type, filterChain, arg);
+            } finally {
+                session.endBatch();
+            }
+        }
+
+        private void run(int type, SessionFilterChain filterChain, Object arg) {
+            switch (type) {
+            case EXCEPTION_CAUGHT:
+                filterChain.exceptionCaught((Throwable) arg);
+                break;
+            case PACKET_RECEIVED:
+                filterChain.packetReceived((Packet) arg);
+                break;
+            case OBJECT_RECEIVED:
+                filterChain.objectReceived(arg);
+                break;
+            case PACKET_SEND:
+                filterChain.packetSend((Packet) arg);
+                break;
+            case PACKET_SENT:
+                filterChain.packetSent((Packet) arg);
+                break;
+            case OBJECT_SENT:
+                filterChain.objectSent(arg);
+                break;
+            case SESSION_CLOSED:
+                filterChain.sessionClosed();
+                break;
+            case SESSION_STARTED:
+                filterChain.sessionStarted();
+                break;
+            case WRITABILITY_CHANGED:
+                filterChain.writabilityChanged();
+                break;
+            default:
+                filterChain.sessionTimeout();
             }
-        });
+        }
     }
 
-    public void packetReceived(final SessionFilterChain filterChain,
-            final Packet packet) throws Exception {
-        dispatcher.dispatch(filterChain.getSession(), new Runnable() {
-
-            public void run() {
-                filterChain.packetReceived(packet);
+    /**
+     * Events owned by a dispatching thread.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class EventCache {
+
+        private final Thread thread = Thread.currentThread();
+
+        /**
+         * Only accessed by the owner thread.
+         */
+        private Event head;
+
+        /**
+         * Events released by other threads.
+         */
+        private final AtomicReference released = new AtomicReference();
+
+        private Event obtain() {
+            Event event = head;
+            if (event == null)
+                event = (Event) released.getAndSet(null);
+            if (event == null)
+                return new Event(this);
+            head = event.next;
+            event.next = null;
+            return event;
+        }
+
+        private void release(Event event) {
+            event.filterChain = null;
+            event.arg = null;
+            if (Thread.currentThread() == thread) {
+                event.next = head;
+                head = event;
+                return;
             }
-        });
+            while (true) {
+                Event top = (Event) released.get();
+                event.next = top;
+                if (released.compareAndSet(top, event))
+                    return;
+            }
+        }
+
     }
 
-    public void objectReceived(final SessionFilterChain filterChain,
-            final Object obj) throws Exception {
-        dispatcher.dispatch(filterChain.getSession(), new Runnable() {
+    private void dispatch(SessionFilterChain filterChain, int type, Object arg) {
+        EventCache cache = (EventCache) this.cache.get();
+        if (cache == null) {
+            cache = new EventCache();
+            this.cache.set(cache);
+        }
 
-            public void run() {
-                filterChain.objectReceived(obj);
-            }
-        });
-    }
+        Event event = cache.obtain();
 
-    public void packetSend(final SessionFilterChain filterChain,
-            final Packet packet) throws Exception {
-        dispatcher.dispatch(filterChain.getSession(), new Runnable() {
+        event.type = type;
+        event.filterChain = filterChain;
+        event.arg = arg;
+        dispatcher.dispatch(filterChain.getSession(), event);
+    }
 
-            public void run() {
-                filterChain.packetSend(packet);
-            }
-        });
+    public void exceptionCaught(SessionFilterChain filterChain, Throwable cause) {
+        dispatch(filterChain, EXCEPTION_CAUGHT, cause);
     }
 
-    public void packetSent(final SessionFilterChain filterChain,
-            final Packet packet) throws Exception {
-        dispatcher.dispatch(filterChain.getSession(), new Runnable() {
+    public void packetReceived(SessionFilterChain filterChain, Packet packet)
+            throws Exception {
+        dispatch(filterChain, PACKET_RECEIVED, packet);
+    }
 
-            public void run() {
-                filterChain.packetSent(packet);
-            }
-        });
+    public void objectReceived(SessionFilterChain filterChain, Object obj)
+            throws Exception {
+        dispatch(filterChain, OBJECT_RECEIVED, obj);
     }
 
-    public void objectSent(final SessionFilterChain filterChain,
-            final Object obj) throws Exception {
-        dispatcher.dispatch(filterChain.getSession(), new Runnable() {
+    public void packetSend(SessionFilterChain filterChain, Packet packet)
+            throws Exception {
+        dispatch(filterChain, PACKET_SEND, packet);
+    }
 
-            public void run() {
-                filterChain.objectSent(obj);
-            };
-        });
+    public void packetSent(SessionFilterChain filterChain, Packet packet)
+            throws Exception {
+        dispatch(filterChain, PACKET_SENT, packet);
     }
 
-    public void sessionClosed(final SessionFilterChain filterChain)
+    public void objectSent(SessionFilterChain filterChain, Object obj)
             throws Exception {
-        dispatcher.dispatch(filterChain.getSession(), new Runnable() {
+        dispatch(filterChain, OBJECT_SENT, obj);
+    }
 
-            public void run() {
-                filterChain.sessionClosed();
-            }
-        });
+    public void sessionClosed(SessionFilterChain filterChain) throws Exception {
+        dispatch(filterChain, SESSION_CLOSED, null);
     }
 
-    public void sessionStarted(final SessionFilterChain filterChain)
-            throws Exception {
-        dispatcher.dispatch(filterChain.getSession(), new Runnable() {
+    public void sessionStarted(SessionFilterChain filterChain) throws Exception {
+        dispatch(filterChain, SESSION_STARTED, null);
+    }
 
-            public void run() {
-                filterChain.sessionStarted();
-            }
-        });
+    public void sessionTimeout(SessionFilterChain filterChain) throws Exception {
+        dispatch(filterChain, SESSION_TIMEOUT, null);
     }
 
-    public void sessionTimeout(final SessionFilterChain filterChain)
+    public void writabilityChanged(SessionFilterChain filterChain)
             throws Exception {
-        dispatcher.dispatch(filterChain.getSession(), new Runnable() {
-
-            public void run() {
-                filterChain.sessionTimeout();
-            }
-        });
+        dispatch(filterChain, WRITABILITY_CHANGED, null);
     }
 
 }
@@ -83,4 +83,11 @@ public class LogFilter extends SessionFilterAdapter {
         super.sessionTimeout(filterChain);
     }
 
+    public void writabilityChanged(SessionFilterChain filterChain)
+            throws Exception {
+        log.info(filterChain.getSession() + " writable "
+                + filterChain.getSession().isWritable());
+        super.writabilityChanged(filterChain);
+    }
+
 }
@@ -59,4 +59,8 @@ public class NullFilter implements SessionFilter {
     public void sessionTimeout(SessionFilterChain filterChain) throws Exception {
     }
 
+    public void writabilityChanged(SessionFilterChain filterChain)
+            throws Exception {
+    }
+
 }
@@ -24,8 +24,15 @@ import net.sf.cindy.SessionFilterAdapter;
 import net.sf.cindy.SessionFilterChain;
 import net.sf.cindy.SessionType;
 import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.buffer.DelegateBuffer;
 import net.sf.cindy.buffer.LinkedBuffer;
+import net.sf.cindy.decoder.LengthFieldFrameDecoder;
+import net.sf.cindy.decoder.SimplePacketDecoder;
+import net.sf.cindy.packet.DatagramBatchPacket;
 import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.packet.TimestampPacket;
+import net.sf.cindy.session.AbstractSession;
+import net.sf.cindy.session.SessionLatency;
 import net.sf.cindy.util.Configuration;
 
 /**
@@ -50,10 +57,133 @@ public class PacketDecoderFilter extends SessionFilterAdapter {
 
     protected final Session session;
 
+    private Buffer frame; // partial frame of LengthFieldFrameDecoder
+    private int frameLength;
+
+    // read time of the received packet, 0 if latency is not recorded
+    private long receiveTime;
+
     protected PacketDecoderFilter(Session session) {
         this.session = session;
     }
 
+    /**
+     * Record the dispatch latency of the received packet.
+     * 
+     * @param packet
+     *            received packet
+     */
+    protected void received(Packet packet) {
+        receiveTime = 0;
+        if (packet instanceof TimestampPacket
+                && session instanceof AbstractSession) {
+            SessionLatency latency = ((AbstractSession) session)
+                    .getSessionLatency();
+            if (latency != null) {
+                receiveTime = ((TimestampPacket) packet).getTimestamp();
+                latency.record(SessionLatency.DISPATCH, receiveTime);
+            }
+        }
+    }
+
+    /**
+     * Pass the decoded object to the handler, and record the handle latency.
+     * 
+     * @param obj
+     *            decoded object
+     */
+    protected void objectReceived(Object obj) {
+        if (receiveTime != 0)
+            ((AbstractSession) session).getSessionLatency().record(
+                    SessionLatency.HANDLE, receiveTime);
+        session.getSessionFilterChain(false).objectReceived(obj);
+    }
+
+    /**
+     * Split the received content to frames if the packet decoder is
+     * <code>LengthFieldFrameDecoder</code>. Complete frames are zero-copy
+     * slices of the content, the content will be released after all the
+     * frames released. A partial frame is copied into a buffer of the frame
+     * length.
+     * 
+     * @param content
+     *            received content, owned by this method if returns true
+     * @return false if the packet decoder is not LengthFieldFrameDecoder
+     * @throws Exception
+     */
+    protected boolean splitFrames(Buffer content) throws Exception {
+        if (!(session.getPacketDecoder() instanceof LengthFieldFrameDecoder))
+            return false;
+        LengthFieldFrameDecoder decoder = (LengthFieldFrameDecoder) session
+                .getPacketDecoder();
+
+        FrameContent share = new FrameContent(content);
+        try {
+            if (frame != null && !fillFrame(decoder, content))
+                return true;
+            while (content.hasRemaining()) {
+                int length = getFrameLength(decoder, content);
+                if (length < 0 || content.remaining() < length) {
+                    frameLength = length;
+                    int size = length < 0 ? decoder.getHeaderLength() : length;
+                    frame = BufferFactory.allocate(size).limit(size).put(
+                            content);
+                    break;
+                }
+                int start = content.position();
+                int limit = content.limit();
+                content.position(start + decoder.getInitialBytesToStrip())
+                        .limit(start + length);
+                Buffer slice = new FrameBuffer(content.slice(), share);
+                content.limit(limit).position(start + length);
+                objectReceived(slice);
+            }
+        } finally {
+            share.release();
+        }
+        return true;
+    }
+
+    private int getFrameLength(LengthFieldFrameDecoder decoder, Buffer buffer) {
+        try {
+            return decoder.getFrameLength(buffer);
+        } catch (RuntimeException e) {
+            releaseFrame();
+            session.close();
+            throw e;
+        }
+    }
+
+    private boolean fillFrame(LengthFieldFrameDecoder decoder, Buffer content)
+            throws Exception {
+        while (true) {
+            frame.put(content, Math.min(frame.remaining(), content
+                    .remaining()));
+            if (frame.hasRemaining())
+                return false;
+            frame.flip();
+            if (frameLength < 0) { // header completed
+                frameLength = getFrameLength(decoder, frame);
+                Buffer header = frame;
+                frame = BufferFactory.allocate(frameLength).limit(frameLength)
+                        .put(header);
+                header.release();
+            } else {
+                Buffer obj = frame.skip(decoder.getInitialBytesToStrip());
+                frame = null;
+                objectReceived(obj);
+                return true;
+            }
+        }
+    }
+
+    protected void releaseFrame() {
+        if (frame != null) {
+            frame.release();
+            frame = null;
+        }
+    }
+
     protected void recognize(Buffer content, SocketAddress address)
             throws Exception {
         while (content.hasRemaining()) {
@@ -63,7 +193,7 @@ public class PacketDecoderFilter extends SessionFilterAdapter {
             if (obj == null)
                 break;
             content.skip(slice.position());
-            session.getSessionFilterChain(false).objectReceived(obj);
+            objectReceived(obj);
         }
     }
 
@@ -84,6 +214,11 @@ public class PacketDecoderFilter extends SessionFilterAdapter {
             if (packet == null || filterChain.getSession() != session)
                 super.packetReceived(filterChain, packet);
             else {
+                received(packet);
+                if (packet instanceof DatagramBatchPacket) {
+                    receivedBatch((DatagramBatchPacket) packet);
+                    return;
+                }
                 Buffer content = packet.getContent();
                 if (content != null)
                     try {
@@ -94,6 +229,26 @@ public class PacketDecoderFilter extends SessionFilterAdapter {
             }
         }
 
+        /**
+         * The batch is passed to the handler as one object if the packet
+         * decoder is the default decoder, otherwise the datagrams are decoded
+         * one by one.
+         */
+        private void receivedBatch(DatagramBatchPacket batch) throws Exception {
+            if (session.getPacketDecoder().getClass() == SimplePacketDecoder.class) {
+                objectReceived(batch);
+                return;
+            }
+            try {
+                for (int i = 0; i < batch.getCount(); i++) {
+                    Packet packet = batch.getPacket(i);
+                    recognize(packet.getContent(), packet.getAddress());
+                }
+            } finally {
+                batch.getContent().release();
+            }
+        }
+
     }
 
     /**
@@ -120,6 +275,7 @@ public class PacketDecoderFilter extends SessionFilterAdapter {
                         content = null;
                     }
                     address = null;
+                    releaseFrame();
                 }
             }
             super.sessionClosed(filterChain);
@@ -133,6 +289,9 @@ public class PacketDecoderFilter extends SessionFilterAdapter {
             }
 
             synchronized (this) {
+                received(packet);
+                if (content == null && splitFrames(packet.getContent()))
+                    return;
                 if (content == null) {
                     content = packet.getContent();
                     address = packet.getAddress();
@@ -147,6 +306,7 @@ public class PacketDecoderFilter extends SessionFilterAdapter {
                     }
                     content.put(recvContent);
                     content.flip();
+                    recvContent.release();
                 }
 
                 if (content != null)
@@ -189,6 +349,7 @@ public class PacketDecoderFilter extends SessionFilterAdapter {
                         content = null;
                     }
                     address = null;
+                    releaseFrame();
                 }
             }
             super.sessionClosed(filterChain);
@@ -202,6 +363,9 @@ public class PacketDecoderFilter extends SessionFilterAdapter {
             }
 
             synchronized (this) {
+                received(packet);
+                if (content == null && splitFrames(packet.getContent()))
+                    return;
                 if (content == null) {
                     content = new LinkedPacketDecoderBuffer();
                     address = packet.getAddress();
@@ -236,36 +400,81 @@ public class PacketDecoderFilter extends SessionFilterAdapter {
             }
 
             private void releaseNoUseBuffer() {
-                int position = position();
-                int releasedLen = 0;
-
-                for (Entry e = header.next; e != header;) {
-                    int length = e.buffer.remaining();
-                    if (e.position + length <= position) {
-                        Entry next = e.next;
-                        e.previous.next = next;
-                        next.previous = e.previous;
-
-                        releasedLen += length;
-                        e.buffer.release();
-                        e.buffer = null;
-                        e.next = null;
-                        e.previous = null;
-                        e = next;
-                    } else
-                        e = e.next;
-                }
+                releaseConsumed();
+            }
+        }
+    }
 
-                if (releasedLen > 0) {
-                    for (Entry e = header.next; e != header; e = e.next) {
-                        e.position -= releasedLen;
-                    }
-                    position(position() - releasedLen);
-                    limit(limit() - releasedLen);
-                    capacity(capacity() - releasedLen);
-                }
+    /**
+     * Received content shared by the frame slices.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class FrameContent {
+
+        private final Buffer content;
+        private int refs = 1;
+
+        public FrameContent(Buffer content) {
+            this.content = content;
+        }
+
+        public synchronized void retain() {
+            refs++;
+        }
+
+        public synchronized void release() {
+            if (--refs == 0)
+                content.release();
+        }
+
+    }
+
+    /**
+     * Frame slice of a received content, release the frame will not release
+     * the content until all the frames of the content released. The slice,
+     * duplicate and read-only view of a frame are frames of the same content.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class FrameBuffer extends DelegateBuffer {
+
+        private final FrameContent share;
+        private boolean released;
+
+        public FrameBuffer(Buffer delegate, FrameContent share) {
+            super(delegate);
+            this.share = share;
+            share.retain();
+        }
+
+        public Buffer asReadOnlyBuffer() {
+            return new FrameBuffer(delegate.asReadOnlyBuffer(), share);
+        }
+
+        public Buffer duplicate() {
+            return new FrameBuffer(delegate.duplicate(), share);
+        }
+
+        public Buffer slice() {
+            return new FrameBuffer(delegate.slice(), share);
+        }
+
+        public synchronized boolean isReleased() {
+            return released;
+        }
+
+        public void release() {
+            synchronized (this) {
+                if (released)
+                    return;
+                released = true;
             }
+            share.release();
         }
+
     }
 
 }
@@ -34,43 +34,67 @@ import net.sf.cindy.SessionFilterChain;
 import net.sf.cindy.buffer.BufferFactory;
 import net.sf.cindy.packet.DefaultPacket;
 import net.sf.cindy.session.SessionException;
+import net.sf.cindy.session.dispatcher.DispatcherFactory;
+import net.sf.cindy.util.LogThreadGroup;
+import net.sf.cindy.util.NamedThreadFactory;
 import edu.emory.mathcs.backport.java.util.LinkedList;
 import edu.emory.mathcs.backport.java.util.Queue;
+import edu.emory.mathcs.backport.java.util.concurrent.Executor;
+import edu.emory.mathcs.backport.java.util.concurrent.Executors;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * SSL/TLS filter, require java 5.0.
+ * <p>
+ * The filter can be shared by sessions, the engine of a session is kept in a
+ * session attribute. Each session has direct buffers for the engine, reused
+ * by every wrap and unwrap. All tls records contained in a received packet are
+ * unwrapped in one pass, a partial record is kept until the rest received.
+ * Wrapped and unwrapped bytes are copied into pooled buffers of the exact
+ * size, a sent packet is wrapped into one packet.
+ * <p>
+ * Delegated tasks of the engine are run by the task executor, a daemon pool
+ * shared by all filters by default, so the handshake computation does not
+ * block the dispatcher. Received packets are held until the tasks completed
+ * and the unwrap is resumed in the dispatcher of the session. Set the task
+ * executor to null to run the tasks in the dispatcher.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
  */
 public class SSLFilter extends SessionFilterAdapter {
 
-    private final SSLContext sslc;
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private static final ThreadGroup THREAD_GROUP = new ThreadGroup(
+            LogThreadGroup.CINDY_THREAD_GROUP, "SSLFilter");
 
     /**
-     * Hold send packet if handshake is not completed.
+     * Default executor of delegated tasks, shared by all filters.
      */
-    private final Queue tempQueue = new LinkedList();
-
-    private static class QueuedPacket {
+    private static Executor defaultTaskExecutor;
+
+    private static synchronized Executor getDefaultTaskExecutor() {
+        if (defaultTaskExecutor == null)
+            defaultTaskExecutor = Executors
+                    .newCachedThreadPool(new NamedThreadFactory(THREAD_GROUP,
+                            true, "Task"));
+        return defaultTaskExecutor;
+    }
 
-        private final SessionFilterChain chain;
-        private final Packet packet;
+    /**
+     * Tls records held by the engine buffers.
+     */
+    private static final int RECORDS_PER_BUFFER = 2;
 
-        public QueuedPacket(SessionFilterChain chain, Packet packet) {
-            this.chain = chain;
-            this.packet = packet;
-        }
+    private final SSLContext sslc;
 
-    }
+    private final String engineKey = SSLFilter.class.getName() + ".engine."
+            + COUNTER.incrementAndGet();
 
     private boolean clientMode;
     private boolean needClientAuth;
-
-    private SSLEngine engine;
-    private boolean handshakeCompleted = false;
-    private int appBufferSize;
-    private int netBufferSize;
+    private Executor taskExecutor = getDefaultTaskExecutor();
 
     public SSLFilter(SSLContext context) {
         this.sslc = context;
@@ -96,6 +120,21 @@ public class SSLFilter extends SessionFilterAdapter {
         this.needClientAuth = needClientAuth;
     }
 
+    public Executor getTaskExecutor() {
+        return taskExecutor;
+    }
+
+    /**
+     * Set the executor of the engine delegated tasks. If null, the tasks are
+     * run in the dispatcher.
+     * 
+     * @param executor
+     *            task executor
+     */
+    public void setTaskExecutor(Executor executor) {
+        this.taskExecutor = executor;
+    }
+
     /**
      * Handshake packet.
      * 
@@ -110,10 +149,475 @@ public class SSLFilter extends SessionFilterAdapter {
 
     }
 
-    public void sessionStarted(SessionFilterChain filterChain) throws Exception {
+    private static class QueuedPacket {
+
+        private final SessionFilterChain chain;
+        private final Packet packet;
+
+        public QueuedPacket(SessionFilterChain chain, Packet packet) {
+            this.chain = chain;
+            this.packet = packet;
+        }
+
+    }
+
+    /**
+     * Allocate a direct engine buffer, the returned view is cleared.
+     */
+    private static ByteBuffer allocate(Buffer[] holder, int capacity) {
+        if (holder[0] != null)
+            holder[0].release();
+        holder[0] = BufferFactory.allocate(capacity, true);
+        ByteBuffer buffer = holder[0].asByteBuffer();
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void release(Buffer[] holder) {
+        if (holder[0] != null) {
+            holder[0].release();
+            holder[0] = null;
+        }
+    }
+
+    /**
+     * Copy the flipped engine buffer into a pooled buffer of the exact size,
+     * then clear the engine buffer.
+     */
+    private static Buffer copy(ByteBuffer buffer) {
+        buffer.flip();
+        Buffer copy = BufferFactory.allocate(buffer.remaining()).put(buffer);
+        buffer.clear();
+        return copy.flip();
+    }
+
+    /**
+     * Engine and buffers of a session. Wrap is guarded by the engine lock,
+     * unwrap is guarded by the unwrap lock. The unwrap lock is acquired before
+     * the engine lock when both needed.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class EngineState {
+
+        private final Session session;
+        private final SSLEngine engine;
+
+        private boolean closed;
+
+        // wrap, guarded by this
+
+        private final Buffer[] netOut = new Buffer[1];
+        private ByteBuffer netOutBuffer;
+        private boolean handshakeCompleted;
+
+        /**
+         * Hold send packet if handshake is not completed.
+         */
+        private final Queue tempQueue = new LinkedList();
+
+        // unwrap, guarded by unwrapLock
+
+        private final Object unwrapLock = new Object();
+
+        /**
+         * Received bytes not unwrapped yet, in read mode.
+         */
+        private final Buffer[] netIn = new Buffer[1];
+        private ByteBuffer netInBuffer;
+        private final Buffer[] appIn = new Buffer[1];
+        private ByteBuffer appInBuffer;
+
+        private boolean taskRunning;
+        private volatile boolean wrapPending;
+        private SessionFilterChain receiveChain;
+        private SocketAddress receiveAddress;
+
+        public EngineState(Session session, SSLEngine engine) {
+            this.session = session;
+            this.engine = engine;
+        }
+
+        private int getPacketBufferSize() {
+            return engine.getSession().getPacketBufferSize();
+        }
+
+        private int getApplicationBufferSize() {
+            return engine.getSession().getApplicationBufferSize();
+        }
+
+        private void flushHandshake() {
+            session.flush(new HandshakePacket());
+        }
+
+        /**
+         * Flush a handshake packet if no one is on the way, the held bytes
+         * are unwrapped again after it wrapped.
+         */
+        private void scheduleWrap() {
+            if (!wrapPending) {
+                wrapPending = true;
+                flushHandshake();
+            }
+        }
+
+        public void received(SessionFilterChain chain, Packet packet)
+                throws SSLException {
+            synchronized (unwrapLock) {
+                Buffer content = packet.getContent();
+                try {
+                    if (closed)
+                        return;
+                    receiveChain = chain;
+                    receiveAddress = packet.getAddress();
+                    ByteBuffer src = content.asByteBuffer();
+                    if (taskRunning
+                            || (netInBuffer != null && netInBuffer
+                                    .hasRemaining())) {
+                        appendNetIn(src);
+                        if (!taskRunning)
+                            unwrap(netInBuffer);
+                    } else {
+                        unwrap(src);
+                        if (src.hasRemaining()) // partial record or suspended
+                            appendNetIn(src);
+                    }
+                } finally {
+                    content.release();
+                }
+            }
+        }
+
+        private void appendNetIn(ByteBuffer src) {
+            int size = src.remaining();
+            if (netInBuffer != null)
+                size += netInBuffer.remaining();
+            if (netInBuffer != null && netInBuffer.capacity() >= size)
+                netInBuffer.compact();
+            else {
+                ByteBuffer remaining = netInBuffer;
+                Buffer[] old = new Buffer[] { netIn[0] };
+                netIn[0] = null;
+                netInBuffer = allocate(netIn, Math.max(size,
+                        getPacketBufferSize()));
+                if (remaining != null)
+                    netInBuffer.put(remaining);
+                release(old);
+            }
+            netInBuffer.put(src);
+            netInBuffer.flip();
+        }
+
+        /**
+         * Unwrap all complete tls records of the source.
+         */
+        private void unwrap(ByteBuffer src) throws SSLException {
+            if (appInBuffer == null)
+                appInBuffer = allocate(appIn, getApplicationBufferSize()
+                        * RECORDS_PER_BUFFER);
+            ByteBuffer dest = appInBuffer;
+            try {
+                while (true) {
+                    if (dest.remaining() < getApplicationBufferSize()
+                            && dest.position() > 0)
+                        passOn(dest);
+                    SSLEngineResult result = engine.unwrap(src, dest);
+                    Status status = result.getStatus();
+                    if (status == Status.OK) {
+                        HandshakeStatus handshakeStatus = result
+                                .getHandshakeStatus();
+                        if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+                            if (!runTask())
+                                break; // suspended until the tasks completed
+                            handshakeStatus = engine.getHandshakeStatus();
+                        }
+                        if (handshakeStatus == HandshakeStatus.NEED_WRAP) {
+                            scheduleWrap(); // send handshake records
+                            if (result.bytesConsumed() == 0
+                                    && result.bytesProduced() == 0)
+                                break; // resumed after the records wrapped
+                        } else if (handshakeStatus == HandshakeStatus.FINISHED)
+                            handshakeCompleted();
+                        if (!src.hasRemaining())
+                            break;
+                        if (result.bytesConsumed() == 0
+                                && result.bytesProduced() == 0
+                                && handshakeStatus == HandshakeStatus.NEED_UNWRAP)
+                            break;
+                    } else if (status == Status.BUFFER_UNDERFLOW) {
+                        break; // wait the rest of the record
+                    } else if (status == Status.BUFFER_OVERFLOW) {
+                        if (dest.position() > 0)
+                            passOn(dest);
+                        else
+                            dest = appInBuffer = allocate(appIn,
+                                    getApplicationBufferSize()
+                                            * RECORDS_PER_BUFFER);
+                    } else if (status == Status.CLOSED) {
+                        // send close message if possible
+                        if (result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+                            flushHandshake();
+                        src.position(src.limit()); // discard
+                        break;
+                    }
+                }
+            } finally {
+                if (dest.position() > 0)
+                    passOn(dest);
+            }
+        }
+
+        private void passOn(ByteBuffer dest) {
+            receiveChain.packetReceived(new DefaultPacket(copy(dest),
+                    receiveAddress));
+        }
+
+        /**
+         * Run the delegated tasks.
+         * 
+         * @return true if the tasks completed in current thread, false if
+         *         unwrap is suspended until the tasks completed
+         */
+        private boolean runTask() {
+            Executor executor = taskExecutor;
+            if (executor == null) {
+                runTaskNow();
+                return true;
+            }
+            taskRunning = true;
+            executor.execute(new Runnable() {
+
+                public void run() {
+                    Throwable error = null;
+                    try {
+                        runTaskNow();
+                    } catch (Throwable e) {
+                        error = e;
+                    }
+                    final Throwable cause = error;
+                    // keep the events of the session in order
+                    DispatcherFactory.getDispatcher().dispatch(session,
+                            new Runnable() {
+
+                                public void run() {
+                                    try {
+                                        if (cause != null)
+                                            throw cause;
+                                        resume();
+                                    } catch (Throwable e) {
+                                        receiveChain.exceptionCaught(e);
+                                        session.close();
+                                    }
+                                }
+                            });
+                }
+            });
+            return false;
+        }
+
+        private void runTaskNow() {
+            Runnable runnable = null;
+            while ((runnable = engine.getDelegatedTask()) != null)
+                runnable.run();
+        }
+
+        /**
+         * Tasks completed, continue the handshake and unwrap the held bytes.
+         */
+        private void resume() throws SSLException {
+            synchronized (unwrapLock) {
+                taskRunning = false;
+                if (closed)
+                    return;
+                if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+                    scheduleWrap();
+                if (netInBuffer != null && netInBuffer.hasRemaining())
+                    unwrap(netInBuffer);
+            }
+        }
+
+        /**
+         * Handshake records wrapped, unwrap the held bytes.
+         */
+        private void unwrapHeld() throws SSLException {
+            synchronized (unwrapLock) {
+                if (closed || taskRunning)
+                    return;
+                if (netInBuffer != null && netInBuffer.hasRemaining())
+                    unwrap(netInBuffer);
+            }
+        }
+
+        public void send(SessionFilterChain chain, Packet packet)
+                throws SSLException {
+            boolean unwrap = packet instanceof HandshakePacket && wrapPending;
+            if (unwrap)
+                wrapPending = false;
+            synchronized (this) {
+                if (closed)
+                    chain.packetSend(packet); // session will fail the packet
+                else if (!handshakeCompleted
+                        && !(packet instanceof HandshakePacket))
+                    tempQueue.offer(new QueuedPacket(chain, packet));
+                else
+                    wrap(chain, packet);
+            }
+            if (unwrap) {
+                // out of the engine lock, unwrap lock is acquired first
+                DispatcherFactory.getDispatcher().dispatch(session,
+                        new Runnable() {
+
+                            public void run() {
+                                try {
+                                    unwrapHeld();
+                                } catch (Throwable e) {
+                                    receiveChain.exceptionCaught(e);
+                                    session.close();
+                                }
+                            }
+                        });
+            }
+        }
+
+        /**
+         * Wrap the packet into one packet.
+         */
+        private void wrap(SessionFilterChain chain, Packet packet)
+                throws SSLException {
+            Buffer content = packet.getContent();
+            ByteBuffer src = content.asByteBuffer();
+            if (netOutBuffer == null)
+                netOutBuffer = allocate(netOut, getPacketBufferSize()
+                        * RECORDS_PER_BUFFER);
+            ByteBuffer dest = netOutBuffer;
+            Buffer out = null; // spilled records of a large packet
+            boolean finished = false;
+
+            try {
+                while (true) {
+                    if (dest.remaining() < getPacketBufferSize()
+                            && dest.position() > 0)
+                        out = spill(out, dest, src.remaining());
+                    SSLEngineResult result = engine.wrap(src, dest);
+                    Status status = result.getStatus();
+                    if (status == Status.OK) {
+                        HandshakeStatus handshakeStatus = result
+                                .getHandshakeStatus();
+                        if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+                            runTaskNow(); // rare, run in current thread
+                        } else if (handshakeStatus == HandshakeStatus.NEED_WRAP) {
+                            // wrap again
+                        } else if (handshakeStatus == HandshakeStatus.NEED_UNWRAP) {
+                            break; // wait receive
+                        } else if (handshakeStatus == HandshakeStatus.FINISHED) {
+                            finished = true;
+                            break;
+                        } else if (!src.hasRemaining()) // wrap completed
+                            break;
+                    } else if (status == Status.BUFFER_OVERFLOW) {
+                        if (dest.position() > 0)
+                            out = spill(out, dest, src.remaining());
+                        else
+                            dest = netOutBuffer = allocate(netOut,
+                                    getPacketBufferSize() * RECORDS_PER_BUFFER);
+                    } else if (status == Status.CLOSED) {
+                        break;
+                    } else if (status == Status.BUFFER_UNDERFLOW) {
+                        // should never happen
+                        session.close();
+                        break;
+                    }
+                }
+            } finally {
+                content.release();
+            }
+
+            if (out == null)
+                out = copy(dest);
+            else
+                out = spill(out, dest, 0).flip();
+            chain.packetSend(new DefaultPacket(out, packet.getAddress()));
+            if (finished)
+                handshakeCompleted();
+        }
+
+        /**
+         * Move the wrapped records of a large packet out of the engine buffer.
+         */
+        private Buffer spill(Buffer out, ByteBuffer dest, int remaining) {
+            dest.flip();
+            int size = dest.remaining() + getPacketBufferSize()
+                    * (remaining / getApplicationBufferSize() + 1);
+            if (out == null)
+                out = BufferFactory.allocate(size);
+            else if (out.remaining() < dest.remaining()) {
+                Buffer newOut = BufferFactory.allocate(out.position() + size);
+                newOut.put(out.flip());
+                out.release();
+                out = newOut;
+            }
+            out.put(dest);
+            dest.clear();
+            return out;
+        }
+
+        private void handshakeCompleted() throws SSLException {
+            synchronized (this) {
+                handshakeCompleted = true;
+                QueuedPacket packet = null;
+                while ((packet = (QueuedPacket) tempQueue.poll()) != null)
+                    wrap(packet.chain, packet.packet);
+            }
+        }
+
+        public void close() throws SSLException {
+            synchronized (unwrapLock) {
+                synchronized (this) {
+                    closed = true;
+                    handshakeCompleted = false;
+                    try {
+                        engine.closeOutbound();
+                        if (!engine.isInboundDone()) {
+                            // close message can't be sent, discard it
+                            if (netOutBuffer != null) {
+                                netOutBuffer.clear();
+                                engine.wrap(ByteBuffer.allocate(0),
+                                        netOutBuffer);
+                            }
+                        }
+                        engine.closeInbound();
+                    } finally {
+                        release(netIn);
+                        release(appIn);
+                        release(netOut);
+                        netInBuffer = appInBuffer = netOutBuffer = null;
+                        QueuedPacket packet = null;
+                        while ((packet = (QueuedPacket) tempQueue.poll()) != null)
+                            packet.chain.packetSend(packet.packet);
+                    }
+                }
+            }
+        }
+    }
+
+    private EngineState getEngineState(Session session) {
+        return (EngineState) session.getAttribute(engineKey);
+    }
+
+    /**
+     * Create the engine state of the session, by the started event or the
+     * first packet sent before the started event dispatched.
+     */
+    private synchronized EngineState createEngineState(Session session)
+            throws SSLException {
+        EngineState state = getEngineState(session);
+        if (state != null)
+            return state;
+
         // init engine
-        Session session = filterChain.getSession();
         SocketAddress address = session.getRemoteAddress();
+        SSLEngine engine = null;
         if (clientMode && (address instanceof InetSocketAddress)) {
             InetSocketAddress netAddress = (InetSocketAddress) address;
             engine = sslc.createSSLEngine(netAddress.getAddress()
@@ -125,38 +629,35 @@ public class SSLFilter extends SessionFilterAdapter {
         engine.setNeedClientAuth(needClientAuth);
         initSSLEngine(engine);
 
-        appBufferSize = engine.getSession().getApplicationBufferSize();
-        netBufferSize = engine.getSession().getPacketBufferSize();
-
         // handshake
         engine.beginHandshake();
+        state = new EngineState(session, engine);
+        session.setAttribute(engineKey, state);
+        return state;
+    }
+
+    public void sessionStarted(SessionFilterChain filterChain) throws Exception {
+        Session session = filterChain.getSession();
+        EngineState state = getEngineState(session);
+        if (state == null)
+            state = createEngineState(session);
 
         super.sessionStarted(filterChain);
         if (clientMode)
-            session.flush(new HandshakePacket());
+            state.flushHandshake();
     }
 
     public void sessionClosed(SessionFilterChain filterChain) throws Exception {
+        Session session = filterChain.getSession();
+        EngineState state = getEngineState(session);
         try {
-            if (engine != null) {
-                engine.closeOutbound();
-                if (!engine.isInboundDone()) {
-                    Packet encodedPacket = encode(filterChain.getSession(),
-                            new HandshakePacket());
-                    if (encodedPacket != null)
-                        encodedPacket.getContent().release();
-                }
-                engine.closeInbound();
+            if (state != null) {
+                session.removeAttribute(engineKey);
+                state.close();
             }
         } catch (SSLException ssle) {
             throw new SessionException(ssle);
         } finally {
-            handshakeCompleted = false;
-            engine = null;
-            QueuedPacket packet = null;
-            while ((packet = (QueuedPacket) tempQueue.poll()) != null) {
-                packet.chain.packetSend(packet.packet);
-            }
             super.sessionClosed(filterChain);
         }
     }
@@ -167,150 +668,26 @@ public class SSLFilter extends SessionFilterAdapter {
     protected void initSSLEngine(SSLEngine engine) {
     }
 
-    private synchronized void handshakeCompleted() throws Exception {
-        handshakeCompleted = true;
-        QueuedPacket packet = null;
-        while ((packet = (QueuedPacket) tempQueue.poll()) != null) {
-            this.packetSend(packet.chain, packet.packet);
-        }
-    }
-
-    private void runTask() {
-        Runnable runnable = null;
-        while ((runnable = engine.getDelegatedTask()) != null)
-            runnable.run();
-    }
-
-    private Packet decode(Session session, Packet packet) throws Exception {
-        Buffer src = packet.getContent();
-        ByteBuffer srcBuffer = src.asByteBuffer();
-
-        int size = appBufferSize
-                * (int) Math.ceil((double) (src.remaining() + 1)
-                        / netBufferSize);
-        Buffer dest = BufferFactory.allocate(size);
-        ByteBuffer destBuffer = dest.asByteBuffer();
-
-        boolean hasAppData = false;
-
-        // decode
-        while (true) {
-            SSLEngineResult result = engine.unwrap(srcBuffer, destBuffer);
-            Status status = result.getStatus();
-            if (status == Status.OK) {
-                HandshakeStatus handshakeStatus = result.getHandshakeStatus();
-                if (handshakeStatus == HandshakeStatus.NOT_HANDSHAKING) {
-                    hasAppData = true;
-                    if (!srcBuffer.hasRemaining()) // decode completed
-                        break;
-                } else if (handshakeStatus == HandshakeStatus.NEED_TASK) {
-                    runTask();
-                } else if (handshakeStatus == HandshakeStatus.NEED_UNWRAP) {
-                    // unwrap again
-                } else if (handshakeStatus == HandshakeStatus.NEED_WRAP) {
-                    // need send some handshake packet
-                    session.flush(new HandshakePacket());
-                    break;
-                } else if (handshakeStatus == HandshakeStatus.FINISHED) {
-                    handshakeCompleted();
-                }
-            } else if (status == Status.BUFFER_UNDERFLOW) {
-                // need more content, wait next time
-                break;
-            } else if (status == Status.BUFFER_OVERFLOW) {
-                // increase dest capacity
-                destBuffer.flip();
-                Buffer newDest = BufferFactory.allocate(
-                        appBufferSize + destBuffer.remaining()).put(destBuffer);
-                dest.release();
-                dest = newDest;
-                destBuffer = dest.asByteBuffer();
-            } else if (status == Status.CLOSED) {
-                // send close message if possible
-                if (result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
-                    session.flush(new HandshakePacket());
-                break;
-            }
-        }
-
-        src.release();
-        if (hasAppData) {
-            dest.position(0).limit(destBuffer.position());
-            return new DefaultPacket(dest, packet.getAddress());
-        }
-        return null;
-    }
-
     public void packetReceived(SessionFilterChain filterChain, Packet packet)
             throws Exception {
-        Packet decodedPacket = decode(filterChain.getSession(), packet);
-        if (decodedPacket != null)
-            super.packetReceived(filterChain, decodedPacket);
-    }
-
-    private Packet encode(Session session, Packet packet) throws Exception {
-        Buffer src = packet.getContent();
-        ByteBuffer srcBuffer = src.asByteBuffer();
-
-        int size = netBufferSize
-                * (int) Math.ceil((double) (src.remaining() + 1)
-                        / appBufferSize);
-        Buffer dest = BufferFactory.allocate(size);
-        ByteBuffer destBuffer = dest.asByteBuffer();
-
-        // encode
-        while (true) {
-            SSLEngineResult result = engine.wrap(srcBuffer, destBuffer);
-            Status status = result.getStatus();
-            if (status == Status.OK) {
-                HandshakeStatus handshakeStatus = result.getHandshakeStatus();
-                if (handshakeStatus == HandshakeStatus.NOT_HANDSHAKING) {
-                    if (!srcBuffer.hasRemaining()) // encode completed
-                        break;
-                } else if (handshakeStatus == HandshakeStatus.NEED_UNWRAP) {
-                    break; // wait receive
-                } else if (handshakeStatus == HandshakeStatus.NEED_WRAP) {
-                    // wrap again
-                } else if (handshakeStatus == HandshakeStatus.NEED_TASK) {
-                    runTask();
-                } else if (handshakeStatus == HandshakeStatus.FINISHED) {
-                    handshakeCompleted();
-                    break;
-                }
-            } else if (status == Status.BUFFER_OVERFLOW) {
-                // increase dest capacity
-                destBuffer.flip();
-                Buffer newDest = BufferFactory.allocate(
-                        netBufferSize + destBuffer.remaining()).put(destBuffer);
-                dest.release();
-                dest = newDest;
-                destBuffer = dest.asByteBuffer();
-            } else if (status == Status.CLOSED) {
-                break;
-            } else if (status == Status.BUFFER_UNDERFLOW) {
-                // should never happen
-                src.release();
-                session.close();
-                return null;
-            }
-        }
-
-        src.release();
-        dest.position(0).limit(destBuffer.position());
-        return new DefaultPacket(dest, packet.getAddress());
+        EngineState state = getEngineState(filterChain.getSession());
+        if (state != null)
+            state.received(filterChain, packet);
+        else
+            packet.getContent().release(); // session closed
     }
 
     public void packetSend(SessionFilterChain filterChain, Packet packet)
             throws Exception {
-        boolean queued = !handshakeCompleted
-                && !(packet instanceof HandshakePacket);
-        if (queued) {
-            tempQueue.offer(new QueuedPacket(filterChain, packet));
-            return;
-        }
-
-        Packet encodedPacket = encode(filterChain.getSession(), packet);
-        if (encodedPacket != null)
-            super.packetSend(filterChain, encodedPacket);
+        Session session = filterChain.getSession();
+        EngineState state = getEngineState(session);
+        // the start future is completed before the started event
+        // dispatched, packets may be sent before the event
+        if (state == null && session.isStarted())
+            state = createEngineState(session);
+        if (state != null)
+            state.send(filterChain, packet);
+        else
+            super.packetSend(filterChain, packet); // session will fail it
     }
 }
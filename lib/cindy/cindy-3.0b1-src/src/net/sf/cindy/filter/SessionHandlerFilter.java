@@ -70,4 +70,12 @@ public class SessionHandlerFilter extends NullFilter {
         if (handler != null)
             handler.sessionTimeout(session);
     }
+
+    public void writabilityChanged(SessionFilterChain filterChain)
+            throws Exception {
+        Session session = filterChain.getSession();
+        SessionHandler handler = session.getSessionHandler();
+        if (handler != null)
+            handler.writabilityChanged(session);
+    }
 }
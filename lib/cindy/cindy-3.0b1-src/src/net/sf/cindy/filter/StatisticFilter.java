@@ -15,21 +15,32 @@
  */
 package net.sf.cindy.filter;
 
+import net.sf.cindy.Buffer;
 import net.sf.cindy.Packet;
 import net.sf.cindy.Session;
 import net.sf.cindy.SessionFilterAdapter;
 import net.sf.cindy.SessionFilterChain;
+import net.sf.cindy.packet.FileRegionPacket;
+import net.sf.cindy.session.nio.AbstractChannelSession;
+import net.sf.cindy.util.Counter;
+import net.sf.cindy.util.Histogram;
 import net.sf.cindy.util.Speed;
 
 /**
- * Statistic filter.
+ * Statistic filter. Counters, speeds and packet size histograms are striped,
+ * a filter shared by all sessions does not serialize the dispatcher threads.
+ * A session filter can report to a parent filter, which gives the aggregate
+ * view of the sessions.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
  */
 public class StatisticFilter extends SessionFilterAdapter {
 
+    private static final long MAX_PACKET_SIZE = Integer.MAX_VALUE;
+
     private final Session session;
+    private final StatisticFilter parent;
     private final Speed received = Speed.getInstance();
     private final Speed sent = Speed.getInstance();
 
@@ -40,11 +51,18 @@ public class StatisticFilter extends SessionFilterAdapter {
     private double avgSendSpeed = 0;
     private long elapsedTime = 0;
 
+    // read buffer sizes of received packets
+    private final Counter readBufferBytes = new Counter();
+
+    private final Histogram receivedSizes = new Histogram(MAX_PACKET_SIZE, 5);
+    private final Histogram sentSizes = new Histogram(MAX_PACKET_SIZE, 5);
+
     /**
      * Construct a statistic filter monitor all sessions.
      */
     public StatisticFilter() {
         this.session = null;
+        this.parent = null;
         stopped = false;
     }
 
@@ -55,10 +73,29 @@ public class StatisticFilter extends SessionFilterAdapter {
      *            monitor special session
      */
     public StatisticFilter(Session session) {
+        this(session, null);
+    }
+
+    /**
+     * Construct a statistic filter monitor special session, the values are
+     * also reported to the parent filter. The parent filter is not added to
+     * any session.
+     * 
+     * @param session
+     *            monitor special session
+     * @param parent
+     *            parent filter, aggregate the sessions
+     */
+    public StatisticFilter(Session session, StatisticFilter parent) {
         this.session = session;
+        this.parent = parent;
         stopped = true;
     }
 
+    public StatisticFilter getParent() {
+        return parent;
+    }
+
     public boolean isStopped() {
         return stopped;
     }
@@ -137,10 +174,96 @@ public class StatisticFilter extends SessionFilterAdapter {
         return stopped ? 0 : sent.getSpeed();
     }
 
+    /**
+     * Get received packets count. If session restart, the value will reset to
+     * 0.
+     * 
+     * @return received packets count
+     */
+    public long getReceivedPackets() {
+        return receivedSizes.getCount();
+    }
+
+    /**
+     * Get sent packets count. If session restart, the value will reset to 0.
+     * 
+     * @return sent packets count
+     */
+    public long getSentPackets() {
+        return sentSizes.getCount();
+    }
+
+    /**
+     * Get the size of received packets at the percentile.
+     * 
+     * @param percentile
+     *            percentile, such as 50 or 99
+     * @return packet size
+     */
+    public long getReceivedPacketSize(double percentile) {
+        return receivedSizes.getPercentile(percentile);
+    }
+
+    /**
+     * Get the size of sent packets at the percentile.
+     * 
+     * @param percentile
+     *            percentile, such as 50 or 99
+     * @return packet size
+     */
+    public long getSentPacketSize(double percentile) {
+        return sentSizes.getPercentile(percentile);
+    }
+
+    /**
+     * Get the bytes received in the last second.
+     * 
+     * @return received bytes per second
+     */
+    public long getReceiveRate() {
+        return stopped ? 0 : received.getLastValue();
+    }
+
+    /**
+     * Get the bytes sent in the last second.
+     * 
+     * @return sent bytes per second
+     */
+    public long getSendRate() {
+        return stopped ? 0 : sent.getLastValue();
+    }
+
+    /**
+     * Get average read buffer size of the received packets, the buffer size
+     * is chosen by the session before read.
+     * 
+     * @return average read buffer size
+     */
+    public int getAvgReadBufferSize() {
+        long receivedPackets = getReceivedPackets();
+        return receivedPackets == 0 ? 0
+                : (int) (readBufferBytes.get() / receivedPackets);
+    }
+
+    /**
+     * Get the buffer size of the next read of the monitored session.
+     * 
+     * @return read buffer size, -1 if monitor all sessions or the session is
+     *         not a channel session
+     */
+    public int getReadBufferSize() {
+        if (session instanceof AbstractChannelSession)
+            return ((AbstractChannelSession) session).getReadBufferSize();
+        return -1;
+    }
+
     /**
      * Reset.
      */
     public void reset() {
+        readBufferBytes.reset();
+        receivedSizes.reset();
+        sentSizes.reset();
         avgReceiveSpeed = 0;
         avgSendSpeed = 0;
         elapsedTime = 0;
@@ -166,15 +289,35 @@ public class StatisticFilter extends SessionFilterAdapter {
     public void packetReceived(SessionFilterChain filterChain, Packet packet)
             throws Exception {
         if (session == null || session == filterChain.getSession()) {
-            received.addValue(packet.getContent().remaining());
+            Buffer content = packet.getContent();
+            received(content.remaining(), content.capacity());
+            if (parent != null)
+                parent.received(content.remaining(), content.capacity());
         }
         super.packetReceived(filterChain, packet);
     }
 
+    private void received(int size, int readBufferSize) {
+        received.addValue(size);
+        receivedSizes.record(size);
+        readBufferBytes.add(readBufferSize);
+    }
+
+    private void sent(long size) {
+        sent.addValue(size);
+        sentSizes.record(size);
+    }
+
     public void packetSent(SessionFilterChain filterChain, Packet packet)
             throws Exception {
         if (session == null || session == filterChain.getSession()) {
-            sent.addValue(packet.getContent().remaining());
+            // do not read file region content
+            long size = packet instanceof FileRegionPacket ? ((FileRegionPacket) packet)
+                    .getCount()
+                    : packet.getContent().remaining();
+            sent(size);
+            if (parent != null)
+                parent.sent(size);
         }
         super.packetSent(filterChain, packet);
     }
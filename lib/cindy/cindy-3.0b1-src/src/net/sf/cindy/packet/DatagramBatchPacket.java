@@ -0,0 +1,161 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.packet;
+
+import java.net.SocketAddress;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Packet;
+import net.sf.cindy.buffer.BufferFactory;
+
+/**
+ * Datagrams in one content. Datagram sessions receive several datagrams of a
+ * readable event as a batch packet if datagram batch is enabled, and send a
+ * batch packet by one send per datagram.
+ * <p>
+ * The content is owned by the batch, the contents of the datagram packets
+ * are slices of it. Release the batch content after the datagrams handled,
+ * not the datagram contents.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class DatagramBatchPacket extends DefaultPacket {
+
+    private final int[] offsets; // datagram i is [offsets[i], offsets[i + 1])
+    private final SocketAddress[] addresses;
+    private final int count;
+
+    /**
+     * Create a batch packet.
+     * 
+     * @param content
+     *            content of the datagrams
+     * @param offsets
+     *            start index of each datagram in the content, followed by
+     *            the end index of the last datagram
+     * @param addresses
+     *            address of each datagram, null if the channel is connected
+     * @param count
+     *            datagram count
+     */
+    public DatagramBatchPacket(Buffer content, int[] offsets,
+            SocketAddress[] addresses, int count) {
+        super(content);
+        if (count < 0 || offsets.length <= count || addresses.length < count)
+            throw new IllegalArgumentException();
+        this.offsets = offsets;
+        this.addresses = addresses;
+        this.count = count;
+    }
+
+    /**
+     * Copy the packets into one pooled content, the contents of the packets
+     * are released.
+     * 
+     * @param packets
+     *            datagram packets
+     */
+    public DatagramBatchPacket(Packet[] packets) {
+        this.count = packets.length;
+        this.offsets = new int[count + 1];
+        this.addresses = new SocketAddress[count];
+
+        int size = 0;
+        for (int i = 0; i < count; i++)
+            size += packets[i].getContent().remaining();
+        Buffer content = BufferFactory.allocate(size);
+        for (int i = 0; i < count; i++) {
+            Buffer buffer = packets[i].getContent();
+            offsets[i] = content.position();
+            addresses[i] = packets[i].getAddress();
+            content.put(buffer);
+            buffer.release();
+        }
+        offsets[count] = content.position();
+        setContent(content.flip());
+    }
+
+    /**
+     * Get the datagram count.
+     * 
+     * @return datagram count
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the start index of the datagram in the content.
+     * 
+     * @param index
+     *            datagram index
+     * @return start index
+     */
+    public int getPosition(int index) {
+        checkIndex(index);
+        return offsets[index];
+    }
+
+    /**
+     * Get the end index of the datagram in the content.
+     * 
+     * @param index
+     *            datagram index
+     * @return end index
+     */
+    public int getLimit(int index) {
+        checkIndex(index);
+        return offsets[index + 1];
+    }
+
+    /**
+     * Get the address of the datagram.
+     * 
+     * @param index
+     *            datagram index
+     * @return address, null if the channel is connected
+     */
+    public SocketAddress getAddress(int index) {
+        checkIndex(index);
+        return addresses[index];
+    }
+
+    /**
+     * Get the datagram packet, its content is a slice of the batch content.
+     * 
+     * @param index
+     *            datagram index
+     * @return datagram packet
+     */
+    public Packet getPacket(int index) {
+        checkIndex(index);
+        Buffer slice = getContent().duplicate().limit(offsets[index + 1])
+                .position(offsets[index]).slice();
+        return new DefaultPacket(slice, addresses[index]);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("index " + index + " count "
+                    + count);
+    }
+
+    public String toString() {
+        return "Packet [content] " + getContent() + " [datagrams] " + count;
+    }
+
+}
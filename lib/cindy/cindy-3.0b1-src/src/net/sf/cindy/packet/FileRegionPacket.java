@@ -0,0 +1,174 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.packet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Packet;
+import net.sf.cindy.buffer.BufferFactory;
+
+/**
+ * Packet of a file region. Tcp and pipe sessions transfer the region to the
+ * channel by <code>FileChannel.transferTo</code>, the file content will not be
+ * copied into the java heap or the buffer pool.
+ * <p>
+ * The content is read into a buffer when <code>getContent</code> is called,
+ * such as by SSLFilter, then the packet is sent as a normal packet. The
+ * packet does not close the file channel, close it after the send future
+ * completed.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class FileRegionPacket implements Packet {
+
+    private final FileChannel channel;
+    private final long position;
+    private final long count;
+    private final SocketAddress address;
+
+    private long transferred;
+    private Buffer content;
+
+    public FileRegionPacket(FileChannel channel, long position, long count) {
+        this(channel, position, count, null);
+    }
+
+    public FileRegionPacket(FileChannel channel, long position, long count,
+            SocketAddress address) {
+        if (channel == null || position < 0 || count < 0)
+            throw new IllegalArgumentException();
+        this.channel = channel;
+        this.position = position;
+        this.count = count;
+        this.address = address;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Get the start position of the region in the file.
+     *
+     * @return start position
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Get the byte count of the region.
+     *
+     * @return byte count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the byte count have been transferred.
+     *
+     * @return transferred byte count
+     */
+    public long getTransferred() {
+        return transferred;
+    }
+
+    public boolean hasRemaining() {
+        return transferred < count;
+    }
+
+    /**
+     * Whether the content have been read into a buffer.
+     *
+     * @return buffered
+     */
+    public synchronized boolean isBuffered() {
+        return content != null;
+    }
+
+    /**
+     * Transfer the remaining bytes of the region to the target channel.
+     *
+     * @param target
+     *            target channel
+     * @param maxCount
+     *            max bytes transferred
+     * @return transferred byte count, 0 if the target channel is full
+     * @throws IOException
+     *             the file is shorter than the region or io error
+     */
+    public long transferTo(WritableByteChannel target, long maxCount)
+            throws IOException {
+        long start = position + transferred;
+        long n = channel.transferTo(start, Math.min(count - transferred,
+                maxCount), target);
+        if (n == 0 && start >= channel.size())
+            throw new EOFException("file region [position] " + position
+                    + " [count] " + count + " exceed file size");
+        transferred += n;
+        return n;
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Read the remaining bytes of the region into a buffer.
+     *
+     * @return content
+     */
+    public synchronized Buffer getContent() {
+        if (content == null) {
+            long remaining = count - transferred;
+            if (remaining > Integer.MAX_VALUE)
+                throw new IllegalStateException("file region too large: "
+                        + remaining);
+            Buffer buffer = BufferFactory.allocate((int) remaining);
+            try {
+                ByteBuffer dest = buffer.asByteBuffer();
+                long offset = position + transferred;
+                while (dest.hasRemaining()) {
+                    int n = channel.read(dest, offset);
+                    offset += n;
+                    if (n < 0)
+                        throw new EOFException("file region [position] "
+                                + position + " [count] " + count
+                                + " exceed file size");
+                }
+            } catch (IOException e) {
+                buffer.release();
+                throw new RuntimeException(e);
+            }
+            content = buffer;
+        }
+        return content;
+    }
+
+    public String toString() {
+        return "Packet [file region] " + position + "+" + count
+                + " [transferred] " + transferred + " [address] " + address;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.packet;
+
+import java.net.SocketAddress;
+
+import net.sf.cindy.Buffer;
+
+/**
+ * Received packet with the read time, used to record the receive latencies.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class TimestampPacket extends DefaultPacket {
+
+    private final long timestamp;
+
+    /**
+     * Create a packet.
+     * 
+     * @param content
+     *            content
+     * @param address
+     *            address
+     * @param timestamp
+     *            read time in microseconds
+     */
+    public TimestampPacket(Buffer content, SocketAddress address,
+            long timestamp) {
+        super(content, address);
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Get the read time in microseconds.
+     * 
+     * @return read time
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+}
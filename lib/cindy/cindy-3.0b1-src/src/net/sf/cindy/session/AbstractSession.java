@@ -31,11 +31,15 @@ import net.sf.cindy.SessionHandler;
 import net.sf.cindy.decoder.SimplePacketDecoder;
 import net.sf.cindy.encoder.SimplePacketEncoder;
 import net.sf.cindy.filter.DispatcherFilter;
+import net.sf.cindy.filter.NullFilter;
 import net.sf.cindy.filter.PacketDecoderFilter;
 import net.sf.cindy.filter.SessionHandlerFilter;
 import net.sf.cindy.session.dispatcher.DispatcherFactory;
 import net.sf.cindy.util.Configuration;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 /**
  * Abstract session.
  * 
@@ -44,6 +48,8 @@ import net.sf.cindy.util.Configuration;
  */
 public abstract class AbstractSession implements Session {
 
+    private static final Log log = LogFactory.getLog(AbstractSession.class);
+
     private static final SessionFilter[] EMPTY_FILTERS = new SessionFilter[0];
 
     private final Map attributes = Collections.synchronizedMap(new HashMap(0));
@@ -59,6 +65,9 @@ public abstract class AbstractSession implements Session {
     private int readPacketSize = Configuration.getReadPacketSize();
     private int sessionTimeout = Configuration.getSessionTimeout();
 
+    private final SessionLatency latency = Configuration.isLatencyEnabled() ? new SessionLatency()
+            : null;
+
     public void setRemoteAddress(SocketAddress address) {
         if (isStarted())
             throw new IllegalStateException(
@@ -128,6 +137,15 @@ public abstract class AbstractSession implements Session {
         attributes.remove(key);
     }
 
+    /**
+     * Get the latency histograms of the session.
+     * 
+     * @return latency, null if latency is not enabled
+     */
+    public SessionLatency getSessionLatency() {
+        return latency;
+    }
+
     public int getSessionTimeout() {
         return sessionTimeout;
     }
@@ -187,6 +205,16 @@ public abstract class AbstractSession implements Session {
         return result;
     }
 
+    public boolean isWritable() {
+        return true;
+    }
+
+    public void batch() {
+    }
+
+    public void endBatch() {
+    }
+
     public Future flush(Packet packet) {
         return flush(packet, 0);
     }
@@ -228,7 +256,19 @@ public abstract class AbstractSession implements Session {
             .getInstance(this);
 
     /**
-     * Default SessionFilterChain implementation. Dispatch event in such order:
+     * Get the first filter in the chain, which dispatch events in event
+     * dispatch thread. Sessions which fire events in their own threads return
+     * null, then events are passed to the application filters directly.
+     * 
+     * @return dispatch filter, null if events are not dispatched
+     */
+    protected SessionFilter getDispatchFilter() {
+        return DISPATCH_FILTER;
+    }
+
+    /**
+     * SessionFilterChain with an operate filter, created for each operate.
+     * Dispatch event in such order:
      * <p>
      * DispatchFilter --> ApplicationFilters --> OperateFilter --> DecodeFilter
      * --> SessionHandlerFilter
@@ -242,15 +282,11 @@ public abstract class AbstractSession implements Session {
         private final SessionFilter[] appFilters = filters;
         private int cursor = -1;
 
-        private SessionFilter dispatchFilter = DISPATCH_FILTER;
+        private SessionFilter dispatchFilter = getDispatchFilter();
         private SessionFilter operateFilter;
         private SessionFilter decodeFilter = packetDecoderFilter;
         private SessionFilter handlerFilter = SESSION_HANDLER_FILTER;
 
-        public DefaultSessionFilterChain(boolean reversed) {
-            this(null, reversed);
-        }
-
         public DefaultSessionFilterChain(SessionFilter operateFilter,
                 boolean reversed) {
             this.operateFilter = operateFilter;
@@ -290,8 +326,170 @@ public abstract class AbstractSession implements Session {
 
     }
 
+    /**
+     * Null-Object pattern, the end of the pipeline.
+     */
+    private static final SessionFilter NULL_FILTER = new NullFilter();
+
+    /**
+     * Immutable filter chain node, pass the event to the filter with the next
+     * node as the filter chain. Nodes can be shared by all events and hold by
+     * filters safely.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class FilterInvoker implements SessionFilterChain {
+
+        private final SessionFilter filter;
+        private final FilterInvoker next;
+
+        public FilterInvoker(SessionFilter filter, FilterInvoker next) {
+            this.filter = filter;
+            this.next = next == null ? this : next;
+        }
+
+        public Session getSession() {
+            return AbstractSession.this;
+        }
+
+        private void caughtException(Throwable throwable) {
+            getSessionFilterChain(false).exceptionCaught(throwable);
+        }
+
+        public void exceptionCaught(Throwable cause) {
+            if (Configuration.isDisableInnerException()
+                    && cause instanceof SessionException)
+                return;
+            try {
+                filter.exceptionCaught(next, cause);
+            } catch (Throwable e) { // protect catch
+                log.error(e, e);
+            }
+        }
+
+        public void packetReceived(Packet packet) {
+            try {
+                filter.packetReceived(next, packet);
+            } catch (Throwable e) {
+                caughtException(e);
+            }
+        }
+
+        public void objectReceived(Object obj) {
+            try {
+                filter.objectReceived(next, obj);
+            } catch (Throwable e) {
+                caughtException(e);
+            }
+        }
+
+        public void packetSend(Packet packet) {
+            try {
+                filter.packetSend(next, packet);
+            } catch (Throwable e) {
+                caughtException(e);
+            }
+        }
+
+        public void packetSent(Packet packet) {
+            try {
+                filter.packetSent(next, packet);
+            } catch (Throwable e) {
+                caughtException(e);
+            }
+        }
+
+        public void objectSent(Object obj) {
+            try {
+                filter.objectSent(next, obj);
+            } catch (Throwable e) {
+                caughtException(e);
+            }
+        }
+
+        public void sessionClosed() {
+            try {
+                filter.sessionClosed(next);
+            } catch (Throwable e) {
+                caughtException(e);
+            }
+        }
+
+        public void sessionStarted() {
+            try {
+                filter.sessionStarted(next);
+            } catch (Throwable e) {
+                caughtException(e);
+            }
+        }
+
+        public void sessionTimeout() {
+            try {
+                filter.sessionTimeout(next);
+            } catch (Throwable e) {
+                caughtException(e);
+            }
+        }
+
+        public void writabilityChanged() {
+            try {
+                filter.writabilityChanged(next);
+            } catch (Throwable e) {
+                caughtException(e);
+            }
+        }
+
+    }
+
+    /**
+     * Precompiled filter chains of a filters snapshot.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class Pipeline {
+
+        private final SessionFilter[] appFilters;
+        private final FilterInvoker head;
+        private final FilterInvoker reversedHead;
+
+        public Pipeline(SessionFilter[] appFilters) {
+            this.appFilters = appFilters;
+            this.head = compile(false);
+            this.reversedHead = compile(true);
+        }
+
+        /**
+         * Build the nodes in such order: DispatchFilter --> ApplicationFilters
+         * --> DecodeFilter --> SessionHandlerFilter.
+         */
+        private FilterInvoker compile(boolean reversed) {
+            FilterInvoker invoker = new FilterInvoker(NULL_FILTER, null);
+            invoker = new FilterInvoker(SESSION_HANDLER_FILTER, invoker);
+            invoker = new FilterInvoker(packetDecoderFilter, invoker);
+            for (int i = 0; i < appFilters.length; i++) {
+                invoker = new FilterInvoker(appFilters[reversed ? i
+                        : appFilters.length - 1 - i], invoker);
+            }
+            SessionFilter dispatchFilter = getDispatchFilter();
+            if (dispatchFilter == null)
+                return invoker;
+            return new FilterInvoker(dispatchFilter, invoker);
+        }
+
+    }
+
+    private volatile Pipeline pipeline;
+
     public SessionFilterChain getSessionFilterChain(boolean reversed) {
-        return new DefaultSessionFilterChain(reversed);
+        Pipeline pipeline = this.pipeline;
+        if (pipeline == null || pipeline.appFilters != filters) {
+            // filters changed, racy rebuild is harmless
+            pipeline = new Pipeline(filters);
+            this.pipeline = pipeline;
+        }
+        return reversed ? pipeline.reversedHead : pipeline.head;
     }
 
     protected SessionFilterChain getSessionFilterChain(
@@ -117,13 +117,28 @@ public abstract class AbstractSessionAcceptor implements SessionAcceptor {
 
     protected void setServerSocketOptions(ServerSocket socket)
             throws IOException {
+        setServerSocketOptions(socket, getListenAddress());
+    }
+
+    /**
+     * Set the server socket options, then bind the server socket to the
+     * address.
+     * 
+     * @param socket
+     *            server socket
+     * @param address
+     *            bind address
+     * @throws IOException
+     */
+    protected void setServerSocketOptions(ServerSocket socket,
+            SocketAddress address) throws IOException {
         socket.setReuseAddress(isReuseAddress());
 
         int recvBufferSize = Configuration.getRecvBufferSize();
         if (recvBufferSize > 0)
             socket.setReceiveBufferSize(recvBufferSize);
 
-        socket.bind(getListenAddress(), getBacklog());
+        socket.bind(address, getBacklog());
     }
 
     protected final void exceptionCaught(Throwable e) {
@@ -123,4 +123,12 @@ public abstract class AbstractSessionFilterChain implements SessionFilterChain {
         }
     }
 
+    public void writabilityChanged() {
+        try {
+            next().writabilityChanged(this);
+        } catch (Throwable e) {
+            caughtException(e);
+        }
+    }
+
 }
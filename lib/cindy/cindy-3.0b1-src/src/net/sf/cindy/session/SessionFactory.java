@@ -94,6 +94,8 @@ public final class SessionFactory {
     static {
         SESSION_MAP.put(SessionType.TCP,
                 getClass(Configuration.getTcpSession()));
+        SESSION_MAP.put(SessionType.BLOCKING_TCP, getClass(Configuration
+                .getBlockingTcpSession()));
         SESSION_MAP.put(SessionType.UDP,
                 getClass(Configuration.getUdpSession()));
         SESSION_MAP.put(SessionType.PIPE, getClass(Configuration
@@ -103,6 +105,8 @@ public final class SessionFactory {
 
         ACCEPTOR_MAP.put(SessionType.TCP, getClass(Configuration
                 .getTcpAcceptor()));
+        ACCEPTOR_MAP.put(SessionType.BLOCKING_TCP, getClass(Configuration
+                .getBlockingTcpAcceptor()));
     }
 
     /**
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session;
+
+import net.sf.cindy.util.ElapsedTime;
+import net.sf.cindy.util.Histogram;
+
+/**
+ * Latency histograms of a session, in microseconds. Enabled by
+ * -Dnet.sf.cindy.session.latency=true, the values are also recorded to the
+ * aggregate latency of all sessions.
+ * <ul>
+ * <li>WRITE: from send to the packet written to the channel</li>
+ * <li>SENT: from send to the packetSent event</li>
+ * <li>DISPATCH: from read to the packetReceived event executed by the
+ * dispatcher</li>
+ * <li>HANDLE: from read to the decoded object passed to the handler</li>
+ * </ul>
+ * Receive latencies are recorded for tcp, udp and pipe sessions, the packets
+ * replaced by application filters, such as SSLFilter, are not recorded.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class SessionLatency {
+
+    public static final int WRITE = 0;
+    public static final int SENT = 1;
+    public static final int DISPATCH = 2;
+    public static final int HANDLE = 3;
+
+    /**
+     * Count of latency types.
+     */
+    public static final int TYPE_COUNT = 4;
+
+    private static final String[] NAMES = { "Write", "Sent", "Dispatch",
+            "Handle" };
+
+    // 60 seconds
+    private static final long HIGHEST_LATENCY = 60L * 1000 * 1000;
+
+    private static final SessionLatency AGGREGATE = new SessionLatency(null);
+
+    /**
+     * Get the aggregate latency of all sessions.
+     * 
+     * @return aggregate latency
+     */
+    public static SessionLatency getAggregate() {
+        return AGGREGATE;
+    }
+
+    /**
+     * Get the name of the latency type.
+     * 
+     * @param type
+     *            latency type
+     * @return name
+     */
+    public static String getName(int type) {
+        return NAMES[type];
+    }
+
+    /**
+     * Get the current time used by the timestamps.
+     * 
+     * @return current time in microseconds
+     */
+    public static long currentTime() {
+        return ElapsedTime.currentTimeMicros();
+    }
+
+    private final SessionLatency parent;
+    private final Histogram[] histograms = new Histogram[TYPE_COUNT];
+
+    private SessionLatency(SessionLatency parent) {
+        this.parent = parent;
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new Histogram(HIGHEST_LATENCY, 5);
+    }
+
+    public SessionLatency() {
+        this(AGGREGATE);
+    }
+
+    /**
+     * Record the latency from the start time to now.
+     * 
+     * @param type
+     *            latency type
+     * @param startTime
+     *            start time, from <code>currentTime</code>
+     */
+    public void record(int type, long startTime) {
+        recordLatency(type, currentTime() - startTime);
+    }
+
+    /**
+     * Record the latency.
+     * 
+     * @param type
+     *            latency type
+     * @param latency
+     *            latency in microseconds
+     */
+    public void recordLatency(int type, long latency) {
+        histograms[type].record(latency);
+        if (parent != null)
+            parent.recordLatency(type, latency);
+    }
+
+    /**
+     * Get the latency at the percentile, in microseconds.
+     * 
+     * @param type
+     *            latency type
+     * @param percentile
+     *            percentile, such as 50, 99 or 99.9
+     * @return latency
+     */
+    public long getLatency(int type, double percentile) {
+        return histograms[type].getPercentile(percentile);
+    }
+
+    /**
+     * Get the count of recorded latencies.
+     * 
+     * @param type
+     *            latency type
+     * @return count
+     */
+    public long getCount(int type) {
+        return histograms[type].getCount();
+    }
+
+    /**
+     * Reset the latencies of this session, the aggregate latency is not
+     * changed.
+     */
+    public void reset() {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i].reset();
+    }
+
+}
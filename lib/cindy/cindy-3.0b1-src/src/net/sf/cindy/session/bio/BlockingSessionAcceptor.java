@@ -25,7 +25,6 @@ import java.nio.channels.SocketChannel;
 import net.sf.cindy.Session;
 import net.sf.cindy.SessionType;
 import net.sf.cindy.session.AbstractSessionAcceptor;
-import net.sf.cindy.session.nio.SocketChannelSession;
 import net.sf.cindy.util.ChannelUtils;
 import net.sf.cindy.util.LogThreadGroup;
 import net.sf.cindy.util.NamedThreadFactory;
@@ -33,7 +32,10 @@ import edu.emory.mathcs.backport.java.util.concurrent.ThreadFactory;
 import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Blocking session acceptor.
+ * Blocking session acceptor. Accepted sockets are served by
+ * <code>BlockingSocketSession</code>, each session reads and writes its
+ * channel in a virtual thread, override <code>newSession</code> to serve them
+ * by other sessions.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
@@ -121,7 +123,7 @@ public class BlockingSessionAcceptor extends AbstractSessionAcceptor {
     }
 
     protected Session newSession(SocketChannel sc) {
-        SocketChannelSession session = new SocketChannelSession();
+        BlockingSocketSession session = new BlockingSocketSession();
         session.setChannel(sc);
         return session;
     }
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.bio;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.SessionFilter;
+import net.sf.cindy.SessionFilterAdapter;
+import net.sf.cindy.SessionFilterChain;
+import net.sf.cindy.SessionType;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.packet.FileRegionPacket;
+import net.sf.cindy.packet.TimestampPacket;
+import net.sf.cindy.session.AbstractSession;
+import net.sf.cindy.session.DefaultFuture;
+import net.sf.cindy.session.SessionException;
+import net.sf.cindy.session.SessionLatency;
+import net.sf.cindy.util.ChannelUtils;
+import net.sf.cindy.util.Configuration;
+import net.sf.cindy.util.LogThreadGroup;
+import net.sf.cindy.util.ReadSizePredictor;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Blocking socket session. Each session has a reader thread, a virtual thread
+ * on Java 21 or higher, which connects, then reads the channel in blocking
+ * mode and fires the events directly. Packets are written to the channel in
+ * the sending thread, the send future is completed when the whole packet has
+ * been written. There is no selector, no send queue and no dispatcher hop.
+ * <p>
+ * The sent events are fired in the sending thread, the other events are fired
+ * in the reader thread. The send priority is ignored, the session is always
+ * writable since a slow peer blocks the sending thread. Session timeout is
+ * fired when no data received in the timeout.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class BlockingSocketSession extends AbstractSession {
+
+    private static final ThreadGroup THREAD_GROUP = new ThreadGroup(
+            LogThreadGroup.CINDY_THREAD_GROUP, "BlockingSocketSession");
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    /**
+     * Thread.startVirtualThread(Runnable), null if not supported.
+     */
+    private static final Method START_VIRTUAL_THREAD;
+
+    static {
+        Method method = null;
+        try {
+            method = Thread.class.getMethod("startVirtualThread",
+                    new Class[] { Runnable.class });
+        } catch (Exception e) {
+        }
+        START_VIRTUAL_THREAD = method;
+    }
+
+    private static final boolean ADAPTIVE_READ = Configuration
+            .isAdaptiveRead();
+
+    private final Object writeLock = new Object();
+
+    private SocketChannel channel;
+    private SocketAddress address;
+
+    private volatile boolean started;
+    private DefaultFuture startFuture;
+    private DefaultFuture closeFuture;
+
+    public SessionType getSessionType() {
+        return SessionType.TCP;
+    }
+
+    public SocketAddress getLocalAddress() {
+        if (isStarted())
+            return channel.socket().getLocalSocketAddress();
+        return super.getLocalAddress();
+    }
+
+    public SocketAddress getRemoteAddress() {
+        if (isStarted())
+            return address;
+        return super.getRemoteAddress();
+    }
+
+    /**
+     * Set the socket channel which the session will used.
+     * 
+     * @param channel
+     *            the scoket channel
+     * @throws IllegalStateException
+     */
+    public synchronized void setChannel(SocketChannel channel) {
+        if (startFuture != null)
+            throw new IllegalStateException(
+                    "can't set socket channel after session started");
+        this.channel = channel;
+    }
+
+    /**
+     * Get the socket channel which the session will connected to.
+     * 
+     * @return the scoket channel
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public Socket getSocket() {
+        SocketChannel sc = channel;
+        return sc == null ? null : sc.socket();
+    }
+
+    /**
+     * Whether the reader threads are virtual threads.
+     * 
+     * @return is virtual thread supported
+     */
+    public static boolean isVirtualThreadSupported() {
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    /**
+     * Events are fired in the reader thread or the sending thread.
+     */
+    protected SessionFilter getDispatchFilter() {
+        return null;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    public synchronized Future start() {
+        if (closeFuture != null && !closeFuture.isCompleted())
+            return new DefaultFuture(this, false);
+        closeFuture = null; // then call close will close
+
+        if (startFuture == null) {
+            try {
+                doStart();
+            } catch (IOException e) {
+                dispatchException(e);
+                return new DefaultFuture(this, false);
+            }
+            startFuture = new DefaultFuture(this);
+            startThread(new Reader(channel, startFuture));
+        }
+        return startFuture;
+    }
+
+    private void doStart() throws IOException {
+        if (getRemoteAddress() == null && channel == null)
+            throw new IOException(
+                    "must specify remote address or socket channel before start");
+        try {
+            if (channel == null) {
+                channel = SocketChannel.open();
+                Socket socket = channel.socket();
+
+                int recvBufferSize = Configuration.getRecvBufferSize();
+                if (recvBufferSize > 0)
+                    socket.setReceiveBufferSize(recvBufferSize);
+
+                int sendBufferSize = Configuration.getSendBufferSize();
+                if (sendBufferSize > 0)
+                    socket.setSendBufferSize(sendBufferSize);
+
+                socket.setReuseAddress(Configuration.isReuseSessionAddress());
+                socket.setTcpNoDelay(Configuration.isTcpNoDelay());
+
+                int soLinger = Configuration.getSoLinger();
+                socket.setSoLinger(soLinger >= 0, soLinger);
+
+                if (getLocalAddress() != null)
+                    socket.bind(getLocalAddress());
+            }
+            channel.configureBlocking(true);
+        } catch (IOException e) {
+            ChannelUtils.close(channel);
+            channel = null;
+            throw e;
+        }
+    }
+
+    private static void startThread(Runnable runnable) {
+        if (START_VIRTUAL_THREAD != null) {
+            try {
+                START_VIRTUAL_THREAD.invoke(null, new Object[] { runnable });
+                return;
+            } catch (Exception e) {
+                throw new IllegalStateException(e.toString());
+            }
+        }
+        Thread thread = new Thread(THREAD_GROUP, runnable,
+                "BlockingSocketSession-" + COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized Future close() {
+        if (closeFuture == null) {
+            if (startFuture == null) {
+                closeFuture = new DefaultFuture(this, true);
+                // clear resource even not start
+                ChannelUtils.close(channel);
+                channel = null;
+            } else {
+                closeFuture = new DefaultFuture(this);
+                // wake up the reader thread
+                ChannelUtils.close(channel);
+            }
+        }
+        return closeFuture;
+    }
+
+    /**
+     * Connect if necessary, then read the channel until it's closed.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class Reader implements Runnable {
+
+        private final SocketChannel channel;
+        private final DefaultFuture startFuture;
+
+        public Reader(SocketChannel channel, DefaultFuture startFuture) {
+            this.channel = channel;
+            this.startFuture = startFuture;
+        }
+
+        public void run() {
+            try {
+                if (!channel.isConnected())
+                    channel.connect(BlockingSocketSession.super
+                            .getRemoteAddress());
+                address = channel.socket().getRemoteSocketAddress();
+                started = true;
+                synchronized (startFuture) {
+                    if (!startFuture.isCompleted())
+                        startFuture.setSucceeded(true);
+                }
+                getSessionFilterChain(false).sessionStarted();
+                read();
+            } catch (ClosedChannelException cce) {
+            } catch (ConnectException ce) {
+            } catch (Throwable e) {
+                dispatchException(new SessionException(e));
+            } finally {
+                stop();
+            }
+        }
+
+        private void read() throws IOException {
+            ReadSizePredictor predictor = null;
+            if (ADAPTIVE_READ) {
+                int min = Math.max(1, Configuration.getMinReadPacketSize());
+                int max = Math.max(min, Configuration.getMaxReadPacketSize());
+                int initial = Math.min(max, Math.max(min, getReadPacketSize()));
+                predictor = new ReadSizePredictor(min, initial, max);
+            }
+            Socket socket = channel.socket();
+            ReadableByteChannel timedChannel = null;
+
+            while (true) {
+                int size = predictor == null ? getReadPacketSize() : predictor
+                        .getNextReadSize();
+                int timeout = getSessionTimeout();
+                ReadableByteChannel in = channel;
+                if (timeout > 0) {
+                    // blocking channel read ignores SO_TIMEOUT, the socket
+                    // stream does not
+                    if (timedChannel == null)
+                        timedChannel = Channels.newChannel(socket
+                                .getInputStream());
+                    if (socket.getSoTimeout() != timeout)
+                        socket.setSoTimeout(timeout);
+                    in = timedChannel;
+                }
+
+                Buffer buffer = BufferFactory.allocate(size);
+                int n = 0;
+                try {
+                    n = buffer.read(in);
+                } catch (SocketTimeoutException e) {
+                    buffer.release();
+                    getSessionFilterChain(false).sessionTimeout();
+                    continue;
+                } catch (IOException e) {
+                    buffer.release();
+                    if (!channel.isOpen())
+                        throw new ClosedChannelException();
+                    throw e;
+                }
+                if (n < 0) { // connection closed
+                    buffer.release();
+                    return;
+                }
+                if (predictor != null)
+                    predictor.record(n);
+                if (n == 0) {
+                    buffer.release();
+                    continue;
+                }
+                buffer.flip();
+                if (getSessionLatency() != null)
+                    getSessionFilterChain(false).packetReceived(
+                            new TimestampPacket(buffer, address,
+                                    SessionLatency.currentTime()));
+                else
+                    getSessionFilterChain(false).packetReceived(
+                            new DefaultPacket(buffer, address));
+            }
+        }
+
+        private void stop() {
+            DefaultFuture closeFuture = null;
+            synchronized (BlockingSocketSession.this) {
+                started = false;
+                ChannelUtils.close(channel);
+                if (BlockingSocketSession.this.channel == channel)
+                    BlockingSocketSession.this.channel = null;
+                address = null;
+                if (BlockingSocketSession.this.startFuture == startFuture)
+                    BlockingSocketSession.this.startFuture = null;
+                closeFuture = BlockingSocketSession.this.closeFuture;
+            }
+            synchronized (startFuture) {
+                if (!startFuture.isCompleted())
+                    startFuture.setSucceeded(false);
+            }
+            if (closeFuture != null && !closeFuture.isCompleted())
+                closeFuture.setSucceeded(true);
+            getSessionFilterChain(false).sessionClosed();
+        }
+
+    }
+
+    private static boolean isEmpty(Packet packet) {
+        // do not read file region content
+        return packet == null
+                || (!(packet instanceof FileRegionPacket) && packet
+                        .getContent() == null);
+    }
+
+    protected Future send(final Object obj, Packet packet, int priority) {
+        if (isEmpty(packet) || !isStarted())
+            return new DefaultFuture(this, false);
+        final DefaultFuture future = new DefaultFuture(this);
+        getSessionFilterChain(new SessionFilterAdapter() {
+
+            public void packetSend(SessionFilterChain filterChain, Packet packet)
+                    throws Exception {
+                write(obj, packet, future);
+            }
+
+        }, true).packetSend(packet);
+        return future;
+    }
+
+    /**
+     * Write the whole packet in the current thread, then fire the sent
+     * events.
+     */
+    private void write(Object obj, Packet packet, DefaultFuture future) {
+        if (isEmpty(packet)) {
+            future.setSucceeded(false);
+            return;
+        }
+        boolean succeeded = false;
+        synchronized (writeLock) {
+            SocketChannel channel = this.channel;
+            if (!isStarted() || channel == null) {
+                future.setSucceeded(false);
+                return;
+            }
+            try {
+                if (packet instanceof FileRegionPacket) {
+                    FileRegionPacket region = (FileRegionPacket) packet;
+                    while (region.hasRemaining())
+                        region.transferTo(channel, Long.MAX_VALUE);
+                } else {
+                    Buffer buffer = packet.getContent();
+                    int position = buffer.position();
+                    int limit = buffer.limit();
+                    try {
+                        while (buffer.hasRemaining())
+                            buffer.write(channel);
+                    } finally {
+                        buffer.limit(limit);
+                        buffer.position(position);
+                    }
+                    buffer.release();
+                }
+                succeeded = true;
+            } catch (ClosedChannelException cce) {
+            } catch (Throwable e) {
+                if (channel.isOpen())
+                    dispatchException(new SessionException(e));
+            }
+        }
+        future.setSucceeded(succeeded);
+        if (succeeded) {
+            getSessionFilterChain(true).packetSent(packet);
+            if (obj != null)
+                getSessionFilterChain(true).objectSent(obj);
+        } else
+            close();
+    }
+
+}
@@ -17,8 +17,6 @@ package net.sf.cindy.session.dispatcher;
 
 import net.sf.cindy.Session;
 import net.sf.cindy.util.LogThreadGroup;
-import edu.emory.mathcs.backport.java.util.LinkedList;
-import edu.emory.mathcs.backport.java.util.Queue;
 
 /**
  * Direct dispatcher implementation, do not support block operation such as
@@ -31,29 +29,64 @@ public class DirectDispatcher implements Dispatcher {
 
     private final ThreadLocal local = new ThreadLocal();
 
+    /**
+     * Array based event queue, do not allocate node for each event.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class EventQueue {
+
+        private Runnable[] events = new Runnable[16];
+        private int head;
+        private int size;
+
+        private void add(Runnable event) {
+            if (size == events.length) {
+                Runnable[] newEvents = new Runnable[size * 2];
+                for (int i = 0; i < size; i++)
+                    newEvents[i] = events[(head + i) % size];
+                events = newEvents;
+                head = 0;
+            }
+            events[(head + size++) % events.length] = event;
+        }
+
+        private Runnable peek() {
+            return size == 0 ? null : events[head];
+        }
+
+        private void poll() {
+            events[head] = null;
+            head = (head + 1) % events.length;
+            size--;
+        }
+
+    }
+
     public void block() {
         if (LogThreadGroup.CINDY_THREAD_GROUP.parentOf(Thread.currentThread()
                 .getThreadGroup()))// can't block kernel thread
             throw new IllegalStateException("can't block kernel thread");
     }
 
-    private Queue getQueue() {
-        Queue queue = (Queue) local.get();
+    private EventQueue getQueue() {
+        EventQueue queue = (EventQueue) local.get();
         if (queue == null) {
-            queue = new LinkedList();
+            queue = new EventQueue();
             local.set(queue);
         }
         return queue;
     }
 
     public void dispatch(Session session, Runnable event) {
-        Queue queue = getQueue();
+        EventQueue queue = getQueue();
         queue.add(event); // enqueue
 
-        if (queue.size() == 1) {
+        if (queue.size == 1) {
             event.run();
             queue.poll(); // dequeue current runnable
-            for (Runnable task = null; (task = (Runnable) queue.peek()) != null; queue
+            for (Runnable task = null; (task = queue.peek()) != null; queue
                     .poll())
                 task.run();
         }
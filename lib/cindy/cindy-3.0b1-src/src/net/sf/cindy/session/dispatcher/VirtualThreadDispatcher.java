@@ -0,0 +1,209 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.dispatcher;
+
+import java.lang.reflect.Method;
+
+import net.sf.cindy.Session;
+import net.sf.cindy.util.Configuration;
+import net.sf.cindy.util.ElapsedTime;
+import net.sf.cindy.util.LogThreadGroup;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.emory.mathcs.backport.java.util.Queue;
+import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentLinkedQueue;
+import edu.emory.mathcs.backport.java.util.concurrent.Executor;
+import edu.emory.mathcs.backport.java.util.concurrent.SynchronousQueue;
+import edu.emory.mathcs.backport.java.util.concurrent.ThreadFactory;
+import edu.emory.mathcs.backport.java.util.concurrent.ThreadPoolExecutor;
+import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicBoolean;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Virtual thread dispatcher implementation. Each session has a serial
+ * executor, the events of a session are executed in order by a virtual
+ * thread, so session handler can block freely (such as jdbc call) without
+ * stall other sessions. The block method does nothing.
+ * <p>
+ * Virtual thread requires Java 21 or higher, on older Java a cached thread
+ * pool is used instead.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class VirtualThreadDispatcher implements Dispatcher {
+
+    private static final Log log = LogFactory
+            .getLog(VirtualThreadDispatcher.class);
+
+    private static final ThreadGroup THREAD_GROUP = new ThreadGroup(
+            LogThreadGroup.CINDY_THREAD_GROUP, "VirtualThreadDispatcher");
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private static final String EXECUTOR_KEY = VirtualThreadDispatcher.class
+            .getName()
+            + ".executor";
+
+    /**
+     * Thread.startVirtualThread(Runnable), null if not supported.
+     */
+    private static final Method START_VIRTUAL_THREAD;
+
+    static {
+        Method method = null;
+        try {
+            method = Thread.class.getMethod("startVirtualThread",
+                    new Class[] { Runnable.class });
+        } catch (Exception e) {
+        }
+        START_VIRTUAL_THREAD = method;
+    }
+
+    private final int capacity = Math.max(1, Configuration
+            .getDispatcherCapacity());
+    private final int keepAliveTime = Math.max(0, Configuration
+            .getDispatcherKeepAliveTime());
+
+    private final Executor executor;
+    private final SerialExecutor nullExecutor = new SerialExecutor();
+    private final ElapsedTime elapsedTime = new ElapsedTime();
+
+    public VirtualThreadDispatcher() {
+        if (START_VIRTUAL_THREAD != null)
+            executor = new Executor() {
+
+                public void execute(Runnable command) {
+                    try {
+                        START_VIRTUAL_THREAD.invoke(null,
+                                new Object[] { command });
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e.toString());
+                    }
+                }
+            };
+        else {
+            log.info("virtual thread not supported, use platform thread");
+            executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    keepAliveTime, TimeUnit.MILLISECONDS,
+                    new SynchronousQueue(), new ThreadFactory() {
+
+                        public Thread newThread(Runnable r) {
+                            return new Thread(THREAD_GROUP, r,
+                                    "VirtualThreadDispatcher-"
+                                            + COUNTER.incrementAndGet());
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Whether the events are executed by virtual threads.
+     *
+     * @return is virtual thread supported
+     */
+    public static boolean isVirtualThreadSupported() {
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    /**
+     * Serial executor of a session. A thread is started when the first event
+     * arrives, and exits when all events have been executed.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class SerialExecutor implements Runnable {
+
+        private final Queue events = new ConcurrentLinkedQueue();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private volatile Thread runner;
+
+        private void add(Runnable event) {
+            events.offer(event);
+            if (size.incrementAndGet() > capacity
+                    && Thread.currentThread() != runner)
+                flowControl();
+            if (scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        public void run() {
+            runner = Thread.currentThread();
+            try {
+                for (Runnable event = null; (event = (Runnable) events.poll()) != null;) {
+                    size.decrementAndGet();
+                    try {
+                        event.run();
+                    } catch (Throwable e) { // protect catch
+                        log.error(e, e);
+                    }
+                }
+            } finally {
+                runner = null;
+                scheduled.set(false);
+            }
+            // event may be added before scheduled flag cleared
+            if (!events.isEmpty() && scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        private void flowControl() {
+            if (elapsedTime.getElapsedTime() >= 10000) {
+                elapsedTime.reset();
+                log.warn("dispatcher flow control");
+            }
+            while (size.get() > capacity && scheduled.get()) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+    }
+
+    private SerialExecutor getExecutor(Session session) {
+        if (session == null)
+            return nullExecutor;
+        SerialExecutor executor = (SerialExecutor) session
+                .getAttribute(EXECUTOR_KEY);
+        if (executor == null) {
+            synchronized (session) {
+                executor = (SerialExecutor) session.getAttribute(EXECUTOR_KEY);
+                if (executor == null) {
+                    executor = new SerialExecutor();
+                    session.setAttribute(EXECUTOR_KEY, executor);
+                }
+            }
+        }
+        return executor;
+    }
+
+    public void dispatch(Session session, Runnable event) {
+        getExecutor(session).add(event);
+    }
+
+    public void block() {
+        // each session has its own thread, nothing to do
+    }
+
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.dispatcher;
+
+import net.sf.cindy.Session;
+import net.sf.cindy.util.Configuration;
+import net.sf.cindy.util.ElapsedTime;
+import net.sf.cindy.util.LogThreadGroup;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.emory.mathcs.backport.java.util.Queue;
+import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentLinkedQueue;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicBoolean;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Work stealing dispatcher implementation, support block operation such as
+ * Future.complete.
+ * <p>
+ * Each session has its own event queue (strand) stored in session attributes,
+ * the events of a session are always executed in order and never
+ * concurrently. A strand is executed by its home worker, idle workers steal
+ * strands from busy workers and become their new home, and a strand yields
+ * after executing a batch of events, so hot sessions are spread over the
+ * workers. There is no global lock on the dispatch path.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class WorkStealingDispatcher implements Dispatcher {
+
+    private static final Log log = LogFactory
+            .getLog(WorkStealingDispatcher.class);
+
+    private static final ThreadGroup THREAD_GROUP = new ThreadGroup(
+            LogThreadGroup.CINDY_THREAD_GROUP, "WorkStealingDispatcher");
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    /**
+     * Max events executed before a strand yields to other strands.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Times an idle worker yields before sleep.
+     */
+    private static final int SPIN_COUNT = 16;
+
+    private static final String STRAND_KEY = WorkStealingDispatcher.class
+            .getName()
+            + ".strand";
+
+    private final int capacity = Math.max(1, Configuration
+            .getDispatcherCapacity());
+    private final int keepAliveTime = Math.max(0, Configuration
+            .getDispatcherKeepAliveTime());
+
+    private final Worker[] workers;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Idle worker count, include spare workers.
+     */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Spare workers replace the blocked workers. Copy on write.
+     */
+    private volatile Worker[] spares = new Worker[0];
+
+    /**
+     * Strand of the dispatch without session.
+     */
+    private final Strand nullStrand = new Strand();
+
+    private final Dispatcher dispatcher = new DirectDispatcher();
+    private final ElapsedTime elapsedTime = new ElapsedTime();
+
+    public WorkStealingDispatcher() {
+        this(Configuration.getDispatcherConcurrent());
+    }
+
+    public WorkStealingDispatcher(int concurrent) {
+        workers = new Worker[Math.max(1, concurrent)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(false);
+        }
+    }
+
+    /**
+     * Serial event queue of a session.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class Strand implements Runnable {
+
+        private final Queue events = new ConcurrentLinkedQueue();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private volatile Worker home;
+        private volatile Thread runner;
+
+        private void add(Runnable event) {
+            events.offer(event);
+            if (size.incrementAndGet() > capacity
+                    && Thread.currentThread() != runner)
+                flowControl();
+            if (scheduled.compareAndSet(false, true))
+                schedule(this);
+        }
+
+        public void run() {
+            Thread currentThread = Thread.currentThread();
+            runner = currentThread;
+            try {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    Runnable event = (Runnable) events.poll();
+                    if (event == null)
+                        break;
+                    size.decrementAndGet();
+                    try {
+                        event.run();
+                    } catch (Throwable e) { // protect catch
+                        log.error(e, e);
+                    }
+                    if (runner != currentThread)
+                        return; // blocked, strand have been released
+                }
+            } finally {
+                if (runner == currentThread)
+                    runner = null;
+            }
+            release();
+        }
+
+        /**
+         * Release the strand, re-schedule it if there are more events.
+         */
+        private void release() {
+            scheduled.set(false);
+            if (!events.isEmpty() && scheduled.compareAndSet(false, true))
+                schedule(this);
+        }
+
+        private void flowControl() {
+            if (elapsedTime.getElapsedTime() >= 10000) {
+                elapsedTime.reset();
+                log.warn("dispatcher flow control");
+            }
+            while (size.get() > capacity && scheduled.get()) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Dispatch thread.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class WorkerThread extends Thread {
+
+        private Strand strand; // current strand
+
+        public WorkerThread(Runnable worker) {
+            super(THREAD_GROUP, worker, "WorkStealingDispatcher-"
+                    + COUNTER.incrementAndGet());
+        }
+
+    }
+
+    /**
+     * Dispatch thread slot. The thread exits when idle for keep alive time,
+     * and will be restarted when new strand arrives.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class Worker implements Runnable {
+
+        private final Queue strands = new ConcurrentLinkedQueue();
+        private final boolean spare;
+
+        private volatile boolean running; // changed with lock
+        private volatile boolean sleeping;
+
+        public Worker(boolean spare) {
+            this.spare = spare;
+        }
+
+        private void execute(Strand strand) {
+            strands.offer(strand);
+            if (!running) {
+                synchronized (this) {
+                    if (!running) {
+                        running = true;
+                        new WorkerThread(this).start();
+                        return;
+                    }
+                }
+            }
+            // home worker is busy and strands are piling up, let an idle
+            // worker steal
+            if (!wakeup(this) && idleCount.get() > 0
+                    && strands.peek() != strand)
+                wakeupAny();
+        }
+
+        private Strand getStrand() {
+            Strand strand = (Strand) strands.poll();
+            if (strand == null)
+                strand = steal(this);
+            return strand;
+        }
+
+        /**
+         * Wait for new strand.
+         *
+         * @return false if the worker should exit
+         */
+        private boolean await() {
+            // yield a while before sleep, avoid frequently park and unpark
+            for (int i = 0; i < SPIN_COUNT; i++) {
+                Thread.yield();
+                if (!isEmpty())
+                    return true;
+            }
+
+            idleCount.incrementAndGet();
+            try {
+                sleeping = true;
+                if (!isEmpty()) { // re-check after sleeping flag set
+                    sleeping = false;
+                    return true;
+                }
+                synchronized (this) {
+                    if (sleeping) {
+                        try {
+                            wait(keepAliveTime);
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                    if (!sleeping)
+                        return true;
+                    // timeout
+                    sleeping = false;
+                    running = false;
+                }
+                // strand may be offered before running changed
+                if (!strands.isEmpty()) {
+                    synchronized (this) {
+                        if (!running) {
+                            running = true;
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            } finally {
+                idleCount.decrementAndGet();
+            }
+        }
+
+        public void run() {
+            WorkerThread thread = (WorkerThread) Thread.currentThread();
+            try {
+                while (true) {
+                    Strand strand = getStrand();
+                    if (strand == null) {
+                        if (!await())
+                            break;
+                        continue;
+                    }
+                    thread.strand = strand;
+                    strand.run();
+                    thread.strand = null;
+                }
+            } finally {
+                if (spare)
+                    removeSpare(this);
+            }
+        }
+    }
+
+    private boolean isEmpty() {
+        for (int i = 0; i < workers.length; i++) {
+            if (!workers[i].strands.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    private Strand steal(Worker thief) {
+        int start = counter.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < workers.length; i++) {
+            Worker victim = workers[(start + i) % workers.length];
+            if (victim == thief)
+                continue;
+            Strand strand = (Strand) victim.strands.poll();
+            if (strand != null) {
+                if (!thief.spare) // rebalance, migrate to the idle worker
+                    strand.home = thief;
+                return strand;
+            }
+        }
+        return null;
+    }
+
+    private boolean wakeup(Worker worker) {
+        if (!worker.sleeping)
+            return false;
+        synchronized (worker) {
+            if (!worker.sleeping)
+                return false;
+            worker.sleeping = false;
+            worker.notify();
+            return true;
+        }
+    }
+
+    private void wakeupAny() {
+        for (int i = 0; i < workers.length; i++) {
+            if (wakeup(workers[i]))
+                return;
+        }
+        Worker[] spares = this.spares;
+        for (int i = 0; i < spares.length; i++) {
+            if (wakeup(spares[i]))
+                return;
+        }
+    }
+
+    private void schedule(Strand strand) {
+        Worker home = strand.home;
+        if (home == null) {
+            home = workers[(counter.getAndIncrement() & Integer.MAX_VALUE)
+                    % workers.length];
+            strand.home = home;
+        }
+        home.execute(strand);
+    }
+
+    private synchronized void addSpare(Worker worker) {
+        Worker[] newSpares = new Worker[spares.length + 1];
+        System.arraycopy(spares, 0, newSpares, 0, spares.length);
+        newSpares[spares.length] = worker;
+        spares = newSpares;
+    }
+
+    private synchronized void removeSpare(Worker worker) {
+        for (int i = 0; i < spares.length; i++) {
+            if (spares[i] == worker) {
+                Worker[] newSpares = new Worker[spares.length - 1];
+                System.arraycopy(spares, 0, newSpares, 0, i);
+                System.arraycopy(spares, i + 1, newSpares, i,
+                        newSpares.length - i);
+                spares = newSpares;
+                return;
+            }
+        }
+    }
+
+    private Strand getStrand(Session session) {
+        if (session == null)
+            return nullStrand;
+        Strand strand = (Strand) session.getAttribute(STRAND_KEY);
+        if (strand == null) {
+            synchronized (session) {
+                strand = (Strand) session.getAttribute(STRAND_KEY);
+                if (strand == null) {
+                    strand = new Strand();
+                    session.setAttribute(STRAND_KEY, strand);
+                }
+            }
+        }
+        return strand;
+    }
+
+    public void dispatch(Session session, Runnable event) {
+        getStrand(session).add(event);
+    }
+
+    public void block() {
+        Thread currentThread = Thread.currentThread();
+        if (!(currentThread instanceof WorkerThread)) {
+            dispatcher.block();
+            return;
+        }
+
+        Strand strand = ((WorkerThread) currentThread).strand;
+        if (strand == null || strand.runner != currentThread)
+            return; // have been released
+
+        // release current strand, the following events of the session can be
+        // executed by other workers
+        strand.runner = null;
+        strand.release();
+
+        // start a spare worker to keep concurrent level, it will exit when
+        // idle for keep alive time
+        Worker spare = new Worker(true);
+        addSpare(spare);
+        synchronized (spare) {
+            spare.running = true;
+        }
+        new WorkerThread(spare).start();
+    }
+
+}
@@ -33,6 +33,9 @@ import net.sf.cindy.Session;
 import net.sf.cindy.SessionFilter;
 import net.sf.cindy.SessionHandler;
 import net.sf.cindy.filter.StatisticFilter;
+import net.sf.cindy.session.AbstractSession;
+import net.sf.cindy.session.SessionLatency;
+import net.sf.cindy.session.nio.AbstractChannelSession;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -157,14 +160,24 @@ public class JmxSession extends StandardMBean implements SessionMBean {
                 .setSessionHandler((SessionHandler) newInstance(handlerClassName));
     }
 
+    public int getReadBufferSize() {
+        if (session instanceof AbstractChannelSession)
+            return ((AbstractChannelSession) session).getReadBufferSize();
+        return -1;
+    }
+
     private static final String[] STAT_NAMES = new String[] { "ReceivedBytes",
             "SentBytes", "ElapsedTime", "AvgReceiveSpeed", "AvgSendSpeed",
-            "ReceiveSpeed", "SendSpeed" };
+            "ReceiveSpeed", "SendSpeed", "ReceivedPackets",
+            "AvgReadBufferSize", "SentPackets", "ReceivedPacketSizeP50",
+            "ReceivedPacketSizeP99", "SentPacketSizeP50", "SentPacketSizeP99" };
     private static final String[] STAT_DESCS = STAT_NAMES;
     private static final OpenType[] STAT_TYPES = new OpenType[] {
             SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
             SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE,
-            SimpleType.DOUBLE };
+            SimpleType.DOUBLE, SimpleType.LONG, SimpleType.INTEGER,
+            SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+            SimpleType.LONG, SimpleType.LONG };
 
     private static final CompositeType STAT_COMPOSITE_TYPE;
 
@@ -193,7 +206,14 @@ public class JmxSession extends StandardMBean implements SessionMBean {
                                     new Double(stat.getAvgReceiveSpeed()),
                                     new Double(stat.getAvgSendSpeed()),
                                     new Double(stat.getReceiveSpeed()),
-                                    new Double(stat.getSendSpeed()) });
+                                    new Double(stat.getSendSpeed()),
+                                    new Long(stat.getReceivedPackets()),
+                                    new Integer(stat.getAvgReadBufferSize()),
+                                    new Long(stat.getSentPackets()),
+                                    new Long(stat.getReceivedPacketSize(50)),
+                                    new Long(stat.getReceivedPacketSize(99)),
+                                    new Long(stat.getSentPacketSize(50)),
+                                    new Long(stat.getSentPacketSize(99)) });
                 } catch (OpenDataException e) {
                     log.error(e, e);
                 }
@@ -202,4 +222,63 @@ public class JmxSession extends StandardMBean implements SessionMBean {
         return null;
     }
 
+    private static final double[] LATENCY_PERCENTILES = { 50, 99, 99.9 };
+    private static final String[] LATENCY_SUFFIXES = { "P50", "P99", "P999" };
+    private static final String[] LATENCY_NAMES = new String[SessionLatency.TYPE_COUNT
+            * (LATENCY_PERCENTILES.length + 1)];
+    private static final OpenType[] LATENCY_TYPES = new OpenType[LATENCY_NAMES.length];
+    private static final CompositeType LATENCY_COMPOSITE_TYPE;
+
+    static {
+        int n = 0;
+        for (int type = 0; type < SessionLatency.TYPE_COUNT; type++) {
+            String name = SessionLatency.getName(type);
+            LATENCY_NAMES[n++] = name + "Count";
+            for (int i = 0; i < LATENCY_SUFFIXES.length; i++)
+                LATENCY_NAMES[n++] = name + LATENCY_SUFFIXES[i];
+        }
+        for (int i = 0; i < LATENCY_TYPES.length; i++)
+            LATENCY_TYPES[i] = SimpleType.LONG;
+
+        CompositeType type = null;
+        try {
+            type = new CompositeType("cindy.latency", "latency in microseconds",
+                    LATENCY_NAMES, LATENCY_NAMES, LATENCY_TYPES);
+        } catch (OpenDataException e) {
+            log.error(e, e);
+        }
+        LATENCY_COMPOSITE_TYPE = type;
+    }
+
+    private static CompositeData toCompositeData(SessionLatency latency) {
+        if (latency == null)
+            return null;
+        Object[] values = new Object[LATENCY_NAMES.length];
+        int n = 0;
+        for (int type = 0; type < SessionLatency.TYPE_COUNT; type++) {
+            values[n++] = new Long(latency.getCount(type));
+            for (int i = 0; i < LATENCY_PERCENTILES.length; i++)
+                values[n++] = new Long(latency.getLatency(type,
+                        LATENCY_PERCENTILES[i]));
+        }
+        try {
+            return new CompositeDataSupport(LATENCY_COMPOSITE_TYPE,
+                    LATENCY_NAMES, values);
+        } catch (OpenDataException e) {
+            log.error(e, e);
+            return null;
+        }
+    }
+
+    public CompositeData getLatency() {
+        if (session instanceof AbstractSession)
+            return toCompositeData(((AbstractSession) session)
+                    .getSessionLatency());
+        return null;
+    }
+
+    public CompositeData getAggregateLatency() {
+        return toCompositeData(SessionLatency.getAggregate());
+    }
+
 }
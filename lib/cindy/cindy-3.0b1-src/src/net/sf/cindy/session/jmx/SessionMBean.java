@@ -70,5 +70,11 @@ public interface SessionMBean {
 
     void setSessionHandler(String handlerClassName);
 
+    int getReadBufferSize();
+
     CompositeData getStatistic();
+
+    CompositeData getLatency();
+
+    CompositeData getAggregateLatency();
 }
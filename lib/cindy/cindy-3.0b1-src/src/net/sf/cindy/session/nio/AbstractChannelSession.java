@@ -16,26 +16,47 @@
 package net.sf.cindy.session.nio;
 
 import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 
 import net.sf.cindy.Buffer;
 import net.sf.cindy.Future;
+import net.sf.cindy.FutureListener;
 import net.sf.cindy.Packet;
 import net.sf.cindy.Session;
 import net.sf.cindy.SessionFilterAdapter;
 import net.sf.cindy.SessionFilterChain;
-import net.sf.cindy.packet.PriorityPacket;
+import net.sf.cindy.SessionType;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DatagramBatchPacket;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.packet.FileRegionPacket;
+import net.sf.cindy.packet.TimestampPacket;
 import net.sf.cindy.session.AbstractSession;
 import net.sf.cindy.session.DefaultFuture;
 import net.sf.cindy.session.SessionException;
+import net.sf.cindy.session.SessionLatency;
 import net.sf.cindy.session.dispatcher.DispatcherFactory;
 import net.sf.cindy.session.nio.reactor.Reactor;
 import net.sf.cindy.session.nio.reactor.ReactorFactory;
 import net.sf.cindy.session.nio.reactor.ReactorHandler;
 import net.sf.cindy.util.ChannelUtils;
-import edu.emory.mathcs.backport.java.util.PriorityQueue;
-import edu.emory.mathcs.backport.java.util.Queue;
+import net.sf.cindy.util.Configuration;
+import net.sf.cindy.util.LogThreadGroup;
+import net.sf.cindy.util.NamedThreadFactory;
+import net.sf.cindy.util.ReadSizePredictor;
+import edu.emory.mathcs.backport.java.util.concurrent.ScheduledExecutorService;
+import edu.emory.mathcs.backport.java.util.concurrent.ScheduledThreadPoolExecutor;
+import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Abstract selectable channel session.
@@ -45,7 +66,7 @@ import edu.emory.mathcs.backport.java.util.Queue;
  */
 public abstract class AbstractChannelSession extends AbstractSession {
 
-    private final Reactor reactor = ReactorFactory.getReactor();
+    private volatile Reactor reactor = ReactorFactory.getReactor();
     private final ReactorHandler handler = getReactorHandler();
 
     /**
@@ -60,18 +81,51 @@ public abstract class AbstractChannelSession extends AbstractSession {
     }
 
     /**
-     * Comparable packet.
+     * Set the reactor which the session will be registered on, the default is
+     * the reactor of <code>ReactorFactory</code>.
+     * 
+     * @param reactor
+     *            reactor
+     * @throws IllegalStateException
+     */
+    public void setReactor(Reactor reactor) {
+        if (reactor == null)
+            throw new NullPointerException();
+        if (isStarted())
+            throw new IllegalStateException(
+                    "can't set reactor after session started");
+        this.reactor = reactor;
+    }
+
+    /**
+     * Packet in the send queue with its send future. The priority selects the
+     * lane of the send queue, packets are not compared.
      * 
      * @author <a href="chenrui@gmail.com">Roger Chen</a>
      * @version $id$
      */
-    private static class FuturePacket extends PriorityPacket {
+    private static class FuturePacket extends SendQueue.Entry {
 
         private final DefaultFuture future;
         private final Object obj;
 
-        private final int position;
-        private final int limit;
+        private int position;
+        private int limit;
+
+        /**
+         * Bytes counted as pending until the packet written.
+         */
+        private final long size;
+
+        /**
+         * Send time in microseconds, recorded if latency is enabled.
+         */
+        private long timestamp;
+
+        /**
+         * Not null if the packet is sent by transferTo.
+         */
+        private FileRegionPacket region;
 
         public FuturePacket(Object obj, Packet packet, int priority,
                 DefaultFuture future) {
@@ -79,48 +133,596 @@ public abstract class AbstractChannelSession extends AbstractSession {
             this.obj = obj;
             this.future = future;
 
-            Buffer content = packet.getContent();
+            if (packet instanceof FileRegionPacket
+                    && !((FileRegionPacket) packet).isBuffered())
+                region = (FileRegionPacket) packet;
+            else
+                markContent();
+            size = region != null ? region.getCount() - region
+                    .getTransferred() : limit - position;
+        }
+
+        /**
+         * Record the content position and limit, restore them after sent.
+         */
+        private void markContent() {
+            Buffer content = getContent();
             position = content.position();
             limit = content.limit();
         }
 
     }
 
-    private final Queue sendQueue = new PriorityQueue();
-    private volatile FuturePacket currentSendPacket = null;
+    /**
+     * Max packets written by a gathering write.
+     */
+    private static final int MAX_GATHERING_PACKETS = 64;
+
+    private static final int WRITE_PACKET_SIZE = Configuration
+            .getWritePacketSize();
+
+    private final boolean gatheringWrite = Configuration.isGatheringWrite();
+
+    private static final boolean ADAPTIVE_READ = Configuration
+            .isAdaptiveRead();
+
+    /**
+     * Max reads in a readable event, let other sessions of the reactor have a
+     * chance to read.
+     */
+    private static final int MAX_READS_PER_LOOP = Math.max(1, Configuration
+            .getMaxReadsPerLoop());
+
+    private volatile ReadSizePredictor readSizePredictor;
+
+    /**
+     * Get the buffer size of the next read. If adaptive read is enabled, the
+     * size is predicted by the recent read sizes, otherwise it's the read
+     * packet size.
+     * 
+     * @return read buffer size
+     */
+    public int getReadBufferSize() {
+        ReadSizePredictor predictor = readSizePredictor;
+        return predictor == null ? getReadPacketSize() : predictor
+                .getNextReadSize();
+    }
+
+    private ReadSizePredictor getReadSizePredictor() {
+        if (readSizePredictor == null) {
+            int min = Math.max(1, Configuration.getMinReadPacketSize());
+            int max = Math.max(min, Configuration.getMaxReadPacketSize());
+            int initial = Math.min(max, Math.max(min, getReadPacketSize()));
+            readSizePredictor = new ReadSizePredictor(min, initial, max);
+        }
+        return readSizePredictor;
+    }
+
+    private int writeBufferHighWatermark = Configuration
+            .getWriteBufferHighWatermark();
+    private int writeBufferLowWatermark = Configuration
+            .getWriteBufferLowWatermark();
+    private int writeBufferLimit = Configuration.getWriteBufferLimit();
+    private boolean closeOnWriteBufferLimit = Configuration
+            .isCloseOnWriteBufferLimit();
+
+    /**
+     * Bytes of queued and writing packets.
+     */
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    /**
+     * Changed with sendQueue lock, the lock is only taken when the pending
+     * bytes cross the watermarks.
+     */
+    private volatile boolean writable = true;
+
+    public int getWriteBufferHighWatermark() {
+        return writeBufferHighWatermark;
+    }
+
+    /**
+     * Set the high watermark of the pending send bytes, the session becomes
+     * not writable when exceeded.
+     * 
+     * @param size
+     *            high watermark
+     */
+    public void setWriteBufferHighWatermark(int size) {
+        if (size < writeBufferLowWatermark)
+            throw new IllegalArgumentException(
+                    "high watermark less than low watermark");
+        this.writeBufferHighWatermark = size;
+    }
+
+    public int getWriteBufferLowWatermark() {
+        return writeBufferLowWatermark;
+    }
+
+    /**
+     * Set the low watermark of the pending send bytes, the session becomes
+     * writable again when dropped below.
+     * 
+     * @param size
+     *            low watermark
+     */
+    public void setWriteBufferLowWatermark(int size) {
+        if (size < 0 || size > writeBufferHighWatermark)
+            throw new IllegalArgumentException(
+                    "low watermark greater than high watermark");
+        this.writeBufferLowWatermark = size;
+    }
+
+    public int getWriteBufferLimit() {
+        return writeBufferLimit;
+    }
+
+    /**
+     * Set the hard limit of the pending send bytes, the send exceeds the limit
+     * fails. 0 means no limit.
+     * 
+     * @param size
+     *            hard limit
+     */
+    public void setWriteBufferLimit(int size) {
+        this.writeBufferLimit = Math.max(0, size);
+    }
+
+    public boolean isCloseOnWriteBufferLimit() {
+        return closeOnWriteBufferLimit;
+    }
+
+    /**
+     * Close the session, rather than only fail the send, when the write
+     * buffer limit exceeded.
+     * 
+     * @param b
+     *            close on limit
+     */
+    public void setCloseOnWriteBufferLimit(boolean b) {
+        this.closeOnWriteBufferLimit = b;
+    }
+
+    /**
+     * Get the bytes of queued and writing packets.
+     * 
+     * @return pending send bytes
+     */
+    public long getPendingWriteBytes() {
+        return pendingBytes.get();
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Update writable by the pending bytes, fire writabilityChanged event if
+     * changed. The pending bytes may be changed concurrently, so recheck
+     * after writable changed.
+     */
+    private void updateWritability() {
+        boolean changed = false;
+        synchronized (sendQueue) {
+            while (true) {
+                long pending = pendingBytes.get();
+                if (writable && pending > writeBufferHighWatermark)
+                    writable = false;
+                else if (!writable && pending < writeBufferLowWatermark)
+                    writable = true;
+                else
+                    break;
+                changed = !changed;
+            }
+        }
+        if (changed)
+            getSessionFilterChain(false).writabilityChanged();
+    }
+
+    /**
+     * Fail the packets offered after the session closed.
+     */
+    private void failSendQueue() {
+        synchronized (sendQueue) {
+            if (!isStarted())
+                pollSendQueue();
+        }
+    }
+
+    /**
+     * Poll and fail all packets in send queue, invoked with sendQueue lock.
+     */
+    private void pollSendQueue() {
+        for (FuturePacket packet = null; (packet = (FuturePacket) sendQueue
+                .poll()) != null;) {
+            pendingBytes.addAndGet(-packet.size);
+            packet.future.setSucceeded(false);
+        }
+    }
+
+    /**
+     * Polled only by reactor thread. Also used as the lock of writability
+     * change and send queue clearing.
+     */
+    private final SendQueue sendQueue = new SendQueue();
+
+    /**
+     * Whether the reactor thread will poll the send queue, cleared by reactor
+     * thread when the send queue is empty.
+     */
+    private volatile boolean writeScheduled;
+
+    /**
+     * Packets polled from send queue and not completely written yet, only
+     * accessed by reactor thread.
+     */
+    private final List writingPackets = new ArrayList();
 
     private volatile boolean started = false;
     private DefaultFuture startFuture, closeFuture;
 
-    protected Future send(final Object obj, Packet packet, final int priority) {
-        if (packet == null || packet.getContent() == null || !isStarted())
+    private static boolean isEmpty(Packet packet) {
+        // do not read file region content
+        return packet == null
+                || (!(packet instanceof FileRegionPacket) && packet
+                        .getContent() == null);
+    }
+
+    private final int writeBatchSize = Math.max(1, Configuration
+            .getWriteBatchSize());
+    private int writeBatchWindow = Configuration.getWriteBatchWindow();
+
+    public int getWriteBatchWindow() {
+        return writeBatchWindow;
+    }
+
+    /**
+     * Set the write batch window in microseconds. If greater than 0, small
+     * packets sent out of a write batch are coalesced within the window after
+     * the first one, the write is armed once when the window ends.
+     * 
+     * @param micros
+     *            write batch window in microseconds, 0 means disabled
+     */
+    public void setWriteBatchWindow(int micros) {
+        this.writeBatchWindow = Math.max(0, micros);
+    }
+
+    /**
+     * Write batches begun by current thread, usually only one.
+     */
+    private static final ThreadLocal THREAD_BATCHES = new ThreadLocal();
+
+    private static final ThreadGroup THREAD_GROUP = new ThreadGroup(
+            LogThreadGroup.CINDY_THREAD_GROUP, "WriteBatch");
+
+    /**
+     * Flush the write batch windows, created when first used.
+     */
+    private static ScheduledExecutorService batchFlusher;
+
+    private static synchronized ScheduledExecutorService getBatchFlusher() {
+        if (batchFlusher == null)
+            batchFlusher = new ScheduledThreadPoolExecutor(1,
+                    new NamedThreadFactory(THREAD_GROUP, true, "Flusher"));
+        return batchFlusher;
+    }
+
+    /**
+     * Coalesce the packets sent in the write batch window.
+     */
+    private final WriteBatch windowBatch = new WriteBatch();
+
+    /**
+     * Packets taken out of the write batches, sent in order out of the batch
+     * locks. Guarded by itself.
+     */
+    private final LinkedList batchedSends = new LinkedList();
+    private boolean batchSending;
+
+    /**
+     * Count of batched sends not passed to the filter chain yet.
+     */
+    private volatile int batchedCount;
+
+    /**
+     * Packet sent by <code>sendBatched</code>.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class BatchedSend {
+
+        private final Object obj;
+        private final Packet packet;
+        private final int priority;
+        private final DefaultFuture future;
+
+        public BatchedSend(Object obj, Packet packet, int priority,
+                DefaultFuture future) {
+            this.obj = obj;
+            this.packet = packet;
+            this.priority = priority;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Queue the packet after the batched sends, call
+     * <code>sendBatched</code> out of the batch locks to send it.
+     */
+    private DefaultFuture queueBatched(Object obj, Packet packet, int priority) {
+        DefaultFuture future = new DefaultFuture(this);
+        synchronized (batchedSends) {
+            batchedSends.add(new BatchedSend(obj, packet, priority, future));
+            batchedCount++;
+        }
+        return future;
+    }
+
+    /**
+     * Send the queued packets in order. If another thread is sending, the
+     * packets are sent by that thread.
+     */
+    private void sendBatched() {
+        synchronized (batchedSends) {
+            if (batchSending || batchedSends.isEmpty())
+                return;
+            batchSending = true;
+        }
+        while (true) {
+            BatchedSend send = null;
+            synchronized (batchedSends) {
+                if (batchedSends.isEmpty()) {
+                    batchSending = false;
+                    return;
+                }
+                send = (BatchedSend) batchedSends.removeFirst();
+            }
+            boolean sent = false;
+            try {
+                doSend(send.obj, send.packet, send.priority, send.future);
+                sent = true;
+            } finally {
+                synchronized (batchedSends) {
+                    batchedCount--;
+                    if (!sent)
+                        batchSending = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Small packets coalesced into one pooled buffer, the buffer is sent when
+     * it's full or the batch flushed. Only non-empty DefaultPackets are
+     * coalesced, datagrams are sent as a datagram batch packet. The futures of
+     * coalesced packets are completed, and objectSent events fired, when the
+     * buffer sent.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class WriteBatch implements FutureListener, Runnable {
+
+        private int depth; // nested count of thread batch
+
+        private Buffer content;
+        private List parts; // sent object and future pairs
+
+        // datagram boundaries and addresses of a datagram batch
+        private int[] offsets;
+        private List addresses;
+
+        private Session getSession() {
+            return AbstractChannelSession.this;
+        }
+
+        /**
+         * Coalesce the packet.
+         * 
+         * @return future of the packet, null if the packet can't be coalesced
+         */
+        public synchronized Future coalesce(Object obj, Packet packet,
+                int priority) {
+            // filters may recognize empty packets and packet classes, such
+            // as the handshake packet of SSLFilter
+            boolean datagram = getSessionType() == SessionType.UDP;
+            Buffer src = priority != 0
+                    || (packet.getAddress() != null && !datagram)
+                    || packet.getClass() != DefaultPacket.class ? null : packet
+                    .getContent();
+            if (src == null || src.remaining() == 0
+                    || src.remaining() > writeBatchSize) {
+                take(); // keep send order
+                return null;
+            }
+            if (content != null && content.remaining() < src.remaining())
+                take();
+            if (content == null) {
+                content = BufferFactory.allocate(writeBatchSize);
+                parts = new ArrayList();
+                if (datagram) {
+                    offsets = new int[16];
+                    addresses = new ArrayList();
+                }
+                if (this == windowBatch)
+                    getBatchFlusher().schedule(this, writeBatchWindow,
+                            TimeUnit.MICROSECONDS);
+            }
+            content.put(src);
+            src.release();
+            if (datagram) {
+                int count = addresses.size() + 1;
+                if (offsets.length <= count) {
+                    int[] newOffsets = new int[offsets.length * 2];
+                    System.arraycopy(offsets, 0, newOffsets, 0, count);
+                    offsets = newOffsets;
+                }
+                offsets[count] = content.position();
+                addresses.add(packet.getAddress());
+            }
+
+            DefaultFuture future = new DefaultFuture(AbstractChannelSession.this);
+            parts.add(obj);
+            parts.add(future);
+            return future;
+        }
+
+        /**
+         * Send the coalesced buffer.
+         */
+        public void flush() {
+            synchronized (this) {
+                take();
+            }
+            sendBatched();
+        }
+
+        /**
+         * Queue the coalesced buffer to <code>sendBatched</code>.
+         */
+        private void take() {
+            if (content == null)
+                return;
+            Packet packet = null;
+            if (addresses != null)
+                packet = new DatagramBatchPacket(content.flip(), offsets,
+                        (SocketAddress[]) addresses
+                                .toArray(new SocketAddress[addresses.size()]),
+                        addresses.size());
+            else
+                packet = new DefaultPacket(content.flip());
+            WriteBatch listener = new WriteBatch();
+            listener.parts = parts;
+            content = null;
+            parts = null;
+            offsets = null;
+            addresses = null;
+            queueBatched(null, packet, 0).addListener(listener);
+        }
+
+        /**
+         * Window end.
+         */
+        public void run() {
+            flush();
+        }
+
+        /**
+         * Coalesced buffer sent.
+         */
+        public void futureCompleted(Future future) throws Exception {
+            boolean succeeded = future.isSucceeded();
+            for (int i = 0; i < parts.size(); i += 2) {
+                ((DefaultFuture) parts.get(i + 1)).setSucceeded(succeeded);
+                Object obj = parts.get(i);
+                if (succeeded && obj != null)
+                    getSessionFilterChain(true).objectSent(obj);
+            }
+        }
+    }
+
+    private WriteBatch getThreadBatch() {
+        List batches = (List) THREAD_BATCHES.get();
+        if (batches != null) {
+            for (int i = 0; i < batches.size(); i++) {
+                WriteBatch batch = (WriteBatch) batches.get(i);
+                if (batch.getSession() == this)
+                    return batch;
+            }
+        }
+        return null;
+    }
+
+    public void batch() {
+        WriteBatch batch = getThreadBatch();
+        if (batch == null) {
+            List batches = (List) THREAD_BATCHES.get();
+            if (batches == null)
+                THREAD_BATCHES.set(batches = new ArrayList(2));
+            batches.add(batch = new WriteBatch());
+        }
+        batch.depth++;
+    }
+
+    public void endBatch() {
+        WriteBatch batch = getThreadBatch();
+        if (batch != null && --batch.depth == 0) {
+            ((List) THREAD_BATCHES.get()).remove(batch);
+            batch.flush();
+        }
+    }
+
+    protected Future send(Object obj, Packet packet, int priority) {
+        if (isEmpty(packet) || !isStarted())
             return new DefaultFuture(this, false);
-        final DefaultFuture future = new DefaultFuture(this);
+        WriteBatch batch = getThreadBatch();
+        if (batch != null)
+            windowBatch.flush(); // packets sent before the thread batch
+        else if (writeBatchWindow > 0)
+            batch = windowBatch;
+        if (batch != null) {
+            Future future = batch.coalesce(obj, packet, priority);
+            sendBatched();
+            if (future != null)
+                return future;
+        }
+        if (batchedCount > 0) {
+            // behind the batched packets not sent yet
+            Future future = queueBatched(obj, packet, priority);
+            sendBatched();
+            return future;
+        }
+        return doSend(obj, packet, priority, new DefaultFuture(this));
+    }
+
+    private Future doSend(final Object obj, Packet packet, final int priority,
+            final DefaultFuture future) {
         getSessionFilterChain(new SessionFilterAdapter() {
 
             public void packetSend(SessionFilterChain filterChain, Packet packet)
                     throws Exception {
-                if (packet == null || packet.getContent() == null) {
+                if (isEmpty(packet)) {
                     future.setSucceeded(false);
                     return;
                 }
-                Packet futurePacket = new FuturePacket(obj, packet, priority,
-                        future);
-                boolean firstSend = false;
-                boolean sendFailed = false;
-
-                synchronized (sendQueue) {
-                    firstSend = currentSendPacket == null
-                            && sendQueue.isEmpty();
-                    // current session may be closed
-                    if (!isStarted() || !sendQueue.offer(futurePacket))
-                        sendFailed = true;
+                FuturePacket futurePacket = new FuturePacket(obj, packet,
+                        priority, future);
+                if (getSessionLatency() != null)
+                    futurePacket.timestamp = SessionLatency.currentTime();
+                long size = futurePacket.size;
+                long pending = pendingBytes.addAndGet(size);
+                if (writeBufferLimit > 0 && pending > writeBufferLimit) {
+                    pendingBytes.addAndGet(-size);
+                    future.setSucceeded(false);
+                    if (closeOnWriteBufferLimit)
+                        close();
+                    else
+                        dispatchException(new SessionException(
+                                "write buffer limit exceeded: "
+                                        + writeBufferLimit));
+                    return;
                 }
-
-                if (sendFailed)
+                // current session may be closed
+                if (!isStarted()) {
+                    pendingBytes.addAndGet(-size);
                     future.setSucceeded(false);
-                else if (firstSend)
+                    return;
+                }
+
+                sendQueue.offer(futurePacket);
+                if (!isStarted()) {
+                    // closed before offered, send queue may have been cleared
+                    failSendQueue();
+                    return;
+                }
+                if (writable && pending > writeBufferHighWatermark)
+                    updateWritability();
+                if (!writeScheduled) {
+                    writeScheduled = true;
                     reactor.interest(handler, Reactor.OP_WRITE);
+                }
             }
 
         }, true).packetSend(packet);
@@ -187,14 +789,15 @@ public abstract class AbstractChannelSession extends AbstractSession {
 
         private void clearSendQueue() {
             synchronized (sendQueue) {
-                if (currentSendPacket != null) {
-                    currentSendPacket.future.setSucceeded(false);
-                    currentSendPacket = null;
-                }
-                for (FuturePacket packet = null; (packet = (FuturePacket) sendQueue
-                        .poll()) != null;) {
+                for (int i = 0; i < writingPackets.size(); i++) {
+                    FuturePacket packet = (FuturePacket) writingPackets.get(i);
+                    pendingBytes.addAndGet(-packet.size);
                     packet.future.setSucceeded(false);
                 }
+                writingPackets.clear();
+                pollSendQueue();
+                writeScheduled = false;
+                writable = true;
             }
         }
 
@@ -204,14 +807,20 @@ public abstract class AbstractChannelSession extends AbstractSession {
         }
 
         public void onRegistered() {
-            clearSendQueue(); // protect code
-
-            started = true;
+            synchronized (sendQueue) {
+                clearSendQueue(); // protect code
+                started = true;
+            }
+            // the session may be deregistered before the event dispatched
+            final DefaultFuture future = startFuture;
             // keep dispatch order
             dispatch(new Runnable() {
 
                 public void run() {
-                    startFuture.setSucceeded(true);
+                    synchronized (future) {
+                        if (!future.isCompleted())
+                            future.setSucceeded(true);
+                    }
                     getSessionFilterChain(false).sessionStarted();
                 }
             });
@@ -267,49 +876,165 @@ public abstract class AbstractChannelSession extends AbstractSession {
         protected void read() throws IOException {
         }
 
+        /**
+         * Read packets from the stream channel until no more data or reach
+         * the max reads per loop.
+         * 
+         * @param channel
+         *            readable channel
+         * @param address
+         *            packet address
+         * @throws IOException
+         *             session will be closed
+         */
+        protected void read(ReadableByteChannel channel, SocketAddress address)
+                throws IOException {
+            ReadSizePredictor predictor = ADAPTIVE_READ ? getReadSizePredictor()
+                    : null;
+            for (int i = 0; i < MAX_READS_PER_LOOP; i++) {
+                int size = predictor == null ? getReadPacketSize() : predictor
+                        .getNextReadSize();
+                Buffer buffer = BufferFactory.allocate(size);
+                int n = -1;
+                int readCount = 0;
+
+                try {
+                    while ((n = buffer.read(channel)) > 0)
+                        readCount += n; // stop when buffer is full
+                } catch (IOException e) {
+                    buffer.release();
+                    throw e;
+                }
+
+                if (predictor != null)
+                    predictor.record(readCount);
+                if (readCount > 0) {
+                    buffer.flip();
+                    getSessionFilterChain(false).packetReceived(
+                            newReceivedPacket(buffer, address));
+                } else
+                    buffer.release();
+                if (n < 0) // Connection closed
+                    throw new ClosedChannelException();
+                if (readCount < size) // no more data
+                    break;
+            }
+        }
+
+        /**
+         * Create the received packet, with the read time if latency is
+         * enabled.
+         * 
+         * @param buffer
+         *            received content
+         * @param address
+         *            packet address
+         * @return received packet
+         */
+        protected Packet newReceivedPacket(Buffer buffer, SocketAddress address) {
+            if (getSessionLatency() != null)
+                return new TimestampPacket(buffer, address, SessionLatency
+                        .currentTime());
+            return new DefaultPacket(buffer, address);
+        }
+
+        private final ByteBuffer[] srcs = new ByteBuffer[MAX_GATHERING_PACKETS];
+
+        /**
+         * Poll packets from send queue to writing packets.
+         * 
+         * @param max
+         *            max writing packets count
+         * @return writing packets count
+         */
+        private int pollWritingPackets(int max) {
+            while (true) {
+                FuturePacket packet = null;
+                int size = writingPackets.size();
+                // file region can't be gathered
+                if (size >= max
+                        || (size > 0 && ((FuturePacket) writingPackets
+                                .get(size - 1)).region != null)
+                        || (packet = (FuturePacket) sendQueue.poll()) == null)
+                    return size;
+                try {
+                    checkSendPacket(packet);
+                } catch (RuntimeException e) {
+                    dispatchException(e);
+                    pendingBytes.addAndGet(-packet.size);
+                    packet.future.setSucceeded(false);
+                    continue;
+                }
+                writingPackets.add(packet);
+            }
+        }
+
+        /**
+         * Remove the written packets and dispatch sent events.
+         * 
+         * @param count
+         *            written packets count
+         */
+        private void completeWritingPackets(int count) {
+            final SessionLatency latency = getSessionLatency();
+            long pending = 0;
+            for (int i = 0; i < count; i++) {
+                final FuturePacket packet = (FuturePacket) writingPackets
+                        .remove(0);
+                pending = pendingBytes.addAndGet(-packet.size);
+                if (packet.region == null) {
+                    Buffer buffer = packet.getContent();
+                    buffer.limit(packet.limit);
+                    buffer.position(packet.position);
+                    buffer.release();
+                }
+                if (latency != null)
+                    latency.record(SessionLatency.WRITE, packet.timestamp);
+
+                // keep dispatch order
+                dispatch(new Runnable() {
+
+                    public void run() {
+                        if (latency != null)
+                            latency.record(SessionLatency.SENT,
+                                    packet.timestamp);
+                        packet.future.setSucceeded(true);
+                        getSessionFilterChain(true).packetSent(
+                                packet.getDelegate());
+                        if (packet.obj != null)
+                            getSessionFilterChain(true).objectSent(packet.obj);
+                    }
+                });
+            }
+            if (!writable && pending < writeBufferLowWatermark)
+                updateWritability();
+        }
+
         public void onWritable() {
+            GatheringByteChannel channel = gatheringWrite ? getGatheringChannel()
+                    : null;
             try {
                 while (true) {
-                    synchronized (sendQueue) {
-                        if (currentSendPacket == null)
-                            currentSendPacket = (FuturePacket) sendQueue.poll();
-                    }
-                    if (currentSendPacket == null) {
-                        reactor.interest(handler, Reactor.OP_NON_WRITE);
-                        return;
+                    int count = pollWritingPackets(channel == null ? 1
+                            : MAX_GATHERING_PACKETS);
+                    if (count == 0) {
+                        writeScheduled = false;
+                        // recheck, the sender may not see writeScheduled cleared
+                        count = pollWritingPackets(channel == null ? 1
+                                : MAX_GATHERING_PACKETS);
+                        if (count == 0) {
+                            reactor.interest(handler, Reactor.OP_NON_WRITE);
+                            return;
+                        }
+                        writeScheduled = true;
                     }
+                    if (count > 1
+                            && ((FuturePacket) writingPackets.get(count - 1)).region != null)
+                        count--; // write the file region next time
 
-                    try {
-                        checkSendPacket(currentSendPacket);
-                    } catch (RuntimeException e) {
-                        dispatchException(e);
-                        DefaultFuture future = currentSendPacket.future;
-                        currentSendPacket = null;
-                        future.setSucceeded(false);
-                        continue;
-                    }
-
-                    Buffer buffer = currentSendPacket.getContent();
-                    if (!buffer.hasRemaining() || write(currentSendPacket)) {
-                        buffer.limit(currentSendPacket.limit);
-                        buffer.position(currentSendPacket.position);
-                        buffer.release();
-                        final FuturePacket packet = currentSendPacket;
-                        currentSendPacket = null;
-
-                        // keep dispatch order
-                        dispatch(new Runnable() {
-
-                            public void run() {
-                                packet.future.setSucceeded(true);
-                                getSessionFilterChain(true).packetSent(
-                                        packet.getDelegate());
-                                if (packet.obj != null)
-                                    getSessionFilterChain(true).objectSent(
-                                            packet.obj);
-                            }
-                        });
-                    } else {
+                    boolean completed = count == 1 ? writeFirst()
+                            : writeGathering(channel, count);
+                    if (!completed) {
                         reactor.interest(handler, Reactor.OP_WRITE);
                         return;
                     }
@@ -322,6 +1047,93 @@ public abstract class AbstractChannelSession extends AbstractSession {
             }
         }
 
+        /**
+         * Write the first writing packet.
+         * 
+         * @return false if the kennel buffer is full
+         */
+        private boolean writeFirst() throws IOException {
+            FuturePacket packet = (FuturePacket) writingPackets.get(0);
+            if (packet.region != null) {
+                WritableByteChannel channel = getGatheringChannel();
+                if (channel == null) {
+                    // transferTo not supported, send the buffered copy
+                    packet.region.getContent();
+                    packet.region = null;
+                    packet.markContent();
+                } else if (!transfer(channel, packet.region))
+                    return false;
+            }
+            if (packet.region == null && packet.getContent().hasRemaining()
+                    && !write(packet))
+                return false;
+            completeWritingPackets(1);
+            return true;
+        }
+
+        /**
+         * Transfer the file region to the channel, resume from the last
+         * transferred position.
+         * 
+         * @return false if the kennel buffer is full
+         */
+        private boolean transfer(WritableByteChannel channel,
+                FileRegionPacket region) throws IOException {
+            while (region.hasRemaining()) {
+                if (region.transferTo(channel, WRITE_PACKET_SIZE) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Write several writing packets in a single gathering write.
+         * 
+         * @return false if the kennel buffer is full
+         */
+        private boolean writeGathering(GatheringByteChannel channel, int count)
+                throws IOException {
+            ByteBuffer[] srcs = this.srcs;
+            int length = 0;
+            int n = 0;
+            while (n < count && length < WRITE_PACKET_SIZE) {
+                ByteBuffer src = ((FuturePacket) writingPackets.get(n))
+                        .getContent().asByteBuffer();
+                if (src.remaining() > WRITE_PACKET_SIZE - length)
+                    src.limit(src.position() + WRITE_PACKET_SIZE - length);
+                length += src.remaining();
+                srcs[n++] = src;
+            }
+
+            long writeCount = length == 0 ? 0 : channel.write(srcs, 0, n);
+
+            // track partial write across packets
+            int written = 0;
+            for (int i = 0; i < n; i++) {
+                Buffer buffer = ((FuturePacket) writingPackets.get(i))
+                        .getContent();
+                buffer.position(srcs[i].position());
+                if (buffer.hasRemaining())
+                    break;
+                written++;
+            }
+            for (int i = 0; i < n; i++)
+                srcs[i] = null;
+            if (written > 0)
+                completeWritingPackets(written);
+            return writeCount == length;
+        }
+
+        /**
+         * Get the channel which support gathering write, also used as the
+         * target of file region transfer.
+         * 
+         * @return gathering channel, null if not supported
+         */
+        protected GatheringByteChannel getGatheringChannel() {
+            return null;
+        }
+
         /**
          * Check send packet.
          * 
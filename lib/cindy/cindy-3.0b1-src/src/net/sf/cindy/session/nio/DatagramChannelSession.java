@@ -26,21 +26,32 @@ import net.sf.cindy.Buffer;
 import net.sf.cindy.Packet;
 import net.sf.cindy.SessionType;
 import net.sf.cindy.buffer.BufferFactory;
-import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.packet.DatagramBatchPacket;
+import net.sf.cindy.packet.DelegatePacket;
 import net.sf.cindy.session.nio.reactor.ReactorHandler;
 import net.sf.cindy.util.ChannelUtils;
 import net.sf.cindy.util.Configuration;
 
 /**
  * Datagram channel session.
+ * <p>
+ * If datagram batch is enabled, the datagrams of a readable event are
+ * received into one buffer and passed as a <code>DatagramBatchPacket</code>,
+ * the batch is handled by one event. Sent datagram batches are sent datagram
+ * by datagram in the reactor.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
  */
 public class DatagramChannelSession extends AbstractChannelSession {
 
+    private static final int DATAGRAM_BATCH_SIZE = Configuration
+            .getDatagramBatchSize();
+
     private DatagramChannel channel;
 
+    private int datagramBatch = Configuration.getDatagramBatch();
+
     public DatagramSocket getSocket() {
         DatagramChannel dc = channel;
         if (dc == null)
@@ -87,6 +98,21 @@ public class DatagramChannelSession extends AbstractChannelSession {
         return channel;
     }
 
+    public int getDatagramBatch() {
+        return datagramBatch;
+    }
+
+    /**
+     * Set the max datagrams received in a readable event as one datagram batch
+     * packet.
+     * 
+     * @param datagramBatch
+     *            max datagrams of a batch, 0 or 1 means disabled
+     */
+    public void setDatagramBatch(int datagramBatch) {
+        this.datagramBatch = Math.max(0, datagramBatch);
+    }
+
     protected ReactorHandler getReactorHandler() {
         return new ChannelReactorHandler() {
 
@@ -95,6 +121,11 @@ public class DatagramChannelSession extends AbstractChannelSession {
             }
 
             protected void read() throws IOException {
+                int batch = datagramBatch;
+                if (batch > 1) {
+                    readBatch(batch);
+                    return;
+                }
                 while (true) {
                     Buffer buffer = BufferFactory.allocate(getReadPacketSize());
                     ByteBuffer byteBuffer = buffer.asByteBuffer();
@@ -107,11 +138,60 @@ public class DatagramChannelSession extends AbstractChannelSession {
                         }
                         buffer.limit(byteBuffer.position());
                         getSessionFilterChain(false).packetReceived(
-                                new DefaultPacket(buffer, address));
+                                newReceivedPacket(buffer, address));
+                    } catch (IOException e) {
+                        buffer.release();
+                        throw e;
+                    }
+                }
+            }
+
+            /**
+             * Receive datagrams into one buffer, until no more datagram, the
+             * max datagrams received, or the buffer can't hold a datagram of
+             * the read packet size.
+             */
+            private void readBatch(int max) throws IOException {
+                int packetSize = getReadPacketSize();
+                int size = Math.max(DATAGRAM_BATCH_SIZE, packetSize);
+                while (true) {
+                    Buffer buffer = BufferFactory.allocate(size, true);
+                    ByteBuffer byteBuffer = buffer.asByteBuffer();
+                    int[] offsets = new int[max + 1];
+                    SocketAddress[] addresses = new SocketAddress[max];
+                    int count = 0;
+                    boolean more = true;
+
+                    try {
+                        while (count < max
+                                && byteBuffer.capacity()
+                                        - byteBuffer.position() >= packetSize) {
+                            offsets[count] = byteBuffer.position();
+                            byteBuffer.limit(offsets[count] + packetSize);
+                            SocketAddress address = channel
+                                    .receive(byteBuffer);
+                            if (address == null) {
+                                more = false;
+                                break;
+                            }
+                            addresses[count++] = address;
+                        }
                     } catch (IOException e) {
                         buffer.release();
                         throw e;
                     }
+
+                    if (count == 0) {
+                        buffer.release();
+                        break;
+                    }
+                    offsets[count] = byteBuffer.position();
+                    buffer.limit(offsets[count]);
+                    getSessionFilterChain(false).packetReceived(
+                            new DatagramBatchPacket(buffer, offsets,
+                                    addresses, count));
+                    if (!more)
+                        break;
                 }
             }
 
@@ -122,12 +202,59 @@ public class DatagramChannelSession extends AbstractChannelSession {
             }
 
             protected void checkSendPacket(Packet packet) {
-                if (!isConnected() && packet.getAddress() == null)
+                if (isConnected())
+                    return;
+                DatagramBatchPacket batch = getBatch(packet);
+                if (batch == null ? packet.getAddress() == null
+                        : hasNullAddress(batch))
                     throw new RuntimeException(
                             "can't send packet to unconnected datagram channel without socket address");
             }
 
+            private boolean hasNullAddress(DatagramBatchPacket batch) {
+                for (int i = 0; i < batch.getCount(); i++) {
+                    if (batch.getAddress(i) == null)
+                        return true;
+                }
+                return false;
+            }
+
+            private DatagramBatchPacket getBatch(Packet packet) {
+                while (packet instanceof DelegatePacket)
+                    packet = ((DelegatePacket) packet).getDelegate();
+                if (packet instanceof DatagramBatchPacket)
+                    return (DatagramBatchPacket) packet;
+                return null;
+            }
+
+            /**
+             * Send the datagrams of the batch not sent yet, the content
+             * position is moved to the end of the last sent datagram.
+             */
+            private boolean writeBatch(Buffer buffer, DatagramBatchPacket batch)
+                    throws IOException {
+                ByteBuffer src = buffer.asByteBuffer();
+                for (int i = 0; i < batch.getCount(); i++) {
+                    int limit = batch.getLimit(i);
+                    if (limit <= buffer.position()) // sent
+                        continue;
+                    src.limit(limit);
+                    src.position(batch.getPosition(i));
+                    SocketAddress address = batch.getAddress(i);
+                    int writeCount = address == null ? channel.write(src)
+                            : channel.send(src, address);
+                    if (writeCount == 0 && limit > batch.getPosition(i))
+                        return false;
+                    buffer.position(limit);
+                }
+                return true;
+            }
+
             protected boolean write(Packet packet) throws IOException {
+                DatagramBatchPacket batch = getBatch(packet);
+                if (batch != null)
+                    return writeBatch(packet.getContent(), batch);
+
                 Buffer buffer = packet.getContent();
                 int writeCount = 0;
                 if (packet.getAddress() == null) // connected
@@ -24,20 +24,64 @@ import net.sf.cindy.Session;
 import net.sf.cindy.SessionHandlerAdapter;
 import net.sf.cindy.SessionType;
 import net.sf.cindy.session.AbstractSessionAcceptor;
+import net.sf.cindy.session.nio.reactor.DefaultReactor;
+import net.sf.cindy.session.nio.reactor.Reactor;
+import net.sf.cindy.session.nio.reactor.ReactorFactory;
+import net.sf.cindy.session.nio.reactor.ReactorPool;
 import net.sf.cindy.util.ChannelUtils;
+import net.sf.cindy.util.Configuration;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Non-blocking session acceptor.
+ * <p>
+ * If the concurrent is greater than 1, several server channels are bound to
+ * the listen address by SO_REUSEPORT, the kernel spreads new connections over
+ * them. Each server channel accepts on its own reactor loop, a reactor of the
+ * <code>ReactorPool</code> or a new reactor, and the accepted sessions are
+ * registered on the same loop. If SO_REUSEPORT is not supported, only one
+ * server channel is bound.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
  */
 public class NonBlockingSessionAcceptor extends AbstractSessionAcceptor {
 
+    private static final Log log = LogFactory
+            .getLog(NonBlockingSessionAcceptor.class);
+
     private final AtomicInteger counter = new AtomicInteger();
 
-    private final ServerSocketChannelSession session = new ServerSocketChannelSession() {
+    private int concurrent = Configuration.getAcceptorConcurrent();
+
+    private volatile AcceptorSession[] sessions;
+
+    /**
+     * Server socket session of the acceptor.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private class AcceptorSession extends ServerSocketChannelSession {
+
+        private final boolean keepReactor;
+
+        public AcceptorSession(ServerSocketChannel channel, Reactor reactor) {
+            setChannel(channel);
+            keepReactor = reactor != null;
+            if (keepReactor)
+                setReactor(reactor);
+            setSessionHandler(new SessionHandlerAdapter() {
+
+                public void exceptionCaught(Session session, Throwable cause) {
+                    NonBlockingSessionAcceptor.this.exceptionCaught(cause);
+                }
+            });
+        }
 
         protected void buildSession(SocketChannel sc) {
             counter.incrementAndGet();
@@ -45,20 +89,13 @@ public class NonBlockingSessionAcceptor extends AbstractSessionAcceptor {
                 setSocketOptions(sc.socket());
                 SocketChannelSession session = new SocketChannelSession();
                 session.setChannel(sc);
+                if (keepReactor)
+                    session.setReactor(getReactor());
                 sessionAccepted(session);
             } catch (Throwable e) {
                 exceptionCaught(e);
             }
         }
-    };
-
-    public NonBlockingSessionAcceptor() {
-        session.setSessionHandler(new SessionHandlerAdapter() {
-
-            public void exceptionCaught(Session session, Throwable cause) {
-                NonBlockingSessionAcceptor.this.exceptionCaught(cause);
-            }
-        });
     }
 
     public SessionType getSessionType() {
@@ -66,38 +103,105 @@ public class NonBlockingSessionAcceptor extends AbstractSessionAcceptor {
     }
 
     public boolean isStarted() {
-        return session.isStarted();
+        AcceptorSession[] sessions = this.sessions;
+        return sessions != null && sessions[0].isStarted();
     }
 
     public SocketAddress getListenAddress() {
-        if (isStarted())
-            return session.getSocket().getLocalSocketAddress();
+        AcceptorSession[] sessions = this.sessions;
+        if (sessions != null && sessions[0].isStarted())
+            return sessions[0].getSocket().getLocalSocketAddress();
         return super.getListenAddress();
     }
 
     public int getListenPort() {
-        if (isStarted())
-            return session.getSocket().getLocalPort();
+        AcceptorSession[] sessions = this.sessions;
+        if (sessions != null && sessions[0].isStarted())
+            return sessions[0].getSocket().getLocalPort();
         return super.getListenPort();
     }
 
+    public int getConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Set the server channel count bound by SO_REUSEPORT.
+     * 
+     * @param concurrent
+     *            server channel count
+     * @throws IllegalStateException
+     */
+    public void setConcurrent(int concurrent) {
+        if (isStarted())
+            throw new IllegalStateException(
+                    "can't set concurrent after acceptor started");
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Get the count of bound server channels.
+     * 
+     * @return server channel count, 0 if not started
+     */
+    int getServerChannelCount() {
+        AcceptorSession[] sessions = this.sessions;
+        return sessions != null && sessions[0].isStarted() ? sessions.length
+                : 0;
+    }
+
+    /**
+     * Get the reactor loop of the server channel.
+     */
+    private Reactor getReactor(int index) {
+        Reactor reactor = ReactorFactory.getReactor();
+        if (reactor instanceof ReactorPool) {
+            ReactorPool pool = (ReactorPool) reactor;
+            return pool.getReactor(index % pool.getConcurrent());
+        }
+        return new DefaultReactor();
+    }
+
     public synchronized void start() {
         if (getAcceptorHandler() == null)
             throw new IllegalStateException("acceptor handler is null");
         if (isStarted())
             return;
 
-        ServerSocketChannel channel = null;
+        ServerSocketChannel[] channels = new ServerSocketChannel[Math.max(1,
+                concurrent)];
+        int count = 0;
         try {
-            channel = ServerSocketChannel.open();
-            setServerSocketOptions(channel.socket());
-            counter.set(0);
-            session.setChannel(channel);
-            session.start().complete();
+            channels[count++] = ServerSocketChannel.open();
+            if (channels.length > 1
+                    && !ChannelUtils.setReusePort(channels[0])) {
+                log.warn("SO_REUSEPORT is not supported, listen by one server channel");
+                channels = new ServerSocketChannel[] { channels[0] };
+            }
+            setServerSocketOptions(channels[0].socket());
+            // bound port if listen port is 0
+            SocketAddress address = channels[0].socket()
+                    .getLocalSocketAddress();
+            while (count < channels.length) {
+                channels[count] = ServerSocketChannel.open();
+                ChannelUtils.setReusePort(channels[count]);
+                setServerSocketOptions(channels[count++].socket(), address);
+            }
         } catch (IOException e) {
-            ChannelUtils.close(channel);
+            for (int i = 0; i < count; i++)
+                ChannelUtils.close(channels[i]);
             exceptionCaught(e);
+            return;
         }
+
+        counter.set(0);
+        AcceptorSession[] sessions = new AcceptorSession[channels.length];
+        for (int i = 0; i < sessions.length; i++)
+            sessions[i] = new AcceptorSession(channels[i],
+                    sessions.length > 1 ? getReactor(i) : null);
+        this.sessions = sessions;
+        for (int i = 0; i < sessions.length; i++)
+            sessions[i].start().complete();
     }
 
     public int getAcceptedCount() {
@@ -105,6 +209,9 @@ public class NonBlockingSessionAcceptor extends AbstractSessionAcceptor {
     }
 
     public synchronized void close() {
-        session.close().complete();
+        AcceptorSession[] sessions = this.sessions;
+        if (sessions != null)
+            for (int i = 0; i < sessions.length; i++)
+                sessions[i].close().complete();
     }
 }
@@ -17,17 +17,14 @@ package net.sf.cindy.session.nio;
 
 import java.io.IOException;
 import java.net.SocketAddress;
-import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.Pipe;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.Pipe.SinkChannel;
-import java.nio.channels.Pipe.SourceChannel;
 
 import net.sf.cindy.Buffer;
 import net.sf.cindy.Packet;
 import net.sf.cindy.SessionType;
-import net.sf.cindy.buffer.BufferFactory;
-import net.sf.cindy.packet.DefaultPacket;
 import net.sf.cindy.session.nio.reactor.ReactorHandler;
 import net.sf.cindy.util.ChannelUtils;
 
@@ -84,29 +81,11 @@ public class PipeSession extends AbstractChannelSession {
             }
 
             protected void read() throws IOException {
-                Buffer buffer = BufferFactory.allocate(getReadPacketSize());
-                SourceChannel source = pipe.source();
-                int n = -1;
-                int readCount = 0;
-
-                try {
-                    while ((n = buffer.read(source)) >= 0) {
-                        if (n == 0)
-                            break;
-                        readCount += n;
-                    }
-                } catch (IOException e) {
-                    buffer.release();
-                    throw e;
-                }
+                read(pipe.source(), null);
+            }
 
-                if (readCount > 0) {
-                    buffer.flip();
-                    getSessionFilterChain(false).packetReceived(
-                            new DefaultPacket(buffer));
-                }
-                if (n < 0) // Connection closed
-                    throw new ClosedChannelException();
+            protected GatheringByteChannel getGatheringChannel() {
+                return pipe.sink();
             }
 
             protected boolean write(Packet packet) throws IOException {
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import net.sf.cindy.Packet;
+import net.sf.cindy.packet.DelegatePacket;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Send queue of channel sessions, made of three priority lanes: positive,
+ * normal (0) and negative priority. Each lane is a multi-producer
+ * single-consumer linked queue, the entry itself is the queue node, so no
+ * node need to be allocated. Lanes are polled by priority, entries of the
+ * same lane are polled in offer order.
+ * <p>
+ * Offer swaps the lane tail by a single <code>getAndSet</code>, poll swaps it
+ * only to re-enqueue the stub node. The queue is not lock-free: the backport
+ * atomics guard <code>getAndSet</code> with a short synchronized block, so the
+ * threads offering to a lane are serialized on that block, but there is no
+ * lock held across the queue operation.
+ * <p>
+ * Until an entry with other than normal priority is offered, only the normal
+ * lane is used. Offer can be invoked by any thread, poll can only be invoked
+ * by one thread at the same time.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+class SendQueue {
+
+    /**
+     * Entry of the send queue, an entry is queued at most once at the same
+     * time.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    static class Entry extends DelegatePacket {
+
+        private final int priority;
+        private volatile Entry next;
+
+        public Entry(Packet packet, int priority) {
+            super(packet);
+            this.priority = priority;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public String toString() {
+            return super.toString() + " [priority] " + priority;
+        }
+    }
+
+    /**
+     * Multi-producer single-consumer queue.
+     */
+    private static class Lane {
+
+        private final Entry stub = new Entry(null, 0);
+        private final AtomicReference tail = new AtomicReference(stub);
+        private Entry head = stub;
+
+        public void offer(Entry entry) {
+            entry.next = null;
+            Entry prev = (Entry) tail.getAndSet(entry);
+            prev.next = entry;
+        }
+
+        public Entry poll() {
+            Entry head = this.head;
+            Entry next = head.next;
+            if (head == stub) {
+                if (next == null)
+                    return null;
+                this.head = next;
+                head = next;
+                next = next.next;
+            }
+            if (next != null) {
+                this.head = next;
+                return head;
+            }
+            if (head != tail.get())
+                return null; // producer is linking, get it next time
+
+            // re-enqueue stub, then the last entry can be dequeued
+            offer(stub);
+            next = head.next;
+            if (next != null) {
+                this.head = next;
+                return head;
+            }
+            return null;
+        }
+    }
+
+    private final Lane high = new Lane();
+    private final Lane normal = new Lane();
+    private final Lane low = new Lane();
+
+    /**
+     * Whether an entry with other than normal priority have been offered.
+     */
+    private volatile boolean prioritized;
+
+    public void offer(Entry entry) {
+        int priority = entry.priority;
+        if (priority == 0) {
+            normal.offer(entry);
+            return;
+        }
+        if (!prioritized)
+            prioritized = true;
+        if (priority > 0)
+            high.offer(entry);
+        else
+            low.offer(entry);
+    }
+
+    /**
+     * Poll the entry with the highest priority.
+     * 
+     * @return entry, null if no entry can be polled. An entry being offered
+     *         may be polled next time.
+     */
+    public Entry poll() {
+        if (!prioritized)
+            return normal.poll();
+        Entry entry = high.poll();
+        if (entry == null && (entry = normal.poll()) == null)
+            entry = low.poll();
+        return entry;
+    }
+
+}
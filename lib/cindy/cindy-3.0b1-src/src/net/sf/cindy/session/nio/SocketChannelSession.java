@@ -19,15 +19,13 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
 
 import net.sf.cindy.Buffer;
 import net.sf.cindy.Packet;
 import net.sf.cindy.SessionType;
-import net.sf.cindy.buffer.BufferFactory;
-import net.sf.cindy.packet.DefaultPacket;
 import net.sf.cindy.session.SessionException;
 import net.sf.cindy.session.nio.reactor.ReactorHandler;
 import net.sf.cindy.util.ChannelUtils;
@@ -120,28 +118,11 @@ public class SocketChannelSession extends AbstractChannelSession {
             }
 
             protected void read() throws IOException {
-                Buffer buffer = BufferFactory.allocate(getReadPacketSize());
-                int n = -1;
-                int readCount = 0;
-
-                try {
-                    while ((n = buffer.read(channel)) >= 0) {
-                        if (n == 0)
-                            break;
-                        readCount += n;
-                    }
-                } catch (IOException e) {
-                    buffer.release();
-                    throw e;
-                }
+                read(channel, address);
+            }
 
-                if (readCount > 0) {
-                    buffer.flip();
-                    getSessionFilterChain(false).packetReceived(
-                            new DefaultPacket(buffer, address));
-                }
-                if (n < 0) // Connection closed
-                    throw new ClosedChannelException();
+            protected GatheringByteChannel getGatheringChannel() {
+                return channel;
             }
 
             protected boolean write(Packet packet) throws IOException {
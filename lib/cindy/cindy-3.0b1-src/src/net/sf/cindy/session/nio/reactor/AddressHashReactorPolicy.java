@@ -0,0 +1,54 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio.reactor;
+
+import java.net.SocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Assign handler to reactor by the hash of session's remote address, so the
+ * sessions from the same peer always share the same reactor. Handlers without
+ * remote address are assigned in turn.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class AddressHashReactorPolicy implements ReactorPolicy {
+
+    private final ReactorPolicy fallback = new RoundRobinReactorPolicy();
+
+    private SocketAddress getRemoteAddress(ReactorHandler handler) {
+        // accepted session have not started yet, get address from channel
+        SelectableChannel[] channels = handler.getChannels();
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] instanceof SocketChannel) {
+                SocketChannel sc = (SocketChannel) channels[i];
+                if (sc.isConnected())
+                    return sc.socket().getRemoteSocketAddress();
+            }
+        }
+        return handler.getSession().getRemoteAddress();
+    }
+
+    public int choose(ReactorHandler handler, int[] loads) {
+        SocketAddress address = getRemoteAddress(handler);
+        if (address == null)
+            return fallback.choose(handler, loads);
+        return (address.hashCode() & Integer.MAX_VALUE) % loads.length;
+    }
+
+}
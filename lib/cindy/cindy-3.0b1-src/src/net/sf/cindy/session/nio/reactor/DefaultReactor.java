@@ -21,21 +21,23 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
-import java.util.Map;
 
 import net.sf.cindy.util.ChannelUtils;
 import net.sf.cindy.util.Configuration;
 import net.sf.cindy.util.ElapsedTime;
 import net.sf.cindy.util.LogThreadGroup;
 import net.sf.cindy.util.NamedThreadFactory;
+import net.sf.cindy.util.TimingWheel;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import edu.emory.mathcs.backport.java.util.Queue;
 import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentHashMap;
-import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentLinkedQueue;
+import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentMap;
 import edu.emory.mathcs.backport.java.util.concurrent.ThreadFactory;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicBoolean;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Default reactor implementation.
@@ -54,9 +56,16 @@ public class DefaultReactor implements Reactor {
     private static final int SELECT_TIMEOUT = 1000;
 
     /**
-     * All operate need be done in the same thread.
+     * Session timeout precision.
      */
-    private final Queue registerColl, deregisterColl, interestColl;
+    private static final int TICK_DURATION = 100;
+    private static final int TICKS_PER_WHEEL = 512;
+
+    /**
+     * Session timeout may be changed after registered, re-check the sessions
+     * which do not timeout in such interval.
+     */
+    private static final int TIMEOUT_CHECK_INTERVAL = 10000;
 
     /**
      * The attachment associted with inner <code>SelectionKey</code>.
@@ -64,24 +73,51 @@ public class DefaultReactor implements Reactor {
      * @author <a href="chenrui@gmail.com">Roger Chen</a>
      * @version $id$
      */
-    private static class Attachment {
+    private static class Attachment extends TimingWheel.Entry {
 
         private final ReactorHandler handler;
+        private SelectionKey[] keys;
 
-        private int idleTime; // store session idle time
+        private long lastActiveTime; // judge session idle time
         private boolean writing; // do not check session timeout when writing
 
+        /**
+         * Pending operates, interest ops and PENDING_XXX flags. Repeated
+         * operates on the same handler are coalesced into one.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile Attachment next; // pending queue link
+
         public Attachment(ReactorHandler handler) {
             this.handler = handler;
         }
 
     }
 
+    private static final int PENDING_REGISTER = 1 << 8;
+    private static final int PENDING_DEREGISTER = 1 << 9;
+    private static final int PENDING_QUEUED = 1 << 10;
+
     /**
      * Saved all registed <code>ReactorHandlerAttachment</code>. Key is
      * <code>ReactorHandler</code>, Value is <code>Attachment</code>.
      */
-    private final Map registered = new ConcurrentHashMap();
+    private final ConcurrentMap registered = new ConcurrentHashMap();
+
+    /**
+     * All operate need be done in the same thread. Pending attachments are
+     * linked in a lock-free multi-producer single-consumer queue, an
+     * attachment is queued at most once at the same time, so no node need to
+     * be allocated.
+     */
+    private final Attachment stub = new Attachment(null);
+    private final AtomicReference pendingTail = new AtomicReference(stub);
+    private Attachment pendingHead = stub;
+
+    /**
+     * Whether selector.wakeup have been called since last select.
+     */
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
 
     private Selector selector;
     private Thread selectThread = null;
@@ -98,19 +134,23 @@ public class DefaultReactor implements Reactor {
     /**
      * judge session timeout.
      */
-    private ElapsedTime lastSelectTime;
+    private ElapsedTime startTime;
 
-    public DefaultReactor() {
-        registerColl = new ConcurrentLinkedQueue();
-        deregisterColl = new ConcurrentLinkedQueue();
-        interestColl = new ConcurrentLinkedQueue();
-    }
+    private final TimingWheel timingWheel = new TimingWheel(TICK_DURATION,
+            TICKS_PER_WHEEL);
+
+    private final TimingWheel.Listener timeoutListener = new TimingWheel.Listener() {
+
+        public void expired(TimingWheel.Entry entry, long now) {
+            checkSessionTimeout((Attachment) entry, now);
+        }
+    };
 
     private synchronized void start() {
         if (selectThread != null)
             return;
 
-        lastSelectTime = new ElapsedTime();
+        startTime = new ElapsedTime();
         try {
             selector = Selector.open();
             selectThread = reactorThreadFactory.newThread(new Runnable() {
@@ -118,6 +158,7 @@ public class DefaultReactor implements Reactor {
                 public void run() {
                     try {
                         while (!close) {
+                            wakenUp.set(false);
                             beforeSelect();
                             if (close) // after beforeSelect, close may be true
                                 break;
@@ -147,12 +188,13 @@ public class DefaultReactor implements Reactor {
             dispatchDeregistered(handler);
         }
         registered.clear();
-        lastSelectTime = null;
+        timingWheel.clear();
+        startTime = null;
         ChannelUtils.close(selector);
         selector = null;
-        registerColl.clear();
-        interestColl.clear();
-        deregisterColl.clear();
+        stub.next = null;
+        pendingTail.set(stub);
+        pendingHead = stub;
         currentTick = 0;
         close = false;
         selectThread = null;
@@ -169,73 +211,117 @@ public class DefaultReactor implements Reactor {
     }
 
     public void register(ReactorHandler handler) {
+        Attachment attachment = (Attachment) registered.get(handler);
+        if (attachment == null) {
+            attachment = new Attachment(handler);
+            Attachment old = (Attachment) registered.putIfAbsent(handler,
+                    attachment);
+            if (old != null) // register concurrently
+                attachment = old;
+        }
         if (Thread.currentThread() == selectThread) {
-            changeRegister(new Attachment(handler));
+            changeRegister(attachment);
         } else {
-            registerColl.offer(new Attachment(handler));
             start(); // auto start when register
-            selector.wakeup();
+            post(attachment, PENDING_REGISTER);
         }
     }
 
     public void deregister(ReactorHandler handler) {
-        if (Thread.currentThread() == selectThread) {
-            changeDeregister(handler);
-        } else {
-            deregisterColl.offer(handler);
-            selector.wakeup();
-        }
+        Attachment attachment = (Attachment) registered.get(handler);
+        if (attachment == null)
+            return;
+        if (Thread.currentThread() == selectThread)
+            changeDeregister(attachment);
+        else
+            post(attachment, PENDING_DEREGISTER);
+    }
+
+    public void interest(ReactorHandler handler, int ops) {
+        Attachment attachment = (Attachment) registered.get(handler);
+        if (attachment == null)
+            return;
+        if (Thread.currentThread() == selectThread)
+            changeInterest(attachment, ops);
+        else
+            post(attachment, ops);
     }
 
     /**
-     * Store reactor handler and interest ops.
-     * 
-     * @author <a href="chenrui@gmail.com">Roger Chen</a>
-     * @version $id$
+     * Merge the operate into attachment's pending operates, enqueue the
+     * attachment and wakeup the selector if it's not queued.
      */
-    private static class ReactorHandlerInterest {
-
-        private final ReactorHandler handler;
-        private final int ops;
-
-        public ReactorHandlerInterest(ReactorHandler handler, int ops) {
-            this.handler = handler;
-            this.ops = ops;
+    private void post(Attachment attachment, int op) {
+        AtomicInteger pending = attachment.pending;
+        int current;
+        do {
+            current = pending.get();
+            if ((current & op) == op && (current & PENDING_QUEUED) != 0)
+                return; // already pending
+        } while (!pending.compareAndSet(current, current | op | PENDING_QUEUED));
+
+        if ((current & PENDING_QUEUED) == 0) {
+            attachment.next = null;
+            Attachment prev = (Attachment) pendingTail.getAndSet(attachment);
+            prev.next = attachment;
+            if (wakenUp.compareAndSet(false, true))
+                selector.wakeup();
         }
-
     }
 
-    public void interest(ReactorHandler handler, int ops) {
-        if (Thread.currentThread() == selectThread) {
-            changeInterest(new ReactorHandlerInterest(handler, ops));
-        } else {
-            interestColl.offer(new ReactorHandlerInterest(handler, ops));
-            selector.wakeup();
+    /**
+     * Dequeue a pending attachment, only invoked in select thread.
+     */
+    private Attachment poll() {
+        Attachment head = pendingHead;
+        Attachment next = head.next;
+        if (head == stub) {
+            if (next == null)
+                return null;
+            pendingHead = next;
+            head = next;
+            next = next.next;
+        }
+        if (next != null) {
+            pendingHead = next;
+            return head;
         }
+        if (head != pendingTail.get())
+            return null; // producer is linking, get it next time
+
+        // re-enqueue stub, then the last attachment can be dequeued
+        stub.next = null;
+        Attachment prev = (Attachment) pendingTail.getAndSet(stub);
+        prev.next = stub;
+        next = head.next;
+        if (next != null) {
+            pendingHead = next;
+            return head;
+        }
+        return null;
     }
 
     protected void beforeSelect() {
-        Attachment attachment = null;
-        while ((attachment = (Attachment) registerColl.poll()) != null)
-            changeRegister(attachment);
-
-        ReactorHandlerInterest interest = null;
-        while ((interest = (ReactorHandlerInterest) interestColl.poll()) != null)
-            changeInterest(interest);
-
-        ReactorHandler handler = null;
-        while ((handler = (ReactorHandler) deregisterColl.poll()) != null)
-            changeDeregister(handler);
+        for (Attachment attachment = null; (attachment = poll()) != null;) {
+            int ops = attachment.pending.getAndSet(0);
+            if ((ops & PENDING_REGISTER) != 0)
+                changeRegister(attachment);
+            if ((ops & ~(PENDING_REGISTER | PENDING_DEREGISTER | PENDING_QUEUED)) != 0)
+                changeInterest(attachment, ops);
+            if ((ops & PENDING_DEREGISTER) != 0)
+                changeDeregister(attachment);
+        }
 
         checkNeedStop();
     }
 
     private void changeRegister(Attachment attachment) {
         ReactorHandler handler = attachment.handler;
-        if (registered.containsKey(handler))
+        if (attachment.keys != null)
             return;
         SelectableChannel[] channels = handler.getChannels();
         try {
+            SelectionKey[] keys = new SelectionKey[channels.length];
             for (int i = 0; i < channels.length; i++) {
                 SelectableChannel channel = channels[i];
                 channel.configureBlocking(false);
@@ -244,40 +330,45 @@ public class DefaultReactor implements Reactor {
                 // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4960791
                 boolean isConnected = (validOps & SelectionKey.OP_CONNECT) != 0
                         && ((SocketChannel) channel).isConnected();
-                channel.register(selector, isConnected ? SelectionKey.OP_READ
-                        : (validOps & ~SelectionKey.OP_WRITE), attachment);
+                keys[i] = channel.register(selector,
+                        isConnected ? SelectionKey.OP_READ
+                                : (validOps & ~SelectionKey.OP_WRITE),
+                        attachment);
             }
-            registered.put(handler, attachment);
+            attachment.keys = keys;
+            attachment.lastActiveTime = startTime.getElapsedTime();
+            scheduleSessionTimeout(attachment);
             handler.onRegistered();
         } catch (IOException e) {
             log.error(e, e);
+            registered.remove(handler);
             dispatchDeregistered(handler);
         }
     }
 
-    private void changeInterest(ReactorHandlerInterest interest) {
-        ReactorHandler handler = interest.handler;
-        Attachment attachment = (Attachment) registered.get(handler);
-        if (attachment == null)
+    private void changeInterest(Attachment attachment, int ops) {
+        SelectionKey[] keys = attachment.keys;
+        if (keys == null) // not registered
             return;
 
         // write completed
-        if ((interest.ops & OP_NON_WRITE) != 0)
+        if ((ops & OP_NON_WRITE) != 0)
             attachment.writing = false;
 
-        SelectableChannel[] channels = handler.getChannels();
-        for (int i = 0; i < channels.length; i++) {
-            SelectableChannel channel = channels[i];
-            SelectionKey key = channel.keyFor(selector);
-            if (key != null)
+        for (int i = 0; i < keys.length; i++) {
+            SelectionKey key = keys[i];
+            if (key.isValid())
                 key.interestOps(key.interestOps()
-                        | (channel.validOps() & interest.ops));
+                        | (key.channel().validOps() & ops));
         }
     }
 
-    private void changeDeregister(ReactorHandler handler) {
-        if (registered.remove(handler) != null)
+    private void changeDeregister(Attachment attachment) {
+        ReactorHandler handler = attachment.handler;
+        if (registered.remove(handler) != null) {
+            timingWheel.cancel(attachment);
             dispatchDeregistered(handler);
+        }
     }
 
     private void checkNeedStop() {
@@ -294,45 +385,44 @@ public class DefaultReactor implements Reactor {
     }
 
     private void checkSessionTimeout() {
+        long now = startTime.getElapsedTime();
+
         // reset active handler
         for (Iterator iter = selector.selectedKeys().iterator(); iter.hasNext();) {
             SelectionKey key = (SelectionKey) iter.next();
             Attachment attachment = (Attachment) key.attachment();
-            attachment.idleTime = 0;
+            attachment.lastActiveTime = now;
         }
 
-        // imporve performance, do not check session timeout frequently
-        if (lastSelectTime.getElapsedTime() < SELECT_TIMEOUT)
-            return;
-        int interval = (int) lastSelectTime.reset();
+        // only the sessions near expiry will be checked
+        timingWheel.expire(now, timeoutListener);
+    }
 
-        // check timeout
-        Loop: for (Iterator iter = registered.values().iterator(); iter
-                .hasNext();) {
-            Attachment attachment = (Attachment) iter.next();
-            ReactorHandler handler = attachment.handler;
-            int sessionTimeout = handler.getSession().getSessionTimeout();
-            if (sessionTimeout <= 0 || attachment.writing) {
-                attachment.idleTime = 0;
-                continue;
-            }
+    private void scheduleSessionTimeout(Attachment attachment) {
+        int sessionTimeout = attachment.handler.getSession()
+                .getSessionTimeout();
+        if (sessionTimeout <= 0)
+            sessionTimeout = TIMEOUT_CHECK_INTERVAL;
+        timingWheel.schedule(attachment, attachment.lastActiveTime
+                + sessionTimeout);
+    }
 
-            SelectableChannel[] channels = handler.getChannels();
-            for (int i = 0; i < channels.length; i++) {
-                SelectionKey key = channels[i].keyFor(selector);
-                if ((key.interestOps() & key.readyOps()) != 0) {
-                    continue Loop;
-                }
-            }
+    private void checkSessionTimeout(Attachment attachment, long now) {
+        ReactorHandler handler = attachment.handler;
+        int sessionTimeout = handler.getSession().getSessionTimeout();
+        if (sessionTimeout <= 0 || attachment.writing) {
+            attachment.lastActiveTime = now;
+            scheduleSessionTimeout(attachment);
+            return;
+        }
 
+        if (now - attachment.lastActiveTime >= sessionTimeout) {
             // no event happen
-            int newIdleTime = interval + attachment.idleTime;
-            if (newIdleTime > sessionTimeout) {
-                attachment.idleTime = 0;
-                handler.onTimeout();
-            } else
-                attachment.idleTime = newIdleTime;
-        }
+            attachment.lastActiveTime = now;
+            scheduleSessionTimeout(attachment);
+            handler.onTimeout();
+        } else
+            scheduleSessionTimeout(attachment);
     }
 
     private void processSelectedKeys() {
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio.reactor;
+
+/**
+ * Assign handler to the reactor which has the fewest registered handlers.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class LeastLoadedReactorPolicy implements ReactorPolicy {
+
+    public int choose(ReactorHandler handler, int[] loads) {
+        int index = 0;
+        for (int i = 1; i < loads.length; i++) {
+            if (loads[i] < loads[index])
+                index = i;
+        }
+        return index;
+    }
+
+}
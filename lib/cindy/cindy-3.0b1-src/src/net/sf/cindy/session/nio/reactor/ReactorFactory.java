@@ -33,7 +33,7 @@ public class ReactorFactory {
     private static final Reactor reactor;
 
     static {
-        String className = Configuration.get("session.nio.reactor");
+        String className = Configuration.getReactor();
         Reactor tempReactor = null;
         if (className != null)
             try {
@@ -41,7 +41,13 @@ public class ReactorFactory {
             } catch (Exception e) {
                 log.error(e);
             }
-        reactor = tempReactor == null ? new DefaultReactor() : tempReactor;
+        if (tempReactor == null) {
+            if (Configuration.getReactorConcurrent() > 1)
+                tempReactor = new ReactorPool();
+            else
+                tempReactor = new DefaultReactor();
+        }
+        reactor = tempReactor;
     }
 
     public static Reactor getReactor() {
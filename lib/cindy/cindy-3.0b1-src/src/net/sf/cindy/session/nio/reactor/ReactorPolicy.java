@@ -0,0 +1,38 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio.reactor;
+
+/**
+ * Choose which reactor of a <code>ReactorPool</code> a handler will be
+ * registered on.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public interface ReactorPolicy {
+
+    /**
+     * Choose reactor.
+     *
+     * @param handler
+     *            the handler to be registered
+     * @param loads
+     *            registered handler count of each reactor
+     * @return the index of the chosen reactor
+     */
+    int choose(ReactorHandler handler, int[] loads);
+
+}
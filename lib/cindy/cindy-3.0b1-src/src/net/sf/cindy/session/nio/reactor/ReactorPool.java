@@ -0,0 +1,200 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio.reactor;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+
+import net.sf.cindy.util.Configuration;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentHashMap;
+import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentMap;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reactor pool. Spread handlers over several reactors, each reactor has its
+ * own selector and select thread. Acceptor handlers are always registered on a
+ * separate boss reactor, so accept will not queue behind read and write.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class ReactorPool implements Reactor {
+
+    private static final Log log = LogFactory.getLog(ReactorPool.class);
+
+    /**
+     * Reactor and its registered handler count.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    private static class Loop {
+
+        private final Reactor reactor;
+        private final AtomicInteger load = new AtomicInteger();
+
+        public Loop(Reactor reactor) {
+            this.reactor = reactor;
+        }
+
+    }
+
+    private final Loop boss = new Loop(new DefaultReactor());
+    private final Loop[] workers;
+    private final ReactorPolicy policy;
+
+    /**
+     * Saved all registered handlers. Key is <code>ReactorHandler</code>,
+     * Value is <code>Loop</code>.
+     */
+    private final ConcurrentMap registered = new ConcurrentHashMap();
+
+    public ReactorPool() {
+        this(Configuration.getReactorConcurrent());
+    }
+
+    public ReactorPool(int concurrent) {
+        this(concurrent, createPolicy());
+    }
+
+    public ReactorPool(int concurrent, ReactorPolicy policy) {
+        if (policy == null)
+            throw new NullPointerException();
+        this.policy = policy;
+        workers = new Loop[Math.max(1, concurrent)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Loop(new DefaultReactor());
+        }
+    }
+
+    private static ReactorPolicy createPolicy() {
+        String className = Configuration.getReactorPolicy();
+        if (className != null)
+            try {
+                return (ReactorPolicy) Class.forName(className).newInstance();
+            } catch (Exception e) {
+                log.error(e);
+            }
+        return new RoundRobinReactorPolicy();
+    }
+
+    /**
+     * Get the reactor count, not include the boss reactor.
+     *
+     * @return reactor count
+     */
+    public int getConcurrent() {
+        return workers.length;
+    }
+
+    /**
+     * Get registered handler count of each reactor, not include the boss
+     * reactor.
+     *
+     * @return registered handler count
+     */
+    public int[] getLoads() {
+        int[] loads = new int[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            loads[i] = workers[i].load.get();
+        }
+        return loads;
+    }
+
+    private boolean isAcceptor(ReactorHandler handler) {
+        SelectableChannel[] channels = handler.getChannels();
+        for (int i = 0; i < channels.length; i++) {
+            if ((channels[i].validOps() & SelectionKey.OP_ACCEPT) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    private Loop choose(ReactorHandler handler) {
+        if (isAcceptor(handler))
+            return boss;
+        int index = policy.choose(handler, getLoads());
+        if (index < 0 || index >= workers.length)
+            throw new IllegalStateException("reactor policy " + policy
+                    + " returned invalid index " + index);
+        return workers[index];
+    }
+
+    /**
+     * Get a view of the pool which registers handlers on the given reactor,
+     * the handlers are counted in the load of the reactor. Such as the
+     * sessions accepted by an acceptor are kept on the reactor of the
+     * acceptor.
+     *
+     * @param index
+     *            the index of the reactor, not include the boss reactor
+     * @return reactor view
+     */
+    public Reactor getReactor(int index) {
+        final Loop loop = workers[index];
+        return new Reactor() {
+
+            public void register(ReactorHandler handler) {
+                ReactorPool.this.register(handler, loop);
+            }
+
+            public void deregister(ReactorHandler handler) {
+                ReactorPool.this.deregister(handler);
+            }
+
+            public void interest(ReactorHandler handler, int ops) {
+                ReactorPool.this.interest(handler, ops);
+            }
+        };
+    }
+
+    public void register(ReactorHandler handler) {
+        register(handler, null);
+    }
+
+    private void register(ReactorHandler handler, Loop chosen) {
+        Loop loop = (Loop) registered.get(handler);
+        if (loop == null) {
+            Loop candidate = chosen == null ? choose(handler) : chosen;
+            // concurrent register of the same handler, keep the first loop
+            loop = (Loop) registered.putIfAbsent(handler, candidate);
+            if (loop == null) {
+                loop = candidate;
+                loop.load.incrementAndGet();
+            }
+        }
+        loop.reactor.register(handler);
+    }
+
+    public void deregister(ReactorHandler handler) {
+        Loop loop = (Loop) registered.remove(handler);
+        if (loop != null) {
+            loop.load.decrementAndGet();
+            loop.reactor.deregister(handler);
+        }
+    }
+
+    public void interest(ReactorHandler handler, int ops) {
+        Loop loop = (Loop) registered.get(handler);
+        if (loop != null)
+            loop.reactor.interest(handler, ops);
+    }
+
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class schemas shared by <code>BinaryEncoder</code> and
+ * <code>BinaryDecoder</code>. The schema of a class is its non-static and
+ * non-transient fields, include the fields of super classes, ordered by
+ * declaring class and field name. Both ends must use the same classes.
+ * <p>
+ * A registered class is written as its id, other classes are written as the
+ * class name. Register the classes in the same order at both ends. Decoded
+ * classes must have a no-arg constructor, which may be private.
+ * <p>
+ * The decoder creates instances and sets private fields of the decoded
+ * classes, so a class name read from the peer is only loaded if the class is
+ * registered or explicitly allowed by <code>allow</code>. By default only
+ * registered classes can be decoded.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class BinarySchema {
+
+    public static final int KIND_OBJECT = 0;
+    public static final int KIND_BOOLEAN = 1;
+    public static final int KIND_BYTE = 2;
+    public static final int KIND_SHORT = 3;
+    public static final int KIND_CHAR = 4;
+    public static final int KIND_INT = 5;
+    public static final int KIND_LONG = 6;
+    public static final int KIND_FLOAT = 7;
+    public static final int KIND_DOUBLE = 8;
+
+    public static final byte TAG_NULL = 0;
+    public static final byte TAG_TRUE = 1;
+    public static final byte TAG_FALSE = 2;
+    public static final byte TAG_BYTE = 3;
+    public static final byte TAG_SHORT = 4;
+    public static final byte TAG_CHAR = 5;
+    public static final byte TAG_INT = 6;
+    public static final byte TAG_LONG = 7;
+    public static final byte TAG_FLOAT = 8;
+    public static final byte TAG_DOUBLE = 9;
+    public static final byte TAG_STRING = 10;
+    public static final byte TAG_ARRAY = 11;
+    public static final byte TAG_LIST = 12;
+    public static final byte TAG_SET = 13;
+    public static final byte TAG_MAP = 14;
+    public static final byte TAG_OBJECT_ID = 15;
+    public static final byte TAG_OBJECT_NAME = 16;
+
+    private static final String[] COMPONENT_TYPES = { "java.lang.Object",
+            "java.lang.String", "java.lang.Boolean", "java.lang.Byte",
+            "java.lang.Short", "java.lang.Character", "java.lang.Integer",
+            "java.lang.Long", "java.lang.Float", "java.lang.Double",
+            "java.lang.Number" };
+
+    private static final Comparator FIELD_COMPARATOR = new Comparator() {
+
+        public int compare(Object o1, Object o2) {
+            return ((Field) o1).getName().compareTo(((Field) o2).getName());
+        }
+    };
+
+    /**
+     * Get the kind of the type, KIND_OBJECT if not primitive type.
+     * 
+     * @param type
+     *            type
+     * @return kind
+     */
+    public static int getKind(Class type) {
+        if (type == Boolean.TYPE)
+            return KIND_BOOLEAN;
+        if (type == Byte.TYPE)
+            return KIND_BYTE;
+        if (type == Short.TYPE)
+            return KIND_SHORT;
+        if (type == Character.TYPE)
+            return KIND_CHAR;
+        if (type == Integer.TYPE)
+            return KIND_INT;
+        if (type == Long.TYPE)
+            return KIND_LONG;
+        if (type == Float.TYPE)
+            return KIND_FLOAT;
+        if (type == Double.TYPE)
+            return KIND_DOUBLE;
+        return KIND_OBJECT;
+    }
+
+    /**
+     * Schema of a class.
+     * 
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    public static class ClassSchema {
+
+        private final Class type;
+        private final int id;
+        private final Field[] fields;
+        private final int[] kinds;
+        private Constructor constructor;
+
+        private ClassSchema(Class type, int id) {
+            this.type = type;
+            this.id = id;
+
+            List list = new ArrayList();
+            for (Class c = type; c != null && c != Object.class; c = c
+                    .getSuperclass()) {
+                Field[] declared = c.getDeclaredFields();
+                Arrays.sort(declared, FIELD_COMPARATOR);
+                List declaredList = new ArrayList();
+                for (int i = 0; i < declared.length; i++) {
+                    int modifiers = declared[i].getModifiers();
+                    if (Modifier.isStatic(modifiers)
+                            || Modifier.isTransient(modifiers))
+                        continue;
+                    declared[i].setAccessible(true);
+                    declaredList.add(declared[i]);
+                }
+                list.addAll(0, declaredList); // super class fields first
+            }
+            fields = (Field[]) list.toArray(new Field[list.size()]);
+            kinds = new int[fields.length];
+            for (int i = 0; i < fields.length; i++)
+                kinds[i] = getKind(fields[i].getType());
+        }
+
+        public Class getType() {
+            return type;
+        }
+
+        /**
+         * Get the registered id.
+         * 
+         * @return id, 0 if the class is not registered
+         */
+        public int getId() {
+            return id;
+        }
+
+        public Field[] getFields() {
+            return fields;
+        }
+
+        public int[] getKinds() {
+            return kinds;
+        }
+
+        /**
+         * Create an instance by the no-arg constructor.
+         * 
+         * @return new instance
+         * @throws Exception
+         */
+        public Object newInstance() throws Exception {
+            if (constructor == null) {
+                Constructor c = type.getDeclaredConstructor(new Class[0]);
+                c.setAccessible(true);
+                constructor = c;
+            }
+            return constructor.newInstance(new Object[0]);
+        }
+    }
+
+    private volatile ClassSchema[] registered = new ClassSchema[0];
+    private volatile Map schemas = new HashMap(); // copy on write
+    private volatile Map classes = new HashMap(); // copy on write
+    private volatile String[] allowed = new String[0];
+
+    /**
+     * Register the class, the id is the order of registration, starts from 1.
+     * 
+     * @param type
+     *            registered class
+     * @return id
+     */
+    public synchronized int register(Class type) {
+        if (type.isPrimitive() || type.isArray() || type.isInterface())
+            throw new IllegalArgumentException("can't register " + type);
+        ClassSchema schema = (ClassSchema) schemas.get(type);
+        if (schema != null && schema.getId() > 0)
+            return schema.getId();
+        schema = new ClassSchema(type, registered.length + 1);
+        ClassSchema[] array = new ClassSchema[registered.length + 1];
+        System.arraycopy(registered, 0, array, 0, registered.length);
+        array[registered.length] = schema;
+        registered = array;
+        put(type, schema);
+        return schema.getId();
+    }
+
+    private synchronized void put(Class type, ClassSchema schema) {
+        Map map = new HashMap(schemas);
+        map.put(type, schema);
+        schemas = map;
+    }
+
+    /**
+     * Allow the class to be decoded by name. If the name ends with '.', all
+     * classes of the package and its sub packages are allowed.
+     * 
+     * @param name
+     *            class name or package prefix
+     */
+    public synchronized void allow(String name) {
+        if (name == null)
+            throw new NullPointerException();
+        if (name.length() == 0)
+            throw new IllegalArgumentException();
+        String[] array = new String[allowed.length + 1];
+        System.arraycopy(allowed, 0, array, 0, allowed.length);
+        array[allowed.length] = name;
+        allowed = array;
+    }
+
+    /**
+     * Is the class name can be decoded, that is the class is registered or
+     * allowed. An array class is allowed if its element type is primitive or
+     * allowed.
+     * 
+     * @param className
+     *            class name
+     * @return allowed
+     */
+    public boolean isAllowed(String className) {
+        if (className.startsWith("[")) {
+            int i = className.lastIndexOf('[') + 1;
+            if (className.length() == i + 1)
+                return "ZBSCIJFD".indexOf(className.charAt(i)) >= 0;
+            if (className.charAt(i) != 'L' || !className.endsWith(";"))
+                return false;
+            return isComponentAllowed(className.substring(i + 1, className
+                    .length() - 1));
+        }
+
+        ClassSchema[] array = registered;
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].getType().getName().equals(className))
+                return true;
+        }
+        String[] names = allowed;
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            if (name.endsWith(".") ? className.startsWith(name) : className
+                    .equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isComponentAllowed(String className) {
+        for (int i = 0; i < COMPONENT_TYPES.length; i++) {
+            if (COMPONENT_TYPES[i].equals(className))
+                return true;
+        }
+        return isAllowed(className);
+    }
+
+    /**
+     * Load the class by name, only registered or allowed classes are loaded,
+     * loaded classes are cached.
+     * 
+     * @param className
+     *            class name
+     * @return class
+     * @throws ClassNotFoundException
+     *             the class not found or not allowed
+     */
+    public Class forName(String className) throws ClassNotFoundException {
+        Class type = (Class) classes.get(className);
+        if (type == null) {
+            if (!isAllowed(className))
+                throw new ClassNotFoundException(className + " not allowed");
+            type = load(className);
+        }
+        return type;
+    }
+
+    /**
+     * Load the component type of array by name. Besides registered or allowed
+     * classes, <code>Object</code>, <code>String</code> and the primitive
+     * wrappers are allowed.
+     * 
+     * @param className
+     *            class name
+     * @return class
+     * @throws ClassNotFoundException
+     *             the class not found or not allowed
+     */
+    public Class forComponentName(String className)
+            throws ClassNotFoundException {
+        Class type = (Class) classes.get(className);
+        if (type == null) {
+            if (!isComponentAllowed(className))
+                throw new ClassNotFoundException(className + " not allowed");
+            type = load(className);
+        }
+        return type;
+    }
+
+    private Class load(String className) throws ClassNotFoundException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null)
+            loader = BinarySchema.class.getClassLoader();
+        Class type = Class.forName(className, false, loader);
+        synchronized (this) {
+            Map map = new HashMap(classes);
+            map.put(className, type);
+            classes = map;
+        }
+        return type;
+    }
+
+    /**
+     * Get the schema of the class.
+     * 
+     * @param type
+     *            class
+     * @return schema
+     */
+    public ClassSchema getSchema(Class type) {
+        ClassSchema schema = (ClassSchema) schemas.get(type);
+        if (schema == null) {
+            synchronized (this) {
+                schema = (ClassSchema) schemas.get(type);
+                if (schema == null) {
+                    schema = new ClassSchema(type, 0);
+                    put(type, schema);
+                }
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * Get the schema of the registered class.
+     * 
+     * @param id
+     *            registered id
+     * @return schema
+     */
+    public ClassSchema getSchema(int id) {
+        ClassSchema[] array = registered;
+        if (id <= 0 || id > array.length)
+            throw new IllegalArgumentException("unknown class id " + id);
+        return array[id - 1];
+    }
+
+    /**
+     * Get the schema of the class name.
+     * 
+     * @param className
+     *            class name
+     * @return schema
+     * @throws ClassNotFoundException
+     */
+    public ClassSchema getSchema(String className)
+            throws ClassNotFoundException {
+        return getSchema(forName(className));
+    }
+
+}
@@ -18,6 +18,8 @@ package net.sf.cindy.util;
 import java.io.IOException;
 import java.nio.channels.Channel;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
 
 /**
  * Utils for java nio channels.
@@ -42,6 +44,54 @@ public final class ChannelUtils {
         }
     }
 
+    /**
+     * Enable SO_REUSEPORT of the server socket channel, several channels can
+     * be bound to the same address and the kernel spreads connections over
+     * them. Call before the channel bound. Require java 9 and platform
+     * support, invoked by reflection.
+     * 
+     * @param channel
+     *            server socket channel
+     * @return false if SO_REUSEPORT is not supported
+     */
+    public static boolean setReusePort(final ServerSocketChannel channel) {
+        try {
+            Object option = Class.forName("java.net.StandardSocketOptions")
+                    .getField("SO_REUSEPORT").get(null);
+            Class networkChannel = Class
+                    .forName("java.nio.channels.NetworkChannel");
+            Set options = (Set) networkChannel.getMethod("supportedOptions",
+                    new Class[0]).invoke(channel, new Object[0]);
+            if (!options.contains(option))
+                return false;
+            networkChannel.getMethod(
+                    "setOption",
+                    new Class[] { Class.forName("java.net.SocketOption"),
+                            Object.class }).invoke(channel,
+                    new Object[] { option, Boolean.TRUE });
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Is SO_REUSEPORT of server socket channel supported.
+     * 
+     * @return supported
+     */
+    public static boolean isReusePortSupported() {
+        ServerSocketChannel channel = null;
+        try {
+            channel = ServerSocketChannel.open();
+            return setReusePort(channel);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            close(channel);
+        }
+    }
+
     /**
      * Close selector and ignore any exceptions.
      * 
@@ -24,11 +24,14 @@ import java.util.Properties;
 import java.util.Map.Entry;
 
 import net.sf.cindy.buffer.DefaultBufferPool;
+import net.sf.cindy.session.bio.BlockingSessionAcceptor;
+import net.sf.cindy.session.bio.BlockingSocketSession;
 import net.sf.cindy.session.dispatcher.DefaultDispatcher;
 import net.sf.cindy.session.nio.DatagramChannelSession;
 import net.sf.cindy.session.nio.NonBlockingSessionAcceptor;
 import net.sf.cindy.session.nio.PipeSession;
 import net.sf.cindy.session.nio.SocketChannelSession;
+import net.sf.cindy.session.nio.reactor.RoundRobinReactorPolicy;
 
 /**
  * Cindy configuration.
@@ -106,7 +109,7 @@ public class Configuration {
         String value = get(key);
         if ("true".equalsIgnoreCase(value))
             return true;
-        else if ("false".equalsIgnoreCase("value"))
+        else if ("false".equalsIgnoreCase(value))
             return false;
         return defaultValue;
     }
@@ -135,6 +138,26 @@ public class Configuration {
         return getBoolean("buffer.useLinkedBuffer", false);
     }
 
+    public static String getLeakDetection() {
+        return get("buffer.leakDetection", "sampled");
+    }
+
+    public static int getLeakDetectionInterval() {
+        return getInt("buffer.leakDetection.interval", 128);
+    }
+
+    public static int getArenaCount() {
+        return getInt("buffer.arena.count", getReactorConcurrent());
+    }
+
+    public static int getArenaPageSize() {
+        return getInt("buffer.arena.pageSize", 8192);
+    }
+
+    public static int getArenaChunkSize() {
+        return getInt("buffer.arena.chunkSize", 4 * 1024 * 1024);
+    }
+
     // Dispatcher
 
     public static String getDispatcher() {
@@ -183,6 +206,66 @@ public class Configuration {
         return getInt("session.readPacketSize", 8192);
     }
 
+    public static int getWriteBufferHighWatermark() {
+        return getInt("session.writeBuffer.high", 64 * 1024);
+    }
+
+    public static int getWriteBufferLowWatermark() {
+        return getInt("session.writeBuffer.low", 32 * 1024);
+    }
+
+    public static int getWriteBufferLimit() {
+        return getInt("session.writeBuffer.limit", 0);
+    }
+
+    public static boolean isCloseOnWriteBufferLimit() {
+        return getBoolean("session.writeBuffer.closeOnLimit", false);
+    }
+
+    public static boolean isWriteBatch() {
+        return getBoolean("session.writeBatch", false);
+    }
+
+    public static int getWriteBatchWindow() {
+        return getInt("session.writeBatch.window", 0);
+    }
+
+    public static int getWriteBatchSize() {
+        return getInt("session.writeBatch.size", 8192);
+    }
+
+    public static int getDatagramBatch() {
+        return getInt("session.datagramBatch", 0);
+    }
+
+    public static int getDatagramBatchSize() {
+        return getInt("session.datagramBatch.size", 64 * 1024);
+    }
+
+    public static boolean isLatencyEnabled() {
+        return getBoolean("session.latency", false);
+    }
+
+    public static boolean isAdaptiveRead() {
+        return getBoolean("session.adaptiveRead", true);
+    }
+
+    public static int getMinReadPacketSize() {
+        return getInt("session.readPacketSize.min", 64);
+    }
+
+    public static int getMaxReadPacketSize() {
+        return getInt("session.readPacketSize.max", 64 * 1024);
+    }
+
+    public static int getMaxReadsPerLoop() {
+        return getInt("session.maxReadsPerLoop", 16);
+    }
+
+    public static boolean isGatheringWrite() {
+        return getBoolean("session.gatheringWrite", true);
+    }
+
     public static int getWritePacketSize() {
         // NIO channel do not handle WSAENOBUFS, so we can't direct write the
         // whole packet to channel.
@@ -193,6 +276,11 @@ public class Configuration {
         return get("session.type.tcp", SocketChannelSession.class.getName());
     }
 
+    public static String getBlockingTcpSession() {
+        return get("session.type.blockingTcp", BlockingSocketSession.class
+                .getName());
+    }
+
     public static String getUdpSession() {
         return get("session.type.udp", DatagramChannelSession.class.getName());
     }
@@ -205,6 +293,19 @@ public class Configuration {
         return get("session.type.file");
     }
 
+    public static String getReactor() {
+        return get("session.nio.reactor");
+    }
+
+    public static int getReactorConcurrent() {
+        return getInt("session.nio.reactor.concurrent", 1);
+    }
+
+    public static String getReactorPolicy() {
+        return get("session.nio.reactor.policy", RoundRobinReactorPolicy.class
+                .getName());
+    }
+
     // Acceptor
 
     public static String getTcpAcceptor() {
@@ -212,6 +313,11 @@ public class Configuration {
                 .getName());
     }
 
+    public static String getBlockingTcpAcceptor() {
+        return get("acceptor.type.blockingTcp", BlockingSessionAcceptor.class
+                .getName());
+    }
+
     public static int getAcceptorBacklog() {
         return getInt("acceptor.backlog", 100);
     }
@@ -220,4 +326,8 @@ public class Configuration {
         return getBoolean("acceptor.reuseAddress", false);
     }
 
+    public static int getAcceptorConcurrent() {
+        return getInt("acceptor.concurrent", 1);
+    }
+
 }
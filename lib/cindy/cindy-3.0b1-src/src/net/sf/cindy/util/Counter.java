@@ -0,0 +1,100 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.util;
+
+/**
+ * Striped long counter. Threads add to the cell of their stripe, the sum is
+ * the total of all cells, so a counter shared by many dispatcher threads is
+ * not a contention point. Cells are created when first used.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public final class Counter {
+
+    private static class Cell {
+
+        long value;
+
+        // avoid false sharing of adjacent cells
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private final Cell[] cells = new Cell[Stripes.COUNT];
+
+    private Cell getCell() {
+        int index = Stripes.getIndex();
+        Cell cell = cells[index];
+        if (cell == null) {
+            synchronized (cells) {
+                cell = cells[index];
+                if (cell == null) {
+                    cell = new Cell();
+                    cells[index] = cell;
+                }
+            }
+        }
+        return cell;
+    }
+
+    /**
+     * Add value.
+     * 
+     * @param value
+     *            added value
+     */
+    public void add(long value) {
+        Cell cell = getCell();
+        synchronized (cell) {
+            cell.value += value;
+        }
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Get the sum of all added values since created or reset.
+     * 
+     * @return sum
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            if (cell != null)
+                synchronized (cell) {
+                    sum += cell.value;
+                }
+        }
+        return sum;
+    }
+
+    /**
+     * Reset to 0.
+     */
+    public void reset() {
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            if (cell != null)
+                synchronized (cell) {
+                    cell.value = 0;
+                }
+        }
+    }
+
+}
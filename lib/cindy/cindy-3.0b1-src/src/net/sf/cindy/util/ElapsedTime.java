@@ -38,6 +38,8 @@ public final class ElapsedTime {
 
         long toMillisecond(long time);
 
+        long toMicrosecond(long time);
+
     }
 
     private static class SimpleProvider implements TimeProvider {
@@ -50,6 +52,10 @@ public final class ElapsedTime {
             return time;
         }
 
+        public long toMicrosecond(long time) {
+            return time * 1000;
+        }
+
     }
 
     private static class NanoTimeProvider implements TimeProvider {
@@ -61,6 +67,10 @@ public final class ElapsedTime {
         public long toMillisecond(long time) {
             return time / 1000000;
         }
+
+        public long toMicrosecond(long time) {
+            return time / 1000;
+        }
     }
 
     private static class PerfProvider implements TimeProvider {
@@ -75,6 +85,10 @@ public final class ElapsedTime {
         public long toMillisecond(long time) {
             return (long) ((double) time * 1000 / frequency);
         }
+
+        public long toMicrosecond(long time) {
+            return (long) ((double) time * 1000000 / frequency);
+        }
     }
 
     private static final TimeProvider TIME_PROVIDER;
@@ -101,7 +115,16 @@ public final class ElapsedTime {
         TIME_PROVIDER = provider;
     }
 
-    private long startTime = TIME_PROVIDER.getCurrentTime();
+    /**
+     * Get current time in microseconds, only used to compute time intervals.
+     * 
+     * @return current time
+     */
+    public static long currentTimeMicros() {
+        return TIME_PROVIDER.toMicrosecond(TIME_PROVIDER.getCurrentTime());
+    }
+
+    private volatile long startTime = TIME_PROVIDER.getCurrentTime();
 
     /**
      * Get elapsed time in milliseconds.
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.util;
+
+/**
+ * Striped histogram of non-negative long values, such as packet sizes or
+ * latencies. Buckets are log-linear: each power of 2 range is divided into
+ * 2^subBucketBits buckets, so the relative error of the reported percentiles
+ * is less than 1 / 2^subBucketBits. Values greater than the highest value are
+ * recorded as the highest value.
+ * <p>
+ * Threads record to the cells of their stripe, a histogram shared by many
+ * dispatcher threads is not a contention point.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public final class Histogram {
+
+    private static class Cell {
+
+        private final long[] counts;
+        private long count;
+        private long sum;
+        private long max;
+
+        // avoid false sharing of adjacent cells
+        long p1, p2, p3, p4, p5, p6, p7;
+
+        public Cell(int size) {
+            counts = new long[size];
+        }
+    }
+
+    private final long highestValue;
+    private final int subBucketBits;
+    private final int bucketCount;
+    private final Cell[] cells = new Cell[Stripes.COUNT];
+
+    /**
+     * Create a histogram.
+     * 
+     * @param highestValue
+     *            highest recorded value
+     * @param subBucketBits
+     *            precision bits, 1 to 10
+     */
+    public Histogram(long highestValue, int subBucketBits) {
+        if (highestValue < 1 || subBucketBits < 1 || subBucketBits > 10)
+            throw new IllegalArgumentException();
+        this.highestValue = highestValue;
+        this.subBucketBits = subBucketBits;
+        this.bucketCount = getIndex(highestValue) + 1;
+    }
+
+    public long getHighestValue() {
+        return highestValue;
+    }
+
+    private static int highestBit(long value) {
+        int bit = 0;
+        if ((value >>> 32) != 0) {
+            value >>>= 32;
+            bit += 32;
+        }
+        if ((value >>> 16) != 0) {
+            value >>>= 16;
+            bit += 16;
+        }
+        if ((value >>> 8) != 0) {
+            value >>>= 8;
+            bit += 8;
+        }
+        if ((value >>> 4) != 0) {
+            value >>>= 4;
+            bit += 4;
+        }
+        if ((value >>> 2) != 0) {
+            value >>>= 2;
+            bit += 2;
+        }
+        if ((value >>> 1) != 0)
+            bit += 1;
+        return bit;
+    }
+
+    private int getIndex(long value) {
+        int shift = Math.max(0, highestBit(value) - subBucketBits);
+        return (shift << subBucketBits) + (int) (value >>> shift);
+    }
+
+    /**
+     * Get the highest value of the bucket.
+     */
+    private long getValue(int index) {
+        int shift = Math.max(0, (index >>> subBucketBits) - 1);
+        long value = (long) (index - (shift << subBucketBits)) << shift;
+        return Math.min(highestValue, value + (1L << shift) - 1);
+    }
+
+    private Cell getCell() {
+        int index = Stripes.getIndex();
+        Cell cell = cells[index];
+        if (cell == null) {
+            synchronized (cells) {
+                cell = cells[index];
+                if (cell == null) {
+                    cell = new Cell(bucketCount);
+                    cells[index] = cell;
+                }
+            }
+        }
+        return cell;
+    }
+
+    /**
+     * Record a value.
+     * 
+     * @param value
+     *            recorded value, negative value is ignored
+     */
+    public void record(long value) {
+        if (value < 0)
+            return;
+        if (value > highestValue)
+            value = highestValue;
+        int index = getIndex(value);
+        Cell cell = getCell();
+        synchronized (cell) {
+            cell.counts[index]++;
+            cell.count++;
+            cell.sum += value;
+            if (value > cell.max)
+                cell.max = value;
+        }
+    }
+
+    /**
+     * Get the count of recorded values.
+     * 
+     * @return count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            if (cell != null)
+                synchronized (cell) {
+                    count += cell.count;
+                }
+        }
+        return count;
+    }
+
+    /**
+     * Get the mean of recorded values.
+     * 
+     * @return mean, 0 if no value recorded
+     */
+    public double getMean() {
+        long count = 0;
+        long sum = 0;
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            if (cell != null)
+                synchronized (cell) {
+                    count += cell.count;
+                    sum += cell.sum;
+                }
+        }
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Get the max recorded value.
+     * 
+     * @return max value, 0 if no value recorded
+     */
+    public long getMax() {
+        long max = 0;
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            if (cell != null)
+                synchronized (cell) {
+                    max = Math.max(max, cell.max);
+                }
+        }
+        return max;
+    }
+
+    /**
+     * Get the value at the percentile, such as 50 for the median or 99.9.
+     * 
+     * @param percentile
+     *            percentile, 0 to 100
+     * @return value that the percentile of recorded values are less than or
+     *         equal to, 0 if no value recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[bucketCount];
+        long count = 0;
+        long max = 0;
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            if (cell != null)
+                synchronized (cell) {
+                    for (int j = 0; j < bucketCount; j++)
+                        counts[j] += cell.counts[j];
+                    count += cell.count;
+                    max = Math.max(max, cell.max);
+                }
+        }
+        if (count == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0,
+                percentile))
+                / 100 * count));
+        long total = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            total += counts[i];
+            if (total >= target)
+                return Math.min(max, getValue(i));
+        }
+        return max;
+    }
+
+    /**
+     * Reset all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            if (cell != null)
+                synchronized (cell) {
+                    for (int j = 0; j < bucketCount; j++)
+                        cell.counts[j] = 0;
+                    cell.count = 0;
+                    cell.sum = 0;
+                    cell.max = 0;
+                }
+        }
+    }
+
+}
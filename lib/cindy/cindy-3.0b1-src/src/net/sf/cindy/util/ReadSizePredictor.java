@@ -0,0 +1,125 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.util;
+
+/**
+ * Predict the read buffer size by the recent read sizes. The size grows fast
+ * when a read fills the whole buffer, and shrinks slowly when two reads in a
+ * row are much smaller than the buffer.
+ * <p>
+ * Sizes are picked from a table: multiples of 16 below 512, and powers of 2
+ * from 512. This class is not thread safe, it's intended to be used in the
+ * reactor thread.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class ReadSizePredictor {
+
+    private static final int INDEX_INCREMENT = 4;
+    private static final int INDEX_DECREMENT = 1;
+
+    private static final int[] SIZE_TABLE;
+
+    static {
+        int count = 512 / 16 - 1;
+        for (int size = 512; size > 0; size <<= 1)
+            count++;
+        SIZE_TABLE = new int[count];
+        int i = 0;
+        for (int size = 16; size < 512; size += 16)
+            SIZE_TABLE[i++] = size;
+        for (int size = 512; size > 0; size <<= 1)
+            SIZE_TABLE[i++] = size;
+    }
+
+    /**
+     * Get the index of the smallest size not less than the given size.
+     */
+    private static int getIndex(int size) {
+        int low = 0;
+        int high = SIZE_TABLE.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (SIZE_TABLE[mid] < size)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private final int minIndex;
+    private final int maxIndex;
+
+    private int index;
+    private volatile int nextReadSize; // read by statistic
+    private boolean decreaseNow;
+
+    /**
+     * Create a predictor.
+     *
+     * @param minimum
+     *            minimum read size
+     * @param initial
+     *            initial read size
+     * @param maximum
+     *            maximum read size
+     */
+    public ReadSizePredictor(int minimum, int initial, int maximum) {
+        if (minimum <= 0 || initial < minimum || maximum < initial)
+            throw new IllegalArgumentException();
+        minIndex = getIndex(minimum);
+        int i = getIndex(maximum);
+        if (SIZE_TABLE[i] > maximum)
+            i--; // not exceed maximum
+        maxIndex = Math.max(minIndex, i);
+        index = Math.min(maxIndex, Math.max(minIndex, getIndex(initial)));
+        nextReadSize = SIZE_TABLE[index];
+    }
+
+    /**
+     * Get the buffer size of the next read.
+     *
+     * @return read size
+     */
+    public int getNextReadSize() {
+        return nextReadSize;
+    }
+
+    /**
+     * Record the bytes actually read by the last read.
+     *
+     * @param readBytes
+     *            read bytes
+     */
+    public void record(int readBytes) {
+        if (readBytes <= SIZE_TABLE[Math.max(0, index - INDEX_DECREMENT - 1)]) {
+            if (decreaseNow) {
+                index = Math.max(index - INDEX_DECREMENT, minIndex);
+                nextReadSize = SIZE_TABLE[index];
+                decreaseNow = false;
+            } else {
+                decreaseNow = true;
+            }
+        } else if (readBytes >= nextReadSize) {
+            index = Math.min(index + INDEX_INCREMENT, maxIndex);
+            nextReadSize = SIZE_TABLE[index];
+            decreaseNow = false;
+        }
+    }
+
+}
@@ -16,13 +16,54 @@
 package net.sf.cindy.util;
 
 /**
- * Compute speed.
+ * Compute speed. Values are added to the time buckets of the stripe of the
+ * current thread, a speed shared by many threads is not a contention point
+ * and no value is lost.
  * 
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
  * @version $id$
  */
 public final class Speed {
 
+    /**
+     * Ring of time buckets of a stripe, guarded by itself.
+     */
+    private static class Cell {
+
+        private final long[] values;
+        private final long[] timeFactors;
+        private long totalValue;
+
+        // avoid false sharing of adjacent cells
+        long p1, p2, p3, p4, p5, p6, p7;
+
+        public Cell(int n) {
+            values = new long[n];
+            timeFactors = new long[n];
+        }
+
+        public void add(int index, long timeFactor, long value) {
+            if (timeFactors[index] != timeFactor) {
+                timeFactors[index] = timeFactor;
+                values[index] = 0;
+            }
+            values[index] += value;
+            totalValue += value;
+        }
+
+        public long get(int index, long timeFactor) {
+            return timeFactors[index] == timeFactor ? values[index] : 0;
+        }
+
+        public void reset() {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = 0;
+                timeFactors[i] = 0;
+            }
+            totalValue = 0;
+        }
+    }
+
     private final ElapsedTime time = new ElapsedTime();
 
     private final int refreshRate;
@@ -30,16 +71,15 @@ public final class Speed {
     // instantaneous speed = values[x]*rate[0] + values[x+1]*rate[1] + ... / len
     // rate[0] + rate[1] + ... + rate[len-1] = n
     // rate[i] > 0
-    private final long[] values;
     private final double[] rate;
 
-    private long lastUpdateTimeFactor;
-    private long currentValue;
-    private long totalValue;
+    // ring of n completed buckets and the current bucket
+    private final int buckets;
+    private final Cell[] cells = new Cell[Stripes.COUNT];
 
     private Speed(int refreshRate, int n) {
         this.refreshRate = refreshRate;
-        this.values = new long[n];
+        this.buckets = n + 1;
 
         this.rate = new double[n];
 
@@ -79,37 +119,34 @@ public final class Speed {
     /**
      * Reset all values.
      */
-    public synchronized void reset() {
-        lastUpdateTimeFactor = 0;
-        currentValue = 0;
-        totalValue = 0;
-        for (int i = 0; i < values.length; i++) {
-            values[i] = 0;
+    public void reset() {
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            if (cell != null)
+                synchronized (cell) {
+                    cell.reset();
+                }
         }
         time.reset();
     }
 
     private int getIndex(long factor) {
-        return Math.abs((int) (factor % values.length));
+        return (int) (factor % buckets);
     }
 
-    private synchronized void update(long timeFactor) {
-        if (lastUpdateTimeFactor == timeFactor) {
-            return;
-        }
-
-        values[getIndex(lastUpdateTimeFactor)] = currentValue;
-        currentValue = 0;
-
-        if (lastUpdateTimeFactor < timeFactor - values.length) {
-            // Reduce Loop
-            lastUpdateTimeFactor = timeFactor - values.length - 1;
+    private Cell getCell() {
+        int index = Stripes.getIndex();
+        Cell cell = cells[index];
+        if (cell == null) {
+            synchronized (cells) {
+                cell = cells[index];
+                if (cell == null) {
+                    cell = new Cell(buckets);
+                    cells[index] = cell;
+                }
+            }
         }
-        // Reset old values
-        for (long i = lastUpdateTimeFactor + 1; i < timeFactor; i++) {
-            values[getIndex(i)] = 0;
-        }
-        lastUpdateTimeFactor = timeFactor;
+        return cell;
     }
 
     /**
@@ -121,9 +158,10 @@ public final class Speed {
     public void addValue(long value) {
         if (value > 0) {
             long timeFactor = time.getElapsedTime() / refreshRate;
-            update(timeFactor);
-            currentValue += value;
-            totalValue += value;
+            Cell cell = getCell();
+            synchronized (cell) {
+                cell.add(getIndex(timeFactor), timeFactor, value);
+            }
         }
     }
 
@@ -133,7 +171,15 @@ public final class Speed {
      * @return total value
      */
     public long getTotalValue() {
-        return totalValue;
+        long sum = 0;
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            if (cell != null)
+                synchronized (cell) {
+                    sum += cell.totalValue;
+                }
+        }
+        return sum;
     }
 
     /**
@@ -152,12 +198,35 @@ public final class Speed {
      */
     public double getAvgSpeed() {
         long elapsedTime = time.getElapsedTime();
+        long totalValue = getTotalValue();
         if (totalValue == 0 && elapsedTime == 0) {
             return 0;
         }
         return (double) totalValue * 1000 / elapsedTime;
     }
 
+    /**
+     * Get the value added in the last completed refresh period, such as the
+     * bytes received in the last second.
+     * 
+     * @return value of the last period
+     */
+    public long getLastValue() {
+        long timeFactor = time.getElapsedTime() / refreshRate - 1;
+        if (timeFactor < 0)
+            return 0;
+        long sum = 0;
+        int index = getIndex(timeFactor);
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            if (cell != null)
+                synchronized (cell) {
+                    sum += cell.get(index, timeFactor);
+                }
+        }
+        return sum;
+    }
+
     /**
      * Get current speed(unit/s).
      * 
@@ -165,13 +234,21 @@ public final class Speed {
      */
     public double getSpeed() {
         long timeFactor = time.getElapsedTime() / refreshRate;
-        update(timeFactor);
 
         double sum = 0;
-        for (int i = 0; i < values.length; i++) {
-            int index = getIndex(timeFactor - i - 1);
-            sum += values[index] * rate[i];
+        for (int i = 0; i < rate.length && timeFactor - i - 1 >= 0; i++) {
+            long factor = timeFactor - i - 1;
+            int index = getIndex(factor);
+            long value = 0;
+            for (int j = 0; j < cells.length; j++) {
+                Cell cell = cells[j];
+                if (cell != null)
+                    synchronized (cell) {
+                        value += cell.get(index, factor);
+                    }
+            }
+            sum += value * rate[i];
         }
-        return sum * 1000 / refreshRate / values.length;
+        return sum * 1000 / refreshRate / rate.length;
     }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.util;
+
+/**
+ * Stripe index of the current thread. Striped statistics give each stripe
+ * its own lock and cells, threads of different stripes never contend. The
+ * index is assigned round robin when a thread first uses it.
+ * <p>
+ * Each cell is guarded by its own monitor, not updated by CAS. Cells are
+ * padded by 7 unused long fields after the updated fields, so adjacent cells
+ * are unlikely to share a cache line. The JVM doesn't guarantee the field
+ * layout, and the arrays held by a cell (buckets of <code>Speed</code> and
+ * <code>Histogram</code>) are separate objects which are not padded.
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+final class Stripes {
+
+    /**
+     * Stripe count, power of 2 not less than twice the processors.
+     */
+    static final int COUNT;
+
+    static {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int count = 1;
+        while (count < processors * 2 && count < 256)
+            count <<= 1;
+        COUNT = count;
+    }
+
+    private static int next;
+
+    private static final ThreadLocal INDEX = new ThreadLocal() {
+
+        protected Object initialValue() {
+            synchronized (Stripes.class) {
+                return new Integer(next++ & (COUNT - 1));
+            }
+        }
+    };
+
+    private Stripes() {
+    }
+
+    /**
+     * Get the stripe index of the current thread.
+     * 
+     * @return stripe index
+     */
+    static int getIndex() {
+        return ((Integer) INDEX.get()).intValue();
+    }
+
+}
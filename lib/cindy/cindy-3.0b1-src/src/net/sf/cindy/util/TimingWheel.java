@@ -0,0 +1,207 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.util;
+
+/**
+ * Hashed timing wheel. Schedule, cancel and expire an entry are all O(1), the
+ * expire operation only touch the entries in the passed buckets. Entries are
+ * linked in the buckets directly, so schedule an entry will not allocate any
+ * object.
+ * <p>
+ * This class is not thread safe, it's intended to be used in a single thread
+ * such as the reactor thread.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class TimingWheel {
+
+    /**
+     * Timing wheel entry. An entry can be scheduled in only one timing wheel
+     * at the same time.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    public static class Entry {
+
+        private Entry prev, next;
+        private long deadlineTick;
+        private int bucket = -1;
+
+        public boolean isScheduled() {
+            return bucket >= 0;
+        }
+
+    }
+
+    /**
+     * Receive expired entries.
+     *
+     * @author <a href="chenrui@gmail.com">Roger Chen</a>
+     * @version $id$
+     */
+    public static interface Listener {
+
+        /**
+         * The entry have expired, and it's no longer scheduled. The entry can
+         * be re-scheduled in this method.
+         *
+         * @param entry
+         *            expired entry
+         * @param now
+         *            current time
+         */
+        void expired(Entry entry, long now);
+
+    }
+
+    private final Entry[] buckets;
+    private final int mask;
+    private final long tickDuration;
+
+    private long currentTick;
+    private int size;
+
+    /**
+     * Create a timing wheel.
+     *
+     * @param tickDuration
+     *            tick duration, in milliseconds
+     * @param ticksPerWheel
+     *            bucket count, will be normalized to power of 2
+     */
+    public TimingWheel(long tickDuration, int ticksPerWheel) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0)
+            throw new IllegalArgumentException();
+        int n = 1;
+        while (n < ticksPerWheel)
+            n <<= 1;
+        this.buckets = new Entry[n];
+        this.mask = n - 1;
+        this.tickDuration = tickDuration;
+    }
+
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * Get scheduled entry count.
+     *
+     * @return scheduled entry count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedule the entry. If the entry has been scheduled, it will be
+     * re-scheduled.
+     *
+     * @param entry
+     *            entry
+     * @param deadline
+     *            expire time, in the same timeline as the <code>now</code>
+     *            parameter of the expire method
+     */
+    public void schedule(Entry entry, long deadline) {
+        cancel(entry);
+
+        // round up, an entry never expire before its deadline
+        long tick = (deadline + tickDuration - 1) / tickDuration;
+        if (tick <= currentTick)
+            tick = currentTick + 1;
+
+        int index = (int) (tick & mask);
+        entry.deadlineTick = tick;
+        entry.bucket = index;
+        entry.prev = null;
+        entry.next = buckets[index];
+        if (entry.next != null)
+            entry.next.prev = entry;
+        buckets[index] = entry;
+        size++;
+    }
+
+    /**
+     * Cancel the entry.
+     *
+     * @param entry
+     *            entry
+     */
+    public void cancel(Entry entry) {
+        if (entry.bucket < 0)
+            return;
+        if (entry.prev == null)
+            buckets[entry.bucket] = entry.next;
+        else
+            entry.prev.next = entry.next;
+        if (entry.next != null)
+            entry.next.prev = entry.prev;
+        entry.prev = entry.next = null;
+        entry.bucket = -1;
+        size--;
+    }
+
+    /**
+     * Expire all entries which deadline not after now.
+     *
+     * @param now
+     *            current time
+     * @param listener
+     *            expired entries listener
+     */
+    public void expire(long now, Listener listener) {
+        long targetTick = now / tickDuration;
+        if (targetTick - currentTick > buckets.length)
+            // all buckets will be visited, do not visit them more than once
+            currentTick = targetTick - buckets.length;
+
+        while (currentTick < targetTick) {
+            currentTick++;
+            int index = (int) (currentTick & mask);
+            for (Entry entry = buckets[index], next = null; entry != null; entry = next) {
+                next = entry.next;
+                if (entry.deadlineTick <= targetTick) {
+                    cancel(entry);
+                    listener.expired(entry, now);
+                    // listener may cancel other entries, restart the bucket
+                    if (next != null && next.bucket != index)
+                        next = buckets[index];
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel all entries.
+     */
+    public void clear() {
+        for (int i = 0; i < buckets.length; i++) {
+            Entry entry = buckets[i];
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.prev = entry.next = null;
+                entry.bucket = -1;
+                entry = next;
+            }
+            buckets[i] = null;
+        }
+        size = 0;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.decoder.BinaryDecoder;
+import net.sf.cindy.decoder.SerialDecoder;
+import net.sf.cindy.encoder.BinaryEncoder;
+import net.sf.cindy.encoder.SerialEncoder;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.util.BinarySchema;
+
+/**
+ * Compare BinaryEncoder/BinaryDecoder with SerialEncoder/SerialDecoder on a
+ * rpc request: encode per second, decode per second, encoded size, and decode
+ * per second when the request is received in 1460 bytes segments (the
+ * decoder is called on every segment, as PacketDecoderFilter does).
+ * 
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class BinaryCodecBenchmark {
+
+    private static final int BYTES = 50000000; // encoded bytes per test
+    private static final int SEGMENT = 1460;
+
+    static class Request implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private long id;
+        private int version;
+        private boolean oneway;
+        private String service;
+        private String method;
+        private Object[] args;
+        private Map attachments;
+    }
+
+    private static Request createRequest(int argCount) {
+        Request request = new Request();
+        request.id = 1234567890L;
+        request.version = 2;
+        request.service = "net.sf.cindy.example.OrderService";
+        request.method = "placeOrder";
+        List items = new ArrayList();
+        for (int i = 0; i < argCount; i++)
+            items.add("item-" + i);
+        request.args = new Object[] { new Long(42), "customer", items,
+                new double[] { 1.5, 2.5, 3.5 } };
+        request.attachments = new HashMap();
+        request.attachments.put("traceId", "a1b2c3d4");
+        request.attachments.put("timeout", new Integer(3000));
+        return request;
+    }
+
+    private static void run(String name, PacketEncoder encoder,
+            PacketDecoder decoder, Request request) throws Exception {
+        Buffer content = encoder.encode(null, request).getContent();
+        int size = content.remaining();
+        byte[] bytes = new byte[size];
+        content.get(bytes);
+        content.release();
+        int count = Math.max(1000, BYTES / size);
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < count; i++)
+            encoder.encode(null, request).getContent().release();
+        long encodeTime = Math.max(1, System.currentTimeMillis() - startTime);
+
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < count; i++)
+            decoder.decode(null, new DefaultPacket(BufferFactory.wrap(bytes)));
+        long decodeTime = Math.max(1, System.currentTimeMillis() - startTime);
+
+        int segmentCount = count / 10;
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < segmentCount; i++) {
+            for (int n = Math.min(SEGMENT, size);; n = Math.min(n + SEGMENT,
+                    size)) {
+                Object obj = decoder.decode(null, new DefaultPacket(
+                        BufferFactory.wrap(bytes, 0, n)));
+                if (obj != null)
+                    break;
+            }
+        }
+        long segmentTime = Math.max(1, System.currentTimeMillis() - startTime);
+
+        System.out.println(name + ": " + size + " bytes, encode "
+                + (count * 1000L / encodeTime) + "/s, decode "
+                + (count * 1000L / decodeTime) + "/s, segmented decode "
+                + (segmentCount * 1000L / segmentTime) + "/s");
+    }
+
+    public static void main(String[] args) throws Exception {
+        BinarySchema schema = new BinarySchema();
+        schema.register(Request.class);
+
+        for (int round = 0; round < 2; round++) { // the first round warm up
+            int[] argCounts = { 1, 1000 };
+            for (int i = 0; i < argCounts.length; i++) {
+                Request request = createRequest(argCounts[i]);
+                System.out.println("[args] " + argCounts[i]);
+                run("serial", new SerialEncoder(), new SerialDecoder(),
+                        request);
+                run("binary", new BinaryEncoder(schema), new BinaryDecoder(
+                        schema), request);
+            }
+        }
+    }
+
+}
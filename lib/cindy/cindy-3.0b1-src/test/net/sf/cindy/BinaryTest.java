@@ -0,0 +1,300 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.decoder.BinaryDecoder;
+import net.sf.cindy.encoder.BinaryEncoder;
+import net.sf.cindy.decoder.TooLongFrameException;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.session.AbstractSession;
+import net.sf.cindy.util.BinarySchema;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class BinaryTest extends TestCase {
+
+    static class Base {
+
+        protected long id;
+        protected String name;
+    }
+
+    static class Message extends Base {
+
+        private static int count; // not encoded
+
+        private boolean flag;
+        private byte b;
+        private short s;
+        private char c;
+        private int i;
+        private float f;
+        private double d;
+        private transient int ignored;
+        private int[] ints;
+        private String[] strings;
+        private Object value;
+        private List list;
+        private Map map;
+        private Message next;
+
+        private Message() {
+            count++;
+        }
+    }
+
+    private BinarySchema schema;
+
+    protected void setUp() throws Exception {
+        schema = new BinarySchema();
+        schema.register(Message.class);
+    }
+
+    private Object encodeDecode(Object obj) throws Exception {
+        Packet packet = new BinaryEncoder(schema).encode(null, obj);
+        assertEquals(packet.getContent().remaining() - 4, packet.getContent()
+                .getInt(0));
+        Object result = new BinaryDecoder(schema).decode(null, packet);
+        assertFalse(packet.getContent().hasRemaining());
+        return result;
+    }
+
+    public void testValues() throws Exception {
+        assertNull(new BinaryEncoder(schema).encode(null, null));
+
+        assertEquals(new Integer(-5), encodeDecode(new Integer(-5)));
+        assertEquals(new Long(Long.MIN_VALUE), encodeDecode(new Long(
+                Long.MIN_VALUE)));
+        assertEquals(Boolean.TRUE, encodeDecode(Boolean.TRUE));
+        assertEquals(new Double(1.5), encodeDecode(new Double(1.5)));
+        assertEquals(new Character('\u4e2d'), encodeDecode(new Character(
+                '\u4e2d')));
+        String s = "ascii \u00e9\u4e2d\u6587 \ud834\udd1e";
+        assertEquals(s, encodeDecode(s));
+
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 },
+                (byte[]) encodeDecode(new byte[] { 1, 2, 3 })));
+        assertTrue(Arrays.equals(new long[] { 1, -2 },
+                (long[]) encodeDecode(new long[] { 1, -2 })));
+        String[] strings = (String[]) encodeDecode(new String[] { "a", null });
+        assertTrue(Arrays.equals(new String[] { "a", null }, strings));
+
+        List list = new ArrayList();
+        list.add("a");
+        list.add(new Integer(1));
+        list.add(null);
+        assertEquals(list, encodeDecode(list));
+        Map map = new HashMap();
+        map.put("k", list);
+        map.put(new Integer(2), null);
+        assertEquals(map, encodeDecode(map));
+        assertEquals(new HashSet(list), encodeDecode(new HashSet(list)));
+    }
+
+    public void testObject() throws Exception {
+        Message message = new Message();
+        message.id = 123456789012L;
+        message.name = "message";
+        message.flag = true;
+        message.b = -1;
+        message.s = 300;
+        message.c = 'x';
+        message.i = Integer.MAX_VALUE;
+        message.f = 0.25f;
+        message.d = Math.PI;
+        message.ignored = 7;
+        message.ints = new int[] { 3, 4 };
+        message.value = new Integer(9);
+        message.list = new ArrayList();
+        message.list.add("item");
+        message.map = new HashMap();
+        message.map.put("key", "value");
+        message.next = new Message();
+        message.next.name = "next";
+
+        Message result = (Message) encodeDecode(message);
+        assertEquals(message.id, result.id);
+        assertEquals(message.name, result.name);
+        assertTrue(result.flag);
+        assertEquals(message.b, result.b);
+        assertEquals(message.s, result.s);
+        assertEquals(message.c, result.c);
+        assertEquals(message.i, result.i);
+        assertEquals(message.f, result.f, 0);
+        assertEquals(message.d, result.d, 0);
+        assertEquals(0, result.ignored);
+        assertTrue(Arrays.equals(message.ints, result.ints));
+        assertNull(result.strings);
+        assertEquals(message.value, result.value);
+        assertEquals(message.list, result.list);
+        assertEquals(message.map, result.map);
+        assertEquals("next", result.next.name);
+        assertNull(result.next.next);
+
+        // not registered class is written by name
+        BinarySchema other = new BinarySchema();
+        other.allow(Message.class.getName());
+        Packet packet = new BinaryEncoder(other).encode(null, message);
+        result = (Message) new BinaryDecoder(other).decode(null, packet);
+        assertEquals(message.name, result.name);
+        assertTrue(packet.getContent().limit() > new BinaryEncoder(schema)
+                .encode(null, message).getContent().limit());
+    }
+
+    public void testNotAllowed() throws Exception {
+        BinarySchema other = new BinarySchema();
+        BinaryEncoder encoder = new BinaryEncoder(other);
+        BinaryDecoder decoder = new BinaryDecoder(other);
+        Object[] values = { new Message(), new Message[] { null },
+                new Base[0][0] };
+        for (int i = 0; i < values.length; i++) {
+            try {
+                decoder.decode(null, encoder.encode(null, values[i]));
+                fail();
+            } catch (ClassNotFoundException e) {
+            }
+        }
+        assertFalse(other.isAllowed(Message.class.getName()));
+
+        // unknown id
+        try {
+            decoder.decode(null, new BinaryEncoder(schema).encode(null,
+                    new Message()));
+            fail();
+        } catch (ClassNotFoundException e) {
+        }
+
+        other.allow("net.sf.cindy.");
+        assertTrue(other.isAllowed(Base.class.getName()));
+        assertFalse(other.isAllowed("net.sf.cindyx.Base"));
+        for (int i = 0; i < values.length; i++)
+            assertNotNull(decoder.decode(null, encoder.encode(null, values[i])));
+    }
+
+    public void testPartial() throws Exception {
+        List list = new ArrayList();
+        for (int i = 0; i < 1000; i++)
+            list.add("value" + i);
+        Buffer content = new BinaryEncoder(schema).encode(null, list)
+                .getContent();
+        byte[] bytes = new byte[content.remaining() + 3];
+        content.get(bytes, 0, content.remaining());
+        BinaryDecoder decoder = new BinaryDecoder(schema);
+
+        int[] partial = { 0, 3, 4, 100, bytes.length - 4 };
+        for (int i = 0; i < partial.length; i++) {
+            Buffer buffer = BufferFactory.wrap(bytes, 0, partial[i]);
+            assertNull(decoder.decode(null, new DefaultPacket(buffer)));
+            assertEquals(0, buffer.position());
+        }
+
+        Buffer buffer = BufferFactory.wrap(bytes);
+        assertEquals(list, decoder.decode(null, new DefaultPacket(buffer)));
+        assertEquals(3, buffer.remaining());
+    }
+
+    /**
+     * Session counts the close calls.
+     */
+    private static class ClosedSession extends AbstractSession {
+
+        private int closeCount;
+
+        public SessionType getSessionType() {
+            return SessionType.UNKNOWN;
+        }
+
+        protected Future send(Object obj, Packet packet, int priority) {
+            return null;
+        }
+
+        public Future close() {
+            closeCount++;
+            return null;
+        }
+
+        public boolean isStarted() {
+            return closeCount == 0;
+        }
+
+        public Future start() {
+            return null;
+        }
+    }
+
+    public void testCorrupted() throws Exception {
+        Message message = new Message();
+        message.name = "message";
+        message.list = new ArrayList();
+        message.list.add("item");
+        Buffer content = new BinaryEncoder(schema).encode(null, message)
+                .getContent();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+
+        BinaryDecoder decoder = new BinaryDecoder(schema);
+        assertEquals(BinaryDecoder.DEFAULT_MAX_LENGTH, decoder.getMaxLength());
+
+        // unknown tag, short length, long length and unknown class id
+        int[][] corrupts = { { 4, 99 }, { 3, bytes[3] - 1 },
+                { 3, bytes[3] + 1 }, { 5, 0x7f } };
+        for (int i = 0; i < corrupts.length; i++) {
+            byte[] corrupted = (byte[]) bytes.clone();
+            corrupted[corrupts[i][0]] = (byte) corrupts[i][1];
+            byte[] padded = new byte[corrupted.length + 1];
+            System.arraycopy(corrupted, 0, padded, 0, corrupted.length);
+
+            ClosedSession session = new ClosedSession();
+            try {
+                decoder.decode(session, new DefaultPacket(BufferFactory
+                        .wrap(padded)));
+                fail();
+            } catch (Exception e) {
+            }
+            assertEquals(1, session.closeCount);
+        }
+
+        // too long value
+        ClosedSession session = new ClosedSession();
+        Buffer buffer = BufferFactory.allocate(4).putInt(0,
+                BinaryDecoder.DEFAULT_MAX_LENGTH + 1);
+        try {
+            decoder.decode(session, new DefaultPacket(buffer));
+            fail();
+        } catch (TooLongFrameException e) {
+        }
+        assertEquals(1, session.closeCount);
+
+        // no session
+        try {
+            decoder.decode(null, new DefaultPacket(buffer));
+            fail();
+        } catch (TooLongFrameException e) {
+        }
+    }
+
+}
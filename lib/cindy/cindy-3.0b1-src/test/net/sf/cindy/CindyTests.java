@@ -17,16 +17,33 @@ package net.sf.cindy;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import net.sf.cindy.buffer.ArenaBufferPoolTest;
 import net.sf.cindy.buffer.BufferBuilderTest;
 import net.sf.cindy.buffer.ByteArrayBufferTest;
 import net.sf.cindy.buffer.ByteBufferBufferTest;
 import net.sf.cindy.buffer.DefaultBufferPoolTest;
+import net.sf.cindy.buffer.LeakDetectorTest;
 import net.sf.cindy.buffer.LinkedBufferTest;
+import net.sf.cindy.decoder.LengthFieldFrameDecoderTest;
+import net.sf.cindy.filter.SSLFilterTest;
+import net.sf.cindy.packet.FileRegionPacketTest;
 import net.sf.cindy.session.AbstractSessionTest;
+import net.sf.cindy.session.SessionLatencyTest;
+import net.sf.cindy.session.bio.BlockingSocketSessionTest;
 import net.sf.cindy.session.dispatcher.DirectDispatcherTest;
+import net.sf.cindy.session.dispatcher.VirtualThreadDispatcherTest;
+import net.sf.cindy.session.dispatcher.WorkStealingDispatcherTest;
+import net.sf.cindy.session.nio.DatagramBatchTest;
+import net.sf.cindy.session.nio.NonBlockingSessionAcceptorTest;
+import net.sf.cindy.session.nio.SendQueueTest;
+import net.sf.cindy.session.nio.WriteBatchTest;
+import net.sf.cindy.session.nio.WriteWatermarkTest;
 import net.sf.cindy.util.CharsetTest;
 import net.sf.cindy.util.ElapsedTimeTest;
+import net.sf.cindy.util.HistogramTest;
+import net.sf.cindy.util.ReadSizePredictorTest;
 import net.sf.cindy.util.SpeedTest;
+import net.sf.cindy.util.TimingWheelTest;
 
 /**
  * @author <a href="chenrui@gmail.com">Roger Chen</a>
@@ -47,16 +64,34 @@ public class CindyTests {
         suite.addTestSuite(ByteBufferBufferTest.class);
         suite.addTestSuite(LinkedBufferTest.class);
         suite.addTestSuite(DefaultBufferPoolTest.class);
+        suite.addTestSuite(ArenaBufferPoolTest.class);
+        suite.addTestSuite(LeakDetectorTest.class);
 
         suite.addTestSuite(SerialTest.class);
+        suite.addTestSuite(BinaryTest.class);
+        suite.addTestSuite(FileRegionPacketTest.class);
+        suite.addTestSuite(LengthFieldFrameDecoderTest.class);
+        suite.addTestSuite(SSLFilterTest.class);
 
         suite.addTestSuite(CharsetTest.class);
         suite.addTestSuite(ElapsedTimeTest.class);
         suite.addTestSuite(SpeedTest.class);
+        suite.addTestSuite(HistogramTest.class);
+        suite.addTestSuite(TimingWheelTest.class);
+        suite.addTestSuite(ReadSizePredictorTest.class);
 
         suite.addTestSuite(AbstractSessionTest.class);
+        suite.addTestSuite(SessionLatencyTest.class);
+        suite.addTestSuite(NonBlockingSessionAcceptorTest.class);
+        suite.addTestSuite(SendQueueTest.class);
+        suite.addTestSuite(WriteWatermarkTest.class);
+        suite.addTestSuite(WriteBatchTest.class);
+        suite.addTestSuite(DatagramBatchTest.class);
+        suite.addTestSuite(BlockingSocketSessionTest.class);
 
         suite.addTestSuite(DirectDispatcherTest.class);
+        suite.addTestSuite(WorkStealingDispatcherTest.class);
+        suite.addTestSuite(VirtualThreadDispatcherTest.class);
 
         // $JUnit-END$
         return suite;
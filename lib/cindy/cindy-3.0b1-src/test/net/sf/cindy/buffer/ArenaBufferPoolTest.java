@@ -0,0 +1,131 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.buffer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Buffer;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class ArenaBufferPoolTest extends TestCase {
+
+    private ArenaBufferPool pool;
+    private Random random = new Random();
+
+    protected void setUp() throws Exception {
+        pool = new ArenaBufferPool(2, 8192, 1024 * 1024);
+        super.setUp();
+    }
+
+    private int randomCapacity() {
+        switch (random.nextInt(4)) {
+        case 0:
+            return random.nextInt(512);
+        case 1:
+            return random.nextInt(8192);
+        case 2:
+            return random.nextInt(256 * 1024);
+        default:
+            return random.nextInt(2 * 1024 * 1024);
+        }
+    }
+
+    public void testAllocate() {
+        for (int i = 0; i < 100; i++) {
+            Buffer[] buffers = new Buffer[random.nextInt(100)];
+            for (int j = 0; j < buffers.length; j++) {
+                int capacity = randomCapacity();
+                buffers[j] = pool.allocate(capacity, true);
+
+                assertTrue(buffers[j].isDirect());
+                assertEquals(capacity, buffers[j].remaining());
+                assertEquals(capacity, buffers[j].capacity());
+                assertEquals(capacity, buffers[j].limit());
+                assertEquals(0, buffers[j].position());
+
+                // fill buffer, overlapped buffers will be detected
+                byte[] b = new byte[capacity];
+                Arrays.fill(b, (byte) j);
+                buffers[j].put(b);
+            }
+            for (int j = 0; j < buffers.length; j++) {
+                buffers[j].flip();
+                byte[] b = new byte[buffers[j].remaining()];
+                buffers[j].get(b);
+                for (int k = 0; k < b.length; k++)
+                    assertEquals((byte) j, b[k]);
+                buffers[j].release();
+            }
+            assertEquals(0, pool.getUsedMemory());
+        }
+        assertEquals(pool.getAllocateCount(), pool.getReleaseCount());
+        assertTrue(pool.getHugeAllocateCount() > 0);
+    }
+
+    public void testRelease() {
+        Buffer[] buffers = new Buffer[1024];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.allocate(100, true);
+        }
+        // 1024 * 112 bytes
+        assertEquals(114688, pool.getUsedMemory());
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i].release();
+            buffers[i].release(); // release twice
+        }
+        assertEquals(0, pool.getUsedMemory());
+        assertEquals(1, pool.getChunkCount());
+
+        // the whole chunk can be allocated after release
+        Buffer buffer = pool.allocate(1024 * 1024, true);
+        assertEquals(2, pool.getChunkCount());
+        buffer.release();
+        assertEquals(1, pool.getChunkCount());
+    }
+
+    public void testHeap() {
+        Buffer buffer = pool.allocate(1000, false);
+        assertFalse(buffer.isDirect());
+        assertEquals(0, pool.getUsedMemory());
+        buffer.release();
+    }
+
+    public void testThreadEnd() throws InterruptedException {
+        Thread thread = new Thread() {
+
+            public void run() {
+                pool.allocate(1024, true).release();
+            }
+        };
+        thread.start();
+        thread.join();
+
+        // the ended thread is not counted, the next thread is bound to the
+        // first arena again
+        String[] statistics = pool.getArenaStatistics();
+        assertTrue(statistics[0].startsWith("[threads] 0 "));
+        assertTrue(statistics[1].startsWith("[threads] 0 "));
+        pool.allocate(1024, true).release();
+        statistics = pool.getArenaStatistics();
+        assertTrue(statistics[0].startsWith("[threads] 1 "));
+        assertTrue(statistics[1].startsWith("[threads] 0 "));
+    }
+}
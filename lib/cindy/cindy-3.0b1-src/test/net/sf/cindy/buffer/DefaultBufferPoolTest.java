@@ -15,6 +15,7 @@
  */
 package net.sf.cindy.buffer;
 
+import java.util.LinkedList;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -53,4 +54,95 @@ public class DefaultBufferPoolTest extends TestCase {
             }
         }
     }
+
+    public void testMagazine() {
+        DefaultBufferPool pool = new DefaultBufferPool();
+        for (int i = 0; i < 1000; i++) {
+            Buffer[] buffers = new Buffer[100];
+            for (int j = 0; j < buffers.length; j++) {
+                buffers[j] = pool.allocate(8000 + j, j % 2 == 0);
+                assertEquals(8000 + j, buffers[j].capacity());
+                buffers[j].putInt(0, i * 1000 + j);
+            }
+            // pooled buffers are never shared
+            for (int j = 0; j < buffers.length; j++) {
+                assertEquals(i * 1000 + j, buffers[j].getInt(0));
+                buffers[j].release();
+            }
+        }
+        assertTrue(pool.getMagazineHitRate() > 0.9);
+    }
+
+    public void testCrossThread() throws InterruptedException {
+        final DefaultBufferPool pool = new DefaultBufferPool();
+        final LinkedList queue = new LinkedList();
+        final int count = 10000;
+
+        // allocate in one thread and release in another thread, buffers are
+        // returned to the allocate thread through the depot
+        Thread consumer = new Thread() {
+
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    Buffer buffer;
+                    synchronized (queue) {
+                        while (queue.isEmpty())
+                            try {
+                                queue.wait();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        buffer = (Buffer) queue.removeFirst();
+                        queue.notify();
+                    }
+                    buffer.release();
+                }
+            }
+        };
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            Buffer buffer = pool.allocate(4096, false);
+            synchronized (queue) {
+                // bound the in flight buffers, or the producer may allocate
+                // all buffers before the consumer releases any
+                while (queue.size() >= 64)
+                    queue.wait();
+                queue.addLast(buffer);
+                queue.notify();
+            }
+        }
+        consumer.join();
+        assertTrue(pool.getHitRate() > 0.5);
+    }
+
+    private static void allocateInThread(final BufferPool pool,
+            final int count) throws InterruptedException {
+        // the buffers released by the thread stay in its magazines
+        Thread thread = new Thread() {
+
+            public void run() {
+                Buffer[] buffers = new Buffer[count];
+                for (int i = 0; i < count; i++)
+                    buffers[i] = pool.allocate(4096, false);
+                for (int i = 0; i < count; i++)
+                    buffers[i].release();
+            }
+        };
+        thread.start();
+        thread.join();
+    }
+
+    public void testThreadEnd() throws InterruptedException {
+        DefaultBufferPool pool = new DefaultBufferPool();
+
+        // counters of the ended thread are not lost
+        allocateInThread(pool, 32);
+        assertEquals(32, pool.getAllocateCount());
+        assertEquals(0, pool.getMagazineHitCount());
+
+        // buffers of the ended thread are reused by another thread
+        allocateInThread(pool, 32);
+        assertEquals(64, pool.getAllocateCount());
+        assertEquals(32, pool.getMagazineHitCount());
+    }
 }
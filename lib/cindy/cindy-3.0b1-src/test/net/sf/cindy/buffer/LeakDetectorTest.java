@@ -0,0 +1,73 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.buffer;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Buffer;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class LeakDetectorTest extends TestCase {
+
+    private int level;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        level = LeakDetector.getLevel();
+        LeakDetector.setLevel(LeakDetector.PARANOID);
+    }
+
+    protected void tearDown() throws Exception {
+        LeakDetector.setLevel(level);
+        super.tearDown();
+    }
+
+    private long waitLeaks(long expected) throws InterruptedException {
+        for (int i = 0; i < 50 && LeakDetector.getLeakCount() < expected; i++) {
+            System.gc();
+            Thread.sleep(20);
+            LeakDetector.reportLeaks();
+        }
+        return LeakDetector.getLeakCount();
+    }
+
+    public void testReleased() throws InterruptedException {
+        long count = LeakDetector.getLeakCount();
+        for (int i = 0; i < 100; i++) {
+            Buffer buffer = BufferFactory.allocate(1024);
+            buffer.putInt(i);
+            buffer.release();
+        }
+        Buffer buffer = BufferFactory.allocate(1024);
+        buffer.setPermanent(true);
+        buffer = null;
+
+        waitLeaks(count + 1);
+        assertEquals(count, LeakDetector.getLeakCount());
+    }
+
+    public void testLeak() throws InterruptedException {
+        long count = LeakDetector.getLeakCount();
+        for (int i = 0; i < 10; i++) {
+            Buffer buffer = BufferFactory.allocate(1024);
+            buffer.putInt(i);
+        }
+        assertEquals(count + 10, waitLeaks(count + 10));
+    }
+
+}
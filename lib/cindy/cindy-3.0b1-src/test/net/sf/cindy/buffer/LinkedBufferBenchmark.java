@@ -0,0 +1,77 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.buffer;
+
+import java.util.Random;
+
+import net.sf.cindy.Buffer;
+
+/**
+ * Sequential and random get of a linked buffer of many small fragments, such
+ * as a large request received by many reads. A linear entry lookup takes
+ * minutes.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class LinkedBufferBenchmark {
+
+    private static final int FRAGMENT_COUNT = 20000;
+
+    private static Buffer newFragmentedBuffer(Random random) {
+        Buffer[] buffers = new Buffer[FRAGMENT_COUNT];
+        int capacity = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteArrayBuffer.allocate(random.nextInt(32));
+            capacity += buffers[i].capacity();
+        }
+        Buffer buffer = new LinkedBuffer(buffers);
+        byte[] content = new byte[capacity];
+        random.nextBytes(content);
+        buffer.put(content);
+        return buffer.flip();
+    }
+
+    private static long sequentialGet(Buffer buffer) {
+        long start = System.nanoTime();
+        buffer.position(0);
+        while (buffer.hasRemaining())
+            buffer.get();
+        return System.nanoTime() - start;
+    }
+
+    private static long randomGet(Buffer buffer, Random random) {
+        long start = System.nanoTime();
+        int count = buffer.limit();
+        for (int i = 0; i < count; i++)
+            buffer.getLong(random.nextInt(count - 8));
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(0);
+        for (int round = 0; round < 3; round++) { // first round is warm up
+            Buffer buffer = newFragmentedBuffer(random);
+            long sequentialTime = sequentialGet(buffer);
+            long randomTime = randomGet(buffer, random);
+            if (round > 0)
+                System.out.println(buffer.limit() + " bytes in "
+                        + FRAGMENT_COUNT + " fragments: sequential get "
+                        + sequentialTime / 1000000 + "ms, random getLong "
+                        + randomTime / 1000000 + "ms");
+        }
+    }
+}
@@ -37,4 +37,47 @@ public class LinkedBufferTest extends BufferTest {
         buffers[count - 1] = ByteBufferBuffer.allocate(capacity, true);
         return new LinkedBuffer(buffers);
     }
+
+    private static final int FRAGMENT_COUNT = 20000;
+
+    private byte[] content;
+
+    /**
+     * Create a linked buffer of many small fragments, such as a large request
+     * received by many reads.
+     */
+    private Buffer newFragmentedBuffer() {
+        Buffer[] buffers = new Buffer[FRAGMENT_COUNT];
+        int capacity = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            // include some empty fragments
+            buffers[i] = ByteArrayBuffer.allocate(random.nextInt(32));
+            capacity += buffers[i].capacity();
+        }
+        content = new byte[capacity];
+        random.nextBytes(content);
+        Buffer buffer = new LinkedBuffer(buffers);
+        buffer.put(content);
+        buffer.flip();
+        return buffer;
+    }
+
+    public void testFragmentedSequentialGet() {
+        Buffer buffer = newFragmentedBuffer();
+        for (int i = 0; i < content.length; i++) {
+            assertEquals(content[i], buffer.get());
+        }
+        assertEquals(-1, buffer.position(0).indexOf(new byte[] { 1, 2, 3, 4,
+                5, 6, 7, 8, 9 }));
+    }
+
+    public void testFragmentedRandomGet() {
+        Buffer buffer = newFragmentedBuffer();
+        for (int i = 0; i < content.length; i++) {
+            int index = random.nextInt(content.length - 8);
+            assertEquals(content[index], buffer.get(index));
+            assertEquals(Bits.decodeLong(ByteArrayBuffer.wrap(content),
+                    index), buffer.getLong(index));
+        }
+    }
 }
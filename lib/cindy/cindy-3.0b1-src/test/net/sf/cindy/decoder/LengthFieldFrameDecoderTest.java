@@ -0,0 +1,258 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.decoder;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.buffer.DelegateBuffer;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.session.nio.NonBlockingSessionAcceptor;
+import net.sf.cindy.session.nio.SocketChannelSession;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class LengthFieldFrameDecoderTest extends TestCase {
+
+    private static Buffer wrap(int[] b) {
+        byte[] bytes = new byte[b.length];
+        for (int i = 0; i < b.length; i++)
+            bytes[i] = (byte) b[i];
+        return BufferFactory.wrap(bytes);
+    }
+
+    public void testGetFrameLength() {
+        LengthFieldFrameDecoder decoder = new LengthFieldFrameDecoder(100, 1,
+                2);
+        assertEquals(3, decoder.getHeaderLength());
+        assertEquals(-1, decoder.getFrameLength(wrap(new int[] { 9, 0 })));
+
+        Buffer buffer = wrap(new int[] { 9, 0, 5, 1 });
+        assertEquals(8, decoder.getFrameLength(buffer));
+        assertEquals(0, buffer.position()); // peek only
+
+        buffer.position(2);
+        assertEquals(0x0501 + 2, new LengthFieldFrameDecoder(0x10000, 0, 2)
+                .getFrameLength(buffer));
+        assertEquals(0x0105 + 2, new LengthFieldFrameDecoder(0x10000, 0, 2,
+                0, 0, false).getFrameLength(buffer));
+
+        // length field value is the whole frame length
+        assertEquals(5, new LengthFieldFrameDecoder(100, 0, 1, -1, 0, true)
+                .getFrameLength(wrap(new int[] { 5 })));
+
+        try {
+            new LengthFieldFrameDecoder(7, 1, 2).getFrameLength(wrap(new int[] {
+                    9, 0, 5 }));
+            fail();
+        } catch (TooLongFrameException e) {
+        }
+        try {
+            new LengthFieldFrameDecoder(100, 0, 8).getFrameLength(wrap(new int[] {
+                    0xff, 0, 0, 0, 0, 0, 0, 0 }));
+            fail();
+        } catch (TooLongFrameException e) {
+        }
+        try {
+            new LengthFieldFrameDecoder(100, 0, 5);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testDecode() throws Exception {
+        LengthFieldFrameDecoder decoder = new LengthFieldFrameDecoder(100, 0,
+                1, 0, 1, true);
+        Buffer buffer = wrap(new int[] { 2, 'a', 'b', 1 });
+        Buffer frame = (Buffer) decoder.decode(null, new DefaultPacket(buffer));
+        assertEquals(2, frame.remaining());
+        assertEquals('a', frame.get());
+        assertEquals('b', frame.get());
+        assertEquals(3, buffer.position());
+        assertNull(decoder.decode(null, new DefaultPacket(buffer)));
+        assertEquals(3, buffer.position());
+    }
+
+    public void testSession() throws Exception {
+        final List frames = new ArrayList();
+        NonBlockingSessionAcceptor acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                session.setPacketDecoder(new LengthFieldFrameDecoder(1000, 0,
+                        2, 0, 2, true));
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        Buffer frame = (Buffer) obj;
+                        byte[] b = new byte[frame.remaining()];
+                        frame.get(b);
+                        frame.release();
+                        synchronized (frames) {
+                            frames.add(new String(b));
+                            frames.notifyAll();
+                        }
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+
+        Session session = new SocketChannelSession();
+        try {
+            session.setRemoteAddress(new InetSocketAddress("127.0.0.1",
+                    acceptor.getListenPort()));
+            assertTrue(session.start().complete());
+
+            StringBuffer expected = new StringBuffer();
+            Buffer data = BufferFactory.allocate(60000);
+            for (int i = 0; i < 200; i++) {
+                String s = "frame" + i;
+                for (int j = 0; j < i; j++)
+                    s += (char) ('a' + j % 26);
+                expected.append(s).append(',');
+                data.putShort((short) s.length()).put(s.getBytes());
+            }
+            data.flip();
+
+            // split the frames at random position, header split included
+            while (data.hasRemaining()) {
+                int size = Math.min(data.remaining(),
+                        (int) (Math.random() * 300) + 1);
+                Buffer slice = BufferFactory.allocate(size).put(data, size);
+                assertTrue(session.flush(new DefaultPacket(slice.flip()))
+                        .complete());
+                if (size < 10)
+                    Thread.sleep(1);
+            }
+
+            synchronized (frames) {
+                for (int i = 0; i < 500 && frames.size() < 200; i++)
+                    frames.wait(10);
+                StringBuffer received = new StringBuffer();
+                for (int i = 0; i < frames.size(); i++)
+                    received.append(frames.get(i)).append(',');
+                assertEquals(expected.toString(), received.toString());
+            }
+
+            // too long frame closes the session
+            session.flush(new DefaultPacket(wrap(new int[] { 0x10, 0 })));
+            for (int i = 0; i < 500 && session.isStarted(); i++)
+                Thread.sleep(10);
+            assertFalse(session.isStarted());
+        } finally {
+            session.close().complete();
+            acceptor.close();
+        }
+    }
+
+    public void testReleaseChainedFrame() throws Exception {
+        final List frames = new ArrayList();
+        NonBlockingSessionAcceptor acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                session.setPacketDecoder(new LengthFieldFrameDecoder(1000, 0,
+                        2, 0, 2, true));
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        synchronized (frames) {
+                            frames.add(obj);
+                            frames.notifyAll();
+                        }
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+
+        Session session = new SocketChannelSession();
+        try {
+            session.setRemoteAddress(new InetSocketAddress("127.0.0.1",
+                    acceptor.getListenPort()));
+            assertTrue(session.start().complete());
+
+            // three frames in one packet share the received content
+            Buffer data = BufferFactory.allocate(100);
+            data.putShort((short) 5).put("first".getBytes());
+            data.putShort((short) 6).put("second".getBytes());
+            data.putShort((short) 5).put("third".getBytes());
+            assertTrue(session.flush(new DefaultPacket(data.flip()))
+                    .complete());
+
+            Buffer first, second, third;
+            synchronized (frames) {
+                for (int i = 0; i < 500 && frames.size() < 3; i++)
+                    frames.wait(10);
+                assertEquals(3, frames.size());
+                first = (Buffer) frames.get(0);
+                second = (Buffer) frames.get(1);
+                third = (Buffer) frames.get(2);
+            }
+
+            // release through the buffer returned by a chained call
+            first.flip().release();
+            assertTrue(first.isReleased());
+            assertFalse(((DelegateBuffer) second).getDelegate().isReleased());
+            second.position(0).limit(second.capacity()).duplicate().release();
+            assertFalse(((DelegateBuffer) third).getDelegate().isReleased());
+
+            // receive another frame, may reuse a released content
+            data = BufferFactory.allocate(100);
+            data.putShort((short) 6).put("fourth".getBytes());
+            assertTrue(session.flush(new DefaultPacket(data.flip()))
+                    .complete());
+            synchronized (frames) {
+                for (int i = 0; i < 500 && frames.size() < 4; i++)
+                    frames.wait(10);
+                assertEquals(4, frames.size());
+            }
+
+            byte[] b = new byte[second.remaining()];
+            second.get(b);
+            assertEquals("second", new String(b));
+            b = new byte[third.remaining()];
+            third.get(b);
+            assertEquals("third", new String(b));
+            second.release();
+            third.release();
+            ((Buffer) frames.get(3)).release();
+        } finally {
+            session.close().complete();
+            acceptor.close();
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.filter;
+
+import java.net.InetSocketAddress;
+
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.session.nio.NonBlockingSessionAcceptor;
+import net.sf.cindy.session.nio.SocketChannelSession;
+
+/**
+ * Measure the loopback throughput of tls sessions, sending 1KB and 64KB
+ * messages from client to server.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class SSLFilterBenchmark {
+
+    private static final long BYTES = 128 * 1024 * 1024;
+
+    private static final int WINDOW = 64;
+
+    private static long received;
+
+    private static synchronized long getReceived() {
+        return received;
+    }
+
+    private static void run(Session session, int size) throws Exception {
+        byte[] b = new byte[size];
+        int count = (int) (BYTES / size);
+        long start = getReceived();
+        long startTime = System.currentTimeMillis();
+
+        Future[] futures = new Future[WINDOW];
+        for (int i = 0; i < count; i++) {
+            int index = i % WINDOW;
+            if (futures[index] != null)
+                futures[index].complete(); // limit the queued packets
+            futures[index] = session.send(new DefaultPacket(BufferFactory
+                    .wrap(b)));
+        }
+        while (getReceived() - start < (long) count * size)
+            Thread.sleep(1);
+
+        long time = Math.max(1, System.currentTimeMillis() - startTime);
+        System.out.println(size + " bytes: " + (count * 1000L / time)
+                + " msg/s, " + ((long) count * size * 1000 / time / 1024 / 1024)
+                + " MB/s");
+    }
+
+    public static void main(String[] args) throws Exception {
+        final SSLFilter serverFilter = new SSLFilter(SSLFilterTest
+                .getContext());
+        NonBlockingSessionAcceptor acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                session.addSessionFilter(serverFilter);
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        Packet packet = (Packet) obj;
+                        synchronized (SSLFilterBenchmark.class) {
+                            received += packet.getContent().remaining();
+                        }
+                        packet.getContent().release();
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+
+        SSLFilter filter = new SSLFilter(SSLFilterTest.getContext());
+        filter.setClientMode(true);
+        Session session = new SocketChannelSession();
+        session.setRemoteAddress(new InetSocketAddress("127.0.0.1", acceptor
+                .getListenPort()));
+        session.addSessionFilter(filter);
+        session.start().complete();
+
+        try {
+            for (int round = 0; round < 2; round++) { // the first round warm up
+                run(session, 1024);
+                run(session, 65536);
+            }
+        } finally {
+            session.close().complete();
+            acceptor.close();
+        }
+    }
+
+}
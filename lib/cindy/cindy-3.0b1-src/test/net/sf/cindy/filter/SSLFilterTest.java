@@ -0,0 +1,354 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionFilterAdapter;
+import net.sf.cindy.SessionFilterChain;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.session.dispatcher.DirectDispatcher;
+import net.sf.cindy.session.dispatcher.DispatcherFactory;
+import net.sf.cindy.session.nio.NonBlockingSessionAcceptor;
+import net.sf.cindy.session.nio.SocketChannelSession;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class SSLFilterTest extends TestCase {
+
+    private static final String PASSWORD = "password";
+
+    private static SSLContext context;
+
+    /**
+     * Create a context trusting a self signed key, generated by keytool.
+     */
+    static synchronized SSLContext getContext() throws Exception {
+        if (context != null)
+            return context;
+        File file = File.createTempFile("cindy", ".jks");
+        file.delete();
+        try {
+            String keytool = System.getProperty("java.home") + File.separator
+                    + "bin" + File.separator + "keytool";
+            Process process = Runtime.getRuntime().exec(
+                    new String[] { keytool, "-genkeypair", "-alias", "cindy",
+                            "-keyalg", "RSA", "-keystore", file.getPath(),
+                            "-storepass", PASSWORD, "-keypass", PASSWORD,
+                            "-dname", "CN=localhost", "-validity", "1" });
+            process.waitFor();
+
+            KeyStore ks = KeyStore.getInstance("JKS");
+            InputStream in = new FileInputStream(file);
+            try {
+                ks.load(in, PASSWORD.toCharArray());
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory kmf = KeyManagerFactory
+                    .getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, PASSWORD.toCharArray());
+            TrustManagerFactory tmf = TrustManagerFactory
+                    .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(ks);
+
+            SSLContext sslc = SSLContext.getInstance("TLS");
+            sslc.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+            context = sslc;
+            return sslc;
+        } finally {
+            file.delete();
+        }
+    }
+
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    private NonBlockingSessionAcceptor acceptor;
+    private SSLFilter serverFilter;
+    private SessionFilterAdapter splitFilter;
+
+    protected void setUp() throws Exception {
+        serverFilter = new SSLFilter(getContext());
+        acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                if (splitFilter != null)
+                    session.addSessionFilter(splitFilter);
+                session.addSessionFilter(serverFilter);
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        session.flush(new DefaultPacket(((Packet) obj)
+                                .getContent())); // echo
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+    }
+
+    protected void tearDown() throws Exception {
+        acceptor.close();
+    }
+
+    private Session connect() throws Exception {
+        SSLFilter filter = new SSLFilter(getContext());
+        filter.setClientMode(true);
+        Session session = new SocketChannelSession();
+        session.setRemoteAddress(new InetSocketAddress("127.0.0.1", acceptor
+                .getListenPort()));
+        session.addSessionFilter(filter);
+        session.setSessionHandler(new SessionHandlerAdapter() {
+
+            public void objectReceived(Session session, Object obj)
+                    throws Exception {
+                Buffer buffer = ((Packet) obj).getContent();
+                byte[] b = new byte[buffer.remaining()];
+                buffer.get(b);
+                buffer.release();
+                synchronized (received) {
+                    received.write(b);
+                }
+            }
+        });
+        assertTrue(session.start().complete());
+        return session;
+    }
+
+    private void echo(Session session, int[] sizes) throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Future future = null;
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] b = new byte[sizes[i]];
+            for (int j = 0; j < b.length; j++)
+                b[j] = (byte) (i + j * 7);
+            expected.write(b);
+            future = session.flush(new DefaultPacket(BufferFactory.wrap(b)));
+        }
+        assertTrue(future.complete());
+
+        for (int i = 0; i < 1000; i++) {
+            synchronized (received) {
+                if (received.size() >= expected.size())
+                    break;
+            }
+            Thread.sleep(10);
+        }
+        synchronized (received) {
+            assertTrue(Arrays.equals(expected.toByteArray(), received
+                    .toByteArray()));
+            received.reset();
+        }
+    }
+
+    public void testEcho() throws Exception {
+        Session session = connect();
+        try {
+            // sent before handshake completed
+            echo(session, new int[] { 10, 1000, 200000, 1, 70000 });
+            echo(session, new int[] { 100, 100, 100 });
+        } finally {
+            session.close().complete();
+        }
+    }
+
+    public void testSharedFilter() throws Exception {
+        serverFilter.setTaskExecutor(null); // run tasks in dispatcher
+        Session session1 = connect();
+        Session session2 = connect();
+        try {
+            echo(session1, new int[] { 1000, 20000 });
+            echo(session2, new int[] { 20000, 1000 });
+            echo(session1, new int[] { 5 });
+        } finally {
+            session1.close().complete();
+            session2.close().complete();
+        }
+    }
+
+    public void testPartialRecord() throws Exception {
+        // server receive tls records by 7 bytes
+        splitFilter = new SessionFilterAdapter() {
+
+            public void packetReceived(SessionFilterChain filterChain,
+                    Packet packet) throws Exception {
+                Buffer content = packet.getContent();
+                while (content.hasRemaining()) {
+                    int size = Math.min(7, content.remaining());
+                    byte[] b = new byte[size];
+                    content.get(b);
+                    super.packetReceived(filterChain, new DefaultPacket(
+                            BufferFactory.wrap(b)));
+                }
+                content.release();
+            }
+        };
+        Session session = connect();
+        try {
+            echo(session, new int[] { 3, 5000, 30000 });
+        } finally {
+            session.close().complete();
+        }
+    }
+
+    public void testCoalescedRecords() throws Exception {
+        // server receive the bytes after 50ms quiet, the last handshake
+        // records and the application records come in one packet, the engine
+        // may need a wrap before unwrapping the application records
+        final Timer timer = new Timer(true);
+        splitFilter = new SessionFilterAdapter() {
+
+            private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+            private int generation;
+
+            public void packetReceived(final SessionFilterChain filterChain,
+                    Packet packet) throws Exception {
+                Buffer content = packet.getContent();
+                byte[] b = new byte[content.remaining()];
+                content.get(b);
+                content.release();
+                final int current;
+                synchronized (pending) {
+                    pending.write(b);
+                    current = ++generation;
+                }
+                timer.schedule(new TimerTask() {
+
+                    public void run() {
+                        final byte[] bytes;
+                        synchronized (pending) {
+                            if (generation != current)
+                                return;
+                            bytes = pending.toByteArray();
+                            pending.reset();
+                        }
+                        DispatcherFactory.getDispatcher().dispatch(
+                                filterChain.getSession(), new Runnable() {
+
+                                    public void run() {
+                                        filterChain
+                                                .packetReceived(new DefaultPacket(
+                                                        BufferFactory
+                                                                .wrap(bytes)));
+                                    }
+                                });
+                    }
+                }, 50);
+            }
+        };
+        Session session = connect();
+        try {
+            echo(session, new int[] { 10, 1000 });
+            echo(session, new int[] { 20000 });
+        } finally {
+            session.close().complete();
+            timer.cancel();
+        }
+    }
+
+    private static Thread drain(final InputStream in,
+            final ByteArrayOutputStream out) {
+        Thread thread = new Thread() {
+
+            public void run() {
+                byte[] b = new byte[4096];
+                try {
+                    for (int n = 0; (n = in.read(b)) >= 0;) {
+                        synchronized (out) {
+                            out.write(b, 0, n);
+                        }
+                    }
+                } catch (IOException e) {
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Run the tests in a new jvm by <code>DirectDispatcher</code>, which is
+     * configured by the example. The events are run in the reactor thread,
+     * the start future is completed before the started event dispatched, and
+     * packets sent in an event are queued behind the event.
+     */
+    public void testDirectDispatcher() throws Exception {
+        if (DispatcherFactory.getDispatcher() instanceof DirectDispatcher)
+            return; // in the new jvm
+
+        String java = System.getProperty("java.home") + File.separator
+                + "bin" + File.separator + "java";
+        final Process process = Runtime.getRuntime().exec(
+                new String[] {
+                        java,
+                        "-cp",
+                        System.getProperty("java.class.path"),
+                        "-Dnet.sf.cindy.dispatcher="
+                                + DirectDispatcher.class.getName(),
+                        "junit.textui.TestRunner",
+                        SSLFilterTest.class.getName() });
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Thread stdout = drain(process.getInputStream(), output);
+        Thread stderr = drain(process.getErrorStream(), output);
+        Timer timer = new Timer(true);
+        timer.schedule(new TimerTask() {
+
+            public void run() {
+                process.destroy();
+            }
+        }, 120000);
+        try {
+            int exitValue = process.waitFor();
+            stdout.join();
+            stderr.join();
+            String result = new String(output.toByteArray(), "ISO-8859-1");
+            assertEquals(result, 0, exitValue);
+            assertTrue(result, result.indexOf("Unrecognized SSL message") < 0);
+        } finally {
+            timer.cancel();
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.packet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.session.nio.NonBlockingSessionAcceptor;
+import net.sf.cindy.session.nio.SocketChannelSession;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class FileRegionPacketTest extends TestCase {
+
+    private static final int FILE_SIZE = 300000;
+
+    private File file;
+    private byte[] data;
+    private FileChannel fc;
+
+    protected void setUp() throws Exception {
+        data = new byte[FILE_SIZE];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31 + i / 256);
+        file = File.createTempFile("cindy", ".region");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        fc = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    protected void tearDown() throws Exception {
+        fc.close();
+        file.delete();
+    }
+
+    private byte[] copy(int position, int count) {
+        byte[] b = new byte[count];
+        System.arraycopy(data, position, b, 0, count);
+        return b;
+    }
+
+    public void testGetContent() {
+        FileRegionPacket packet = new FileRegionPacket(fc, 1000, 5000);
+        assertFalse(packet.isBuffered());
+        Buffer content = packet.getContent();
+        assertTrue(packet.isBuffered());
+        assertSame(content, packet.getContent());
+
+        byte[] b = new byte[content.remaining()];
+        content.get(b);
+        assertTrue(Arrays.equals(copy(1000, 5000), b));
+        content.release();
+
+        try {
+            new FileRegionPacket(fc, FILE_SIZE - 10, 20).getContent();
+            fail();
+        } catch (RuntimeException e) {
+        }
+    }
+
+    public void testTransfer() throws Exception {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        NonBlockingSessionAcceptor acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        Buffer buffer = ((Packet) obj).getContent();
+                        byte[] b = new byte[buffer.remaining()];
+                        buffer.get(b);
+                        buffer.release();
+                        synchronized (received) {
+                            received.write(b);
+                        }
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+
+        Session session = new SocketChannelSession();
+        try {
+            session.setRemoteAddress(new InetSocketAddress("127.0.0.1",
+                    acceptor.getListenPort()));
+            assertTrue(session.start().complete());
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write("header".getBytes());
+            session.flush(new DefaultPacket(BufferFactory.wrap("header"
+                    .getBytes())));
+
+            // transferred by transferTo, larger than the socket buffer
+            FileRegionPacket region = new FileRegionPacket(fc, 100, 250000);
+            expected.write(copy(100, 250000));
+            Future future = session.flush(region);
+
+            // buffered copy
+            FileRegionPacket buffered = new FileRegionPacket(fc, 0, 1000);
+            buffered.getContent();
+            expected.write(copy(0, 1000));
+            session.flush(buffered);
+
+            expected.write("tail".getBytes());
+            Future last = session.flush(new DefaultPacket(BufferFactory
+                    .wrap("tail".getBytes())));
+
+            assertTrue(future.complete());
+            assertFalse(region.isBuffered());
+            assertEquals(250000, region.getTransferred());
+            assertTrue(last.complete());
+
+            for (int i = 0; i < 500; i++) {
+                synchronized (received) {
+                    if (received.size() >= expected.size())
+                        break;
+                }
+                Thread.sleep(10);
+            }
+            synchronized (received) {
+                assertTrue(Arrays.equals(expected.toByteArray(), received
+                        .toByteArray()));
+            }
+
+            // region exceed file size, session will be closed
+            assertFalse(session.flush(
+                    new FileRegionPacket(fc, FILE_SIZE - 10, 20)).complete());
+        } finally {
+            session.close().complete();
+            acceptor.close();
+        }
+    }
+
+}
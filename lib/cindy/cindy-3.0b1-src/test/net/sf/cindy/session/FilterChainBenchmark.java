@@ -0,0 +1,151 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session;
+
+import java.lang.reflect.Method;
+
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionFilterAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.SessionType;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.util.Configuration;
+
+/**
+ * Measure the events per second and the bytes allocated per event of the
+ * session filter chain, with three application filters. Events are executed
+ * by DirectDispatcher in the current thread, so the allocation of the whole
+ * event path is measured (by com.sun.management.ThreadMXBean, java 6+).
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class FilterChainBenchmark {
+
+    private static final int EVENTS = 2000000;
+
+    private static long handled;
+
+    private static Object threadMXBean;
+    private static Method allocatedBytesMethod;
+
+    private static long getAllocatedBytes() {
+        try {
+            if (allocatedBytesMethod == null) {
+                threadMXBean = Class.forName(
+                        "java.lang.management.ManagementFactory").getMethod(
+                        "getThreadMXBean", new Class[0]).invoke(null,
+                        new Object[0]);
+                allocatedBytesMethod = Class.forName(
+                        "com.sun.management.ThreadMXBean").getMethod(
+                        "getThreadAllocatedBytes", new Class[] { long.class });
+            }
+            Object id = Thread.class.getMethod("getId", new Class[0]).invoke(
+                    Thread.currentThread(), new Object[0]);
+            return ((Long) allocatedBytesMethod.invoke(threadMXBean,
+                    new Object[] { id })).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void run(Session session, String name, int type) {
+        Packet packet = new DefaultPacket(BufferFactory.allocate(64));
+        Object obj = new Object();
+        Exception exception = new Exception();
+
+        long bytes = getAllocatedBytes();
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < EVENTS; i++) {
+            switch (type) {
+            case 0:
+                session.getSessionFilterChain(true).packetSent(packet);
+                break;
+            case 1:
+                session.getSessionFilterChain(true).objectSent(obj);
+                break;
+            case 2:
+                session.getSessionFilterChain(false).sessionTimeout();
+                break;
+            default:
+                session.getSessionFilterChain(false).exceptionCaught(
+                        exception);
+            }
+        }
+        long time = Math.max(1, System.currentTimeMillis() - startTime);
+        bytes = getAllocatedBytes() - bytes;
+
+        System.out.println(name + ": " + (EVENTS * 1000L / time)
+                + " events/s, " + (bytes < 0 ? "n/a" : (bytes / EVENTS) + "")
+                + " bytes/event");
+    }
+
+    public static void main(String[] args) {
+        Configuration.set("dispatcher", args.length > 0 ? args[0]
+                : "net.sf.cindy.session.dispatcher.DirectDispatcher");
+
+        Session session = new AbstractSession() {
+
+            public SessionType getSessionType() {
+                return SessionType.UNKNOWN;
+            }
+
+            protected Future send(Object obj, Packet packet, int priority) {
+                return null;
+            }
+
+            public Future close() {
+                return null;
+            }
+
+            public boolean isStarted() {
+                return true;
+            }
+
+            public Future start() {
+                return null;
+            }
+        };
+        for (int i = 0; i < 3; i++)
+            session.addSessionFilter(new SessionFilterAdapter());
+        session.setSessionHandler(new SessionHandlerAdapter() {
+
+            public void objectSent(Session session, Object obj) {
+                handled++;
+            }
+
+            public void sessionTimeout(Session session) {
+                handled++;
+            }
+
+            public void exceptionCaught(Session session, Throwable cause) {
+                handled++;
+            }
+        });
+
+        for (int round = 0; round < 2; round++) { // the first round warm up
+            run(session, "packetSent", 0);
+            run(session, "objectSent", 1);
+            run(session, "sessionTimeout", 2);
+            run(session, "exceptionCaught", 3);
+        }
+        System.out.println("handled " + handled);
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.session.nio.NonBlockingSessionAcceptor;
+import net.sf.cindy.session.nio.SocketChannelSession;
+import net.sf.cindy.util.Configuration;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class SessionLatencyTest extends TestCase {
+
+    private static final int COUNT = 100;
+
+    protected void setUp() throws Exception {
+        Configuration.set("session.latency", "true");
+    }
+
+    protected void tearDown() throws Exception {
+        Configuration.set("session.latency", "false");
+    }
+
+    public void testDisabled() {
+        Configuration.set("session.latency", "false");
+        assertNull(new SocketChannelSession().getSessionLatency());
+    }
+
+    public void testLatency() throws Exception {
+        final AbstractSession[] accepted = new AbstractSession[1];
+        final int[] received = new int[1];
+        NonBlockingSessionAcceptor acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                accepted[0] = (AbstractSession) session;
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        Packet packet = (Packet) obj;
+                        synchronized (received) {
+                            received[0] += packet.getContent().remaining();
+                            received.notifyAll();
+                        }
+                        packet.getContent().release();
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+
+        long aggregateSent = SessionLatency.getAggregate().getCount(
+                SessionLatency.SENT);
+        SocketChannelSession session = new SocketChannelSession();
+        try {
+            session.setRemoteAddress(new InetSocketAddress("127.0.0.1",
+                    acceptor.getListenPort()));
+            assertTrue(session.start().complete());
+            for (int i = 0; i < COUNT; i++)
+                assertTrue(session.flush(
+                        new DefaultPacket(BufferFactory.allocate(10))).complete());
+
+            synchronized (received) {
+                for (int i = 0; i < 500 && received[0] < COUNT * 10; i++)
+                    received.wait(10);
+                assertEquals(COUNT * 10, received[0]);
+            }
+
+            SessionLatency latency = session.getSessionLatency();
+            assertEquals(COUNT, latency.getCount(SessionLatency.WRITE));
+            assertEquals(COUNT, latency.getCount(SessionLatency.SENT));
+            assertTrue(latency.getLatency(SessionLatency.SENT, 99.9) >= latency
+                    .getLatency(SessionLatency.SENT, 50));
+            assertTrue(SessionLatency.getAggregate().getCount(
+                    SessionLatency.SENT) >= aggregateSent + COUNT);
+
+            latency = accepted[0].getSessionLatency();
+            assertTrue(latency.getCount(SessionLatency.DISPATCH) > 0);
+            assertEquals(latency.getCount(SessionLatency.DISPATCH), latency
+                    .getCount(SessionLatency.HANDLE));
+        } finally {
+            session.close().complete();
+            acceptor.close();
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.bio;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionFilterAdapter;
+import net.sf.cindy.SessionFilterChain;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.SessionType;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.session.SessionFactory;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class BlockingSocketSessionTest extends TestCase {
+
+    private SessionAcceptor acceptor;
+    private Session accepted;
+
+    protected void setUp() throws Exception {
+        acceptor = SessionFactory
+                .createSessionAcceptor(SessionType.BLOCKING_TCP);
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                synchronized (BlockingSocketSessionTest.this) {
+                    accepted = session;
+                    BlockingSocketSessionTest.this.notifyAll();
+                }
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        session.flush((Packet) obj); // echo
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+    }
+
+    protected void tearDown() throws Exception {
+        acceptor.close();
+    }
+
+    private Session createSession() {
+        Session session = SessionFactory
+                .createSession(SessionType.BLOCKING_TCP);
+        session.setRemoteAddress(new InetSocketAddress("127.0.0.1", acceptor
+                .getListenPort()));
+        return session;
+    }
+
+    private synchronized Session waitAccepted() throws InterruptedException {
+        for (int i = 0; i < 100 && accepted == null; i++)
+            wait(50);
+        return accepted;
+    }
+
+    public void testEcho() throws Exception {
+        assertTrue(acceptor instanceof BlockingSessionAcceptor);
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final Thread[] threads = new Thread[2];
+        final int[] filtered = new int[2];
+        Session session = createSession();
+        assertTrue(session instanceof BlockingSocketSession);
+        session.addSessionFilter(new SessionFilterAdapter() {
+
+            public void packetReceived(SessionFilterChain filterChain,
+                    Packet packet) throws Exception {
+                filtered[0]++;
+                super.packetReceived(filterChain, packet);
+            }
+
+            public void packetSend(SessionFilterChain filterChain,
+                    Packet packet) throws Exception {
+                filtered[1]++;
+                super.packetSend(filterChain, packet);
+            }
+        });
+        session.setSessionHandler(new SessionHandlerAdapter() {
+
+            public void sessionStarted(Session session) throws Exception {
+                threads[0] = Thread.currentThread();
+            }
+
+            public void objectReceived(Session session, Object obj)
+                    throws Exception {
+                threads[1] = Thread.currentThread();
+                Buffer buffer = ((Packet) obj).getContent();
+                byte[] b = new byte[buffer.remaining()];
+                buffer.get(b);
+                buffer.release();
+                synchronized (received) {
+                    received.write(b);
+                }
+            }
+        });
+
+        try {
+            assertTrue(session.start().complete());
+            assertTrue(session.isStarted());
+            assertEquals(acceptor.getListenPort(),
+                    ((InetSocketAddress) session.getRemoteAddress()).getPort());
+            assertTrue(waitAccepted() instanceof BlockingSocketSession);
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            Future future = null;
+            for (int i = 0; i < 10; i++) {
+                byte[] b = new byte[1000 * (i + 1)];
+                Arrays.fill(b, (byte) i);
+                expected.write(b);
+                future = session.flush(new DefaultPacket(BufferFactory.wrap(b)));
+                // written in the sending thread
+                assertTrue(future.isCompleted());
+                assertTrue(future.isSucceeded());
+            }
+            assertEquals(10, filtered[1]);
+
+            for (int i = 0; i < 500; i++) {
+                synchronized (received) {
+                    if (received.size() >= expected.size())
+                        break;
+                }
+                Thread.sleep(10);
+            }
+            synchronized (received) {
+                assertTrue(Arrays.equals(expected.toByteArray(), received
+                        .toByteArray()));
+            }
+            assertTrue(filtered[0] > 0);
+            // events are fired in the reader thread, not dispatched
+            assertSame(threads[0], threads[1]);
+        } finally {
+            assertTrue(session.close().complete());
+        }
+        assertFalse(session.isStarted());
+        assertFalse(session.flush(
+                new DefaultPacket(BufferFactory.wrap(new byte[1]))).complete());
+    }
+
+    public void testPeerClose() throws Exception {
+        final int[] closed = new int[1];
+        Session session = createSession();
+        session.setSessionHandler(new SessionHandlerAdapter() {
+
+            public void sessionClosed(Session session) throws Exception {
+                synchronized (closed) {
+                    closed[0]++;
+                    closed.notifyAll();
+                }
+            }
+        });
+        assertTrue(session.start().complete());
+        assertTrue(waitAccepted().close().complete());
+
+        synchronized (closed) {
+            for (int i = 0; i < 100 && closed[0] == 0; i++)
+                closed.wait(50);
+            assertEquals(1, closed[0]);
+        }
+        assertFalse(session.isStarted());
+        assertTrue(session.close().complete());
+
+        // restart after closed
+        assertTrue(session.start().complete());
+        assertTrue(session.close().complete());
+    }
+
+    public void testTimeout() throws Exception {
+        final int[] timeout = new int[1];
+        Session session = createSession();
+        session.setSessionTimeout(100);
+        session.setSessionHandler(new SessionHandlerAdapter() {
+
+            public void sessionTimeout(Session session) throws Exception {
+                synchronized (timeout) {
+                    timeout[0]++;
+                    timeout.notifyAll();
+                }
+            }
+        });
+        try {
+            assertTrue(session.start().complete());
+            synchronized (timeout) {
+                for (int i = 0; i < 100 && timeout[0] < 2; i++)
+                    timeout.wait(50);
+                assertTrue(timeout[0] >= 2);
+            }
+            assertTrue(session.isStarted());
+        } finally {
+            session.close().complete();
+        }
+    }
+
+    public void testConnectRefused() throws Exception {
+        ServerSocket ss = new ServerSocket(0);
+        int port = ss.getLocalPort();
+        ss.close();
+
+        Session session = new BlockingSocketSession();
+        session.setRemoteAddress(new InetSocketAddress("127.0.0.1", port));
+        assertFalse(session.start().complete());
+        assertFalse(session.isStarted());
+        assertTrue(session.close().complete());
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.bio;
+
+import java.net.InetSocketAddress;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.SessionType;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.session.SessionFactory;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measure the echoed messages per second of many concurrent connections, the
+ * server is a nio acceptor or a blocking acceptor. Clients are nio sessions,
+ * each connection sends a message after the previous one echoed. The
+ * connection count is the first argument (10000 by default), the process
+ * needs two file descriptors per connection.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class EchoConnectionsBenchmark {
+
+    private static final int MESSAGE_SIZE = 64;
+
+    private static final long TIME = 5000;
+
+    private static final AtomicLong ECHOED = new AtomicLong();
+
+    private static volatile boolean running;
+
+    private static Packet newMessage() {
+        return new DefaultPacket(BufferFactory.wrap(new byte[MESSAGE_SIZE]));
+    }
+
+    /**
+     * Send the next message after the whole message echoed.
+     */
+    private static class ClientHandler extends SessionHandlerAdapter {
+
+        private int received;
+
+        public void objectReceived(Session session, Object obj)
+                throws Exception {
+            Buffer buffer = ((Packet) obj).getContent();
+            received += buffer.remaining();
+            buffer.release();
+            while (received >= MESSAGE_SIZE) {
+                received -= MESSAGE_SIZE;
+                ECHOED.incrementAndGet();
+                if (running)
+                    session.flush(newMessage());
+            }
+        }
+    }
+
+    private static void run(SessionType type, int connections)
+            throws Exception {
+        SessionAcceptor acceptor = SessionFactory.createSessionAcceptor(type);
+        acceptor.setListenPort(0);
+        acceptor.setBacklog(1024);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        session.flush((Packet) obj); // echo
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+
+        Session[] sessions = new Session[connections];
+        try {
+            long startTime = System.currentTimeMillis();
+            Future[] futures = new Future[Math.min(500, connections)];
+            for (int i = 0; i < connections; i += futures.length) {
+                int count = Math.min(futures.length, connections - i);
+                for (int j = 0; j < count; j++) {
+                    Session session = SessionFactory
+                            .createSession(SessionType.TCP);
+                    session.setRemoteAddress(new InetSocketAddress(
+                            "127.0.0.1", acceptor.getListenPort()));
+                    session.setSessionHandler(new ClientHandler());
+                    sessions[i + j] = session;
+                    futures[j] = session.start();
+                }
+                for (int j = 0; j < count; j++)
+                    if (!futures[j].complete())
+                        throw new IllegalStateException("connect failed");
+            }
+            long connectTime = System.currentTimeMillis() - startTime;
+            while (acceptor.getAcceptedCount() < connections)
+                Thread.sleep(10);
+
+            running = true;
+            ECHOED.set(0);
+            startTime = System.currentTimeMillis();
+            for (int i = 0; i < connections; i++)
+                sessions[i].flush(newMessage());
+            Thread.sleep(TIME);
+            running = false;
+            long echoed = ECHOED.get();
+            long time = System.currentTimeMillis() - startTime;
+            Thread.sleep(1000); // the last messages echoed
+
+            System.out.println(type + ": " + connections + " connections in "
+                    + connectTime + " ms, " + (echoed * 1000L / time)
+                    + " messages/s");
+        } finally {
+            for (int i = 0; i < sessions.length; i++)
+                if (sessions[i] != null)
+                    sessions[i].close();
+            for (int i = 0; i < sessions.length; i++)
+                if (sessions[i] != null)
+                    sessions[i].close().complete();
+            acceptor.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        System.out.println("virtual thread: "
+                + BlockingSocketSession.isVirtualThreadSupported());
+        for (int round = 0; round < 2; round++) { // the first round warm up
+            run(SessionType.TCP, connections);
+            run(SessionType.BLOCKING_TCP, connections);
+        }
+    }
+
+}
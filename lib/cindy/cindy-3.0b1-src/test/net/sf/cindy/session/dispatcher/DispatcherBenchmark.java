@@ -0,0 +1,113 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.dispatcher;
+
+import net.sf.cindy.Session;
+import net.sf.cindy.util.Configuration;
+import edu.emory.mathcs.backport.java.util.concurrent.CountDownLatch;
+
+/**
+ * Compare the throughput of DefaultDispatcher and WorkStealingDispatcher with
+ * 1, 8 and 32 workers. Several producer threads (like reactors) dispatch
+ * small events to many sessions, a few sessions are much hotter than others.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class DispatcherBenchmark {
+
+    private static final int PRODUCERS = 4;
+    private static final int SESSIONS = 1000;
+    private static final int HOT_SESSIONS = 10;
+    private static final int EVENTS = 500000; // per producer
+    private static final int WORK = 200;
+
+    private static volatile int sink;
+
+    private static Dispatcher create(String type, int concurrent) {
+        Configuration.set("dispatcher.concurrent", String.valueOf(concurrent));
+        if ("default".equals(type))
+            return new DefaultDispatcher();
+        return new WorkStealingDispatcher(concurrent);
+    }
+
+    private static long run(final Dispatcher dispatcher)
+            throws InterruptedException {
+        final Session[] sessions = new Session[SESSIONS];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = WorkStealingDispatcherTest.newSession();
+        }
+
+        final CountDownLatch latch = new CountDownLatch(PRODUCERS * EVENTS);
+        final Runnable event = new Runnable() {
+
+            public void run() {
+                int h = 0;
+                for (int i = 0; i < WORK; i++)
+                    h = h * 31 + i;
+                sink = h;
+                latch.countDown();
+            }
+        };
+
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < producers.length; i++) {
+            final int seed = i;
+            producers[i] = new Thread() {
+
+                public void run() {
+                    int x = seed * 7919 + 1;
+                    for (int j = 0; j < EVENTS; j++) {
+                        x ^= x << 13;
+                        x ^= x >>> 17;
+                        x ^= x << 5;
+                        int r = x & Integer.MAX_VALUE;
+                        // half of the events go to the hot sessions
+                        Session session = (r & 1) == 0 ? sessions[r
+                                % HOT_SESSIONS] : sessions[r % SESSIONS];
+                        dispatcher.dispatch(session, event);
+                    }
+                }
+            };
+        }
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < producers.length; i++)
+            producers[i].start();
+        latch.await();
+        return System.currentTimeMillis() - start;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] types = { "default", "workstealing" };
+        int[] concurrents = { 1, 8, 32 };
+
+        // warm up
+        for (int i = 0; i < types.length; i++)
+            run(create(types[i], 8));
+
+        for (int i = 0; i < concurrents.length; i++) {
+            for (int j = 0; j < types.length; j++) {
+                long time = run(create(types[j], concurrents[i]));
+                System.out.println(types[j] + " workers=" + concurrents[i]
+                        + " time=" + time + "ms events/s="
+                        + (PRODUCERS * (long) EVENTS * 1000 / Math.max(1, time)));
+            }
+        }
+        System.exit(0);
+    }
+
+}
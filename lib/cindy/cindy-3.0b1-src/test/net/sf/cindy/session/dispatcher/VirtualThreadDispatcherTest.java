@@ -0,0 +1,92 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.dispatcher;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Session;
+import edu.emory.mathcs.backport.java.util.concurrent.CountDownLatch;
+import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class VirtualThreadDispatcherTest extends TestCase {
+
+    public void testOrder() throws Exception {
+        final int eventCount = 10000;
+
+        Dispatcher dispatcher = new VirtualThreadDispatcher();
+        Session session = WorkStealingDispatcherTest.newSession();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final int[] last = new int[] { -1 };
+
+        for (int i = 0; i < eventCount; i++) {
+            final int seq = i;
+            dispatcher.dispatch(session, new Runnable() {
+
+                public void run() {
+                    if (last[0] != seq - 1)
+                        failed.set(true);
+                    last[0] = seq;
+                    if (seq == eventCount - 1)
+                        latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+    }
+
+    public void testBlock() throws Exception {
+        final Dispatcher dispatcher = new VirtualThreadDispatcher();
+        Session blocked = WorkStealingDispatcherTest.newSession();
+        Session other = WorkStealingDispatcherTest.newSession();
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+
+        dispatcher.dispatch(blocked, new Runnable() {
+
+            public void run() {
+                dispatcher.block(); // no-op
+                try {
+                    if (released.await(10, TimeUnit.SECONDS))
+                        done.countDown();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        dispatcher.dispatch(blocked, new Runnable() {
+
+            public void run() {
+                // executed after the blocked event
+                if (released.getCount() == 0)
+                    done.countDown();
+            }
+        });
+        // the blocked session does not stall other sessions
+        dispatcher.dispatch(other, new Runnable() {
+
+            public void run() {
+                released.countDown();
+            }
+        });
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.dispatcher;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionType;
+import net.sf.cindy.session.AbstractSession;
+import edu.emory.mathcs.backport.java.util.concurrent.CountDownLatch;
+import edu.emory.mathcs.backport.java.util.concurrent.TimeUnit;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class WorkStealingDispatcherTest extends TestCase {
+
+    static Session newSession() {
+        return new AbstractSession() {
+
+            public SessionType getSessionType() {
+                return SessionType.UNKNOWN;
+            }
+
+            protected Future send(Object obj, Packet packet, int priority) {
+                return null;
+            }
+
+            public Future close() {
+                return null;
+            }
+
+            public boolean isStarted() {
+                return false;
+            }
+
+            public Future start() {
+                return null;
+            }
+
+        };
+    }
+
+    public void testOrder() throws Exception {
+        final int sessionCount = 16;
+        final int eventCount = 10000;
+
+        final Dispatcher dispatcher = new WorkStealingDispatcher(4);
+        final CountDownLatch latch = new CountDownLatch(sessionCount);
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        Thread[] producers = new Thread[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            final Session session = newSession();
+            final int[] last = new int[] { -1 };
+            final AtomicBoolean running = new AtomicBoolean();
+            producers[i] = new Thread() {
+
+                public void run() {
+                    for (int j = 0; j < eventCount; j++) {
+                        final int seq = j;
+                        dispatcher.dispatch(session, new Runnable() {
+
+                            public void run() {
+                                // events of a session never run concurrently
+                                if (!running.compareAndSet(false, true))
+                                    failed.set(true);
+                                if (last[0] != seq - 1)
+                                    failed.set(true);
+                                last[0] = seq;
+                                running.set(false);
+                                if (seq == eventCount - 1)
+                                    latch.countDown();
+                            }
+                        });
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < producers.length; i++) {
+            producers[i].start();
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertFalse(failed.get());
+    }
+
+    public void testBlock() throws Exception {
+        final Dispatcher dispatcher = new WorkStealingDispatcher(1);
+        final Session session = newSession();
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        dispatcher.dispatch(session, new Runnable() {
+
+            public void run() {
+                // the next event of the same session must be executed by
+                // another worker
+                dispatcher.block();
+                try {
+                    if (released.await(10, TimeUnit.SECONDS))
+                        done.countDown();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        dispatcher.dispatch(session, new Runnable() {
+
+            public void run() {
+                released.countDown();
+            }
+        });
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+    }
+
+}
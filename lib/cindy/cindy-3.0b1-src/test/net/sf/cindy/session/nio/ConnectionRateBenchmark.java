@@ -0,0 +1,99 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import java.net.Socket;
+
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+
+/**
+ * Measure the accepted connections per second on loopback. Client threads
+ * connect and reset connections in a loop, the acceptor binds the given count
+ * of server channels (1 by default).
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class ConnectionRateBenchmark {
+
+    private static final int CLIENTS = 8;
+
+    private static final long TIME = 3000;
+
+    private static volatile boolean running;
+
+    private static void run(final NonBlockingSessionAcceptor acceptor)
+            throws InterruptedException {
+        Thread[] threads = new Thread[CLIENTS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+
+                public void run() {
+                    try {
+                        while (running) {
+                            Socket socket = new Socket("127.0.0.1", acceptor
+                                    .getListenPort());
+                            socket.setSoLinger(true, 0); // no time wait
+                            socket.close();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+        }
+
+        int start = acceptor.getAcceptedCount();
+        long startTime = System.currentTimeMillis();
+        running = true;
+        for (int i = 0; i < threads.length; i++)
+            threads[i].start();
+        Thread.sleep(TIME);
+        running = false;
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        long time = System.currentTimeMillis() - startTime;
+
+        System.out.println("concurrent " + acceptor.getConcurrent() + ": "
+                + ((acceptor.getAcceptedCount() - start) * 1000L / time)
+                + " connections/s");
+    }
+
+    public static void main(String[] args) throws Exception {
+        NonBlockingSessionAcceptor acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setBacklog(1024);
+        acceptor.setConcurrent(args.length > 0 ? Integer.parseInt(args[0]) : 1);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                session.start(); // closed by the client reset
+            }
+        });
+        acceptor.start();
+        try {
+            for (int round = 0; round < 2; round++)
+                // the first round warm up
+                run(acceptor);
+        } finally {
+            acceptor.close();
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import java.net.InetSocketAddress;
+
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DatagramBatchPacket;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.util.Configuration;
+
+/**
+ * Measure the datagrams per second of 64 bytes datagrams, sent one by one and
+ * received one by one (off), or sent and received in batches of 32 datagrams
+ * (batch). Datagrams are sent in bursts, the next burst is sent after the
+ * previous one received, so the receive buffer does not overflow.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class DatagramBatchBenchmark {
+
+    private static final int BATCH = 32;
+
+    private static final int BURST = 8 * BATCH;
+
+    private static final long TIME = 3000;
+
+    private static long received;
+
+    private static synchronized void received(int count) {
+        received += count;
+    }
+
+    private static synchronized long getReceived() {
+        return received;
+    }
+
+    private static Packet newPacket(Session server) {
+        return new DefaultPacket(BufferFactory.wrap(new byte[64]), server
+                .getLocalAddress());
+    }
+
+    private static void run(DatagramChannelSession server,
+            DatagramChannelSession client, boolean batch)
+            throws InterruptedException {
+        long start = getReceived();
+        long sent = 0;
+        long startTime = System.currentTimeMillis();
+        while (System.currentTimeMillis() - startTime < TIME) {
+            Future future = null;
+            for (int i = 0; i < BURST / BATCH; i++) {
+                if (batch) {
+                    Packet[] packets = new Packet[BATCH];
+                    for (int j = 0; j < packets.length; j++)
+                        packets[j] = newPacket(server);
+                    future = client.send(new DatagramBatchPacket(packets));
+                } else {
+                    for (int j = 0; j < BATCH; j++)
+                        future = client.send(newPacket(server));
+                }
+            }
+            future.complete();
+            sent += BURST;
+            long timeout = System.currentTimeMillis() + 1000;
+            while (getReceived() - start < sent
+                    && System.currentTimeMillis() < timeout)
+                Thread.yield();
+        }
+        long time = System.currentTimeMillis() - startTime;
+        long count = getReceived() - start;
+        System.out.println((batch ? "batch" : "off") + ": "
+                + (count * 1000 / time) + " datagrams/s, lost "
+                + (sent - count));
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean batch = args.length > 0 && args[0].equals("batch");
+        Configuration.set("session.readPacketSize", "512");
+        Configuration.set("session.recvBufferSize", "" + 4 * 1024 * 1024);
+
+        DatagramChannelSession server = new DatagramChannelSession();
+        server.setLocalAddress(new InetSocketAddress("127.0.0.1", 0));
+        server.setDatagramBatch(batch ? BATCH : 0);
+        server.setSessionHandler(new SessionHandlerAdapter() {
+
+            public void objectReceived(Session session, Object obj)
+                    throws Exception {
+                Packet packet = (Packet) obj;
+                if (packet instanceof DatagramBatchPacket)
+                    received(((DatagramBatchPacket) packet).getCount());
+                else
+                    received(1);
+                packet.getContent().release();
+            }
+        });
+        server.start().complete();
+
+        DatagramChannelSession client = new DatagramChannelSession();
+        client.setLocalAddress(new InetSocketAddress("127.0.0.1", 0));
+        client.start().complete();
+
+        try {
+            for (int round = 0; round < 2; round++)
+                // the first round warm up
+                run(server, client, batch);
+        } finally {
+            client.close().complete();
+            server.close().complete();
+        }
+    }
+
+}
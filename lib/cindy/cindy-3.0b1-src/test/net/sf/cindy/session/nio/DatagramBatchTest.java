@@ -0,0 +1,183 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.PacketDecoder;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DatagramBatchPacket;
+import net.sf.cindy.packet.DefaultPacket;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class DatagramBatchTest extends TestCase {
+
+    private final List datagrams = new ArrayList(); // received datagrams
+    private int batches; // received batch packets
+
+    private DatagramChannelSession server;
+    private DatagramChannelSession client;
+
+    protected void setUp() throws Exception {
+        server = new DatagramChannelSession();
+        server.setLocalAddress(new InetSocketAddress("127.0.0.1", 0));
+        server.setSessionHandler(new SessionHandlerAdapter() {
+
+            public void objectReceived(Session session, Object obj)
+                    throws Exception {
+                synchronized (datagrams) {
+                    if (obj instanceof DatagramBatchPacket) {
+                        DatagramBatchPacket batch = (DatagramBatchPacket) obj;
+                        for (int i = 0; i < batch.getCount(); i++)
+                            datagrams.add(toString(batch.getPacket(i)));
+                        batch.getContent().release();
+                        batches++;
+                    } else if (obj instanceof Packet) {
+                        datagrams.add(toString((Packet) obj));
+                        ((Packet) obj).getContent().release();
+                    } else
+                        datagrams.add(obj);
+                }
+            }
+
+            private String toString(Packet packet) {
+                Buffer buffer = packet.getContent();
+                byte[] b = new byte[buffer.remaining()];
+                buffer.get(b);
+                return new String(b);
+            }
+        });
+
+        client = new DatagramChannelSession();
+        client.setLocalAddress(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    protected void tearDown() throws Exception {
+        client.close().complete();
+        server.close().complete();
+    }
+
+    private String datagram(int i) {
+        StringBuffer sb = new StringBuffer();
+        for (int j = 0; j <= i % 20; j++)
+            sb.append((char) ('a' + i % 26));
+        return sb.toString();
+    }
+
+    private void assertReceived(int count) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            synchronized (datagrams) {
+                if (datagrams.size() >= count)
+                    break;
+            }
+            Thread.sleep(10);
+        }
+        synchronized (datagrams) {
+            assertEquals(count, datagrams.size());
+            for (int i = 0; i < count; i++)
+                assertEquals(datagram(i), datagrams.get(i));
+        }
+    }
+
+    public void testBatch() throws Exception {
+        server.setDatagramBatch(16);
+        assertTrue(server.start().complete());
+        assertTrue(client.start().complete());
+
+        Packet[] packets = new Packet[40];
+        for (int i = 0; i < packets.length; i++)
+            packets[i] = new DefaultPacket(BufferFactory.wrap(datagram(i)
+                    .getBytes()), server.getLocalAddress());
+        DatagramBatchPacket batch = new DatagramBatchPacket(packets);
+        assertEquals(40, batch.getCount());
+        assertEquals(datagram(3).length(), batch.getLimit(3)
+                - batch.getPosition(3));
+        assertTrue(client.send(batch).complete());
+
+        // sent and received by the same reactor
+        assertReceived(40);
+        synchronized (datagrams) {
+            assertTrue(batches >= 3 && batches < 40);
+        }
+    }
+
+    public void testWriteBatch() throws Exception {
+        assertTrue(server.start().complete());
+        client.setRemoteAddress(server.getLocalAddress()); // connected
+        assertTrue(client.start().complete());
+
+        Future[] futures = new Future[10];
+        client.batch();
+        try {
+            for (int i = 0; i < futures.length; i++)
+                futures[i] = client.send(new DefaultPacket(BufferFactory
+                        .wrap(datagram(i).getBytes())));
+            assertFalse(futures[0].isCompleted());
+        } finally {
+            client.endBatch();
+        }
+        for (int i = 0; i < futures.length; i++)
+            assertTrue(futures[i].complete());
+
+        // datagram boundaries kept
+        assertReceived(futures.length);
+        synchronized (datagrams) {
+            assertEquals(0, batches);
+        }
+    }
+
+    public void testDecodeBatch() throws Exception {
+        server.setDatagramBatch(8);
+        server.setPacketDecoder(new PacketDecoder() {
+
+            public Object decode(Session session, Packet packet)
+                    throws Exception {
+                Buffer buffer = packet.getContent();
+                byte[] b = new byte[buffer.remaining()];
+                buffer.get(b);
+                return new String(b);
+            }
+        });
+        assertTrue(server.start().complete());
+        assertTrue(client.start().complete());
+
+        SocketAddress address = server.getLocalAddress();
+        Packet[] packets = new Packet[20];
+        for (int i = 0; i < packets.length; i++)
+            packets[i] = new DefaultPacket(BufferFactory.wrap(datagram(i)
+                    .getBytes()), address);
+        assertTrue(client.send(new DatagramBatchPacket(packets)).complete());
+
+        // decoded one by one
+        assertReceived(packets.length);
+        synchronized (datagrams) {
+            assertEquals(0, batches);
+        }
+    }
+
+}
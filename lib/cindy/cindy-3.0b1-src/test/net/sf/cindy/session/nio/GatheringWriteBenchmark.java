@@ -0,0 +1,203 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.session.nio.reactor.ReactorHandler;
+import net.sf.cindy.util.Configuration;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Send many 64 bytes messages over a loopback tcp session, compare the elapsed
+ * time and the writes per message with and without gathering write. The
+ * writes are counted by the channel of the sending session. The receiver
+ * verifies the byte stream order.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class GatheringWriteBenchmark {
+
+    private static final int MESSAGE_SIZE = 64;
+    private static final int MESSAGE_COUNT = 200000;
+
+    /**
+     * Socket channel session which counts the writes to its channel.
+     */
+    private static class CountingSession extends SocketChannelSession {
+
+        private final CountingChannel counting;
+
+        public CountingSession(SocketChannel channel) {
+            setChannel(channel);
+            counting = new CountingChannel(channel);
+        }
+
+        protected ReactorHandler getReactorHandler() {
+            return new ChannelReactorHandler() {
+
+                public SelectableChannel[] getChannels() {
+                    return new SelectableChannel[] { getChannel() };
+                }
+
+                protected void read() throws IOException {
+                    read(getChannel(), null);
+                }
+
+                protected GatheringByteChannel getGatheringChannel() {
+                    return counting;
+                }
+
+                protected boolean write(Packet packet) throws IOException {
+                    Buffer buffer = packet.getContent();
+                    while (true) {
+                        int n = buffer.write(counting);
+                        if (!buffer.hasRemaining())
+                            return true;
+                        else if (n == 0)
+                            return false;
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Count the single and gathering writes, updated by the reactor thread
+     * only.
+     */
+    private static class CountingChannel implements GatheringByteChannel {
+
+        private final SocketChannel channel;
+        private volatile long writes;
+        private volatile long gatheringWrites;
+
+        public CountingChannel(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            writes++;
+            return channel.write(src);
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length)
+                throws IOException {
+            gatheringWrites++;
+            return channel.write(srcs, offset, length);
+        }
+
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static void run(boolean gathering) throws Exception {
+        Configuration.set("session.gatheringWrite", String.valueOf(gathering));
+
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        NonBlockingSessionAcceptor acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        Buffer buffer = ((Packet) obj).getContent();
+                        long offset = received.get();
+                        while (buffer.hasRemaining()) {
+                            if (buffer.get() != (byte) (offset++ / MESSAGE_SIZE))
+                                errors.incrementAndGet();
+                        }
+                        received.set(offset);
+                        buffer.release();
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+                "127.0.0.1", acceptor.getListenPort()));
+        channel.configureBlocking(false);
+        CountingSession session = new CountingSession(channel);
+        session.start().complete();
+
+        long startTime = System.currentTimeMillis();
+        Future future = null;
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            byte[] message = new byte[MESSAGE_SIZE];
+            for (int j = 0; j < message.length; j++)
+                message[j] = (byte) i;
+            future = session.send(new DefaultPacket(BufferFactory
+                    .wrap(message)));
+        }
+        future.complete();
+        long expected = (long) MESSAGE_COUNT * MESSAGE_SIZE;
+        while (received.get() < expected)
+            Thread.sleep(1);
+        long time = System.currentTimeMillis() - startTime;
+
+        long writes = session.counting.writes;
+        long gatheringWrites = session.counting.gatheringWrites;
+        System.out.println("gatheringWrite=" + gathering + " messages="
+                + MESSAGE_COUNT + " time=" + time + "ms writes=" + writes
+                + " gatheringWrites=" + gatheringWrites
+                + " writesPerMessage="
+                + (double) (writes + gatheringWrites) / MESSAGE_COUNT
+                + " errors=" + errors.get());
+
+        session.close().complete();
+        acceptor.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(false); // warm up
+        run(true);
+        run(false);
+        run(true);
+        System.exit(0);
+    }
+
+}
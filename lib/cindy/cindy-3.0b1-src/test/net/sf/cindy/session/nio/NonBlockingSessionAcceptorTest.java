@@ -0,0 +1,144 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.session.nio.reactor.ReactorPool;
+import net.sf.cindy.util.ChannelUtils;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class NonBlockingSessionAcceptorTest extends TestCase {
+
+    private static final int CLIENTS = 40;
+
+    private final Set acceptThreads = new HashSet();
+
+    private NonBlockingSessionAcceptor acceptor;
+
+    protected void setUp() throws Exception {
+        acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                synchronized (acceptThreads) {
+                    acceptThreads.add(Thread.currentThread());
+                }
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        session.flush((Packet) obj); // echo
+                    }
+                });
+                session.start();
+            }
+        });
+    }
+
+    protected void tearDown() throws Exception {
+        acceptor.close();
+    }
+
+    private void connect() throws Exception {
+        Socket[] sockets = new Socket[CLIENTS];
+        try {
+            for (int i = 0; i < sockets.length; i++)
+                sockets[i] = new Socket("127.0.0.1", acceptor.getListenPort());
+            for (int i = 0; i < sockets.length; i++) {
+                OutputStream out = sockets[i].getOutputStream();
+                out.write(i);
+                out.flush();
+                InputStream in = sockets[i].getInputStream();
+                assertEquals(i, in.read());
+            }
+        } finally {
+            for (int i = 0; i < sockets.length; i++)
+                if (sockets[i] != null)
+                    sockets[i].close();
+        }
+        assertEquals(CLIENTS, acceptor.getAcceptedCount());
+    }
+
+    public void testSingle() throws Exception {
+        acceptor.start();
+        assertTrue(acceptor.isStarted());
+        connect();
+        assertEquals(1, acceptThreads.size());
+    }
+
+    public void testReusePort() throws Exception {
+        acceptor.setConcurrent(4);
+        acceptor.start();
+        assertTrue(acceptor.isStarted());
+        connect();
+        if (ChannelUtils.isReusePortSupported())
+            assertEquals(acceptor.getConcurrent(), acceptor
+                    .getServerChannelCount());
+        else {
+            // fall back to one server channel
+            assertEquals(1, acceptor.getServerChannelCount());
+            assertEquals(1, acceptThreads.size());
+        }
+
+        try {
+            acceptor.setConcurrent(2);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        acceptor.close();
+        assertFalse(acceptor.isStarted());
+    }
+
+    public void testReactorPoolView() throws Exception {
+        acceptor.start();
+        ReactorPool pool = new ReactorPool(2);
+        SocketChannelSession session = new SocketChannelSession();
+        session.setReactor(pool.getReactor(1));
+        session.setRemoteAddress(new InetSocketAddress("127.0.0.1", acceptor
+                .getListenPort()));
+        try {
+            assertTrue(session.start().complete());
+            assertTrue(Arrays.equals(new int[] { 0, 1 }, pool.getLoads()));
+            try {
+                session.setReactor(pool.getReactor(0));
+                fail();
+            } catch (IllegalStateException e) {
+            }
+        } finally {
+            session.close().complete();
+        }
+        assertTrue(Arrays.equals(new int[] { 0, 0 }, pool.getLoads()));
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import java.net.InetSocketAddress;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Many producer threads send 64 bytes messages to one loopback tcp session,
+ * measure the messages per second with normal priority only (the fast path)
+ * and with mixed priorities.
+ * <p>
+ * Usage: SendQueueBenchmark [producers]
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class SendQueueBenchmark {
+
+    private static final int MESSAGE_SIZE = 64;
+    private static final int MESSAGE_COUNT = 400000;
+
+    private static void run(final Session session, final int producers,
+            final boolean mixed, final AtomicLong received) throws Exception {
+        final int count = MESSAGE_COUNT / producers;
+        final Future[] futures = new Future[producers];
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            threads[i] = new Thread() {
+
+                public void run() {
+                    Future future = null;
+                    for (int j = 0; j < count; j++) {
+                        int priority = mixed ? j % 3 - 1 : 0;
+                        future = session.flush(new DefaultPacket(BufferFactory
+                                .allocate(MESSAGE_SIZE)), priority);
+                    }
+                    futures[producer] = future;
+                }
+            };
+        }
+
+        long start = received.get();
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < producers; i++)
+            threads[i].start();
+        for (int i = 0; i < producers; i++) {
+            threads[i].join();
+            futures[i].complete();
+        }
+        long expected = start + (long) count * producers * MESSAGE_SIZE;
+        while (received.get() < expected)
+            Thread.sleep(1);
+        long time = Math.max(1, System.currentTimeMillis() - startTime);
+
+        System.out.println("producers=" + producers + " mixed=" + mixed
+                + " messages=" + count * producers + " time=" + time + "ms "
+                + (count * producers * 1000L / time) + " messages/s");
+    }
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+
+        final AtomicLong received = new AtomicLong();
+        NonBlockingSessionAcceptor acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        Buffer buffer = ((Packet) obj).getContent();
+                        received.addAndGet(buffer.remaining());
+                        buffer.release();
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+
+        Session session = new SocketChannelSession();
+        session.setRemoteAddress(new InetSocketAddress("127.0.0.1", acceptor
+                .getListenPort()));
+        session.start().complete();
+
+        for (int round = 0; round < 2; round++) { // the first round warm up
+            run(session, producers, false, received);
+            run(session, producers, true, received);
+        }
+
+        session.close().complete();
+        acceptor.close();
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import junit.framework.TestCase;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class SendQueueTest extends TestCase {
+
+    private static class TestEntry extends SendQueue.Entry {
+
+        private final int producer;
+        private final int seq;
+
+        public TestEntry(int priority, int producer, int seq) {
+            super(new DefaultPacket(BufferFactory.wrap(new byte[0])), priority);
+            this.producer = producer;
+            this.seq = seq;
+        }
+    }
+
+    public void testFifo() {
+        SendQueue queue = new SendQueue();
+        assertNull(queue.poll());
+        for (int i = 0; i < 10; i++) {
+            queue.offer(new TestEntry(0, 0, i));
+            if (i % 3 == 0) // poll the last entry, stub re-enqueued
+                assertEquals(i / 3, ((TestEntry) queue.poll()).seq);
+        }
+        for (int i = 4; i < 10; i++)
+            assertEquals(i, ((TestEntry) queue.poll()).seq);
+        assertNull(queue.poll());
+
+        // reuse polled entry
+        TestEntry entry = new TestEntry(0, 0, 100);
+        queue.offer(entry);
+        assertSame(entry, queue.poll());
+        queue.offer(entry);
+        assertSame(entry, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    public void testPriority() {
+        SendQueue queue = new SendQueue();
+        queue.offer(new TestEntry(0, 0, 0));
+        queue.offer(new TestEntry(-1, 0, 1));
+        queue.offer(new TestEntry(Integer.MAX_VALUE, 0, 2));
+        queue.offer(new TestEntry(0, 0, 3));
+        queue.offer(new TestEntry(1, 0, 4));
+        queue.offer(new TestEntry(Integer.MIN_VALUE, 0, 5));
+
+        int[] expected = { 2, 4, 0, 3, 1, 5 };
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], ((TestEntry) queue.poll()).seq);
+        assertNull(queue.poll());
+    }
+
+    public void testMultiProducer() throws Exception {
+        final int producers = 4;
+        final int count = 20000;
+        final SendQueue queue = new SendQueue();
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            threads[i] = new Thread() {
+
+                public void run() {
+                    for (int j = 0; j < count; j++)
+                        queue.offer(new TestEntry(producer == 0 ? j % 3 - 1
+                                : 0, producer, j));
+                }
+            };
+            threads[i].start();
+        }
+
+        // order of each producer and lane is kept
+        int[][] last = new int[producers][3];
+        for (int i = 0; i < producers; i++)
+            for (int j = 0; j < 3; j++)
+                last[i][j] = -1;
+        int polled = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (polled < producers * count
+                && System.currentTimeMillis() < deadline) {
+            TestEntry entry = (TestEntry) queue.poll();
+            if (entry == null) {
+                Thread.yield();
+                continue;
+            }
+            int lane = entry.getPriority() + 1;
+            assertTrue(entry.seq > last[entry.producer][lane]);
+            last[entry.producer][lane] = entry.seq;
+            polled++;
+        }
+        for (int i = 0; i < producers; i++)
+            threads[i].join();
+        assertEquals(producers * count, polled);
+        assertNull(queue.poll());
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import java.net.InetSocketAddress;
+
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.util.Configuration;
+import edu.emory.mathcs.backport.java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request/response over a loopback tcp session, the server answers each
+ * received packet with several small messages. Measure the responses per
+ * second with write batch disabled, enabled in dispatcher tasks, or with a
+ * write batch window on the client.
+ * <p>
+ * Write batch of dispatcher tasks is read once, run each mode in its own jvm.
+ * Usage: WriteBatchBenchmark [off|task|window]
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class WriteBatchBenchmark {
+
+    private static final int MESSAGE_SIZE = 16;
+    private static final int RESPONSES = 8;
+    private static final int REQUESTS = 50000;
+
+    private static void run(Session session, String mode, AtomicLong received)
+            throws Exception {
+        long start = received.get();
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < REQUESTS; i++)
+            session.flush(new DefaultPacket(BufferFactory
+                    .allocate(MESSAGE_SIZE)));
+        long expected = start + (long) REQUESTS * RESPONSES * MESSAGE_SIZE;
+        while (received.get() < expected)
+            Thread.sleep(1);
+        long time = Math.max(1, System.currentTimeMillis() - startTime);
+
+        System.out.println("mode=" + mode + " requests=" + REQUESTS
+                + " time=" + time + "ms "
+                + ((long) REQUESTS * RESPONSES * 1000 / time) + " responses/s");
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "task";
+        Configuration.set("session.writeBatch", String.valueOf("task"
+                .equals(mode)));
+
+        final AtomicLong received = new AtomicLong();
+        NonBlockingSessionAcceptor acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        Buffer buffer = ((Packet) obj).getContent();
+                        int requests = buffer.remaining() / MESSAGE_SIZE;
+                        buffer.release();
+                        for (int i = 0; i < requests * RESPONSES; i++)
+                            session.flush(new DefaultPacket(BufferFactory
+                                    .allocate(MESSAGE_SIZE)));
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+
+        SocketChannelSession session = new SocketChannelSession();
+        session.setRemoteAddress(new InetSocketAddress("127.0.0.1", acceptor
+                .getListenPort()));
+        session.setSessionHandler(new SessionHandlerAdapter() {
+
+            public void objectReceived(Session session, Object obj)
+                    throws Exception {
+                Buffer buffer = ((Packet) obj).getContent();
+                received.addAndGet(buffer.remaining());
+                buffer.release();
+            }
+        });
+        if ("window".equals(mode))
+            session.setWriteBatchWindow(200);
+        session.start().complete();
+
+        for (int round = 0; round < 3; round++) // the first round warm up
+            run(session, mode, received);
+
+        session.close().complete();
+        acceptor.close();
+        System.exit(0);
+    }
+
+}
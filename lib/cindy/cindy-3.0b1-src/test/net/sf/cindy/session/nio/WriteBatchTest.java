@@ -0,0 +1,204 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Buffer;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionFilterAdapter;
+import net.sf.cindy.SessionFilterChain;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class WriteBatchTest extends TestCase {
+
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    private int packetSent;
+
+    private NonBlockingSessionAcceptor acceptor;
+    private SocketChannelSession session;
+
+    protected void setUp() throws Exception {
+        acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        Buffer buffer = ((Packet) obj).getContent();
+                        byte[] b = new byte[buffer.remaining()];
+                        buffer.get(b);
+                        buffer.release();
+                        synchronized (received) {
+                            received.write(b);
+                        }
+                    }
+                });
+                session.start();
+            }
+        });
+        acceptor.start();
+
+        session = new SocketChannelSession();
+        session.setRemoteAddress(new InetSocketAddress("127.0.0.1", acceptor
+                .getListenPort()));
+        session.addSessionFilter(new SessionFilterAdapter() {
+
+            public void packetSent(SessionFilterChain filterChain,
+                    Packet packet) throws Exception {
+                synchronized (WriteBatchTest.this) {
+                    packetSent++;
+                }
+                super.packetSent(filterChain, packet);
+            }
+        });
+        assertTrue(session.start().complete());
+    }
+
+    protected void tearDown() throws Exception {
+        session.close().complete();
+        acceptor.close();
+    }
+
+    private Future send(int size) {
+        byte[] b = new byte[size];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) (expected.size() + i);
+        expected.write(b, 0, b.length);
+        return session.flush(new DefaultPacket(BufferFactory.wrap(b)));
+    }
+
+    private void assertReceived() throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            synchronized (received) {
+                if (received.size() >= expected.size())
+                    break;
+            }
+            Thread.sleep(10);
+        }
+        synchronized (received) {
+            assertTrue(Arrays.equals(expected.toByteArray(), received
+                    .toByteArray()));
+        }
+    }
+
+    private synchronized int getPacketSent() {
+        return packetSent;
+    }
+
+    public void testBatch() throws Exception {
+        Future[] futures = new Future[100];
+        session.batch();
+        try {
+            for (int i = 0; i < futures.length; i++)
+                futures[i] = send(10);
+            assertFalse(futures[0].isCompleted());
+        } finally {
+            session.endBatch();
+        }
+        for (int i = 0; i < futures.length; i++)
+            assertTrue(futures[i].complete());
+        assertReceived();
+        assertEquals(1, getPacketSent()); // coalesced into one packet
+    }
+
+    public void testNested() throws Exception {
+        session.batch();
+        session.batch();
+        Future future = send(10);
+        session.endBatch();
+        assertFalse(future.complete(100));
+        session.endBatch();
+        assertTrue(future.complete());
+        assertReceived();
+    }
+
+    public void testOrder() throws Exception {
+        Future last = null;
+        session.batch();
+        try {
+            send(10);
+            send(100000); // too large, flush the batch and send directly
+            send(10);
+            // packet class may be recognized by filters, flush the batch and
+            // send directly
+            session.flush(new DefaultPacket(BufferFactory.wrap(new byte[1])) {
+            });
+            expected.write(0);
+            // empty packet is not coalesced
+            session.flush(new DefaultPacket(BufferFactory.allocate(0)));
+            last = send(10);
+        } finally {
+            session.endBatch();
+        }
+        assertTrue(last.complete());
+        assertReceived();
+        assertEquals(6, getPacketSent());
+    }
+
+    public void testWindow() throws Exception {
+        session.setWriteBatchWindow(100000);
+        Future[] futures = new Future[50];
+        for (int i = 0; i < futures.length; i++)
+            futures[i] = send(10);
+        for (int i = 0; i < futures.length; i++)
+            assertTrue(futures[i].complete());
+        assertReceived();
+        assertTrue(getPacketSent() < futures.length);
+    }
+
+    public void testWindowAndBatch() throws Exception {
+        // packets in the window are sent before the packets of the batch
+        session.setWriteBatchWindow(1000000);
+        send(10);
+        session.batch();
+        try {
+            send(10);
+        } finally {
+            session.endBatch();
+        }
+        send(10);
+        session.batch();
+        try {
+            send(100000); // not coalesced
+            send(10);
+        } finally {
+            session.endBatch();
+        }
+        Future last = send(10);
+        assertTrue(last.complete());
+        assertReceived();
+    }
+
+}
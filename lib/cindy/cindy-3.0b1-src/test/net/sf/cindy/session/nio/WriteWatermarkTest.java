@@ -0,0 +1,188 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.session.nio;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+import net.sf.cindy.Future;
+import net.sf.cindy.Packet;
+import net.sf.cindy.Session;
+import net.sf.cindy.SessionAcceptor;
+import net.sf.cindy.SessionAcceptorHandlerAdapter;
+import net.sf.cindy.SessionHandlerAdapter;
+import net.sf.cindy.buffer.BufferFactory;
+import net.sf.cindy.packet.DefaultPacket;
+import net.sf.cindy.util.Configuration;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class WriteWatermarkTest extends TestCase {
+
+    private static final int PACKET_SIZE = 16 * 1024;
+
+    private NonBlockingSessionAcceptor acceptor;
+    private Session accepted;
+    private SocketChannelSession session;
+    private int changed;
+
+    protected void setUp() throws Exception {
+        // bound the socket buffers, or the loopback may absorb all sends
+        Configuration.set("session.recvBufferSize", "65536");
+        Configuration.set("session.sendBufferSize", "65536");
+
+        acceptor = new NonBlockingSessionAcceptor();
+        acceptor.setListenPort(0);
+        acceptor.setAcceptorHandler(new SessionAcceptorHandlerAdapter() {
+
+            public void sessionAccepted(SessionAcceptor acceptor,
+                    Session session) throws Exception {
+                // not started, the received bytes will not be read
+                session.setSessionHandler(new SessionHandlerAdapter() {
+
+                    public void objectReceived(Session session, Object obj)
+                            throws Exception {
+                        ((Packet) obj).getContent().release();
+                    }
+                });
+                synchronized (WriteWatermarkTest.this) {
+                    accepted = session;
+                    WriteWatermarkTest.this.notifyAll();
+                }
+            }
+        });
+        acceptor.start();
+
+        session = new SocketChannelSession();
+        session.setRemoteAddress(new InetSocketAddress("127.0.0.1", acceptor
+                .getListenPort()));
+        session.setSessionHandler(new SessionHandlerAdapter() {
+
+            public void writabilityChanged(Session session) throws Exception {
+                synchronized (WriteWatermarkTest.this) {
+                    changed++;
+                    WriteWatermarkTest.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    protected void tearDown() throws Exception {
+        session.close().complete();
+        if (accepted != null)
+            accepted.close().complete();
+        acceptor.close();
+        Configuration.set("session.recvBufferSize", "-1");
+        Configuration.set("session.sendBufferSize", "-1");
+    }
+
+    private synchronized Session waitAccepted() throws InterruptedException {
+        for (int i = 0; i < 500 && accepted == null; i++)
+            wait(10);
+        assertNotNull(accepted);
+        return accepted;
+    }
+
+    /**
+     * Wait until the writability changed odd (not writable) or even (writable)
+     * times.
+     */
+    private synchronized void waitChanged(boolean odd)
+            throws InterruptedException {
+        for (int i = 0; i < 500 && (changed % 2 == 1) != odd; i++)
+            wait(10);
+        assertEquals(odd, changed % 2 == 1);
+    }
+
+    private Future send() {
+        return session.send(new DefaultPacket(BufferFactory
+                .allocate(PACKET_SIZE)));
+    }
+
+    public void testWatermark() throws Exception {
+        session.setWriteBufferHighWatermark(4 * PACKET_SIZE);
+        session.setWriteBufferLowWatermark(2 * PACKET_SIZE);
+        assertTrue(session.start().complete());
+        Session peer = waitAccepted();
+        assertTrue(session.isWritable());
+
+        // fill the socket buffers, then the send queue
+        Future last = null;
+        for (int i = 0; i < 1000; i++) {
+            if (session.isWritable())
+                last = send();
+            else {
+                // may become writable again while the socket buffers filling
+                Thread.sleep(50);
+                if (!session.isWritable())
+                    break;
+            }
+        }
+        // sends are queued by the dispatcher, may be not queued yet
+        for (int i = 0; i < 500 && session.isWritable(); i++)
+            Thread.sleep(10);
+        assertFalse(session.isWritable());
+        assertTrue(session.getPendingWriteBytes() >= 2 * PACKET_SIZE);
+        waitChanged(true);
+
+        peer.start(); // drain
+        assertTrue(last.complete());
+        waitChanged(false);
+        assertTrue(session.isWritable());
+        assertEquals(0, session.getPendingWriteBytes());
+    }
+
+    public void testLimit() throws Exception {
+        session.setWriteBufferLimit(4 * PACKET_SIZE);
+        assertTrue(session.start().complete());
+        waitAccepted();
+
+        // far more than the socket buffers, the last send exceeds the limit
+        Future last = null;
+        for (int i = 0; i < 1000; i++)
+            last = send();
+        assertFalse(last.complete());
+        assertTrue(session.isStarted());
+        assertTrue(session.getPendingWriteBytes() <= 4 * PACKET_SIZE);
+    }
+
+    public void testCloseOnLimit() throws Exception {
+        session.setWriteBufferLimit(4 * PACKET_SIZE);
+        session.setCloseOnWriteBufferLimit(true);
+        assertTrue(session.start().complete());
+        waitAccepted();
+
+        Future last = null;
+        for (int i = 0; i < 1000 && session.isStarted(); i++)
+            last = send();
+        assertFalse(last.complete());
+        for (int i = 0; i < 500 && session.isStarted(); i++)
+            Thread.sleep(10);
+        assertFalse(session.isStarted());
+    }
+
+    public void testIllegalWatermark() {
+        try {
+            session.setWriteBufferLowWatermark(session
+                    .getWriteBufferHighWatermark() + 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.util;
+
+import junit.framework.TestCase;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class HistogramTest extends TestCase {
+
+    public void testPercentile() {
+        Histogram histogram = new Histogram(1000000, 5);
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 10000; i++)
+            histogram.record(i);
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 0.001);
+        assertEquals(5000, histogram.getPercentile(50), 5000 / 32);
+        assertEquals(9900, histogram.getPercentile(99), 9900 / 32);
+        assertEquals(10000, histogram.getPercentile(100));
+        assertEquals(1, histogram.getPercentile(0));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        histogram.record(-1); // ignored
+        histogram.record(63);
+        assertEquals(63, histogram.getPercentile(50)); // exact below 64
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1000000, histogram.getMax());
+    }
+
+    public void testConcurrent() throws Exception {
+        final Histogram histogram = new Histogram(1000, 3);
+        final Counter counter = new Counter();
+        final Speed speed = Speed.getInstance();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        histogram.record(j % 100);
+                        counter.increment();
+                        speed.addValue(1);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        assertEquals(800000, histogram.getCount());
+        assertEquals(800000, counter.get());
+        assertEquals(800000, speed.getTotalValue());
+        assertEquals(99, histogram.getMax());
+    }
+
+}
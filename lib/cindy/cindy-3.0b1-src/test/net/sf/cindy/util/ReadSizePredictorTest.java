@@ -0,0 +1,74 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.util;
+
+import junit.framework.TestCase;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class ReadSizePredictorTest extends TestCase {
+
+    public void testInitial() {
+        assertEquals(1024, new ReadSizePredictor(64, 1024, 65536)
+                .getNextReadSize());
+        assertEquals(1024, new ReadSizePredictor(64, 1000, 65536)
+                .getNextReadSize());
+        assertEquals(96, new ReadSizePredictor(90, 90, 65536)
+                .getNextReadSize());
+        try {
+            new ReadSizePredictor(1024, 64, 65536);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testGrow() {
+        ReadSizePredictor predictor = new ReadSizePredictor(64, 1024, 65536);
+        predictor.record(1024); // buffer filled, grow fast
+        assertEquals(16384, predictor.getNextReadSize());
+        predictor.record(16384);
+        assertEquals(65536, predictor.getNextReadSize());
+        predictor.record(65536); // reach maximum
+        assertEquals(65536, predictor.getNextReadSize());
+        predictor.record(40000); // no change
+        assertEquals(65536, predictor.getNextReadSize());
+    }
+
+    public void testShrink() {
+        ReadSizePredictor predictor = new ReadSizePredictor(64, 8192, 65536);
+        predictor.record(100);
+        assertEquals(8192, predictor.getNextReadSize());
+        predictor.record(100); // shrink after two small reads
+        assertEquals(4096, predictor.getNextReadSize());
+        predictor.record(100);
+        predictor.record(3000); // not small enough, keep size
+        assertEquals(4096, predictor.getNextReadSize());
+
+        for (int i = 0; i < 100; i++)
+            predictor.record(10);
+        assertEquals(64, predictor.getNextReadSize()); // reach minimum
+    }
+
+    public void testMaximum() {
+        ReadSizePredictor predictor = new ReadSizePredictor(64, 1024, 3000);
+        for (int i = 0; i < 10; i++)
+            predictor.record(predictor.getNextReadSize());
+        assertEquals(2048, predictor.getNextReadSize());
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import edu.emory.mathcs.backport.java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compare the per second session timeout check cost of full scan and timing
+ * wheel. Each session has a 60 seconds timeout and a random idle time at
+ * the beginning, 1% of them are active in every second. The full scan walks a
+ * <code>ConcurrentHashMap</code> and does a synchronized key lookup per
+ * session, as the old reactor did.
+ *
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class TimingWheelBenchmark {
+
+    private static final int TIMEOUT = 60000;
+    private static final int SECONDS = 120;
+
+    private static class Session extends TimingWheel.Entry {
+
+        private final Object keyLock = new Object(); // like SelectableChannel
+        private int timeout = TIMEOUT;
+        private long lastActiveTime;
+        private int idleTime;
+        private int readyOps;
+
+        public int keyFor() {
+            synchronized (keyLock) {
+                return readyOps;
+            }
+        }
+
+        public int getSessionTimeout() {
+            return timeout;
+        }
+    }
+
+    private static int timeoutCount;
+
+    private static long scan(Session[] sessions, Random random) {
+        Map registered = new ConcurrentHashMap();
+        for (int i = 0; i < sessions.length; i++)
+            registered.put(sessions[i], sessions[i]);
+
+        long start = System.nanoTime();
+        for (int s = 1; s <= SECONDS; s++) {
+            for (int i = 0; i < sessions.length / 100; i++)
+                sessions[random.nextInt(sessions.length)].idleTime = 0;
+            for (Iterator iter = registered.values().iterator(); iter
+                    .hasNext();) {
+                Session session = (Session) iter.next();
+                if (session.keyFor() != 0)
+                    continue;
+                int newIdleTime = session.idleTime + 1000;
+                if (newIdleTime > session.getSessionTimeout()) {
+                    session.idleTime = 0;
+                    timeoutCount++;
+                } else
+                    session.idleTime = newIdleTime;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long wheel(Session[] sessions, Random random) {
+        final TimingWheel wheel = new TimingWheel(100, 512);
+        for (int i = 0; i < sessions.length; i++)
+            wheel.schedule(sessions[i], sessions[i].lastActiveTime + TIMEOUT);
+        TimingWheel.Listener listener = new TimingWheel.Listener() {
+
+            public void expired(TimingWheel.Entry entry, long now) {
+                Session session = (Session) entry;
+                if (now - session.lastActiveTime >= session.getSessionTimeout()) {
+                    session.lastActiveTime = now;
+                    timeoutCount++;
+                }
+                wheel.schedule(session, session.lastActiveTime
+                        + session.getSessionTimeout());
+            }
+        };
+
+        long start = System.nanoTime();
+        for (int s = 1; s <= SECONDS; s++) {
+            long now = s * 1000L;
+            for (int i = 0; i < sessions.length / 100; i++)
+                sessions[random.nextInt(sessions.length)].lastActiveTime = now;
+            wheel.expire(now, listener);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static Session[] newSessions(int count) {
+        Random random = new Random(count);
+        Session[] sessions = new Session[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = new Session();
+            sessions[i].idleTime = random.nextInt(TIMEOUT / 1000) * 1000;
+            sessions[i].lastActiveTime = -sessions[i].idleTime;
+        }
+        return sessions;
+    }
+
+    public static void main(String[] args) {
+        int[] counts = { 10000, 100000, 1000000 };
+        for (int round = 0; round < 2; round++) { // first round is warm up
+            for (int i = 0; i < counts.length; i++) {
+                long scanTime = scan(newSessions(counts[i]), new Random(0));
+                long wheelTime = wheel(newSessions(counts[i]), new Random(0));
+                if (round > 0)
+                    System.out.println(counts[i] + " sessions, per second: scan "
+                            + scanTime / SECONDS / 1000 + "us, wheel "
+                            + wheelTime / SECONDS / 1000 + "us");
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2004-2006 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.cindy.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @author <a href="chenrui@gmail.com">Roger Chen</a>
+ * @version $id$
+ */
+public class TimingWheelTest extends TestCase {
+
+    private static class TestEntry extends TimingWheel.Entry {
+
+        private final long deadline;
+        private long expiredTime = -1;
+
+        public TestEntry(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    private final List expired = new ArrayList();
+
+    private final TimingWheel.Listener listener = new TimingWheel.Listener() {
+
+        public void expired(TimingWheel.Entry entry, long now) {
+            ((TestEntry) entry).expiredTime = now;
+            expired.add(entry);
+        }
+    };
+
+    public void testExpire() {
+        TimingWheel wheel = new TimingWheel(100, 16);
+        Random random = new Random();
+        TestEntry[] entries = new TestEntry[1000];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new TestEntry(random.nextInt(10000));
+            wheel.schedule(entries[i], entries[i].deadline);
+        }
+        assertEquals(entries.length, wheel.size());
+
+        for (long now = 0; now <= 10100; now += random.nextInt(300)) {
+            wheel.expire(now, listener);
+        }
+        wheel.expire(10100, listener);
+
+        assertEquals(0, wheel.size());
+        assertEquals(entries.length, expired.size());
+        for (int i = 0; i < entries.length; i++) {
+            assertFalse(entries[i].isScheduled());
+            assertTrue(entries[i].expiredTime >= entries[i].deadline);
+        }
+    }
+
+    public void testCancel() {
+        TimingWheel wheel = new TimingWheel(10, 4);
+        TestEntry entry1 = new TestEntry(100);
+        TestEntry entry2 = new TestEntry(100);
+        wheel.schedule(entry1, entry1.deadline);
+        wheel.schedule(entry2, entry2.deadline);
+        assertTrue(entry1.isScheduled());
+
+        wheel.cancel(entry1);
+        assertFalse(entry1.isScheduled());
+        assertEquals(1, wheel.size());
+
+        // re-schedule
+        wheel.schedule(entry2, 1000);
+        assertEquals(1, wheel.size());
+        wheel.expire(999, listener);
+        assertTrue(expired.isEmpty());
+        wheel.expire(1000, listener);
+        assertEquals(1, expired.size());
+        assertEquals(entry2, expired.get(0));
+    }
+
+    public void testClear() {
+        TimingWheel wheel = new TimingWheel(10, 4);
+        TestEntry entry = new TestEntry(100);
+        wheel.schedule(entry, entry.deadline);
+        wheel.clear();
+        assertEquals(0, wheel.size());
+        assertFalse(entry.isScheduled());
+        wheel.expire(1000, listener);
+        assertTrue(expired.isEmpty());
+    }
+}